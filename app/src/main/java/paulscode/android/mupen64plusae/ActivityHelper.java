@@ -95,7 +95,10 @@ public class ActivityHelper
         public static final String CAN_VIEW_EXT_STORAGE = NAMESPACE + "CAN_VIEW_EXT_STORAGE";
         public static final String DATABASE_PATH        = NAMESPACE + "GALLERY_DATABASE_PATH";
         public static final String CONFIG_PATH          = NAMESPACE + "GALLERY_CONFIG_PATH";
+        public static final String INDEX_PATH           = NAMESPACE + "GALLERY_INDEX_PATH";
+        public static final String GALLERY_CACHE_PATH   = NAMESPACE + "GALLERY_CACHE_PATH";
         public static final String ART_DIR              = NAMESPACE + "GALLERY_ART_PATH";
+        public static final String ART_QUEUE_PATH       = NAMESPACE + "GALLERY_ART_QUEUE_PATH";
         public static final String SEARCH_ZIPS          = NAMESPACE + "GALLERY_SEARCH_ZIP";
         public static final String DOWNLOAD_ART         = NAMESPACE + "GALLERY_DOWNLOAD_ART";
         public static final String CLEAR_GALLERY        = NAMESPACE + "GALLERY_CLEAR_GALLERY";
@@ -319,15 +322,18 @@ public class ActivityHelper
     }
     
     static void startCacheRomInfoService(Context context, ServiceConnection serviceConnection,
-        String searchUri, String databasePath, String configPath, String artDir,
-        boolean searchZips, boolean downloadArt, boolean clearGallery, boolean searchSubdirectories,
+        String searchUri, String databasePath, String configPath, String indexPath, String galleryCachePath,
+        String artDir, String artQueuePath, boolean searchZips, boolean downloadArt, boolean clearGallery, boolean searchSubdirectories,
         boolean singleFile)
     {
         Intent intent = new Intent(context, CacheRomInfoService.class);
         intent.putExtra(Keys.SEARCH_PATH, searchUri);
         intent.putExtra(Keys.DATABASE_PATH, databasePath);
         intent.putExtra(Keys.CONFIG_PATH, configPath);
+        intent.putExtra(Keys.INDEX_PATH, indexPath);
+        intent.putExtra(Keys.GALLERY_CACHE_PATH, galleryCachePath);
         intent.putExtra(Keys.ART_DIR, artDir);
+        intent.putExtra(Keys.ART_QUEUE_PATH, artQueuePath);
         intent.putExtra(Keys.SEARCH_ZIPS, searchZips);
         intent.putExtra(Keys.DOWNLOAD_ART, downloadArt);
         intent.putExtra(Keys.CLEAR_GALLERY, clearGallery);
@@ -83,12 +83,14 @@ import paulscode.android.mupen64plusae.game.GameActivity;
 import paulscode.android.mupen64plusae.jni.CoreService;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.GalleryCache;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.task.ExtractAssetsOrCleanupTask;
 import paulscode.android.mupen64plusae.task.GalleryRefreshTask;
 import paulscode.android.mupen64plusae.task.GalleryRefreshTask.GalleryRefreshFinishedListener;
 import paulscode.android.mupen64plusae.task.SyncProgramsJobService;
 import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.CoverArtCache;
 import paulscode.android.mupen64plusae.util.DisplayWrapper;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.LocaleContextWrapper;
@@ -108,6 +110,9 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     private static final String STATE_GAME_STARTED_EXTERNALLY = "STATE_GAME_STARTED_EXTERNALLY";
     private static final String STATE_REMOVE_FROM_LIBRARY_DIALOG = "STATE_REMOVE_FROM_LIBRARY_DIALOG";
     private static final String STATE_CLEAR_SHADERCACHE_DIALOG = "STATE_CLEAR_SHADERCACHE_DIALOG";
+
+    /** Number of rows of cover art loaded ahead of scrolling */
+    private static final int PREFETCH_ROWS = 2;
     private static final String STATE_LOCALE_DIALOG = "STATE_LOCALE_DIALOG";
     private static final String STATE_HARDWARE_INFO_POPUP = "STATE_HARDWARE_INFO_POPUP";
     private static final String STATE_SHOW_APP_VERSION_POPUP = "STATE_SHOW_APP_VERSION_POPUP";
@@ -138,6 +143,10 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     public int galleryMaxWidth;
     public int galleryHalfSpacing;
     public int galleryColumns = 2;
+
+    /** Number of columns and item width the grid views were laid out with */
+    private int mGridColumns = 0;
+    private int mGridItemWidth = 0;
     public float galleryAspectRatio;
 
     // Misc.
@@ -159,13 +168,18 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     private String mLaunchGameAfterScan = "";
     private String mScanForGameOnResume = "";
 
-    private ConfigFile mConfig;
+    /** ROM info cache, only loaded when it needs to be written to */
+    private ConfigFile mConfig = null;
+
+    private GalleryCache mGalleryCache;
+    private CoverArtCache mCoverArtCache;
 
     private final Handler mHandler = new Handler(Looper.getMainLooper());
 
     List<GalleryItem> mItemsCache = new ArrayList<>();
     List<GalleryItem> mAllItems = new ArrayList<>();
     List<GalleryItem> mRecentItemsCache = new ArrayList<>();
+    GallerySearchIndex mSearchIndex = null;
 
     ActivityResultLauncher<Intent> mLaunchGame = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -356,12 +370,27 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         // Get app data and user preferences
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
-        mConfig = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
+        mGalleryCache = new GalleryCache(mGlobalPrefs.galleryCache, mGlobalPrefs.romInfoCacheCfg);
+        mCoverArtCache = CoverArtCache.getInstance(mGlobalPrefs.coverArtThumbnailDir);
 
         // Lay out the content
         setContentView( R.layout.gallery_activity );
         mGridView = findViewById( R.id.gridview );
 
+        // Load cover art ahead of the scroll direction
+        mGridView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+                GalleryItem.Adapter adapter = (GalleryItem.Adapter) recyclerView.getAdapter();
+
+                if (dy != 0 && layoutManager != null && adapter != null) {
+                    adapter.prefetch(layoutManager.findFirstVisibleItemPosition(),
+                            layoutManager.findLastVisibleItemPosition(), dy > 0, galleryColumns * PREFETCH_ROWS);
+                }
+            }
+        });
+
         FloatingActionButton floatingActionButton = findViewById(R.id.menuItem_refreshRoms);
 
         if (floatingActionButton != null) {
@@ -554,7 +583,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             int oldHeight = oldBottom - oldTop;
             if( v.getWidth() != oldWidth || v.getHeight() != oldHeight )
             {
-                refreshGrid(mItemsCache, mRecentItemsCache);
+                refreshGrid(getVisibleItems(), mRecentItemsCache);
             }
         });
 
@@ -591,6 +620,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
     @Override
     public void onPause() {
         Log.i("GalleryActivity", "onPause");
+        Log.i("GalleryActivity", "Cover art cache: " + mCoverArtCache.getStats());
 
         super.onPause();
 
@@ -697,7 +727,12 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             {
                 if (!mSearchView.isIconified()) {
                     mSearchQuery = query;
-                    refreshGridAsync();
+
+                    if (mSearchIndex != null) {
+                        refreshGrid(getVisibleItems(), mRecentItemsCache);
+                    } else {
+                        refreshGridAsync();
+                    }
                 }
 
                 return false;
@@ -996,8 +1031,9 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         {
             if(id == REMOVE_FROM_LIBRARY_DIALOG_ID && mSelectedItem != null)
             {
-                mConfig.remove(mSelectedItem.md5);
-                mConfig.save();
+                getRomInfoConfig().remove(mSelectedItem.md5);
+                getRomInfoConfig().save();
+                mGalleryCache.remove(mSelectedItem.md5);
                 mDrawerLayout.closeDrawer( GravityCompat.START, false );
                 refreshGridAsync();
             }
@@ -1020,7 +1056,9 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         // Check if valid image
         if (FileUtil.isFileImage(new File(item.artPath))) {
             // Set the cover art in the sidebar
-            item.loadBitmap(this);
+            // The sidebar art is only constrained by its width
+            final int sidebarArtWidth = (int) getResources().getDimension( R.dimen.gallerySidebarArtWidth );
+            item.loadBitmap(this, mCoverArtCache, sidebarArtWidth, sidebarArtWidth * 2);
             mGameSidebar.setImage(item.artBitmap);
         } else {
             mGameSidebar.setImage(null);
@@ -1076,10 +1114,14 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
 
-        GalleryRefreshTask galleryRefreshTask = new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchQuery, mConfig);
-        
+        GalleryRefreshTask galleryRefreshTask = new GalleryRefreshTask(this, this, mGlobalPrefs, mGalleryCache);
+
+        mItemsCache = new ArrayList<>();
+        mAllItems = new ArrayList<>();
+        mRecentItemsCache = new ArrayList<>();
         galleryRefreshTask.generateGridItemsAndSaveConfig(mItemsCache, mAllItems, mRecentItemsCache);
-        refreshGrid(mItemsCache, mRecentItemsCache);
+        mSearchIndex = galleryRefreshTask.getSearchIndex();
+        refreshGrid(getVisibleItems(), mRecentItemsCache);
 
         SyncProgramsJobService.syncProgramsForChannel(this, mAppData.getChannelId());
     }
@@ -1092,7 +1134,7 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         mAppData = new AppData( this );
         mGlobalPrefs = new GlobalPrefs( this, mAppData );
 
-        GalleryRefreshTask galleryRefreshTask = new GalleryRefreshTask(this, this, mGlobalPrefs, mSearchQuery, mConfig);
+        GalleryRefreshTask galleryRefreshTask = new GalleryRefreshTask(this, this, mGlobalPrefs, mGalleryCache);
         galleryRefreshTask.doInBackground();
 
         SyncProgramsJobService.syncProgramsForChannel(this, mAppData.getChannelId());
@@ -1103,18 +1145,47 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         // This is called once ROM scan is finished, so no longer require the screen to remain on at this point
         getWindow().setFlags( 0, WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON );
 
-        mConfig = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
+        // The scan rewrote the ROM info cache, reload it next time it's needed
+        mConfig = null;
+
+        // Cover art may have been downloaded or replaced
+        mCoverArtCache.clearMemory();
 
         refreshGridAsync();
     }
 
+    private ConfigFile getRomInfoConfig()
+    {
+        if (mConfig == null) {
+            mConfig = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
+        }
+
+        return mConfig;
+    }
+
     @Override
-    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems)
+    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems,
+                                         GallerySearchIndex searchIndex)
     {
-        mItemsCache = items;
-        mAllItems = allItems;
-        mRecentItemsCache = recentItems;
-        runOnUiThread(() -> refreshGrid(mItemsCache, mRecentItemsCache));
+        runOnUiThread(() -> {
+            mItemsCache = items;
+            mAllItems = allItems;
+            mRecentItemsCache = recentItems;
+            mSearchIndex = searchIndex;
+            refreshGrid(getVisibleItems(), mRecentItemsCache);
+        });
+    }
+
+    /**
+     * @return The library items, or the items matching the search query while searching
+     */
+    private List<GalleryItem> getVisibleItems()
+    {
+        if (TextUtils.isEmpty(mSearchQuery) || mSearchIndex == null) {
+            return mItemsCache;
+        }
+
+        return mSearchIndex.search(mSearchQuery);
     }
 
     synchronized void refreshGrid(List<GalleryItem> items, List<GalleryItem> recentItems)
@@ -1132,25 +1203,6 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             items = combinedItems;
         }
 
-        // Allow the headings to take up the entire width of the layout
-        final List<GalleryItem> finalItems = items;
-        final GridLayoutManager layoutManager = new GridLayoutManager( this, galleryColumns );
-        layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
-        {
-            @Override
-            public int getSpanSize( int position )
-            {
-                // Headings will take up every span (column) in the grid
-                if( finalItems.get( position ).isHeading )
-                    return galleryColumns;
-
-                // Games will fit in a single column
-                return 1;
-            }
-        } );
-
-        mGridView.setLayoutManager( layoutManager );
-
         // Update the grid layout
         galleryMaxWidth = (int) (getResources().getDimension( R.dimen.galleryImageWidth ) * mGlobalPrefs.coverArtScale);
         galleryHalfSpacing = (int) getResources().getDimension( R.dimen.galleryHalfSpacing );
@@ -1165,13 +1217,53 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
                 .ceil( width * 1.0 / ( galleryMaxWidth + galleryHalfSpacing * 2 ) );
         galleryWidth = width / galleryColumns - galleryHalfSpacing * 2;
 
-        layoutManager.setSpanCount( galleryColumns );
+        List<GalleryItem> galleryItems = items;
+        GalleryItem.Adapter adapter = (GalleryItem.Adapter) mGridView.getAdapter();
 
-        mGridView.setFocusable(false);
-        mGridView.setFocusableInTouchMode(false);
+        if (adapter != null && mGridView.getLayoutManager() != null &&
+                galleryColumns == mGridColumns && galleryWidth == mGridItemWidth) {
+            // The layout didn't change, only update the items that changed
+            adapter.setItems( items );
+        } else {
+            // Allow the headings to take up the entire width of the layout
+            final GridLayoutManager layoutManager = new GridLayoutManager( this, galleryColumns );
+            layoutManager.setSpanSizeLookup( new GridLayoutManager.SpanSizeLookup()
+            {
+                @Override
+                public int getSpanSize( int position )
+                {
+                    // Headings will take up every span (column) in the grid
+                    GalleryItem.Adapter gridAdapter = (GalleryItem.Adapter) mGridView.getAdapter();
+                    if( gridAdapter != null && gridAdapter.getItem( position ).isHeading )
+                        return galleryColumns;
 
-        List<GalleryItem> galleryItems = items;
-        mGridView.setAdapter( new GalleryItem.Adapter( this, items ) );
+                    // Games will fit in a single column
+                    return 1;
+                }
+            } );
+
+            mGridView.setLayoutManager( layoutManager );
+
+            mGridView.setFocusable(false);
+            mGridView.setFocusableInTouchMode(false);
+
+            if (adapter != null) {
+                adapter.shutdown();
+            }
+            mGridView.setAdapter( new GalleryItem.Adapter( this, items, mCoverArtCache ) );
+
+            if (mGridView.getAdapter() != null) {
+                mGridView.getAdapter().notifyDataSetChanged();
+            }
+
+            if (mGridView.getLayoutManager() != null) {
+                mGridView.getLayoutManager().scrollToPosition(mCurrentVisiblePosition);
+            }
+            mCurrentVisiblePosition = 0;
+
+            mGridColumns = galleryColumns;
+            mGridItemWidth = galleryWidth;
+        }
 
         if (mSelectedItem != null) {
             // Repopulate the game sidebar
@@ -1183,21 +1275,12 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
             }
         }
 
-        if (mGridView.getAdapter() != null) {
-            mGridView.getAdapter().notifyDataSetChanged();
-        }
-
         if(galleryItems.size() > 0) {
             findViewById(R.id.gallery_empty_icon).setVisibility(View.INVISIBLE);
         } else {
             findViewById(R.id.gallery_empty_icon).setVisibility(View.VISIBLE);
         }
 
-        if (mGridView.getLayoutManager() != null) {
-            mGridView.getLayoutManager().scrollToPosition(mCurrentVisiblePosition);
-        }
-        mCurrentVisiblePosition = 0;
-
         // We were asked to launch a game after a scan completes, so do it here
         if (!TextUtils.isEmpty(mLaunchGameAfterScan)) {
             launchGameOnCreation(mLaunchGameAfterScan, false);
@@ -1223,10 +1306,11 @@ public class GalleryActivity extends AppCompatActivity implements GameSidebarAct
         }
 
         // Update the ConfigSection with the new value for lastPlayed
-        final String lastPlayed = Integer.toString( (int) ( new Date().getTime() / 1000 ) );
+        final int lastPlayed = (int) ( new Date().getTime() / 1000 );
 
-        mConfig.put(romMd5, "lastPlayed", lastPlayed);
-        mConfig.save();
+        getRomInfoConfig().put(romMd5, "lastPlayed", Integer.toString(lastPlayed));
+        getRomInfoConfig().save();
+        mGalleryCache.setLastPlayed(romMd5, lastPlayed);
 
         ///Drawer layout can be null if this method is called from onCreate
         if (mDrawerLayout != null) {
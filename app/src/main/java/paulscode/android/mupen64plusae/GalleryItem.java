@@ -22,10 +22,13 @@ package paulscode.android.mupen64plusae;
 
 import android.app.Activity;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 
 import androidx.annotation.NonNull;
 import androidx.documentfile.provider.DocumentFile;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import android.net.Uri;
@@ -48,6 +51,7 @@ import java.util.List;
 
 import paulscode.android.mupen64plusae.task.LoadBitmapTask;
 import paulscode.android.mupen64plusae.util.CountryCode;
+import paulscode.android.mupen64plusae.util.CoverArtCache;
 import paulscode.android.mupen64plusae.util.FileUtil;
 
 @SuppressWarnings("WeakerAccess")
@@ -60,6 +64,8 @@ public class GalleryItem
     public final String goodName;
     public final String displayName;
     public final String artPath;
+    /** Modification time of the cover art when this item was created, 0 if there is none */
+    public final long artLastModified;
     public final int lastPlayed;
     public final String romUri;
     public final String zipUri;
@@ -79,6 +85,7 @@ public class GalleryItem
         this.displayName = displayName;
         this.context = new WeakReference<>(context);
         this.artPath = artPath;
+        this.artLastModified = artPath != null ? new File(artPath).lastModified() : 0;
         this.artBitmap = null;
         this.lastPlayed = lastPlayed;
         this.isHeading = false;
@@ -98,6 +105,7 @@ public class GalleryItem
         this.headerName = "";
         this.countryCode = CountryCode.UNKNOWN;
         this.artPath = "";
+        this.artLastModified = 0;
         this.artBitmap = null;
         this.lastPlayed = 0;
         this.romUri = null;
@@ -105,13 +113,14 @@ public class GalleryItem
         this.scale = 1.0f;
     }
     
-    void loadBitmap(Context context)
+    void loadBitmap(Context context, CoverArtCache coverArtCache, int width, int height)
     {
         if( artBitmap != null )
             return;
 
-        if( !TextUtils.isEmpty( artPath ) && new File( artPath ).exists())
-            artBitmap = new BitmapDrawable( context.getResources(), artPath );
+        Bitmap bitmap = coverArtCache.load( md5, artPath, width, height );
+        if( bitmap != null )
+            artBitmap = new BitmapDrawable( context.getResources(), bitmap );
     }
 
     @NonNull
@@ -208,21 +217,124 @@ public class GalleryItem
     
     public static class Adapter extends RecyclerView.Adapter<ViewHolder>
     {
+        private static final DiffUtil.ItemCallback<GalleryItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<GalleryItem>()
+        {
+            @Override
+            public boolean areItemsTheSame( @NonNull GalleryItem oldItem, @NonNull GalleryItem newItem )
+            {
+                // Headings have no MD5, tell them apart by their name
+                if( oldItem.isHeading || newItem.isHeading )
+                    return oldItem.isHeading == newItem.isHeading &&
+                            TextUtils.equals( oldItem.displayName, newItem.displayName );
+
+                return oldItem.md5.equals( newItem.md5 );
+            }
+
+            @Override
+            public boolean areContentsTheSame( @NonNull GalleryItem oldItem, @NonNull GalleryItem newItem )
+            {
+                // Art downloaded or replaced for a ROM keeps the same path, only its modification
+                // time tells the cell to load it again
+                return TextUtils.equals( oldItem.displayName, newItem.displayName ) &&
+                        TextUtils.equals( oldItem.goodName, newItem.goodName ) &&
+                        TextUtils.equals( oldItem.artPath, newItem.artPath ) &&
+                        oldItem.artLastModified == newItem.artLastModified &&
+                        oldItem.scale == newItem.scale;
+            }
+        };
+
         private final WeakReference<Activity> mActivity;
-        private final List<GalleryItem> mObjects;
+        private final AsyncListDiffer<GalleryItem> mDiffer;
         private final LoadBitmapTask mLoadBitMapTask;
+
+        /** First position and direction of the last prefetch */
+        private int mPrefetchPosition = -1;
+        private boolean mPrefetchForward = true;
         
-        public Adapter( Activity activity, List<GalleryItem> objects )
+        public Adapter( Activity activity, List<GalleryItem> objects, CoverArtCache coverArtCache )
         {
             mActivity = new WeakReference<>(activity);
-            mObjects = objects;
-            mLoadBitMapTask = new LoadBitmapTask(activity);
+            mDiffer = new AsyncListDiffer<>( this, DIFF_CALLBACK );
+            mDiffer.submitList( objects );
+            mLoadBitMapTask = new LoadBitmapTask(activity, coverArtCache);
+        }
+
+        /**
+         * Stop loading cover art, call this when the adapter is no longer used
+         */
+        public void shutdown()
+        {
+            mLoadBitMapTask.Shutdown();
+        }
+
+        /**
+         * Load cover art of the items about to be scrolled into view
+         * @param firstVisible First visible position
+         * @param lastVisible Last visible position
+         * @param forward True if scrolling towards the end of the list
+         * @param count Number of items to prefetch
+         */
+        public void prefetch( int firstVisible, int lastVisible, boolean forward, int count )
+        {
+            Activity tempActivity = mActivity.get();
+            if( !( tempActivity instanceof GalleryActivity ) || firstVisible < 0 || lastVisible < 0 )
+                return;
+
+            final int start = forward ? lastVisible + 1 : firstVisible - 1;
+            if( start == mPrefetchPosition && forward == mPrefetchForward )
+                return;
+
+            // Anything still queued for the other direction won't be needed soon
+            if( forward != mPrefetchForward )
+                mLoadBitMapTask.cancelPrefetches();
+
+            mPrefetchPosition = start;
+            mPrefetchForward = forward;
+
+            GalleryActivity activity = (GalleryActivity) tempActivity;
+            final int width = activity.galleryWidth;
+            final int height = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
+
+            for( int offset = 0; offset < count; ++offset )
+            {
+                final int position = forward ? start + offset : start - offset;
+                if( position < 0 || position >= mDiffer.getCurrentList().size() )
+                    break;
+
+                GalleryItem item = mDiffer.getCurrentList().get( position );
+                if( !item.isHeading )
+                    mLoadBitMapTask.prefetch( item.md5, item.artPath, width, height );
+            }
+        }
+
+        @Override
+        public void onViewRecycled( @NonNull ViewHolder holder )
+        {
+            // The view is off screen, its cover art is no longer needed
+            mLoadBitMapTask.cancel( holder.hashCode() );
         }
         
         @Override
         public int getItemCount()
         {
-            return mObjects.size();
+            return mDiffer.getCurrentList().size();
+        }
+
+        public GalleryItem getItem( int position )
+        {
+            return mDiffer.getCurrentList().get( position );
+        }
+
+        /**
+         * Replace the items, only notifying the changes between the old and new items. Large
+         * libraries take a while to compare, so the changes are found on a background thread and
+         * the items are replaced once that is done. A newer call replaces the items of an older
+         * one that hasn't finished yet.
+         * @param objects New items
+         */
+        public void setItems( final List<GalleryItem> objects )
+        {
+            mDiffer.submitList( objects );
         }
         
         @Override
@@ -234,7 +346,7 @@ public class GalleryItem
         @Override
         public int getItemViewType( int position )
         {
-            return mObjects.get( position ).isHeading ? 1 : 0;
+            return mDiffer.getCurrentList().get( position ).isHeading ? 1 : 0;
         }
 
         @Override
@@ -248,7 +360,7 @@ public class GalleryItem
 
             // Called by RecyclerView to display the data at the specified position.
             View view = holder.itemView;
-            GalleryItem item = mObjects.get( position );
+            GalleryItem item = mDiffer.getCurrentList().get( position );
             holder.item = item;
             
             if( item != null )
@@ -290,10 +402,12 @@ public class GalleryItem
                         artView.setImageResource( R.drawable.default_coverart );
 
                         //Load the real cover art in a background task
-                        mLoadBitMapTask.loadInBackGround(holder.hashCode(), item.artPath, artView);
+                        final int artHeight = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
+                        mLoadBitMapTask.loadInBackGround(holder.hashCode(), item.md5, item.artPath,
+                                item.artLastModified, activity.galleryWidth, artHeight, artView);
 
                         artView.getLayoutParams().width = activity.galleryWidth;
-                        artView.getLayoutParams().height = (int) ( activity.galleryWidth / activity.galleryAspectRatio );
+                        artView.getLayoutParams().height = artHeight;
 
                         LinearLayout layout = view.findViewById( R.id.info );
                         layout.getLayoutParams().width = activity.galleryWidth;
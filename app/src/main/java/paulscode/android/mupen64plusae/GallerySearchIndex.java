@@ -0,0 +1,233 @@
+package paulscode.android.mupen64plusae;
+
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * In memory trigram index over the gallery, built once per gallery refresh. Every three character
+ * substring of the lower cased searchable text maps to the sorted indices of the items that
+ * contain it. A query token of three or more characters can only match the items in the
+ * intersection of the lists of its trigrams, so only those are compared against the query.
+ * Queries that only narrow down the previous query (the usual case while typing) start from the
+ * previous matches instead of the whole library.
+ */
+public class GallerySearchIndex
+{
+    /** Separates the searchable fields so that tokens can't match across two fields */
+    private static final char FIELD_SEPARATOR = '\n';
+
+    private static final int GRAM_LENGTH = 3;
+
+    private final List<GalleryItem> mItems = new ArrayList<>();
+    private final List<String> mSearchText = new ArrayList<>();
+
+    /** Sorted indices of the items that contain a trigram */
+    private static class Posting
+    {
+        int[] items = new int[4];
+        int size = 0;
+    }
+
+    private final HashMap<Long, Posting> mPostings = new HashMap<>();
+
+    /** Tokens of the last query and indices of the items it matched */
+    private String[] mLastTokens = null;
+    private int[] mLastMatches = null;
+    private int mLastMatchCount = 0;
+
+    /**
+     * Add an item, items are returned by searches in the order they were added
+     * @param item Item to add
+     * @param fileName Name of the ROM file
+     */
+    public synchronized void add(GalleryItem item, String fileName)
+    {
+        StringBuilder text = new StringBuilder();
+        appendField(text, item.displayName);
+        appendField(text, item.goodName);
+        appendField(text, item.headerName);
+        appendField(text, fileName);
+
+        final int itemIndex = mItems.size();
+        final String searchText = text.toString().toLowerCase(Locale.US);
+        mItems.add(item);
+        mSearchText.add(searchText);
+
+        // Trigrams that span two fields can't be part of a match
+        int nextSeparator = searchText.indexOf(FIELD_SEPARATOR);
+        for (int start = 0; start + GRAM_LENGTH <= searchText.length(); ++start) {
+            if (nextSeparator >= 0 && nextSeparator < start) {
+                nextSeparator = searchText.indexOf(FIELD_SEPARATOR, start);
+            }
+            if (nextSeparator < 0 || nextSeparator >= start + GRAM_LENGTH) {
+                addPosting(gramKey(searchText, start), itemIndex);
+            }
+        }
+
+        mLastTokens = null;
+    }
+
+    /**
+     * Find all items whose display name, good name, header name or file name contain every
+     * space separated token of the query
+     * @param query Search query
+     * @return Matching items
+     */
+    public synchronized List<GalleryItem> search(String query)
+    {
+        final String[] tokens = tokenize(query);
+
+        // Null means every item
+        int[] candidates = null;
+        int candidateCount = mItems.size();
+
+        if (mLastTokens != null && refines(tokens, mLastTokens)) {
+            candidates = mLastMatches;
+            candidateCount = mLastMatchCount;
+        }
+
+        for (String token : tokens) {
+            for (int start = 0; start + GRAM_LENGTH <= token.length() && candidateCount > 0; ++start) {
+                final Posting posting = mPostings.get(gramKey(token, start));
+
+                if (posting == null) {
+                    candidateCount = 0;
+                } else if (candidates == null) {
+                    candidates = posting.items;
+                    candidateCount = posting.size;
+                } else {
+                    int[] intersection = new int[Math.min(candidateCount, posting.size)];
+                    candidateCount = intersect(candidates, candidateCount, posting.items, posting.size, intersection);
+                    candidates = intersection;
+                }
+            }
+        }
+
+        // Trigrams only narrow down the candidates, short tokens and the order of the trigrams
+        // still have to be checked against the text
+        int[] matches = new int[candidateCount];
+        int matchCount = 0;
+
+        for (int candidate = 0; candidate < candidateCount; ++candidate) {
+            final int itemIndex = candidates == null ? candidate : candidates[candidate];
+            final String text = mSearchText.get(itemIndex);
+
+            boolean matchesAll = true;
+            for (String token : tokens) {
+                if (!text.contains(token)) {
+                    matchesAll = false;
+                    break;
+                }
+            }
+
+            if (matchesAll) {
+                matches[matchCount++] = itemIndex;
+            }
+        }
+
+        mLastTokens = tokens;
+        mLastMatches = matches;
+        mLastMatchCount = matchCount;
+
+        List<GalleryItem> results = new ArrayList<>(matchCount);
+        for (int index = 0; index < matchCount; ++index) {
+            results.add(mItems.get(matches[index]));
+        }
+        return results;
+    }
+
+    private void addPosting(long key, int itemIndex)
+    {
+        Posting posting = mPostings.get(key);
+        if (posting == null) {
+            posting = new Posting();
+            mPostings.put(key, posting);
+        }
+
+        // Items are added in order, so the item is already there if a trigram repeats in its text
+        if (posting.size > 0 && posting.items[posting.size - 1] == itemIndex) {
+            return;
+        }
+
+        if (posting.size == posting.items.length) {
+            int[] grown = new int[posting.size * 2];
+            System.arraycopy(posting.items, 0, grown, 0, posting.size);
+            posting.items = grown;
+        }
+
+        posting.items[posting.size++] = itemIndex;
+    }
+
+    /**
+     * Intersect two sorted lists of item indices
+     * @return Number of indices written to the result
+     */
+    private static int intersect(int[] lhs, int lhsCount, int[] rhs, int rhsCount, int[] result)
+    {
+        int lhsIndex = 0;
+        int rhsIndex = 0;
+        int resultCount = 0;
+
+        while (lhsIndex < lhsCount && rhsIndex < rhsCount) {
+            if (lhs[lhsIndex] < rhs[rhsIndex]) {
+                ++lhsIndex;
+            } else if (lhs[lhsIndex] > rhs[rhsIndex]) {
+                ++rhsIndex;
+            } else {
+                result[resultCount++] = lhs[lhsIndex];
+                ++lhsIndex;
+                ++rhsIndex;
+            }
+        }
+        return resultCount;
+    }
+
+    private static long gramKey(String text, int start)
+    {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    private static void appendField(StringBuilder text, String field)
+    {
+        if (!TextUtils.isEmpty(field)) {
+            text.append(field).append(FIELD_SEPARATOR);
+        }
+    }
+
+    private static String[] tokenize(String query)
+    {
+        List<String> tokens = new ArrayList<>();
+        for (String token : query.toLowerCase(Locale.US).split(" ")) {
+            if (token.length() > 0) {
+                tokens.add(token);
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * Returns true if anything matching the new tokens is guaranteed to match the old tokens,
+     * which is the case when every old token is contained in one of the new tokens
+     */
+    private static boolean refines(String[] tokens, String[] oldTokens)
+    {
+        for (String oldToken : oldTokens) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.contains(oldToken)) {
+                    found = true;
+                    break;
+                }
+            }
+
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
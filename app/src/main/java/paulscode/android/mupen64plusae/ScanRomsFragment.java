@@ -193,7 +193,9 @@ public class ScanRomsFragment extends Fragment implements CacheRomInfoListener
         // Asynchronously search for ROMs
         ActivityHelper.startCacheRomInfoService(activity.getApplicationContext(), serviceConnection,
                 mViewModel.mSearchUri, mViewModel.mAppData.mupen64plus_ini, mViewModel.mGlobalPrefs.romInfoCacheCfg,
-                mViewModel.mGlobalPrefs.coverArtDir, mViewModel.mSearchZips,
+                mViewModel.mGlobalPrefs.romInfoCacheIndex, mViewModel.mGlobalPrefs.galleryCache,
+                mViewModel.mGlobalPrefs.coverArtDir,
+                mViewModel.mGlobalPrefs.coverArtDownloadQueue, mViewModel.mSearchZips,
                 mViewModel.mDownloadArt, mViewModel.mClearGallery, mViewModel.mSearchSubdirectories, mViewModel.mSearchSingleFile);
     }
     
@@ -23,16 +23,21 @@ package paulscode.android.mupen64plusae.game;
 import android.content.Context;
 import android.content.res.Resources;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
 
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import paulscode.android.mupen64plusae.input.map.TouchMap;
 import paulscode.android.mupen64plusae.jni.CoreInterface;
+import paulscode.android.mupen64plusae.netplay.NetplayFragment;
+import paulscode.android.mupen64plusae.netplay.NetplayTelemetry;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
 import paulscode.android.mupen64plusae.util.Image;
@@ -104,6 +109,29 @@ public class FpsOverlay extends View implements CoreInterface.OnFpsChangedListen
     /** The set of images representing the numerals 0, 1, 2, ..., 9. */
     private final Image[] mNumerals;
 
+    /** Number of frames shown in the frame time graph. */
+    private static final int GRAPH_FRAMES = 120;
+
+    /** Frame time at the top of the graph, in milliseconds. */
+    private static final float GRAPH_MAX_MS = 50.0f;
+
+    /** How often the frame time graph is redrawn, in milliseconds. */
+    private static final long GRAPH_REFRESH_MS = 100;
+
+    /** Source of the frame time graph, null if the graph is hidden. */
+    private FrameTimingRecorder mFrameTiming = null;
+
+    /** Frames shown in the frame time graph. */
+    private final FrameTimingRecorder.Snapshot mGraphFrames = new FrameTimingRecorder.Snapshot( GRAPH_FRAMES );
+
+    /** Source of the netplay statistics, null if they are hidden. */
+    private NetplayFragment mNetplayFragment = null;
+
+    private final Paint mGraphBackgroundPaint = new Paint();
+    private final Paint mGraphBarPaint = new Paint();
+    private final Paint mGraphLinePaint = new Paint();
+    private final Paint mGraphTextPaint = new Paint( Paint.ANTI_ALIAS_FLAG );
+
     /**
      * Instantiates a new visible touch map.
      *
@@ -116,6 +144,32 @@ public class FpsOverlay extends View implements CoreInterface.OnFpsChangedListen
 
         mFpsDigits = new CopyOnWriteArrayList<>();
         mNumerals = new Image[10];
+
+        mGraphBackgroundPaint.setColor( Color.argb( 128, 0, 0, 0 ) );
+        mGraphLinePaint.setColor( Color.argb( 160, 255, 255, 255 ) );
+        mGraphTextPaint.setColor( Color.WHITE );
+    }
+
+    /**
+     * Shows a graph of the time between recent frames.
+     *
+     * @param frameTiming Recorder of the frames, null to hide the graph.
+     */
+    public void setFrameTimingRecorder( FrameTimingRecorder frameTiming )
+    {
+        mFrameTiming = frameTiming;
+        postInvalidate();
+    }
+
+    /**
+     * Shows the network statistics of the netplay session hosted on this device.
+     *
+     * @param netplayFragment Fragment running the netplay server, null to hide the statistics.
+     */
+    public void setNetplayFragment( NetplayFragment netplayFragment )
+    {
+        mNetplayFragment = netplayFragment;
+        postInvalidate();
     }
 
     public void clear()
@@ -359,6 +413,95 @@ public class FpsOverlay extends View implements CoreInterface.OnFpsChangedListen
 
         // Redraw the dynamic frame rate info
         drawFps( canvas );
+
+        if( mFrameTiming != null )
+            drawFrameTimeGraph( canvas );
+
+        if( mNetplayFragment != null )
+            drawNetplayStats( canvas );
+
+        if( mFrameTiming != null || mNetplayFragment != null )
+            postInvalidateDelayed( GRAPH_REFRESH_MS );
+    }
+
+    /**
+     * Draws the network statistics of each connected player in the top left corner.
+     *
+     * @param canvas The canvas on which to draw.
+     */
+    private void drawNetplayStats( Canvas canvas )
+    {
+        NetplayTelemetry telemetry = mNetplayFragment.getTelemetry();
+        if( telemetry == null )
+            return;
+
+        final float density = getResources().getDisplayMetrics().density;
+        final float lineHeight = 13 * density;
+        final float left = 8 * density;
+        float y = 8 * density + lineHeight;
+
+        mGraphTextPaint.setTextSize( 11 * density );
+
+        for( int playerIndex = 0; playerIndex < telemetry.getNumPlayers(); playerIndex++ )
+        {
+            NetplayTelemetry.PlayerStats player = telemetry.getPlayer( playerIndex );
+            if( player.getPacketsIn() == 0 )
+                continue;
+
+            canvas.drawText( String.format( Locale.US, "P%d  rtt %d/%d ms  jitter %d ms  lag %d  buffer %d  in %d",
+                    playerIndex + 1, player.roundTripMs.getPercentile( 50 ), player.roundTripMs.getPercentile( 95 ),
+                    player.jitterMs.getPercentile( 95 ), player.countLag.getPercentile( 95 ),
+                    player.getBufferSize(), player.getPacketsIn() ), left, y, mGraphTextPaint );
+            y += lineHeight;
+        }
+    }
+
+    /**
+     * Draws the time between recent frames in the top right corner, with lines at 60 and 30 FPS.
+     *
+     * @param canvas The canvas on which to draw.
+     */
+    private void drawFrameTimeGraph( Canvas canvas )
+    {
+        final long frameCount = mFrameTiming.getFrameCount();
+        mFrameTiming.read( mGraphFrames, frameCount - GRAPH_FRAMES, frameCount );
+
+        final float density = getResources().getDisplayMetrics().density;
+        final float width = getWidth() * 0.35f;
+        final float height = getHeight() * 0.18f;
+        final float left = getWidth() - width - 8 * density;
+        final float top = 8 * density;
+        final float bottom = top + height;
+        final float barWidth = width / GRAPH_FRAMES;
+
+        canvas.drawRect( left, top, left + width, bottom, mGraphBackgroundPaint );
+
+        for( int index = 1; index < mGraphFrames.count; index++ )
+        {
+            final float intervalMs = mGraphFrames.getInterval( index ) / 1e6f;
+
+            if( intervalMs <= 1000.0f / 60 * 1.5f )
+                mGraphBarPaint.setColor( Color.GREEN );
+            else if( intervalMs <= 1000.0f / 30 * 1.5f )
+                mGraphBarPaint.setColor( Color.YELLOW );
+            else
+                mGraphBarPaint.setColor( Color.RED );
+
+            final float barHeight = Math.min( intervalMs / GRAPH_MAX_MS, 1.0f ) * height;
+            final float x = left + ( GRAPH_FRAMES - mGraphFrames.count + index ) * barWidth;
+            canvas.drawRect( x, bottom - barHeight, x + Math.max( barWidth - 1, 1 ), bottom, mGraphBarPaint );
+        }
+
+        final float line60 = bottom - ( 1000.0f / 60 ) / GRAPH_MAX_MS * height;
+        final float line30 = bottom - ( 1000.0f / 30 ) / GRAPH_MAX_MS * height;
+        canvas.drawLine( left, line60, left + width, line60, mGraphLinePaint );
+        canvas.drawLine( left, line30, left + width, line30, mGraphLinePaint );
+
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats( mGraphFrames );
+        mGraphTextPaint.setTextSize( 11 * density );
+        canvas.drawText( String.format( Locale.US, "p50 %.1f  p99 %.1f  max %.1f ms  dup %d  drop %d",
+                stats.intervalP50, stats.intervalP99, stats.intervalMax, stats.duplicated, stats.dropped ),
+                left + 4 * density, bottom + 13 * density, mGraphTextPaint );
     }
 
     @Override
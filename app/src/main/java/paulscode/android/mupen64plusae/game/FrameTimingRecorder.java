@@ -0,0 +1,559 @@
+package paulscode.android.mupen64plusae.game;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the timing of every frame drawn by the render thread into a fixed size ring. Only the
+ * render thread writes, other threads can read recent frames at any time without locking: a frame
+ * is published by updating the frame count after all of its values are written, and readers
+ * discard frames that may have been overwritten while they were copying.
+ *
+ * For each frame this keeps when the SurfaceTexture reported it, the Choreographer frame time when
+ * drawing is vsync driven, the CPU time of the shader passes, their GPU time when the driver
+ * supports timer queries, the time spent in eglSwapBuffers and the time the swap returned. The
+ * SurfaceTexture timestamp of the drawn frame tells whether a frame was drawn twice or frames from
+ * the core were never drawn. Games run at 60, 30, 20 FPS or other rates, so a gap between images
+ * only counts as dropped frames when it's longer than the median of the recent gaps.
+ *
+ * The frames can also be streamed to a CSV trace file to compare frame pacing between releases.
+ */
+class FrameTimingRecorder {
+
+    private static final String TAG = "FrameTimingRecorder";
+
+    // Number of frames kept, must be a power of two
+    static final int CAPACITY = 1024;
+
+    // Frames close to the write position may be overwritten while being read
+    static final int READ_MARGIN = 8;
+
+    // Recent gaps between images from the core, their median is the frame interval of the game
+    static final int CONTENT_INTERVAL_WINDOW = 31;
+
+    // GPU timer queries in flight, results are read a few frames later
+    private static final int GPU_QUERY_COUNT = 4;
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // How often frames are written to the trace file
+    private static final long TRACE_FLUSH_MS = 1000;
+
+    /**
+     * Copy of recent frames, times are in nanoseconds
+     */
+    static class Snapshot {
+        /** Index of the first frame since recording started */
+        long firstFrame;
+        int count;
+        final long[] presentTime;
+        final long[] frameAvailableTime;
+        final long[] vsyncTime;
+        final long[] contentTimestamp;
+        final int[] cpuTime;
+        final int[] gpuTime;
+        final int[] swapTime;
+        final int[] droppedBefore;
+
+        Snapshot(int capacity) {
+            presentTime = new long[capacity];
+            frameAvailableTime = new long[capacity];
+            vsyncTime = new long[capacity];
+            contentTimestamp = new long[capacity];
+            cpuTime = new int[capacity];
+            gpuTime = new int[capacity];
+            swapTime = new int[capacity];
+            droppedBefore = new int[capacity];
+        }
+
+        /**
+         * @return Time between this frame and the previous one, 0 for the first frame
+         */
+        long getInterval(int index) {
+            return index == 0 ? 0 : presentTime[index] - presentTime[index - 1];
+        }
+
+        /**
+         * @return True if this frame showed the same image as the previous one
+         */
+        boolean isDuplicate(int index) {
+            return index > 0 && contentTimestamp[index] != 0 && contentTimestamp[index] == contentTimestamp[index - 1];
+        }
+    }
+
+    /**
+     * Frame pacing summary, times are in milliseconds
+     */
+    static class Stats {
+        int frames;
+        float intervalP50;
+        float intervalP95;
+        float intervalP99;
+        float intervalMax;
+        float cpuP50;
+        float cpuP99;
+        /** -1 if GPU times aren't available */
+        float gpuP50;
+        float gpuP99;
+        int duplicated;
+        int dropped;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d frames, interval p50=%.2f p95=%.2f p99=%.2f max=%.2f, cpu p50=%.2f p99=%.2f, gpu p50=%.2f p99=%.2f, %d duplicated, %d dropped",
+                    frames, intervalP50, intervalP95, intervalP99, intervalMax, cpuP50, cpuP99, gpuP50, gpuP99,
+                    duplicated, dropped);
+        }
+    }
+
+    private final long[] mPresentTime = new long[CAPACITY];
+    private final long[] mFrameAvailableTime = new long[CAPACITY];
+    private final long[] mVsyncTime = new long[CAPACITY];
+    private final long[] mContentTimestamp = new long[CAPACITY];
+    private final int[] mCpuTime = new int[CAPACITY];
+    private final int[] mGpuTime = new int[CAPACITY];
+    private final int[] mSwapTime = new int[CAPACITY];
+    private final int[] mDroppedBefore = new int[CAPACITY];
+
+    // Frames published so far, written only by the render thread
+    private volatile long mFrameCount = 0;
+
+    // Render thread state
+    private long mPendingFrameAvailableTime = 0;
+    private long mPendingVsyncTime = 0;
+    private long mLastContentTimestamp = 0;
+    private final long[] mContentIntervals = new long[CONTENT_INTERVAL_WINDOW];
+    private final long[] mSortedContentIntervals = new long[CONTENT_INTERVAL_WINDOW];
+    private int mContentIntervalCount = 0;
+    private Boolean mGpuTimerSupported = null;
+    private final int[] mGpuQueries = new int[GPU_QUERY_COUNT];
+    private final long[] mGpuQueryFrame = new long[GPU_QUERY_COUNT];
+    private int mGpuQueryIndex = 0;
+    private boolean mGpuQueryActive = false;
+    private final int[] mGlResult = new int[1];
+
+    // Runs the trace, only used from the thread that starts and stops it
+    private ScheduledExecutorService mTraceExecutor = null;
+    private CountDownLatch mTraceClosed = null;
+
+    // Trace state, only used from the trace thread
+    private BufferedWriter mTraceWriter = null;
+    private long mTraceNextFrame = 0;
+    private long mTraceLastPresentTime = 0;
+    private long mTraceLastContentTimestamp = 0;
+    private Snapshot mTraceSnapshot = null;
+
+    /**
+     * A new frame is available from the SurfaceTexture. Call from the render thread.
+     */
+    void onFrameAvailable(long timeNanos) {
+        if (mPendingFrameAvailableTime == 0) {
+            mPendingFrameAvailableTime = timeNanos;
+        }
+    }
+
+    /**
+     * Drawing was triggered by a Choreographer frame. Call from the render thread.
+     */
+    void onVsync(long frameTimeNanos) {
+        mPendingVsyncTime = frameTimeNanos;
+    }
+
+    /**
+     * Start timing the GPU work of a frame. Call from the render thread with the context current.
+     */
+    void beginGpuTimer() {
+        if (mGpuTimerSupported == null) {
+            final String version = GLES20.glGetString(GLES20.GL_VERSION);
+            final String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+            mGpuTimerSupported = version != null && version.startsWith("OpenGL ES 3") &&
+                    extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+            Log.i(TAG, "GPU timer queries: " + mGpuTimerSupported);
+
+            if (mGpuTimerSupported) {
+                GLES30.glGenQueries(GPU_QUERY_COUNT, mGpuQueries, 0);
+                Arrays.fill(mGpuQueryFrame, -1);
+            }
+        }
+
+        if (!mGpuTimerSupported) {
+            return;
+        }
+
+        collectGpuTimes();
+
+        // Skip timing this frame if the oldest query still hasn't completed
+        if (mGpuQueryFrame[mGpuQueryIndex] < 0) {
+            GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mGpuQueries[mGpuQueryIndex]);
+            mGpuQueryActive = true;
+        }
+    }
+
+    /**
+     * Stop timing the GPU work of the frame, call before {@link #recordFrame}
+     */
+    void endGpuTimer() {
+        if (mGpuQueryActive) {
+            GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+            mGpuQueryActive = false;
+            mGpuQueryFrame[mGpuQueryIndex] = mFrameCount;
+            mGpuQueryIndex = (mGpuQueryIndex + 1) % GPU_QUERY_COUNT;
+        }
+    }
+
+    /**
+     * Record a frame that was drawn and presented. Call from the render thread.
+     * @param contentTimestamp SurfaceTexture timestamp of the drawn image, 0 if unknown
+     * @param drawStart Time drawing started
+     * @param drawEnd Time the shader passes were submitted
+     * @param presentTime Time eglSwapBuffers returned
+     */
+    void recordFrame(long contentTimestamp, long drawStart, long drawEnd, long presentTime) {
+        final long frame = mFrameCount;
+        final int index = (int) (frame & (CAPACITY - 1));
+
+        mPresentTime[index] = presentTime;
+        mFrameAvailableTime[index] = mPendingFrameAvailableTime;
+        mVsyncTime[index] = mPendingVsyncTime;
+        mContentTimestamp[index] = contentTimestamp;
+        mCpuTime[index] = (int) (drawEnd - drawStart);
+        mGpuTime[index] = -1;
+        mSwapTime[index] = (int) (presentTime - drawEnd);
+
+        // Images the core produced that were replaced before they could be drawn
+        int dropped = 0;
+        if (contentTimestamp != 0 && mLastContentTimestamp != 0) {
+            final long gap = contentTimestamp - mLastContentTimestamp;
+            if (gap > 0) {
+                final long nominal = getNominalContentInterval();
+                if (nominal > 0 && gap > nominal * 3 / 2) {
+                    dropped = (int) ((gap + nominal / 2) / nominal) - 1;
+                }
+                mContentIntervals[mContentIntervalCount % CONTENT_INTERVAL_WINDOW] = gap;
+                ++mContentIntervalCount;
+            }
+        }
+        mDroppedBefore[index] = dropped;
+
+        if (contentTimestamp != 0) {
+            mLastContentTimestamp = contentTimestamp;
+        }
+        mPendingFrameAvailableTime = 0;
+        mPendingVsyncTime = 0;
+
+        // Publish the frame
+        mFrameCount = frame + 1;
+    }
+
+    /**
+     * @return Median of the recent gaps between images from the core, 0 if there are none yet
+     */
+    private long getNominalContentInterval() {
+        final int count = Math.min(mContentIntervalCount, CONTENT_INTERVAL_WINDOW);
+        if (count == 0) {
+            return 0;
+        }
+
+        System.arraycopy(mContentIntervals, 0, mSortedContentIntervals, 0, count);
+        Arrays.sort(mSortedContentIntervals, 0, count);
+        return mSortedContentIntervals[count / 2];
+    }
+
+    /**
+     * Free GL objects. Call from the render thread with the context current.
+     */
+    void releaseGl() {
+        if (mGpuTimerSupported != null && mGpuTimerSupported) {
+            GLES30.glDeleteQueries(GPU_QUERY_COUNT, mGpuQueries, 0);
+        }
+        mGpuTimerSupported = null;
+        mGpuQueryActive = false;
+    }
+
+    private void collectGpuTimes() {
+        // A disjoint operation makes results of the queries in flight meaningless
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mGlResult, 0);
+        final boolean disjoint = mGlResult[0] != 0;
+
+        for (int query = 0; query < GPU_QUERY_COUNT; ++query) {
+            final long frame = mGpuQueryFrame[query];
+            if (frame < 0) {
+                continue;
+            }
+
+            GLES30.glGetQueryObjectuiv(mGpuQueries[query], GLES30.GL_QUERY_RESULT_AVAILABLE, mGlResult, 0);
+            if (mGlResult[0] == 0 && !disjoint) {
+                continue;
+            }
+
+            if (!disjoint && frame > mFrameCount - CAPACITY) {
+                GLES30.glGetQueryObjectuiv(mGpuQueries[query], GLES30.GL_QUERY_RESULT, mGlResult, 0);
+                mGpuTime[(int) (frame & (CAPACITY - 1))] = mGlResult[0];
+            }
+            mGpuQueryFrame[query] = -1;
+        }
+    }
+
+    /**
+     * @return Number of frames recorded so far
+     */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Copy recent frames. Can be called from any thread.
+     * @param snapshot Destination, its capacity limits the number of frames copied
+     * @param fromFrame First frame wanted, older frames that are no longer kept are skipped
+     * @param toFrame Frame after the last one wanted
+     */
+    void read(Snapshot snapshot, long fromFrame, long toFrame) {
+        final long published = mFrameCount;
+        toFrame = Math.min(toFrame, published);
+        fromFrame = Math.max(fromFrame, Math.max(toFrame - snapshot.presentTime.length, published - CAPACITY + READ_MARGIN));
+        fromFrame = Math.max(fromFrame, 0);
+
+        int count = 0;
+        for (long frame = fromFrame; frame < toFrame; ++frame) {
+            final int index = (int) (frame & (CAPACITY - 1));
+            snapshot.presentTime[count] = mPresentTime[index];
+            snapshot.frameAvailableTime[count] = mFrameAvailableTime[index];
+            snapshot.vsyncTime[count] = mVsyncTime[index];
+            snapshot.contentTimestamp[count] = mContentTimestamp[index];
+            snapshot.cpuTime[count] = mCpuTime[index];
+            snapshot.gpuTime[count] = mGpuTime[index];
+            snapshot.swapTime[count] = mSwapTime[index];
+            snapshot.droppedBefore[count] = mDroppedBefore[index];
+            ++count;
+        }
+
+        // Drop frames the render thread may have overwritten during the copy
+        final long overwritten = mFrameCount - CAPACITY + READ_MARGIN - fromFrame;
+        int skip = (int) Math.max(0, Math.min(count, overwritten));
+        if (skip > 0) {
+            shift(snapshot, skip, count);
+            count -= skip;
+            fromFrame += skip;
+        }
+
+        snapshot.firstFrame = fromFrame;
+        snapshot.count = count;
+    }
+
+    private static void shift(Snapshot snapshot, int skip, int count) {
+        final int length = count - skip;
+        System.arraycopy(snapshot.presentTime, skip, snapshot.presentTime, 0, length);
+        System.arraycopy(snapshot.frameAvailableTime, skip, snapshot.frameAvailableTime, 0, length);
+        System.arraycopy(snapshot.vsyncTime, skip, snapshot.vsyncTime, 0, length);
+        System.arraycopy(snapshot.contentTimestamp, skip, snapshot.contentTimestamp, 0, length);
+        System.arraycopy(snapshot.cpuTime, skip, snapshot.cpuTime, 0, length);
+        System.arraycopy(snapshot.gpuTime, skip, snapshot.gpuTime, 0, length);
+        System.arraycopy(snapshot.swapTime, skip, snapshot.swapTime, 0, length);
+        System.arraycopy(snapshot.droppedBefore, skip, snapshot.droppedBefore, 0, length);
+    }
+
+    /**
+     * Summarize the frames of a snapshot
+     */
+    static Stats computeStats(Snapshot snapshot) {
+        Stats stats = new Stats();
+        stats.frames = snapshot.count;
+
+        final int intervals = Math.max(0, snapshot.count - 1);
+        long[] values = new long[Math.max(1, snapshot.count)];
+
+        for (int index = 1; index < snapshot.count; ++index) {
+            values[index - 1] = snapshot.getInterval(index);
+            if (snapshot.isDuplicate(index)) {
+                ++stats.duplicated;
+            }
+        }
+        Arrays.sort(values, 0, intervals);
+        stats.intervalP50 = percentile(values, intervals, 50);
+        stats.intervalP95 = percentile(values, intervals, 95);
+        stats.intervalP99 = percentile(values, intervals, 99);
+        stats.intervalMax = percentile(values, intervals, 100);
+
+        for (int index = 0; index < snapshot.count; ++index) {
+            values[index] = snapshot.cpuTime[index];
+            stats.dropped += snapshot.droppedBefore[index];
+        }
+        Arrays.sort(values, 0, snapshot.count);
+        stats.cpuP50 = percentile(values, snapshot.count, 50);
+        stats.cpuP99 = percentile(values, snapshot.count, 99);
+
+        int gpuCount = 0;
+        for (int index = 0; index < snapshot.count; ++index) {
+            if (snapshot.gpuTime[index] >= 0) {
+                values[gpuCount++] = snapshot.gpuTime[index];
+            }
+        }
+        Arrays.sort(values, 0, gpuCount);
+        stats.gpuP50 = gpuCount == 0 ? -1 : percentile(values, gpuCount, 50);
+        stats.gpuP99 = gpuCount == 0 ? -1 : percentile(values, gpuCount, 99);
+
+        return stats;
+    }
+
+    /**
+     * @param sorted Sorted values in nanoseconds
+     * @return Nearest rank percentile in milliseconds
+     */
+    private static float percentile(long[] sorted, int count, int percent) {
+        if (count == 0) {
+            return 0;
+        }
+
+        final int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)] / 1e6f;
+    }
+
+    /**
+     * Start writing every recorded frame to a CSV file
+     * @param file Trace file, it's replaced if it exists
+     * @param description Written to the header, for example the app version and game
+     */
+    void startTrace(File file, String description) {
+        if (mTraceExecutor != null) {
+            return;
+        }
+
+        mTraceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> new Thread(runnable, "FrameTimingTrace"));
+        mTraceClosed = new CountDownLatch(1);
+        final long firstFrame = mFrameCount;
+
+        mTraceExecutor.execute(() -> {
+            try {
+                mTraceWriter = new BufferedWriter(new FileWriter(file));
+                mTraceWriter.write("# Frame timing trace: " + description + "\n");
+                mTraceWriter.write("# Device: " + Build.MANUFACTURER + " " + Build.MODEL + ", Android " +
+                        Build.VERSION.RELEASE + "\n");
+                mTraceWriter.write("frame,present_ns,interval_us,frame_available_ns,vsync_ns,content_timestamp_ns," +
+                        "cpu_us,gpu_us,swap_us,duplicate,dropped_before\n");
+                Log.i(TAG, "Writing frame timing trace to " + file.getPath());
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to create " + file.getPath() + ": " + e.getMessage());
+                mTraceWriter = null;
+                return;
+            }
+
+            mTraceNextFrame = firstFrame;
+            mTraceLastPresentTime = 0;
+            mTraceLastContentTimestamp = 0;
+            mTraceSnapshot = new Snapshot(CAPACITY);
+        });
+
+        // Periodic writes end when the executor is shut down
+        mTraceExecutor.scheduleWithFixedDelay(this::writeTrace, TRACE_FLUSH_MS, TRACE_FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write the remaining frames and close the trace file. This doesn't wait for the file to be
+     * closed, see {@link #awaitTraceClosed}.
+     */
+    void stopTrace() {
+        if (mTraceExecutor == null) {
+            return;
+        }
+
+        final CountDownLatch traceClosed = mTraceClosed;
+        mTraceExecutor.execute(() -> {
+            try {
+                if (mTraceWriter != null) {
+                    writeFrames(mFrameCount);
+                    mTraceWriter.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                mTraceWriter = null;
+                traceClosed.countDown();
+            }
+        });
+
+        // Tasks that were already queued still run, the periodic write is cancelled
+        mTraceExecutor.shutdown();
+        mTraceExecutor = null;
+    }
+
+    /**
+     * Wait until the trace file of the last started trace is closed
+     * @return True if it was closed in time
+     */
+    boolean awaitTraceClosed(long timeoutMs) throws InterruptedException {
+        return mTraceClosed == null || mTraceClosed.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeTrace() {
+        if (mTraceWriter == null) {
+            return;
+        }
+
+        // Leave the newest frames for the next write, their GPU times may not be known yet
+        writeFrames(mFrameCount - GPU_QUERY_COUNT);
+    }
+
+    private void writeFrames(long toFrame) {
+        read(mTraceSnapshot, mTraceNextFrame, toFrame);
+
+        if (mTraceSnapshot.count == 0) {
+            return;
+        }
+
+        if (mTraceSnapshot.firstFrame > mTraceNextFrame) {
+            Log.w(TAG, "Trace missed " + (mTraceSnapshot.firstFrame - mTraceNextFrame) + " frames");
+        }
+
+        try {
+            StringBuilder line = new StringBuilder();
+            for (int index = 0; index < mTraceSnapshot.count; ++index) {
+                // The first frame of a write continues from the last one of the previous write
+                long interval = mTraceSnapshot.getInterval(index);
+                boolean duplicate = mTraceSnapshot.isDuplicate(index);
+                if (index == 0) {
+                    interval = mTraceLastPresentTime == 0 ? 0 : mTraceSnapshot.presentTime[0] - mTraceLastPresentTime;
+                    duplicate = mTraceSnapshot.contentTimestamp[0] != 0 &&
+                            mTraceSnapshot.contentTimestamp[0] == mTraceLastContentTimestamp;
+                }
+
+                line.setLength(0);
+                line.append(mTraceSnapshot.firstFrame + index).append(',')
+                        .append(mTraceSnapshot.presentTime[index]).append(',')
+                        .append(interval / 1000).append(',')
+                        .append(mTraceSnapshot.frameAvailableTime[index]).append(',')
+                        .append(mTraceSnapshot.vsyncTime[index]).append(',')
+                        .append(mTraceSnapshot.contentTimestamp[index]).append(',')
+                        .append(mTraceSnapshot.cpuTime[index] / 1000).append(',')
+                        .append(mTraceSnapshot.gpuTime[index] < 0 ? -1 : mTraceSnapshot.gpuTime[index] / 1000).append(',')
+                        .append(mTraceSnapshot.swapTime[index] / 1000).append(',')
+                        .append(duplicate ? 1 : 0).append(',')
+                        .append(mTraceSnapshot.droppedBefore[index]).append('\n');
+                mTraceWriter.write(line.toString());
+            }
+
+            mTraceWriter.write("# " + computeStats(mTraceSnapshot) + "\n");
+            mTraceWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write frame timing trace: " + e.getMessage());
+        }
+
+        final int last = mTraceSnapshot.count - 1;
+        mTraceNextFrame = mTraceSnapshot.firstFrame + mTraceSnapshot.count;
+        mTraceLastPresentTime = mTraceSnapshot.presentTime[last];
+        mTraceLastContentTimestamp = mTraceSnapshot.contentTimestamp[last];
+    }
+}
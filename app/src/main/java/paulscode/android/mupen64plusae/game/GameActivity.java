@@ -73,6 +73,7 @@ import paulscode.android.mupen64plusae.dialog.Prompt;
 import paulscode.android.mupen64plusae.input.PeripheralController;
 import paulscode.android.mupen64plusae.input.SensorController;
 import paulscode.android.mupen64plusae.input.TouchController;
+import paulscode.android.mupen64plusae.input.map.InputMap;
 import paulscode.android.mupen64plusae.input.map.VisibleTouchMap;
 import paulscode.android.mupen64plusae.input.provider.AbstractProvider;
 import paulscode.android.mupen64plusae.input.provider.AxisProvider;
@@ -81,6 +82,7 @@ import paulscode.android.mupen64plusae.input.provider.KeyProvider.ImeFormula;
 import paulscode.android.mupen64plusae.jni.CoreFragment;
 import paulscode.android.mupen64plusae.jni.CoreFragment.CoreEventListener;
 import paulscode.android.mupen64plusae.netplay.NetplayFragment;
+import paulscode.android.mupen64plusae.netplay.NetplaySessionHost;
 import paulscode.android.mupen64plusae.netplay.room.NetplayClientSetupDialog;
 import paulscode.android.mupen64plusae.netplay.room.NetplayServerSetupDialog;
 import paulscode.android.mupen64plusae.persistent.AppData;
@@ -148,6 +150,9 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
     private GameSidebar mGameSidebar;
     private GameSurface mGameSurface;
 
+    // Frame pacing measurements, null unless the graph or trace is enabled
+    private FrameTimingRecorder mFrameTiming = null;
+
     // Input resources
     private VisibleTouchMap mTouchscreenMap;
     private KeyProvider mKeyProvider;
@@ -268,6 +273,9 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
         super.onCreate(savedInstanceState);
         super.setTheme( androidx.appcompat.R.style.Theme_AppCompat_NoActionBar );
 
+        // Read the shaders while the rest of the activity is set up, the GL context needs them in onStart
+        ShaderDrawer.preload(this);
+
         mAppData = new AppData( this );
 
         // Initialize the objects and data files interfacing to the emulator core
@@ -405,6 +413,24 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
         mGameSurface.setSelectedShader(mGlobalPrefs.getShaderPasses());
         mGameSurface.setShaderScaleFactor(mGlobalPrefs.shaderScaleFactor);
 
+        if (mGlobalPrefs.isFrameTimeGraphEnabled || mGlobalPrefs.isFrameTimingTraceEnabled) {
+            mFrameTiming = new FrameTimingRecorder();
+            mGameSurface.setFrameTimingRecorder(mFrameTiming);
+
+            if (mGlobalPrefs.isFrameTimeGraphEnabled) {
+                mFpsOverlay.setFrameTimingRecorder(mFrameTiming);
+            }
+
+            if (mGlobalPrefs.isFrameTimingTraceEnabled) {
+                File traceDir = getExternalFilesDir(null);
+                if (traceDir == null) {
+                    traceDir = getFilesDir();
+                }
+                mFrameTiming.startTrace(new File(traceDir, "frame_timing_" + System.currentTimeMillis() + ".csv"),
+                        "Mupen64Plus AE " + mAppData.appVersion + ", " + mRomGoodName);
+            }
+        }
+
         ReloadAllMenus();
 
         if (savedInstanceState == null)
@@ -554,6 +580,10 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
                 mNetplayFragment = new NetplayFragment();
                 fm.beginTransaction().add(mNetplayFragment, STATE_NETPLAY_FRAGMENT).commit();
             }
+
+            if (mGlobalPrefs.isNetplayStatsEnabled) {
+                mFpsOverlay.setNetplayFragment(mNetplayFragment);
+            }
         }
 
         if(mCoreFragment != null)
@@ -660,6 +690,10 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
         if (mOverlay != null) {
             mOverlay.onDestroy();
         }
+
+        if (mFrameTiming != null) {
+            mFrameTiming.stopTrace();
+        }
     }
 
     @Override
@@ -991,6 +1025,17 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
 
         ReloadAllMenus();
 
+        // Only keep rewind states if a controller can use them
+        boolean rewindMapped = false;
+        for(int index = 0; index < mGamePrefs.isControllerEnabled.length; ++index) {
+            final ControllerProfile profile = mGamePrefs.controllerProfile[index];
+            if (mGamePrefs.isControllerEnabled[index] && profile != null &&
+                    profile.getMap().isMapped(InputMap.FUNC_REWIND)) {
+                rewindMapped = true;
+            }
+        }
+        mCoreFragment.setRewindEnabled(rewindMapped);
+
         mDrawerLayout.closeDrawer(GravityCompat.START);
         mOverlay.requestFocus();
         mGameSurface.setSurfaceTexture(mCoreFragment.getSurfaceTexture());
@@ -1414,6 +1459,12 @@ public class GameActivity extends AppCompatActivity implements PromptConfirmList
         }
     }
 
+    @Override
+    public NetplaySessionHost getSessionHost()
+    {
+        return mNetplayFragment != null ? mNetplayFragment.getSessionHost() : null;
+    }
+
     @Override
     public void onPortObtained(int port) {
         mServerPort = port;
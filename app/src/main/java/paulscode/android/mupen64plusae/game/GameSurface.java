@@ -24,7 +24,6 @@ import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
 import android.net.Uri;
 import android.opengl.EGL14;
@@ -39,6 +38,7 @@ import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
@@ -133,6 +133,7 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
     Context mContext;
     int mShaderScaleFactor = 1;
     ArrayList<ShaderLoader> mSelectedShaders = null;
+    private FrameTimingRecorder mFrameTiming = null;
 
     private boolean mIsEGLContextReady = false;     // true if the context is ready
 
@@ -247,6 +248,14 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
+    /**
+     * Record the timing of every frame, must be set before the GL context is started
+     * @param frameTiming Recorder, null to not record anything
+     */
+    void setFrameTimingRecorder(FrameTimingRecorder frameTiming) {
+        mFrameTiming = frameTiming;
+    }
+
     public float getFps() {
         float fps = 0;
         if (mRenderThread != null) {
@@ -710,6 +719,10 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
         private long mTimeMilliseconds = 0;
         private static final int mFpsRecalPeriodFrames = 30;
 
+        // How often to check whether the GPU finished reading a screenshot
+        private static final long SCREENSHOT_POLL_MS = 4;
+        private final Runnable mPollScreenshots = this::pollScreenshots;
+
         /**
          * Constructor.
          */
@@ -771,7 +784,12 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
                 mFrameAvailableTexture.setOnFrameAvailableListener(null);
                 Choreographer.getInstance().removeFrameCallback(this);
             }
+            mHandler.removeCallbacks(mPollScreenshots);
             mShaderDrawer.onSurfaceTextureDestroyed();
+            mShaderDrawer.release();
+            if (mFrameTiming != null) {
+                mFrameTiming.releaseGl();
+            }
             Looper.myLooper().quit();
         }
 
@@ -792,12 +810,18 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
 
         @Override
         public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+            if (mFrameTiming != null) {
+                mFrameTiming.onFrameAvailable(System.nanoTime());
+            }
             frameAvailable();
         }
 
         @Override
         public void doFrame(long frameTimeNanos) {
             Choreographer.getInstance().postFrameCallback(this);
+            if (mFrameTiming != null) {
+                mFrameTiming.onVsync(frameTimeNanos);
+            }
             frameAvailable();
         }
 
@@ -805,8 +829,19 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
          * Handles incoming fram
          */
         private void frameAvailable() {
-            mShaderDrawer.onDrawFrame();
-            flipBuffers();
+            if (mFrameTiming != null) {
+                final long drawStart = System.nanoTime();
+                mFrameTiming.beginGpuTimer();
+                mShaderDrawer.onDrawFrame();
+                mFrameTiming.endGpuTimer();
+                final long drawEnd = System.nanoTime();
+                flipBuffers();
+                mFrameTiming.recordFrame(mShaderDrawer.getFrameTimestamp(), drawStart, drawEnd, System.nanoTime());
+            } else {
+                mShaderDrawer.onDrawFrame();
+                flipBuffers();
+            }
+            pollScreenshots();
 
             mFrameCount++;
             if (mFrameCount >= mFpsRecalPeriodFrames) {
@@ -817,6 +852,15 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
             }
         }
 
+        /**
+         * Draws the current frame again without counting it in the FPS or frame timing
+         */
+        private void redrawFrame() {
+            mShaderDrawer.onDrawFrame();
+            flipBuffers();
+            pollScreenshots();
+        }
+
         /**
          * Handles incoming frame
          */
@@ -835,23 +879,29 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
         }
 
         /**
-         * Handles a screenshot request
+         * Handles a screenshot request, the frame is read and saved without blocking this thread
          */
         private void takeScreenshot(RenderHandler.ScreenShotRequest screenShotRequest) {
             Log.i(TAG, "Renderthread -- takeScreenshot: " + screenShotRequest.mFilename);
 
-            Bitmap screenshotMirrored = mShaderDrawer.getScreenShot();
+            mShaderDrawer.requestScreenShot(screenshot -> saveScreenshot(screenshot, screenShotRequest));
 
-            if (screenshotMirrored == null) {
-                //Something bad happened, don't save the screenshot
-                return;
+            // Draw the current frame again so it's read even if the game is paused
+            redrawFrame();
+        }
+
+        private void pollScreenshots() {
+            if (mShaderDrawer.pollScreenShots()) {
+                mHandler.removeCallbacks(mPollScreenshots);
+                mHandler.postDelayed(mPollScreenshots, SCREENSHOT_POLL_MS);
             }
+        }
 
-            Matrix mirror = new Matrix();
-            mirror.setScale(-1, 1);
-            mirror.postRotate(180);
-            Bitmap screenshot = Bitmap.createBitmap(screenshotMirrored, 0, 0, screenshotMirrored.getWidth(),
-                    screenshotMirrored.getHeight(), mirror, false);
+        /**
+         * Encodes and stores a screenshot, called from a background thread
+         */
+        private void saveScreenshot(Bitmap screenshot, RenderHandler.ScreenShotRequest screenShotRequest) {
+            final long startTime = SystemClock.elapsedRealtime();
             screenshot.setDensity(DisplayMetrics.DENSITY_DEFAULT);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -901,6 +951,8 @@ public class GameSurface extends SurfaceView implements SurfaceHolder.Callback
                     Log.e(TAG, "Exception: Could not save picture: " + screenShotRequest.mFilename);
                 }
             }
+
+            Log.i(TAG, "Saved screenshot in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
         }
 
         private void surfaceTextureDestroyed() {
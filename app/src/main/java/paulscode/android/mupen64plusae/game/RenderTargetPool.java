@@ -0,0 +1,158 @@
+package paulscode.android.mupen64plusae.game;
+
+import android.opengl.GLES20;
+
+import java.util.ArrayList;
+
+/**
+ * Framebuffers with a color texture that shader passes draw into. A target is handed back once
+ * the last pass that samples it is planned, so later passes of the same size can draw into it.
+ * Targets are only created and deleted while passes are planned, never while drawing.
+ */
+class RenderTargetPool {
+
+    static class RenderTarget {
+        final int mFramebuffer;
+        final int mTexture;
+        final int mWidth;
+        final int mHeight;
+        final boolean mLinear;
+
+        RenderTarget(int framebuffer, int texture, int width, int height, boolean linear) {
+            mFramebuffer = framebuffer;
+            mTexture = texture;
+            mWidth = width;
+            mHeight = height;
+            mLinear = linear;
+        }
+    }
+
+    /**
+     * Creates and deletes the framebuffers behind the targets
+     */
+    interface Allocator {
+        RenderTarget create(int width, int height, boolean linear);
+
+        void delete(RenderTarget target);
+    }
+
+    /**
+     * Framebuffers of the current GL context
+     */
+    private static class GlAllocator implements Allocator {
+        @Override
+        public RenderTarget create(int width, int height, boolean linear) {
+            int[] framebuffers = new int[1];
+            GLES20.glGenFramebuffers(1, framebuffers, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffers[0]);
+
+            //Create a texture
+            final int filter = linear ? GLES20.GL_LINEAR : GLES20.GL_NEAREST;
+            int[] textures = new int[1];
+            GLES20.glGenTextures(1, textures, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+            //Attach the texture to the framebuffer
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, textures[0], 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+            return new RenderTarget(framebuffers[0], textures[0], width, height, linear);
+        }
+
+        @Override
+        public void delete(RenderTarget target) {
+            GLES20.glDeleteFramebuffers(1, new int[]{target.mFramebuffer}, 0);
+            GLES20.glDeleteTextures(1, new int[]{target.mTexture}, 0);
+        }
+    }
+
+    private final Allocator mAllocator;
+    private final ArrayList<RenderTarget> mFreeTargets = new ArrayList<>();
+    private final ArrayList<RenderTarget> mUsedTargets = new ArrayList<>();
+
+    RenderTargetPool() {
+        this(new GlAllocator());
+    }
+
+    RenderTargetPool(Allocator allocator) {
+        mAllocator = allocator;
+    }
+
+    /**
+     * Start planning passes, every target becomes free. Targets of the previous plan that have the
+     * right size are reused instead of created again.
+     */
+    void beginAllocation() {
+        mFreeTargets.addAll(mUsedTargets);
+        mUsedTargets.clear();
+    }
+
+    /**
+     * Done planning passes, targets the new plan didn't use are deleted
+     */
+    void endAllocation() {
+        for (RenderTarget target : mFreeTargets) {
+            if (!mUsedTargets.contains(target)) {
+                mAllocator.delete(target);
+            }
+        }
+        mFreeTargets.clear();
+    }
+
+    /**
+     * @param linear True if passes sample the texture with linear filtering, used for targets
+     *               smaller than what reads them
+     * @return A target nothing else is drawing into until it is recycled
+     */
+    RenderTarget obtain(int width, int height, boolean linear) {
+        for (int index = 0; index < mFreeTargets.size(); ++index) {
+            RenderTarget target = mFreeTargets.get(index);
+            if (target.mWidth == width && target.mHeight == height && target.mLinear == linear) {
+                mFreeTargets.remove(index);
+                if (!mUsedTargets.contains(target)) {
+                    mUsedTargets.add(target);
+                }
+                return target;
+            }
+        }
+
+        RenderTarget target = mAllocator.create(width, height, linear);
+        mUsedTargets.add(target);
+        return target;
+    }
+
+    /**
+     * Hand back a target once no later pass samples it
+     */
+    void recycle(RenderTarget target) {
+        mFreeTargets.add(target);
+    }
+
+    /**
+     * @return Number of targets the current plan draws into
+     */
+    int getTargetCount() {
+        return mUsedTargets.size();
+    }
+
+    /**
+     * Delete every target, the GL context must still be current
+     */
+    void release() {
+        for (RenderTarget target : mUsedTargets) {
+            mAllocator.delete(target);
+        }
+        for (RenderTarget target : mFreeTargets) {
+            if (!mUsedTargets.contains(target)) {
+                mAllocator.delete(target);
+            }
+        }
+        mUsedTargets.clear();
+        mFreeTargets.clear();
+    }
+}
@@ -0,0 +1,254 @@
+package paulscode.android.mupen64plusae.game;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import paulscode.android.mupen64plusae.util.PixelBuffer;
+
+/**
+ * Reads frames back from the render thread without stalling it. With OpenGL ES 3 the pixels are
+ * read into one of two pixel pack buffers and a fence tells when the GPU is done, so the render
+ * thread only copies the finished pixels. Older contexts still use a blocking glReadPixels. In
+ * both cases the flip, alpha fix and bitmap creation happen on a background thread, into direct
+ * buffers that are reused between screenshots.
+ */
+class ScreenshotReader {
+
+    private static final String TAG = "ScreenshotReader";
+
+    // Two reads can be in flight at the same time
+    private static final int PIXEL_PACK_BUFFER_COUNT = 2;
+
+    // glReadPixels stores RGBA bytes, this is the alpha byte of a pixel read as an int
+    private static final int ALPHA_MASK = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ?
+            0xFF000000 : 0x000000FF;
+
+    interface OnFrameReadListener {
+        /**
+         * Called from a background thread once a frame has been read
+         * @param bitmap Right side up frame, every pixel is opaque
+         */
+        void onFrameRead(Bitmap bitmap);
+    }
+
+    private static class PendingRead {
+        int mPixelPackBuffer;
+        long mFence;
+        int mWidth;
+        int mHeight;
+        long mStartTime;
+        OnFrameReadListener mListener;
+    }
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final ArrayDeque<OnFrameReadListener> mRequests = new ArrayDeque<>();
+    private final ArrayDeque<PendingRead> mPendingReads = new ArrayDeque<>();
+
+    // Direct buffers returned once a bitmap has been created from them
+    private final ArrayDeque<ByteBuffer> mFreeBuffers = new ArrayDeque<>();
+
+    private int[] mPixelPackBuffers = null;
+    private final int[] mPixelPackBufferSizes = new int[PIXEL_PACK_BUFFER_COUNT];
+    private final boolean[] mPixelPackBufferBusy = new boolean[PIXEL_PACK_BUFFER_COUNT];
+    private Boolean mUsePixelPackBuffers = null;
+
+    /**
+     * Read the next frame that is drawn. Call from the render thread.
+     */
+    void requestFrame(OnFrameReadListener listener) {
+        mRequests.add(listener);
+    }
+
+    /**
+     * Start reading the frame that was just drawn to the current framebuffer if it was requested.
+     * Call from the render thread.
+     */
+    void readFrame(int width, int height) {
+        if (mRequests.isEmpty() || width <= 0 || height <= 0) {
+            return;
+        }
+
+        if (mUsePixelPackBuffers == null) {
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            mUsePixelPackBuffers = version != null && version.startsWith("OpenGL ES 3");
+            Log.i(TAG, "GL version " + version + ", pixel pack buffers: " + mUsePixelPackBuffers);
+        }
+
+        if (mUsePixelPackBuffers) {
+            startPixelPackRead(width, height);
+        } else {
+            blockingRead(width, height);
+        }
+    }
+
+    /**
+     * Copy out the reads the GPU has completed. Call from the render thread.
+     * @return True if reads are still in flight, this should be called again later
+     */
+    boolean poll() {
+        while (!mPendingReads.isEmpty()) {
+            PendingRead read = mPendingReads.peek();
+            final int status = GLES30.glClientWaitSync(read.mFence, 0, 0);
+
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                return true;
+            }
+
+            mPendingReads.remove();
+            GLES30.glDeleteSync(read.mFence);
+            mPixelPackBufferBusy[read.mPixelPackBuffer] = false;
+
+            if (status == GLES30.GL_WAIT_FAILED) {
+                Log.w(TAG, "Unable to wait for frame read, error=" + GLES20.glGetError());
+                continue;
+            }
+
+            final int size = read.mWidth*read.mHeight*4;
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelPackBuffers[read.mPixelPackBuffer]);
+            Buffer mapped = GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+
+            if (mapped instanceof ByteBuffer) {
+                ByteBuffer pixels = obtainBuffer(size);
+                pixels.put((ByteBuffer) mapped);
+                pixels.rewind();
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+
+                Log.i(TAG, "Read " + read.mWidth + "x" + read.mHeight + " frame in " +
+                        (SystemClock.elapsedRealtime() - read.mStartTime) + " ms");
+                process(pixels, read.mWidth, read.mHeight, read.mListener);
+            } else {
+                Log.w(TAG, "Unable to map pixel pack buffer, error=" + GLES20.glGetError());
+            }
+
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+
+        // Requests that didn't get a free buffer are read on the next frame
+        return false;
+    }
+
+    /**
+     * Free the GL objects, reads in flight are dropped. Frames being processed are still
+     * delivered. Call from the render thread while the context is current.
+     */
+    void release() {
+        for (PendingRead read : mPendingReads) {
+            GLES30.glDeleteSync(read.mFence);
+        }
+        mPendingReads.clear();
+        mRequests.clear();
+
+        if (mPixelPackBuffers != null) {
+            GLES20.glDeleteBuffers(PIXEL_PACK_BUFFER_COUNT, mPixelPackBuffers, 0);
+            mPixelPackBuffers = null;
+        }
+        Arrays.fill(mPixelPackBufferSizes, 0);
+        Arrays.fill(mPixelPackBufferBusy, false);
+
+        mExecutor.shutdown();
+    }
+
+    private void startPixelPackRead(int width, int height) {
+        int index = 0;
+        while (index < PIXEL_PACK_BUFFER_COUNT && mPixelPackBufferBusy[index]) {
+            ++index;
+        }
+
+        if (index == PIXEL_PACK_BUFFER_COUNT) {
+            // Both buffers are in use, try again on the next frame
+            return;
+        }
+
+        if (mPixelPackBuffers == null) {
+            mPixelPackBuffers = new int[PIXEL_PACK_BUFFER_COUNT];
+            GLES20.glGenBuffers(PIXEL_PACK_BUFFER_COUNT, mPixelPackBuffers, 0);
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        final int size = width*height*4;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelPackBuffers[index]);
+        if (mPixelPackBufferSizes[index] != size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            mPixelPackBufferSizes[index] = size;
+        }
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+
+        PendingRead read = new PendingRead();
+        read.mPixelPackBuffer = index;
+        read.mFence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        read.mWidth = width;
+        read.mHeight = height;
+        read.mStartTime = startTime;
+        read.mListener = mRequests.remove();
+
+        // Make sure the fence reaches the GPU even if no other frame is drawn
+        GLES20.glFlush();
+
+        mPixelPackBufferBusy[index] = true;
+        mPendingReads.add(read);
+    }
+
+    private void blockingRead(int width, int height) {
+        final long startTime = SystemClock.elapsedRealtime();
+
+        ByteBuffer pixels = obtainBuffer(width*height*4);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        pixels.rewind();
+
+        Log.i(TAG, "Read " + width + "x" + height + " frame in " +
+                (SystemClock.elapsedRealtime() - startTime) + " ms");
+        process(pixels, width, height, mRequests.remove());
+    }
+
+    private void process(ByteBuffer pixels, int width, int height, OnFrameReadListener listener) {
+        mExecutor.execute(() -> {
+            final long startTime = SystemClock.elapsedRealtime();
+
+            // Frames are read bottom row first and some plugins never set alpha
+            PixelBuffer.flipVertically(pixels.asIntBuffer(), width, height, ALPHA_MASK);
+
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(pixels);
+            recycleBuffer(pixels);
+
+            Log.i(TAG, "Processed " + width + "x" + height + " frame in " +
+                    (SystemClock.elapsedRealtime() - startTime) + " ms");
+            listener.onFrameRead(bitmap);
+        });
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        synchronized (mFreeBuffers) {
+            while (!mFreeBuffers.isEmpty()) {
+                ByteBuffer buffer = mFreeBuffers.remove();
+                if (buffer.capacity() == size) {
+                    buffer.clear();
+                    return buffer;
+                }
+            }
+        }
+
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mFreeBuffers) {
+            if (mFreeBuffers.size() < PIXEL_PACK_BUFFER_COUNT) {
+                mFreeBuffers.add(buffer);
+            }
+        }
+    }
+}
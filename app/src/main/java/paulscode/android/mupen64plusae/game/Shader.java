@@ -3,7 +3,6 @@ package paulscode.android.mupen64plusae.game;
 
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
-import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -138,39 +137,20 @@ public class Shader {
         mOutputHeight = outputHeight;
     }
 
-    public void initShader()
+    /**
+     * @param output Target to draw into, null to draw to the surface
+     */
+    public void initShader(ShaderProgramCache programCache, RenderTargetPool.RenderTarget output)
     {
         initializeBuffers();
-        initializeProgram(mVertexCode, mFragmentCode);
+        program = programCache.getProgram(mVertexCode, mFragmentCode);
 
-        if (!mLastPass) {
-            initializeFbo();
+        if (output != null) {
+            mFboId = output.mFramebuffer;
+            mFboTextureId = output.mTexture;
         }
     }
 
-    private void initializeFbo()
-    {
-        int[] framebuffers = new int[1];
-        GLES20.glGenFramebuffers(1, framebuffers, 0);
-        mFboId = framebuffers[0];
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFboId);
-
-        //Create a texture
-        int[] textures = new int[1];
-        GLES20.glGenTextures(1, textures, 0);
-        mFboTextureId = textures[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFboTextureId);
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mOutputWidth, mOutputHeight, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-        //Attach the texture to the framebuffer
-        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, mFboTextureId, 0);
-
-    }
-
     private void initializeBuffers()
     {
         ByteBuffer buff = ByteBuffer.allocateDirect(vertices.length * 4);
@@ -194,36 +174,6 @@ public class Shader {
         textureBuffer.position(0);
     }
 
-    private void initializeProgram(String vertexShaderText, String fragmentShaderText)
-    {
-        int vertexShader = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShader, vertexShaderText);
-        GLES20.glCompileShader(vertexShader);
-
-        int[] params = new int[1];
-        GLES20.glGetShaderiv(vertexShader, GLES20.GL_COMPILE_STATUS, params, 0);
-        if (params[0] == GLES20.GL_FALSE) {
-            Log.e("Shader", "Vertex Compilation error:\n" + GLES20.glGetShaderInfoLog(vertexShader)
-                    + "\n Shader code:\n" + vertexShaderText);
-        }
-
-        int fragmentShader = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShader, fragmentShaderText);
-        GLES20.glCompileShader(fragmentShader);
-
-        GLES20.glGetShaderiv(fragmentShader, GLES20.GL_COMPILE_STATUS, params, 0);
-        if (params[0] == GLES20.GL_FALSE) {
-            Log.e("Shader", "Fragment Compilation error:\n" + GLES20.glGetShaderInfoLog(fragmentShader)
-                    + "\n Shader code:\n" + fragmentShaderText);
-        }
-
-        program = GLES20.glCreateProgram();
-        GLES20.glAttachShader(program, vertexShader);
-        GLES20.glAttachShader(program, fragmentShader);
-
-        GLES20.glLinkProgram(program);
-    }
-
     public void draw()
     {
         GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
@@ -1,13 +1,11 @@
 package paulscode.android.mupen64plusae.game;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.util.Log;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import paulscode.android.mupen64plusae.util.PixelBuffer;
@@ -16,30 +14,43 @@ public class ShaderDrawer {
 
     private static final String TAG = "ShaderDrawer";
     private SurfaceTexture mGameTexture;
-    private final ArrayList<ArrayList<Shader>> mShaderPasses = new ArrayList<>();
+    private final ArrayList<ArrayList<String>> mShaderPassCode = new ArrayList<>();
+    private ArrayList<Shader> mShaderPasses = new ArrayList<>();
     private int mWidth = 0;
     private int mHeight = 0;
+    private final ScreenshotReader mScreenshotReader = new ScreenshotReader();
+    private final ShaderProgramCache mProgramCache;
+    private final RenderTargetPool mRenderTargetPool = new RenderTargetPool();
+
+    /**
+     * Read the shader sources and cached program binaries on a background thread, so neither
+     * creating the drawer nor attaching the game texture has to wait on the disk
+     */
+    public static void preload(Context context) {
+        final Context appContext = context.getApplicationContext();
+
+        Thread preloadThread = new Thread(() -> {
+            ShaderLoader.loadShaders(appContext);
+            ShaderProgramCache.preload(appContext);
+        }, "ShaderPreload");
+        preloadThread.setDaemon(true);
+        preloadThread.start();
+    }
 
     public ShaderDrawer(Context context, ArrayList<ShaderLoader> selectedShaders) {
         ShaderLoader.loadShaders(context);
+        mProgramCache = new ShaderProgramCache(context);
 
-        for (int index = 0; index < selectedShaders.size(); ++ index) {
-            boolean first = index == 0;
-            boolean last = index == selectedShaders.size() - 1;
-
-            mShaderPasses.add(new ArrayList<>());
-            for (int shaderCodeIndex = 0; shaderCodeIndex < selectedShaders.get(index).getShaderCode().size(); ++shaderCodeIndex) {
-
-                boolean actualLast = last && shaderCodeIndex == selectedShaders.get(index).getShaderCode().size() - 1;
-                mShaderPasses.get(index).add(new Shader(selectedShaders.get(index).getShaderCode().get(shaderCodeIndex), first, actualLast,
-                        index == 0, shaderCodeIndex));
-                first = false;
-            }
+        int passCount = 0;
+        for (ShaderLoader shader : selectedShaders) {
+            mShaderPassCode.add(new ArrayList<>(shader.getShaderCode()));
+            passCount += shader.getShaderCode().size();
         }
 
-        if (mShaderPasses.size() == 0) {
-            mShaderPasses.add(new ArrayList<>());
-            mShaderPasses.get(0).add(new Shader(ShaderLoader.DEFAULT.getShaderCode().get(0), true, true, true, 0));
+        if (passCount == 0) {
+            mShaderPassCode.clear();
+            mShaderPassCode.add(new ArrayList<>());
+            mShaderPassCode.get(0).add(ShaderLoader.DEFAULT.getShaderCode().get(0));
         }
     }
 
@@ -79,40 +90,10 @@ public class ShaderDrawer {
                 e.printStackTrace();
             }
 
-            Shader.TexturePassResult prevResult = new Shader.TexturePassResult(texture, surface.mWidth, surface.mHeight,
-                    surface.mWidth, surface.mHeight);
-
-            for (int subPassIndex = 0; subPassIndex < mShaderPasses.size(); ++subPassIndex ) {
-
-                ArrayList<Shader> shaderSubPasses = mShaderPasses.get(subPassIndex);
-                ArrayList<Shader.TexturePassResult> texturePassResults = new ArrayList<>();
-
-                for (int shaderIndex = 0; shaderIndex < shaderSubPasses.size(); ++shaderIndex) {
-                    Shader shader = shaderSubPasses.get(shaderIndex);
-                    shader.setSourceTexture(texture);
-
-                    // Always scale at the last shader of the first subpass
-                    if (subPassIndex == 0) {
-                        if (shaderIndex == shaderSubPasses.size() - 1) {
-                            Log.d("Shader", "subpass=" + subPassIndex + " shader=" + shaderIndex + " scale=yes");
-                            shader.setDimensions(surface.mWidth, surface.mHeight, surface.mWidth, surface.mHeight, width, height);
-                        } else {
-                            Log.d("Shader", "subpass=" + subPassIndex + " shader=" + shaderIndex + " scale=no");
-                            shader.setDimensions(surface.mWidth, surface.mHeight, surface.mWidth, surface.mHeight, surface.mWidth, surface.mHeight);
-                        }
-                    } else {
-                        Log.d("Shader", "subpass=" + subPassIndex + " shader=" + shaderIndex + " scale=already");
-                        shader.setDimensions(surface.mWidth, surface.mHeight, width, height, width, height);
-                    }
-
-                    texturePassResults.add(0, prevResult);
-
-                    shader.initShader();
-                    shader.setShaderSubPasses(new ArrayList<>(texturePassResults));
-                    texture = shader.getFboTextureId();
-                    prevResult = shader.getTexturePassResult();
-                }
-            }
+            mRenderTargetPool.beginAllocation();
+            mShaderPasses = ShaderPassGraph.build(mShaderPassCode, ShaderLoader.DEFAULT.getShaderCode().get(0), texture,
+                    surface.mWidth, surface.mHeight, width, height, mProgramCache, mRenderTargetPool);
+            mRenderTargetPool.endAllocation();
         }
     }
 
@@ -131,23 +112,35 @@ public class ShaderDrawer {
         }
     }
 
-    public Bitmap getScreenShot() {
+    /**
+     * @return SurfaceTexture timestamp of the image drawn last, 0 if there is none
+     */
+    long getFrameTimestamp() {
+        return mGameTexture != null ? mGameTexture.getTimestamp() : 0;
+    }
 
-        if (mWidth <= 0 || mHeight <= 0) {
-            return null;
-        }
-        
-        ByteBuffer buffer = ByteBuffer.allocate(mWidth * mHeight * 4);
-        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buffer);
+    /**
+     * Read the next frame that is drawn, the listener is called from a background thread
+     */
+    void requestScreenShot(ScreenshotReader.OnFrameReadListener listener) {
+        mScreenshotReader.requestFrame(listener);
+    }
 
-        // Fix alpha to 255 for all pixels, some plugins don't ever set alpha values
-        for (int bufferIndex = 3; bufferIndex < buffer.array().length; bufferIndex+=4) {
-            buffer.array()[bufferIndex] = -1;
-        }
+    /**
+     * Copy out screenshots the GPU has finished reading
+     * @return True if this needs to be called again later
+     */
+    boolean pollScreenShots() {
+        return mScreenshotReader.poll();
+    }
 
-        Bitmap bitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(buffer);
-        return bitmap;
+    /**
+     * Free GL objects that outlive the game texture, the GL context must still be current
+     */
+    public void release() {
+        mScreenshotReader.release();
+        mProgramCache.release();
+        mRenderTargetPool.release();
     }
 
     public void onDrawFrame() {
@@ -158,11 +151,11 @@ public class ShaderDrawer {
                 e.printStackTrace();
             }
 
-            for (ArrayList<Shader> shaderSubPasses : mShaderPasses) {
-                for (Shader shader : shaderSubPasses) {
-                    shader.draw();
-                }
+            for (Shader shader : mShaderPasses) {
+                shader.draw();
             }
+
+            mScreenshotReader.readFrame(mWidth, mHeight);
         }
     }
 }
\ No newline at end of file
@@ -74,7 +74,11 @@ public enum ShaderLoader {
         return false;
     }
 
-    public static void loadShaders(Context context){
+    /**
+     * Read the source of every shader that hasn't been read yet. Safe to call from several
+     * threads, a call made while another one is loading waits for it.
+     */
+    public static synchronized void loadShaders(Context context){
 
         for (ShaderLoader shader : ShaderLoader.values()) {
 
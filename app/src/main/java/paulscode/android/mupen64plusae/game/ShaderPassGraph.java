@@ -0,0 +1,330 @@
+package paulscode.android.mupen64plusae.game;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plans the shader passes that are drawn every frame from the selected shaders.
+ * <ul>
+ * <li>Pass-through passes that draw at the size of what they read are left out, the next pass
+ * reads their input instead.</li>
+ * <li>Passes whose shader declares <code>#pragma intermediate_scale 0.5</code> draw at that
+ * fraction of their normal size when they aren't the last pass.</li>
+ * <li>Intermediate textures come from a {@link RenderTargetPool}. A texture is handed back once
+ * the last pass that samples it, directly or as a PassPrev texture, is planned, so passes whose
+ * outputs are never needed at the same time share one.</li>
+ * </ul>
+ */
+class ShaderPassGraph {
+
+    private static final String TAG = "ShaderPassGraph";
+
+    private static final Pattern PASS_PREV_PATTERN = Pattern.compile("PassPrev(\\d+)Texture");
+    private static final Pattern INTERMEDIATE_SCALE_PATTERN =
+            Pattern.compile("#pragma\\s+intermediate_scale\\s+([0-9]*\\.?[0-9]+)");
+
+    // Resource read by a pass, either the output of another pass or the game texture
+    private static final int GAME_TEXTURE = -1;
+
+    /**
+     * A shader pass, the ones returned by {@link #plan} are drawn
+     */
+    static class Pass {
+        String mCode;
+        int mGroup;
+        int mIndex;
+        int mTextureWidth;
+        int mTextureHeight;
+        int mOutputWidth;
+        int mOutputHeight;
+        float mIntermediateScale;
+
+        // Resource sampled as Texture
+        int mInput;
+
+        // Resource sampled as PassPrev(n)Texture is mPrevious[n - 1]
+        int[] mPrevious;
+        boolean[] mPreviousUsed;
+
+        boolean mSkipped = false;
+        boolean mReduced = false;
+
+        // True if this pass draws to the surface
+        boolean mLast = false;
+
+        // Pass whose output is sampled as Texture, null for the game texture
+        Pass mSource;
+
+        // Pass whose output is sampled as PassPrev(n)Texture is mPreviousSources[n - 1], null for
+        // the game texture
+        Pass[] mPreviousSources;
+
+        // Target this pass draws into, null for the last pass
+        RenderTargetPool.RenderTarget mTarget;
+        boolean mRecycled = false;
+        Shader mShader;
+    }
+
+    private ShaderPassGraph() {
+    }
+
+    /**
+     * Create the shaders of every pass that has to be drawn. Call from the render thread.
+     * @param groups Shader code of every pass, grouped by selected shader
+     * @param passThroughCode Code of the shader that only copies its input
+     * @param gameTexture External texture the game is drawn to
+     * @param inputWidth Width of the game texture
+     * @param inputHeight Height of the game texture
+     * @param width Width of the surface
+     * @param height Height of the surface
+     * @param programCache Provides linked programs
+     * @param pool Provides intermediate textures, {@link RenderTargetPool#beginAllocation()}
+     *             must have been called
+     * @return Shaders to draw in order, the last one draws to the surface
+     */
+    static ArrayList<Shader> build(ArrayList<ArrayList<String>> groups, String passThroughCode, int gameTexture,
+                                   int inputWidth, int inputHeight, int width, int height,
+                                   ShaderProgramCache programCache, RenderTargetPool pool) {
+        final Shader.TexturePassResult gameResult = new Shader.TexturePassResult(gameTexture,
+                inputWidth, inputHeight, inputWidth, inputHeight);
+        ArrayList<Shader> shaders = new ArrayList<>();
+
+        for (Pass pass : plan(groups, passThroughCode, inputWidth, inputHeight, width, height, pool)) {
+            pass.mShader = new Shader(pass.mCode, pass.mSource == null, pass.mLast, pass.mGroup == 0, pass.mIndex);
+            pass.mShader.setSourceTexture(pass.mSource == null ? gameTexture : pass.mSource.mTarget.mTexture);
+            pass.mShader.setDimensions(inputWidth, inputHeight, pass.mTextureWidth, pass.mTextureHeight,
+                    pass.mOutputWidth, pass.mOutputHeight);
+            pass.mShader.initShader(programCache, pass.mTarget);
+
+            ArrayList<Shader.TexturePassResult> texturePassResults = new ArrayList<>();
+            for (Pass previous : pass.mPreviousSources) {
+                texturePassResults.add(previous == null ? gameResult : previous.mShader.getTexturePassResult());
+            }
+            pass.mShader.setShaderSubPasses(texturePassResults);
+
+            shaders.add(pass.mShader);
+        }
+
+        return shaders;
+    }
+
+    /**
+     * Decide which passes are drawn, at which size and into which target. Doesn't touch GL
+     * itself, targets come from the pool.
+     * @param groups Shader code of every pass, grouped by selected shader
+     * @param passThroughCode Code of the shader that only copies its input
+     * @param inputWidth Width of the game texture
+     * @param inputHeight Height of the game texture
+     * @param width Width of the surface
+     * @param height Height of the surface
+     * @param pool Provides intermediate textures, {@link RenderTargetPool#beginAllocation()}
+     *             must have been called
+     * @return Passes to draw in order, the last one draws to the surface
+     */
+    static ArrayList<Pass> plan(ArrayList<ArrayList<String>> groups, String passThroughCode,
+                                int inputWidth, int inputHeight, int width, int height, RenderTargetPool pool) {
+        ArrayList<Pass> nodes = createNodes(groups, inputWidth, inputHeight, width, height);
+        final int[] alias = new int[nodes.size()];
+
+        for (int nodeIndex = 0; nodeIndex < nodes.size(); ++nodeIndex) {
+            Pass node = nodes.get(nodeIndex);
+            alias[nodeIndex] = nodeIndex;
+
+            if (canSkip(nodes, alias, nodeIndex, passThroughCode, inputWidth, inputHeight)) {
+                node.mSkipped = true;
+                alias[nodeIndex] = resolve(alias, node.mInput);
+            }
+        }
+
+        int lastNode = nodes.size() - 1;
+        while (nodes.get(lastNode).mSkipped) {
+            --lastNode;
+        }
+
+        // The last pass stays at full size, skipping it above made sure it draws at the surface size
+        for (int nodeIndex = 0; nodeIndex < lastNode; ++nodeIndex) {
+            Pass node = nodes.get(nodeIndex);
+            if (!node.mSkipped && node.mIntermediateScale < 1.0f) {
+                node.mOutputWidth = Math.max(1, Math.round(node.mOutputWidth*node.mIntermediateScale));
+                node.mOutputHeight = Math.max(1, Math.round(node.mOutputHeight*node.mIntermediateScale));
+                node.mReduced = true;
+            }
+        }
+
+        // Last pass that samples each node's output
+        final int[] lastUse = new int[nodes.size()];
+        for (int nodeIndex = 0; nodeIndex <= lastNode; ++nodeIndex) {
+            Pass node = nodes.get(nodeIndex);
+            if (!node.mSkipped) {
+                for (int resource : getReads(node, alias)) {
+                    if (resource != GAME_TEXTURE) {
+                        lastUse[resource] = nodeIndex;
+                    }
+                }
+            }
+        }
+
+        ArrayList<Pass> passes = new ArrayList<>();
+
+        for (int nodeIndex = 0; nodeIndex <= lastNode; ++nodeIndex) {
+            Pass node = nodes.get(nodeIndex);
+            if (node.mSkipped) {
+                continue;
+            }
+
+            final int input = resolve(alias, node.mInput);
+            node.mLast = nodeIndex == lastNode;
+            node.mSource = input == GAME_TEXTURE ? null : nodes.get(input);
+
+            node.mPreviousSources = new Pass[node.mPrevious.length];
+            for (int previous = 0; previous < node.mPrevious.length; ++previous) {
+                final int resource = resolve(alias, node.mPrevious[previous]);
+                node.mPreviousSources[previous] = resource == GAME_TEXTURE ? null : nodes.get(resource);
+            }
+
+            // Draw into a new target before handing back the ones read, a pass can't draw into
+            // a texture it samples
+            node.mTarget = node.mLast ? null : pool.obtain(node.mOutputWidth, node.mOutputHeight, node.mReduced);
+
+            for (int resource : getReads(node, alias)) {
+                if (resource != GAME_TEXTURE && lastUse[resource] == nodeIndex) {
+                    Pass source = nodes.get(resource);
+                    if (source.mTarget != null && !source.mRecycled) {
+                        pool.recycle(source.mTarget);
+                        source.mRecycled = true;
+                    }
+                }
+            }
+
+            Log.i(TAG, "pass=" + nodeIndex + " group=" + node.mGroup + " index=" + node.mIndex +
+                    " output=" + node.mOutputWidth + "x" + node.mOutputHeight +
+                    (node.mReduced ? " reduced" : "") + (node.mLast ? " surface" : ""));
+            passes.add(node);
+        }
+
+        Log.i(TAG, passes.size() + " passes drawn, " + (nodes.size() - passes.size()) + " skipped, " +
+                pool.getTargetCount() + " intermediate textures");
+        return passes;
+    }
+
+    private static ArrayList<Pass> createNodes(ArrayList<ArrayList<String>> groups, int inputWidth, int inputHeight,
+                                               int width, int height) {
+        ArrayList<Pass> nodes = new ArrayList<>();
+        int groupInput = GAME_TEXTURE;
+
+        for (int groupIndex = 0; groupIndex < groups.size(); ++groupIndex) {
+            ArrayList<String> group = groups.get(groupIndex);
+            final int firstNode = nodes.size();
+
+            for (int index = 0; index < group.size(); ++index) {
+                Pass node = new Pass();
+                node.mCode = group.get(index);
+                node.mGroup = groupIndex;
+                node.mIndex = index;
+                node.mTextureWidth = groupIndex == 0 ? inputWidth : width;
+                node.mTextureHeight = groupIndex == 0 ? inputHeight : height;
+
+                // Always scale at the last shader of the first group
+                if (groupIndex == 0 && index != group.size() - 1) {
+                    node.mOutputWidth = inputWidth;
+                    node.mOutputHeight = inputHeight;
+                } else {
+                    node.mOutputWidth = width;
+                    node.mOutputHeight = height;
+                }
+
+                node.mInput = index == 0 ? groupInput : nodes.size() - 1;
+
+                // PassPrev1 is this pass's input, PassPrev2 the input of the pass before, and so
+                // on back to the input of the group
+                node.mPrevious = new int[index + 1];
+                node.mPreviousUsed = new boolean[index + 1];
+                for (int previous = 0; previous <= index; ++previous) {
+                    final int passIndex = firstNode + index - previous;
+                    node.mPrevious[previous] = passIndex == firstNode ? groupInput : passIndex - 1;
+                }
+
+                Matcher passPrev = PASS_PREV_PATTERN.matcher(node.mCode);
+                while (passPrev.find()) {
+                    final int previous = Integer.parseInt(passPrev.group(1)) - 1;
+                    if (previous >= 0 && previous <= index) {
+                        node.mPreviousUsed[previous] = true;
+                    }
+                }
+
+                Matcher scale = INTERMEDIATE_SCALE_PATTERN.matcher(node.mCode);
+                node.mIntermediateScale = 1.0f;
+                if (scale.find()) {
+                    try {
+                        node.mIntermediateScale = Math.max(0.1f, Math.min(1.0f, Float.parseFloat(scale.group(1))));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Invalid intermediate_scale " + scale.group(1));
+                    }
+                }
+
+                nodes.add(node);
+            }
+
+            if (!group.isEmpty()) {
+                groupInput = nodes.size() - 1;
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * A pass can be left out if it only copies its input at the same size and nothing reads its
+     * output as a PassPrev texture, those are bound by position. The last pass can only be left
+     * out if another pass is left to draw to the surface.
+     */
+    private static boolean canSkip(ArrayList<Pass> nodes, int[] alias, int nodeIndex, String passThroughCode,
+                                   int inputWidth, int inputHeight) {
+        Pass node = nodes.get(nodeIndex);
+        if (!node.mCode.equals(passThroughCode)) {
+            return false;
+        }
+
+        final int input = resolve(alias, node.mInput);
+        final int sourceWidth = input == GAME_TEXTURE ? inputWidth : nodes.get(input).mOutputWidth;
+        final int sourceHeight = input == GAME_TEXTURE ? inputHeight : nodes.get(input).mOutputHeight;
+        if (node.mOutputWidth != sourceWidth || node.mOutputHeight != sourceHeight) {
+            return false;
+        }
+
+        if (nodeIndex == nodes.size() - 1 && input == GAME_TEXTURE) {
+            return false;
+        }
+
+        for (int reader = nodeIndex + 1; reader < nodes.size(); ++reader) {
+            Pass readerNode = nodes.get(reader);
+            for (int previous = 0; previous < readerNode.mPrevious.length; ++previous) {
+                if (readerNode.mPreviousUsed[previous] && readerNode.mPrevious[previous] == nodeIndex) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static int resolve(int[] alias, int resource) {
+        return resource == GAME_TEXTURE ? GAME_TEXTURE : alias[resource];
+    }
+
+    private static ArrayList<Integer> getReads(Pass node, int[] alias) {
+        ArrayList<Integer> reads = new ArrayList<>();
+        reads.add(resolve(alias, node.mInput));
+
+        for (int previous = 0; previous < node.mPrevious.length; ++previous) {
+            if (node.mPreviousUsed[previous]) {
+                reads.add(resolve(alias, node.mPrevious[previous]));
+            }
+        }
+
+        return reads;
+    }
+}
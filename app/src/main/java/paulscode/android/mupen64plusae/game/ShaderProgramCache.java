@@ -0,0 +1,335 @@
+package paulscode.android.mupen64plusae.game;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+/**
+ * Linked shader programs for one GL context. Programs are kept for the life of the context, so
+ * attaching a new game texture doesn't build them again. With OpenGL ES 3 the program binaries
+ * are also saved to disk, keyed by a hash of the shader source and tagged with the GL renderer
+ * and driver version, so later contexts only upload the binary. Binaries the driver rejects are
+ * deleted and the program is compiled from source again.
+ */
+class ShaderProgramCache {
+
+    private static final String TAG = "ShaderProgramCache";
+
+    private static final String CACHE_DIR = "shader_programs";
+    private static final String CACHE_EXTENSION = ".bin";
+
+    // Bump when the file layout changes
+    private static final int FILE_VERSION = 1;
+
+    // Cache files read ahead of time by preload(), by source hash
+    private static final HashMap<String, byte[]> sPreloadedFiles = new HashMap<>();
+
+    private final File mCacheDir;
+    private final HashMap<String, Integer> mPrograms = new HashMap<>();
+    private final int[] mGlResult = new int[1];
+
+    private Boolean mUseProgramBinaries = null;
+    private String mRenderer = "";
+    private String mDriverVersion = "";
+
+    ShaderProgramCache(Context context) {
+        mCacheDir = new File(context.getCacheDir(), CACHE_DIR);
+    }
+
+    /**
+     * Read every cached program binary into memory, so the render thread doesn't wait on the
+     * disk. Can be called from any thread.
+     */
+    static synchronized void preload(Context context) {
+        File[] files = new File(context.getCacheDir(), CACHE_DIR).listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(CACHE_EXTENSION)) {
+                byte[] data = readFile(file);
+
+                if (data != null) {
+                    sPreloadedFiles.put(name.substring(0, name.length() - CACHE_EXTENSION.length()), data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get a linked program for the shader source. Call from the render thread.
+     * @return Program name, owned by this cache
+     */
+    int getProgram(String vertexCode, String fragmentCode) {
+        final String key = hash(vertexCode + '\0' + fragmentCode);
+        Integer cachedProgram = mPrograms.get(key);
+
+        if (cachedProgram != null) {
+            return cachedProgram;
+        }
+
+        if (mUseProgramBinaries == null) {
+            mUseProgramBinaries = supportsProgramBinaries();
+        }
+
+        int program = 0;
+        if (mUseProgramBinaries) {
+            program = loadBinary(key);
+        }
+
+        if (program == 0) {
+            program = compile(vertexCode, fragmentCode);
+
+            if (mUseProgramBinaries && program != 0) {
+                saveBinary(key, program);
+            }
+        }
+
+        mPrograms.put(key, program);
+        return program;
+    }
+
+    /**
+     * Delete every program, the GL context must still be current
+     */
+    void release() {
+        for (int program : mPrograms.values()) {
+            GLES20.glDeleteProgram(program);
+        }
+        mPrograms.clear();
+    }
+
+    private boolean supportsProgramBinaries() {
+        final String version = GLES20.glGetString(GLES20.GL_VERSION);
+
+        if (version == null || !version.startsWith("OpenGL ES 3")) {
+            Log.i(TAG, "GL version " + version + ", program binaries not available");
+            return false;
+        }
+
+        GLES20.glGetIntegerv(GLES30.GL_NUM_PROGRAM_BINARY_FORMATS, mGlResult, 0);
+        if (mGlResult[0] <= 0) {
+            Log.i(TAG, "Driver doesn't support any program binary format");
+            return false;
+        }
+
+        final String renderer = GLES20.glGetString(GLES20.GL_RENDERER);
+        mRenderer = renderer != null ? renderer : "";
+        mDriverVersion = version;
+
+        Log.i(TAG, "Program binaries enabled, renderer=" + mRenderer + " version=" + mDriverVersion);
+        return true;
+    }
+
+    private int compile(String vertexShaderText, String fragmentShaderText) {
+        int vertexShader = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
+        GLES20.glShaderSource(vertexShader, vertexShaderText);
+        GLES20.glCompileShader(vertexShader);
+
+        GLES20.glGetShaderiv(vertexShader, GLES20.GL_COMPILE_STATUS, mGlResult, 0);
+        if (mGlResult[0] == GLES20.GL_FALSE) {
+            Log.e("Shader", "Vertex Compilation error:\n" + GLES20.glGetShaderInfoLog(vertexShader)
+                    + "\n Shader code:\n" + vertexShaderText);
+        }
+
+        int fragmentShader = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+        GLES20.glShaderSource(fragmentShader, fragmentShaderText);
+        GLES20.glCompileShader(fragmentShader);
+
+        GLES20.glGetShaderiv(fragmentShader, GLES20.GL_COMPILE_STATUS, mGlResult, 0);
+        if (mGlResult[0] == GLES20.GL_FALSE) {
+            Log.e("Shader", "Fragment Compilation error:\n" + GLES20.glGetShaderInfoLog(fragmentShader)
+                    + "\n Shader code:\n" + fragmentShaderText);
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, vertexShader);
+        GLES20.glAttachShader(program, fragmentShader);
+
+        if (mUseProgramBinaries) {
+            GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+        }
+
+        GLES20.glLinkProgram(program);
+
+        // The linked program doesn't need the shader objects anymore
+        GLES20.glDetachShader(program, vertexShader);
+        GLES20.glDetachShader(program, fragmentShader);
+        GLES20.glDeleteShader(vertexShader);
+        GLES20.glDeleteShader(fragmentShader);
+
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mGlResult, 0);
+        if (mGlResult[0] == GLES20.GL_FALSE) {
+            Log.e("Shader", "Link error:\n" + GLES20.glGetProgramInfoLog(program));
+        }
+
+        return program;
+    }
+
+    private int loadBinary(String key) {
+        byte[] data;
+        synchronized (ShaderProgramCache.class) {
+            data = sPreloadedFiles.remove(key);
+        }
+
+        final File file = new File(mCacheDir, key + CACHE_EXTENSION);
+        if (data == null) {
+            if (!file.exists()) {
+                return 0;
+            }
+            data = readFile(file);
+        }
+
+        if (data == null) {
+            return 0;
+        }
+
+        final int binaryFormat;
+        final ByteBuffer binary;
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (input.readInt() != FILE_VERSION || !input.readUTF().equals(mRenderer) ||
+                    !input.readUTF().equals(mDriverVersion)) {
+                Log.i(TAG, "Discarding program binary " + key + " from another driver");
+                deleteFile(file);
+                return 0;
+            }
+
+            binaryFormat = input.readInt();
+            final int length = input.readInt();
+
+            // A damaged length could otherwise ask for a negative or huge allocation
+            if (length < 0 || length > input.available()) {
+                throw new IOException("Invalid program binary length " + length);
+            }
+
+            binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            binary.put(data, data.length - input.available(), length);
+            binary.rewind();
+        } catch (IOException e) {
+            Log.w(TAG, "Corrupt program binary " + key);
+            deleteFile(file);
+            return 0;
+        }
+
+        int program = GLES20.glCreateProgram();
+        GLES30.glProgramBinary(program, binaryFormat, binary, binary.capacity());
+
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mGlResult, 0);
+        if (mGlResult[0] == GLES20.GL_FALSE) {
+            Log.w(TAG, "Driver rejected program binary " + key + ", compiling from source");
+            GLES20.glDeleteProgram(program);
+            deleteFile(file);
+            return 0;
+        }
+
+        return program;
+    }
+
+    private void saveBinary(String key, int program) {
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, mGlResult, 0);
+        if (mGlResult[0] == GLES20.GL_FALSE) {
+            return;
+        }
+
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, mGlResult, 0);
+        final int length = mGlResult[0];
+        if (length <= 0) {
+            return;
+        }
+
+        ByteBuffer binary = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+        int[] binaryLength = new int[1];
+        int[] binaryFormat = new int[1];
+        GLES30.glGetProgramBinary(program, length, binaryLength, 0, binaryFormat, 0, binary);
+
+        if (binaryLength[0] <= 0 || GLES20.glGetError() != GLES20.GL_NO_ERROR) {
+            Log.w(TAG, "Unable to get program binary " + key);
+            return;
+        }
+
+        byte[] bytes = new byte[binaryLength[0]];
+        binary.rewind();
+        binary.get(bytes);
+
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mCacheDir);
+            return;
+        }
+
+        // Write to a temporary file first so a partial write is never read back
+        final File file = new File(mCacheDir, key + CACHE_EXTENSION);
+        final File tempFile = new File(mCacheDir, key + ".tmp");
+
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tempFile))) {
+            output.writeInt(FILE_VERSION);
+            output.writeUTF(mRenderer);
+            output.writeUTF(mDriverVersion);
+            output.writeInt(binaryFormat[0]);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            deleteFile(tempFile);
+            return;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            Log.w(TAG, "Unable to save program binary " + key);
+            deleteFile(tempFile);
+        }
+    }
+
+    private static byte[] readFile(File file) {
+        final int length = (int) file.length();
+        byte[] data = new byte[length];
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            input.readFully(data);
+            return data;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file);
+            return null;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length*2);
+            for (byte value : digest) {
+                builder.append(Character.forDigit((value >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(value & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android device has SHA-1, fall back to something that is still stable
+            return Integer.toHexString(text.hashCode()) + "_" + text.length();
+        }
+    }
+}
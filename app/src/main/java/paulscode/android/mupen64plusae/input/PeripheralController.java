@@ -350,6 +350,10 @@ public class PeripheralController extends AbstractController implements
                         Log.v("PeripheralController", "FUNC_FRAME_ADVANCE");
                         mCoreFragment.advanceFrame();
                         break;
+                    case InputMap.FUNC_REWIND:
+                        Log.v("PeripheralController", "FUNC_REWIND");
+                        mCoreFragment.rewind();
+                        break;
                     case InputMap.FUNC_SPEED_UP:
                         Log.v("PeripheralController", "FUNC_SPEED_UP");
                         mCoreFragment.incrementCustomSpeed();
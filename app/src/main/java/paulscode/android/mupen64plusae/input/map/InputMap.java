@@ -107,8 +107,11 @@ public class InputMap extends SerializableMap
     /** Mupen64Plus function: decrement slot. */
     public static final int FUNC_DECREMENT_SLOT         = OFFSET_GLOBAL_FUNCS + 15;
 
+    /** Mupen64Plus function: rewind. */
+    public static final int FUNC_REWIND                 = OFFSET_GLOBAL_FUNCS + 16;
+
     /** Total number of mappable controls/functions. */
-    public static final int NUM_MAPPABLES               = OFFSET_GLOBAL_FUNCS + 16;
+    public static final int NUM_MAPPABLES               = OFFSET_GLOBAL_FUNCS + 17;
 
     // @formatter:on
     
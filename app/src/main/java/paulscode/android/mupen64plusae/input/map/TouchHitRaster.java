@@ -0,0 +1,144 @@
+package paulscode.android.mupen64plusae.input.map;
+
+import java.util.Arrays;
+
+/**
+ * The button under every digitizer pixel, built from the button mask pixels so looking up a touch
+ * is a single array read. Where masks overlap, the first mask added that isn't black at a pixel
+ * wins, even if its color isn't mapped to a button.
+ *
+ * @see TouchMap
+ */
+class TouchHitRaster
+{
+    /**
+     * Maps a mask color to a button.
+     */
+    interface ColorMatcher
+    {
+        /**
+         * @param rgb The mask color, without alpha.
+         *
+         * @return The N64 button the color is mapped to, or {@link TouchMap#UNMAPPED}.
+         */
+        int getButton( int rgb );
+    }
+
+    /** Raster value: no button mask covers the pixel. */
+    private static final byte HIT_NONE = 0;
+
+    /** Raster value: a button mask covers the pixel with a color that isn't mapped. */
+    private static final byte HIT_UNMAPPED = (byte) 0xFF;
+
+    /** The button under every pixel, stored as the N64 button index plus one. */
+    private byte[] raster = new byte[0];
+
+    /** Width of the raster, in pixels. */
+    private int width = 0;
+
+    /** Height of the raster, in pixels. */
+    private int height = 0;
+
+    /**
+     * Removes every mask and sets the size of the raster.
+     *
+     * @param w The width of the digitizer, in pixels.
+     * @param h The height of the digitizer, in pixels.
+     */
+    void reset( int w, int h )
+    {
+        width = w;
+        height = h;
+
+        final int size = w * h;
+        if( raster.length != size )
+            raster = new byte[size];
+        else
+            Arrays.fill( raster, HIT_NONE );
+    }
+
+    /**
+     * @return True if a mask drawn at the given bounds would cover any pixel of the raster.
+     */
+    boolean overlaps( int x, int y, int w, int h )
+    {
+        return Math.max( x, 0 ) < Math.min( x + w, width ) && Math.max( y, 0 ) < Math.min( y + h, height );
+    }
+
+    /**
+     * Adds a mask below the ones added before.
+     *
+     * @param pixels The mask pixels, row by row. Black is not part of the button.
+     * @param maskWidth The width of the mask image, in pixels.
+     * @param maskHeight The height of the mask image, in pixels.
+     * @param x The x-coordinate of the mask on the digitizer, in pixels.
+     * @param y The y-coordinate of the mask on the digitizer, in pixels.
+     * @param w The width the mask covers on the digitizer, in pixels.
+     * @param h The height the mask covers on the digitizer, in pixels.
+     * @param maskScale Digitizer pixels per mask pixel.
+     * @param matcher Maps mask colors to buttons.
+     */
+    void addMask( int[] pixels, int maskWidth, int maskHeight, int x, int y, int w, int h, float maskScale,
+            ColorMatcher matcher )
+    {
+        int left = Math.max( x, 0 );
+        int right = Math.min( x + w, width );
+        int bottom = Math.max( y, 0 );
+        int top = Math.min( y + h, height );
+        if( left >= right || bottom >= top )
+            return;
+
+        // Map every mask pixel to a button once, a scaled mask repeats each of them
+        byte[] pixelHits = new byte[maskWidth * maskHeight];
+        int lastRgb = 0;
+        byte lastHit = HIT_NONE;
+        for( int p = 0; p < pixelHits.length; p++ )
+        {
+            // Ignore the alpha component if any
+            int rgb = pixels[p] & 0x00ffffff;
+            if( rgb != lastRgb )
+            {
+                int button = matcher.getButton( rgb );
+                lastRgb = rgb;
+                lastHit = button == TouchMap.UNMAPPED ? HIT_UNMAPPED : (byte) ( button + 1 );
+            }
+
+            // Black is not part of the button
+            pixelHits[p] = rgb > 0 ? lastHit : HIT_NONE;
+        }
+
+        // Mask column under each digitizer column, rounded the same way as the mask scale
+        int[] maskColumns = new int[right - left];
+        for( int column = left; column < right; column++ )
+            maskColumns[column - left] = Math.min( (int) ( ( column - x ) / maskScale ), maskWidth - 1 );
+
+        for( int row = bottom; row < top; row++ )
+        {
+            int maskRow = Math.min( (int) ( ( row - y ) / maskScale ), maskHeight - 1 ) * maskWidth;
+            int rasterRow = row * width;
+            for( int column = left; column < right; column++ )
+            {
+                if( raster[rasterRow + column] == HIT_NONE )
+                    raster[rasterRow + column] = pixelHits[maskRow + maskColumns[column - left]];
+            }
+        }
+    }
+
+    /**
+     * Gets the N64 button at a given location.
+     *
+     * @param x The x-coordinate, in pixels.
+     * @param y The y-coordinate, in pixels.
+     *
+     * @return The N64 button at the location, or {@link TouchMap#UNMAPPED}. Locations outside of
+     *         the raster are never mapped.
+     */
+    int get( int x, int y )
+    {
+        if( x < 0 || x >= width || y < 0 || y >= height )
+            return TouchMap.UNMAPPED;
+
+        int hit = raster[y * width + x] & 0xFF;
+        return ( hit == HIT_NONE || hit == ( HIT_UNMAPPED & 0xFF ) ) ? TouchMap.UNMAPPED : hit - 1;
+    }
+}
@@ -149,6 +149,18 @@ public class TouchMap
     /** The error in RGB (256x256x256) space that we tolerate when matching mask colors. */
     private static final int MATCH_TOLERANCE = 10;
 
+    /** The button under every digitizer pixel. */
+    private final TouchHitRaster hitRaster = new TouchHitRaster();
+
+    /** Width of the hit raster, the last width passed to {@link #resize(int, int)}. */
+    private int hitRasterWidth = 0;
+
+    /** Height of the hit raster, the last height passed to {@link #resize(int, int)}. */
+    private int hitRasterHeight = 0;
+
+    /** True if the buttons changed since the hit raster was built. */
+    private boolean hitRasterDirty = true;
+
     /** True if separated A/B buttons is supported in that skin */
     boolean mSplitABSkin;
 
@@ -235,6 +247,7 @@ public class TouchMap
         buttonX.clear();
         buttonY.clear();
         buttonNames.clear();
+        hitRasterDirty = true;
         analogBackScaling = 0;
         analogBackImage = null;
         analogForeImage = null;
@@ -296,6 +309,10 @@ public class TouchMap
             originalAnalogX = analogBackImage.x;
             originalAnalogY = analogBackImage.y;
         }
+
+        hitRasterWidth = w;
+        hitRasterHeight = h;
+        buildHitRaster();
     }
     
     /**
@@ -310,34 +327,38 @@ public class TouchMap
      */
     public int getButtonPress( int xLocation, int yLocation )
     {
-        // Search through every button mask to see if the corresponding button was touched
+        if( hitRasterDirty )
+            buildHitRaster();
+
+        return hitRaster.get( xLocation, yLocation );
+    }
+
+    /**
+     * Rasterizes the button masks at the digitizer size, so looking up a touch is a single array
+     * read. Where masks overlap, the first mask in the list that isn't black at that pixel wins.
+     */
+    private void buildHitRaster()
+    {
+        hitRaster.reset( hitRasterWidth, hitRasterHeight );
+
         for( int i = 0; i < buttonMasks.size(); i++ )
         {
-            if( buttonMasks.get( i ) != null )
-            {
-                int left = buttonMasks.get( i ).x;
-                int right = left + (int) ( buttonMasks.get( i ).width * buttonMasks.get( i ).scale );
-                int bottom = buttonMasks.get( i ).y;
-                int top = bottom + (int) ( buttonMasks.get( i ).height * buttonMasks.get( i ).scale );
-                
-                // See if the touch falls in the vicinity of the button (conservative test)
-                if( xLocation >= left && xLocation < right && yLocation >= bottom
-                        && yLocation < top )
-                {
-                    // Get the mask color at this location
-                    int c = buttonMasks.get( i ).image.getPixel( (int) ( ( xLocation - buttonMasks.get( i ).x ) / 
-                            ( buttonScaling.get( i ) * scale ) ), (int) ( ( yLocation - buttonMasks.get( i ).y ) / ( buttonScaling.get( i ) * scale ) ) );
-                    
-                    // Ignore the alpha component if any
-                    int rgb = c & 0x00ffffff;
-                    
-                    // Ignore black and get the N64 button associated with this color
-                    if( rgb > 0 )
-                        return getButtonFromColor( rgb );
-                }
-            }
+            Image mask = buttonMasks.get( i );
+            if( mask == null || mask.image == null )
+                continue;
+
+            int w = (int) ( mask.width * mask.scale );
+            int h = (int) ( mask.height * mask.scale );
+            if( !hitRaster.overlaps( mask.x, mask.y, w, h ) )
+                continue;
+
+            int[] pixels = new int[mask.width * mask.height];
+            mask.image.getPixels( pixels, 0, mask.width, 0, 0, mask.width, mask.height );
+            hitRaster.addMask( pixels, mask.width, mask.height, mask.x, mask.y, w, h,
+                    buttonScaling.get( i ) * scale, this::getButtonFromColor );
         }
-        return UNMAPPED;
+
+        hitRasterDirty = false;
     }
     
     /**
@@ -609,6 +630,7 @@ public class TouchMap
                         buttonY.set( i, y );
                         buttonImages.get( i ).fitPercent( buttonX.get( i ), buttonY.get( i ), w, h );
                         buttonMasks.get( i ).fitPercent( buttonX.get( i ), buttonY.get( i ), w, h );
+                        hitRasterDirty = true;
                     }
                 }
             }
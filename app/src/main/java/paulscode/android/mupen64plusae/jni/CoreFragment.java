@@ -472,6 +472,30 @@ public class CoreFragment extends Fragment implements CoreServiceListener, CoreS
         }
     }
 
+    public void rewind()
+    {
+        Log.i(TAG, "rewind");
+
+        if(mCoreService != null)
+        {
+            mCoreService.rewind();
+        }
+    }
+
+    /**
+     * Keep recent states in memory so {@link #rewind()} can go back to them, this uses some CPU
+     * time and memory so it should only be enabled if rewind is mapped
+     */
+    public void setRewindEnabled(boolean enabled)
+    {
+        Log.i(TAG, "setRewindEnabled " + enabled);
+
+        if(mCoreService != null)
+        {
+            mCoreService.setRewindEnabled(enabled);
+        }
+    }
+
     public void emuGameShark(boolean pressed)
     {
         Log.i(TAG, "emuGameShark");
@@ -43,12 +43,17 @@ import java.io.File;
 import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
 import org.apache.commons.compress.archivers.sevenz.SevenZFile;
 import org.apache.commons.compress.utils.IOUtils;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -115,6 +120,9 @@ class CoreInterface
     }
 
     final static long MAX_7ZIP_FILE_SIZE = 100*1024*1024;
+
+    // Starting buffer size when reading a ROM of unknown size, it's doubled as needed
+    final static long INITIAL_ROM_BUFFER_SIZE = 8*1024*1024;
     private static final String TAG = "CoreInterface";
 
     // Core state callbacks - used by NativeImports
@@ -253,59 +261,194 @@ class CoreInterface
         }
     }
 
+    /**
+     * ROM contents in native memory, ready to be passed to the core. The core copies the ROM
+     * when it's opened, so this only has to stay alive until then.
+     */
+    private static class NativeRom
+    {
+        final Pointer pointer;
+        final int length;
+
+        // Keeps the memory the pointer refers to from being released
+        final Object owner;
+
+        NativeRom(Pointer pointer, int length, Object owner)
+        {
+            this.pointer = pointer;
+            this.length = length;
+            this.owner = owner;
+        }
+
+        /**
+         * Free the memory once the core has copied the ROM. Until then the owner has to stay
+         * reachable, the core only sees the raw pointer, so nothing else stops the garbage
+         * collector from freeing or unmapping the memory while the core reads it.
+         */
+        void release()
+        {
+            // Reference.reachabilityFence() needs API 28, a volatile write can't be optimized away
+            sReachabilityFence = owner;
+            sReachabilityFence = null;
+
+            // A mapped file is unmapped when the buffer is collected
+            if (owner instanceof Memory) {
+                ((Memory) owner).close();
+            }
+        }
+    }
+
+    private static volatile Object sReachabilityFence;
+
+    /**
+     * Receives the contents of an archive entry
+     */
+    private interface EntryReader<T>
+    {
+        /**
+         * @param stream Stream positioned at the start of the entry
+         * @param size Size of the entry, or a negative value if it's unknown
+         */
+        T read(InputStream stream, long size) throws IOException;
+    }
+
     boolean openRom(Context context, String romFileUri)
     {
-        boolean success = false;
-        byte[] romBuffer = null;
+        NativeRom rom = null;
 
         try (ParcelFileDescriptor parcelFileDescriptor = context.getContentResolver().openFileDescriptor(Uri.parse(romFileUri), "r")){
-            InputStream is;
-            romBuffer = IOUtils.toByteArray(new FileInputStream(parcelFileDescriptor.getFileDescriptor()));
-            success = romBuffer.length > 0;
+            if (parcelFileDescriptor != null) {
+                rom = mapRom(new FileInputStream(parcelFileDescriptor.getFileDescriptor()));
+            }
         } catch (Exception|OutOfMemoryError e) {
             e.printStackTrace();
         }
 
-        if (success)
-        {
-            openRom(romBuffer);
-        }
-
-        return success;
+        return openRom(rom);
     }
 
     boolean openRom(Context context, InputStream inputStream)
     {
-        boolean success = false;
-        byte[] romBuffer = null;
+        NativeRom rom = null;
 
         try {
-            romBuffer = IOUtils.toByteArray(inputStream);
-            success = romBuffer.length > 0;
-
+            rom = readRom(inputStream, -1);
         } catch (IOException|OutOfMemoryError e) {
             e.printStackTrace();
         }
-        if (success)
-        {
-            openRom(romBuffer);
+
+        return openRom(rom);
+    }
+
+    private boolean openRom(NativeRom rom)
+    {
+        if (rom == null || rom.length == 0) {
+            return false;
         }
 
-        return success;
+        try {
+            mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_ROM_OPEN.ordinal(), rom.length, rom.pointer);
+        } finally {
+            rom.release();
+        }
+        return true;
+    }
+
+    /**
+     * Memory map a ROM file. Files that can't be mapped, like pipes, are read instead.
+     */
+    private static NativeRom mapRom(FileInputStream inputStream) throws IOException
+    {
+        FileChannel channel = inputStream.getChannel();
+
+        long size;
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            size = 0;
+        }
+
+        if (size > 0 && size <= Integer.MAX_VALUE) {
+            try {
+                MappedByteBuffer mappedRom = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return new NativeRom(Native.getDirectBufferPointer(mappedRom), (int) size, mappedRom);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to map ROM, reading it instead: " + e.getMessage());
+            }
+        }
+
+        return readRom(inputStream, size > 0 ? size : -1);
     }
 
-    void openRom(byte[] romBuffer)
+    /**
+     * Read a ROM straight into native memory
+     * @param inputStream Stream to read from
+     * @param size Size of the ROM if known, or a negative value
+     */
+    private static NativeRom readRom(InputStream inputStream, long size) throws IOException
     {
-        int romLength = romBuffer.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("ROM is too large: " + size);
+        }
+
+        ReadableByteChannel channel = inputStream instanceof FileInputStream ?
+                ((FileInputStream) inputStream).getChannel() : Channels.newChannel(inputStream);
 
-        Pointer parameter = new Memory(romLength);
-        parameter.write(0, romBuffer, 0, romBuffer.length);
-        mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_ROM_OPEN.ordinal(), romLength, parameter);
+        long capacity = size > 0 ? size : INITIAL_ROM_BUFFER_SIZE;
+        Memory memory = new Memory(capacity);
+        ByteBuffer buffer = memory.getByteBuffer(0, capacity);
+
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (size > 0) {
+                    break;
+                }
+
+                // The size is unknown, grow the buffer
+                if (capacity * 2 > Integer.MAX_VALUE) {
+                    memory.close();
+                    throw new IOException("ROM is too large");
+                }
+
+                Memory largerMemory = new Memory(capacity * 2);
+                ByteBuffer largerBuffer = largerMemory.getByteBuffer(0, capacity * 2);
+                buffer.flip();
+                largerBuffer.put(buffer);
+                memory.close();
+
+                memory = largerMemory;
+                buffer = largerBuffer;
+                capacity *= 2;
+            }
+
+            if (channel.read(buffer) < 0) {
+                break;
+            }
+        }
+
+        if (size > 0 && buffer.position() != size) {
+            memory.close();
+            throw new IOException("ROM is truncated, expected " + size + " bytes, read " + buffer.position());
+        }
+
+        return new NativeRom(memory, buffer.position(), memory);
     }
 
-    private byte[] extractZip(Context context, String romFileName, String zipPathUri) {
+    /**
+     * Writes an archive entry to a file
+     */
+    private static EntryReader<Boolean> entryToFile(String destPath)
+    {
+        return (stream, size) -> {
+            try (OutputStream outputStream = new FileOutputStream(destPath)) {
+                return IOUtils.copy(stream, outputStream) > 0;
+            }
+        };
+    }
 
-        byte[] returnData = null;
+    private <T> T extractZip(Context context, String romFileName, String zipPathUri, EntryReader<T> reader) {
+
+        T returnData = null;
 
         boolean lbFound = false;
 
@@ -319,16 +462,7 @@ class CoreInterface
                 lbFound = (entryName.equals(romFileName) || romFileName == null) && !zipEntry.isDirectory();
 
                 if (lbFound) {
-
-                    ByteArrayOutputStream streamBuilder = new ByteArrayOutputStream();
-                    int numBytesRead;
-                    byte[] tempBuffer = new byte[1024*1024];
-
-                    while ( (numBytesRead = zipfile.read(tempBuffer)) != -1 ){
-                        streamBuilder.write(tempBuffer, 0, numBytesRead);
-                    }
-
-                    returnData = streamBuilder.toByteArray();
+                    returnData = reader.read(zipfile, zipEntry.getSize());
                 }
 
                 zipEntry = zipfile.getNextEntry();
@@ -338,20 +472,16 @@ class CoreInterface
             returnData = null;
         }
 
-        if (returnData != null && returnData.length == 0) {
-            returnData = null;
-        }
-
         return returnData;
     }
 
-    private byte[] extractSevenZ(Context context, String romFileName, String zipPath)
+    private <T> T extractSevenZ(Context context, String romFileName, String zipPath, EntryReader<T> reader)
     {
         if (!AppData.IS_NOUGAT) {
             return null;
         }
 
-        byte[] returnData = null;
+        T returnData = null;
 
         boolean lbFound = false;
 
@@ -370,17 +500,7 @@ class CoreInterface
                     lbFound = (entryName.equals(romFileName) || romFileName == null) && zipEntry.getSize() > 0;
 
                     if (lbFound) {
-                        returnData = new byte[(int) zipEntry.getSize()];
-
-                        int numBytesRead = 0;
-
-                        while (numBytesRead < returnData.length) {
-                            numBytesRead += zipStream.read(returnData, numBytesRead, returnData.length - numBytesRead);
-                        }
-
-                        if (numBytesRead != returnData.length) {
-                            returnData = null;
-                        }
+                        returnData = reader.read(zipStream, zipEntry.getSize());
                     }
                 }
             }
@@ -392,25 +512,44 @@ class CoreInterface
         return returnData;
     }
 
-    boolean openZip(Context context, String zipPathUri, String romName)
+    /**
+     * Extract the first matching entry of a zip or 7zip file
+     * @return Whatever the reader returned, or null if the entry wasn't found
+     */
+    private <T> T extractArchive(Context context, String romFileName, String archiveUri, EntryReader<T> reader)
     {
-        byte[] romBuffer = null;
-        final RomHeader romHeader = new RomHeader(context, Uri.parse(zipPathUri));
+        final RomHeader romHeader = new RomHeader(context, Uri.parse(archiveUri));
 
         if (romHeader.isZip) {
-            romBuffer = extractZip(context, romName, zipPathUri);
+            return extractZip(context, romFileName, archiveUri, reader);
         } else if (romHeader.is7Zip) {
-            romBuffer = extractSevenZ(context, romName, zipPathUri);
+            return extractSevenZ(context, romFileName, archiveUri, reader);
         }
 
-        boolean success = romBuffer != null;
+        return null;
+    }
 
-        if (success)
-        {
-            openRom(romBuffer);
-        }
+    boolean openZip(Context context, String zipPathUri, String romName)
+    {
+        return openRom(extractArchive(context, romName, zipPathUri, CoreInterface::readRom));
+    }
 
-        return success;
+    /**
+     * Copy a file, extracting it first if it's a zip or 7zip file
+     * @param sourceUri File to copy
+     * @param destPath Where to copy it to
+     * @return True if successful
+     */
+    private boolean copyOrExtractFile(Context context, String sourceUri, String destPath)
+    {
+        final RomHeader romHeader = new RomHeader(context, Uri.parse(sourceUri));
+
+        if (romHeader.isZip || romHeader.is7Zip) {
+            Boolean success = extractArchive(context, null, sourceUri, entryToFile(destPath));
+            return success != null && success;
+        } else {
+            return FileUtil.copySingleFile(context, Uri.parse(sourceUri), new File(destPath));
+        }
     }
 
     public void setGbRomPath(Context context, SparseArray<String> romUris)
@@ -418,27 +557,7 @@ class CoreInterface
         for (int player = 1; player <= 4; ++player) {
 
             if (!TextUtils.isEmpty(romUris.get(player))) {
-                byte[] romBuffer;
-                final RomHeader romHeader = new RomHeader(context, Uri.parse(romUris.get(player)));
-
-                if (romHeader.isZip || romHeader.is7Zip) {
-
-                    if (romHeader.isZip) {
-                        romBuffer = extractZip(context, null, romUris.get(player));
-                    } else {
-                        romBuffer = extractSevenZ(context, null, romUris.get(player));
-                    }
-
-                    if (romBuffer != null) {
-                        try {
-                            FileUtils.writeByteArrayToFile(new File(mGbRomPaths.get(player)), romBuffer);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                } else {
-                    FileUtil.copySingleFile(context, Uri.parse(romUris.get(player)), new File(mGbRomPaths.get(player)));
-                }
+                copyOrExtractFile(context, romUris.get(player), mGbRomPaths.get(player));
             }
         }
     }
@@ -458,28 +577,9 @@ class CoreInterface
             return;
         }
 
-        byte[] romBuffer;
-        final RomHeader romHeader = new RomHeader(context, Uri.parse(ddRomUri));
-
-        if (romHeader.isZip || romHeader.is7Zip) {
-
-            if (romHeader.isZip) {
-                romBuffer = extractZip(context, null, ddRomUri);
-            } else {
-                romBuffer = extractSevenZ(context, null, ddRomUri);
-            }
-
-            if (romBuffer != null) {
-                try {
-                    FileUtils.writeByteArrayToFile(new File(mDdRom), romBuffer);
-                    Log.i(TAG, "Copied DD ROM: " + mDdRom);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else {
-            Log.i(TAG, "Copying DD ROM: " + ddRomUri);
-            FileUtil.copySingleFile(context, Uri.parse(ddRomUri), new File(mDdRom));
+        Log.i(TAG, "Copying DD ROM: " + ddRomUri);
+        if (copyOrExtractFile(context, ddRomUri, mDdRom)) {
+            Log.i(TAG, "Copied DD ROM: " + mDdRom);
         }
     }
 
@@ -491,30 +591,10 @@ class CoreInterface
 
         mDdDisk += filename;
 
-        byte[] romBuffer;
-        final RomHeader romHeader = new RomHeader(context, Uri.parse(ddDiskUri));
-
-        if (romHeader.isZip || romHeader.is7Zip) {
-
-            if (romHeader.isZip) {
-                romBuffer = extractZip(context, null, ddDiskUri);
-            } else {
-                romBuffer = extractSevenZ(context, null, ddDiskUri);
-            }
-
-            if (romBuffer != null) {
-                try {
-                    FileUtils.writeByteArrayToFile(new File(mDdDisk), romBuffer);
-                    Log.i(TAG, "Copied DD Disk: " + mDdDisk);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        } else {
-            Log.i(TAG, "Copying DD Disk: " + mDdDisk);
-            FileUtil.copySingleFile(context, Uri.parse(ddDiskUri), new File(mDdDisk));
+        Log.i(TAG, "Copying DD Disk: " + mDdDisk);
+        if (copyOrExtractFile(context, ddDiskUri, mDdDisk)) {
+            Log.i(TAG, "Copied DD Disk: " + mDdDisk);
         }
-
     }
 
     public void writeGbRamData(Context context, SparseArray<String> ramUri)
@@ -794,6 +874,48 @@ class CoreInterface
         mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_STATE_SAVE.ordinal(), 1, parameterPointer);
     }
 
+    /**
+     * @return Size of the buffer needed by {@link #emuSaveMemory(ByteBuffer)}, 0 if unknown
+     */
+    int emuGetStateMemorySize()
+    {
+        IntByReference size = new IntByReference(0);
+        mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_CORE_STATE_QUERY.ordinal(), CoreTypes.m64p_core_param.M64CORE_STATE_MEMORY_SIZE.ordinal(), size.getPointer());
+        return size.getValue();
+    }
+
+    /**
+     * Save an uncompressed state to memory at the next VI. Like file saves, completion is reported
+     * through M64CORE_STATE_SAVECOMPLETE, the buffer must not be used until then.
+     * @param buffer Direct buffer of at least {@link #emuGetStateMemorySize()} bytes
+     * @return False if the core rejected the request, for example during netplay
+     */
+    boolean emuSaveMemory(ByteBuffer buffer)
+    {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Savestate buffer must be direct");
+        }
+
+        return mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_STATE_SAVE_MEMORY.ordinal(), buffer.capacity(), Native.getDirectBufferPointer(buffer)) ==
+                CoreTypes.m64p_error.M64ERR_SUCCESS.ordinal();
+    }
+
+    /**
+     * Load a state saved with {@link #emuSaveMemory(ByteBuffer)} at the next VI, completion is
+     * reported through M64CORE_STATE_LOADCOMPLETE. The buffer isn't modified, so it can be loaded
+     * again.
+     * @return False if the core rejected the request, for example during netplay
+     */
+    boolean emuLoadMemory(ByteBuffer buffer)
+    {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Savestate buffer must be direct");
+        }
+
+        return mMupen64PlusLibrary.CoreDoCommand(CoreTypes.m64p_command.M64CMD_STATE_LOAD_MEMORY.ordinal(), buffer.capacity(), Native.getDirectBufferPointer(buffer)) ==
+                CoreTypes.m64p_error.M64ERR_SUCCESS.ordinal();
+    }
+
     void emuScreenshot()
     {
         Pointer parameter = null;
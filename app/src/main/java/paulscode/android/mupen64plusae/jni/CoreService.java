@@ -179,6 +179,10 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
 
     private static final CoreInterface mCoreInterface = new CoreInterface();
 
+    // Maximum memory used for rewinding, including the two uncompressed states it works with
+    private static final long REWIND_MEMORY_CAP = 64*1024*1024;
+    private RewindBuffer mRewindBuffer = null;
+
     /**
      * Last time we received an FPS changed callback. This is used to determine if the core
      * is locked up since these won't happen if it is.
@@ -237,6 +241,8 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
 
     private void tryShutdown()
     {
+        setRewindEnabled(false);
+
         mFpsCangedHandler.removeCallbacks(mLastFpsChangedChecker);
         mFpsCangedHandler.postDelayed(mLastFpsChangedChecker, 500);
 
@@ -270,8 +276,12 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
 
         Log.i(TAG, "Saving file: " + latestSave);
 
+        suspendRewind();
+
         if (shutdownOnFinish)
         {
+            setRewindEnabled(false);
+
             mLastFpsChangedTime = System.currentTimeMillis() / 1000L;
             mFpsCangedHandler.removeCallbacks(mLastFpsChangedChecker);
             mFpsCangedHandler.postDelayed(mLastFpsChangedChecker, 500);
@@ -328,6 +338,7 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
     void saveState(String filename)
     {
         File currentSaveStateFile = new File( mGamePrefs.getUserSaveDir() + "/" + filename );
+        suspendRewind();
         mCoreInterface.emuSaveFile( currentSaveStateFile.getAbsolutePath() );
     }
 
@@ -393,16 +404,19 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
 
     void saveSlot()
     {
+        suspendRewind();
         mCoreInterface.emuSaveSlot();
     }
 
     void loadSlot()
     {
+        suspendRewind();
         mCoreInterface.emuLoadSlot();
     }
 
     void loadState(File file)
     {
+        suspendRewind();
         mCoreInterface.emuLoadFile( file.getAbsolutePath() );
     }
 
@@ -429,6 +443,37 @@ public class CoreService extends Service implements CoreInterface.OnFpsChangedLi
         mCoreInterface.emuAdvanceFrame();
     }
 
+    void setRewindEnabled(boolean enabled)
+    {
+        // Players can't go back in time on their own during netplay
+        if (enabled && mRewindBuffer == null && !mUsingNetplay && !mIsShuttingDown) {
+            mRewindBuffer = new RewindBuffer(mCoreInterface, REWIND_MEMORY_CAP,
+                    CountryCode.getCountryCode(mRomCountryCode).getViRate());
+            mRewindBuffer.start();
+        } else if (!enabled && mRewindBuffer != null) {
+            mRewindBuffer.stop();
+            mRewindBuffer = null;
+        }
+    }
+
+    void rewind()
+    {
+        if (mRewindBuffer != null) {
+            mRewindBuffer.rewind();
+        }
+    }
+
+    /**
+     * The core runs one savestate job at a time, keep the rewind buffer from replacing the one
+     * that is about to be requested
+     */
+    private void suspendRewind()
+    {
+        if (mRewindBuffer != null) {
+            mRewindBuffer.suspendForExternalJob();
+        }
+    }
+
     void emuGameShark(boolean pressed)
     {
         mCoreInterface.emuGameShark(pressed);
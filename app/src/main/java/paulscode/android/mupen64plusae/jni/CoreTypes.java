@@ -76,7 +76,8 @@ public class CoreTypes {
         M64CORE_AUDIO_MUTE,
         M64CORE_INPUT_GAMESHARK,
         M64CORE_STATE_LOADCOMPLETE,
-        M64CORE_STATE_SAVECOMPLETE
+        M64CORE_STATE_SAVECOMPLETE,
+        M64CORE_STATE_MEMORY_SIZE
     }
 
     enum m64p_command{
@@ -105,7 +106,11 @@ public class CoreTypes {
         M64CMD_NETPLAY_INIT,
         M64CMD_NETPLAY_CONTROL_PLAYER,
         M64CMD_NETPLAY_GET_VERSION,
-        M64CMD_NETPLAY_CLOSE
+        M64CMD_NETPLAY_CLOSE,
+        M64CMD_PIF_OPEN,
+        M64CMD_ROM_SET_SETTINGS,
+        M64CMD_STATE_SAVE_MEMORY,
+        M64CMD_STATE_LOAD_MEMORY
     }
 
     enum m64p_msg_level {
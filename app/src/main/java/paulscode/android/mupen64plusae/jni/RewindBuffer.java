@@ -0,0 +1,524 @@
+package paulscode.android.mupen64plusae.jni;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps recent in-memory savestates so the game can be rewound. A state is taken every few frames,
+ * the first one of a group is stored compressed as a keyframe and the following ones as compressed
+ * XOR deltas against that keyframe, which are usually a small fraction of its size. The oldest
+ * states are dropped so the memory used never exceeds a fixed number of bytes. That includes the
+ * two uncompressed states the buffer works with, a state being taken and the current keyframe.
+ *
+ * Every state costs the time the core takes to write it, from the request until it reports the
+ * save as complete, plus the CPU time of compressing it on a background thread. When that takes
+ * more than a quarter of the time between states, states are taken less often so the emulation
+ * thread never competes with it for long.
+ */
+class RewindBuffer
+{
+    private static final String TAG = "RewindBuffer";
+
+    // Frames between states, each frame is one VI
+    private static final int DEFAULT_INTERVAL_FRAMES = 30;
+    private static final int MAX_INTERVAL_FRAMES = 240;
+
+    // Fraction of the time between states that taking and compressing a state may use
+    private static final float MAX_CPU_FRACTION = 0.25f;
+
+    // A new keyframe is stored after this many deltas or once deltas grow past half of it
+    private static final int MAX_DELTAS_PER_KEYFRAME = 20;
+
+    // States newer than this are skipped when rewinding so every press goes back noticeably
+    private static final long MIN_REWIND_AGE_MS = 500;
+
+    // Give up on a save or load the core never completed
+    private static final long JOB_TIMEOUT_MS = 5000;
+
+    private static class Snapshot
+    {
+        Snapshot(byte[] data, Snapshot keyframe, long time)
+        {
+            this.data = data;
+            this.keyframe = keyframe;
+            this.time = time;
+        }
+
+        final byte[] data;
+        /** Keyframe this is a delta against, null if this is a keyframe */
+        final Snapshot keyframe;
+        /** Uptime in milliseconds when the state was taken */
+        final long time;
+    }
+
+    /**
+     * Compressed states, oldest first, and the keyframe new deltas are taken against
+     */
+    static class History
+    {
+        private final ArrayDeque<Snapshot> mSnapshots = new ArrayDeque<>();
+        private final SavestateBuffer mKeyframeState;
+        private final long mMaxBytes;
+        private long mStoredBytes = 0;
+        private Snapshot mKeyframe = null;
+        private int mDeltaCount = 0;
+
+        /**
+         * @param keyframeState Holds the uncompressed keyframe, the size of every state
+         * @param maxBytes Maximum number of bytes of compressed states to keep
+         */
+        History(SavestateBuffer keyframeState, long maxBytes)
+        {
+            mKeyframeState = keyframeState;
+            mMaxBytes = maxBytes;
+        }
+
+        /**
+         * Store a state as a delta against the current keyframe, or as a new keyframe when there
+         * is none or the delta isn't much smaller than one
+         * @param state State to store
+         * @param time Uptime in milliseconds when the state was taken
+         * @return True if the state was stored as a keyframe
+         */
+        boolean add(SavestateBuffer state, long time)
+        {
+            Snapshot snapshot = null;
+
+            if (mKeyframe != null && mDeltaCount < MAX_DELTAS_PER_KEYFRAME) {
+                byte[] delta = state.compressDelta(mKeyframeState, Deflater.BEST_SPEED);
+                if (delta.length < mKeyframe.data.length/2) {
+                    snapshot = new Snapshot(delta, mKeyframe, time);
+                    ++mDeltaCount;
+                }
+            }
+
+            final boolean isKeyframe = snapshot == null;
+
+            if (isKeyframe) {
+                snapshot = new Snapshot(state.compress(Deflater.BEST_SPEED), null, time);
+                mKeyframeState.copyFrom(state);
+                mKeyframe = snapshot;
+                mDeltaCount = 0;
+            }
+
+            mSnapshots.addLast(snapshot);
+            mStoredBytes += snapshot.data.length;
+            trim();
+
+            return isKeyframe;
+        }
+
+        /**
+         * Restore the newest state that is at least {@link #MIN_REWIND_AGE_MS} old. It's removed
+         * along with every newer state, so calling this again goes further back.
+         * @param state Receives the restored state
+         * @param now Current uptime in milliseconds
+         * @return False if there is nothing to rewind to or the state couldn't be restored
+         */
+        boolean restorePrevious(SavestateBuffer state, long now)
+        {
+            Snapshot snapshot = null;
+
+            while (!mSnapshots.isEmpty()) {
+                Snapshot newest = mSnapshots.removeLast();
+                mStoredBytes -= newest.data.length;
+
+                if (newest == mKeyframe) {
+                    // Later states would be deltas against a keyframe that no longer exists
+                    mKeyframe = null;
+                }
+
+                if (now - newest.time >= MIN_REWIND_AGE_MS) {
+                    snapshot = newest;
+                    break;
+                }
+            }
+
+            if (snapshot == null) {
+                Log.i(TAG, "Nothing to rewind to");
+                return false;
+            }
+
+            boolean restored;
+            if (snapshot.keyframe == null) {
+                restored = state.decompress(snapshot.data);
+            } else {
+                restored = state.decompress(snapshot.keyframe.data) && state.applyDelta(snapshot.data);
+            }
+
+            if (!restored) {
+                Log.w(TAG, "Unable to restore the rewind state");
+            }
+
+            return restored;
+        }
+
+        void clear()
+        {
+            mSnapshots.clear();
+            mStoredBytes = 0;
+            mKeyframe = null;
+        }
+
+        int size()
+        {
+            return mSnapshots.size();
+        }
+
+        long getStoredBytes()
+        {
+            return mStoredBytes;
+        }
+
+        /**
+         * Drop the oldest states until the stored data fits. Dropping a keyframe also drops the
+         * deltas that depend on it, they always follow it.
+         */
+        private void trim()
+        {
+            while (mStoredBytes > mMaxBytes && !mSnapshots.isEmpty()) {
+                Snapshot oldest = mSnapshots.removeFirst();
+                mStoredBytes -= oldest.data.length;
+
+                if (oldest.keyframe == null) {
+                    Iterator<Snapshot> iterator = mSnapshots.iterator();
+                    while (iterator.hasNext()) {
+                        Snapshot snapshot = iterator.next();
+                        if (snapshot.keyframe != oldest) {
+                            break;
+                        }
+                        iterator.remove();
+                        mStoredBytes -= snapshot.data.length;
+                    }
+
+                    if (oldest == mKeyframe) {
+                        Log.w(TAG, "The newest states don't fit in " + mMaxBytes + " bytes");
+                        mKeyframe = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private final CoreInterface mCoreInterface;
+    private final long mMemoryCap;
+    private final int mViRate;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Everything below is only used from mThread
+    private SavestateBuffer mCapture = null;
+    private History mHistory = null;
+    private int mIntervalFrames = DEFAULT_INTERVAL_FRAMES;
+    private long mJobStartTime = 0;
+    private long mSaveRequestTimeNs = 0;
+    private boolean mStopped = false;
+
+    // Jobs are only requested and completed while holding this, so other jobs are never replaced
+    private final Object mJobLock = new Object();
+    private boolean mSaving = false;
+    private boolean mLoading = false;
+    private boolean mExternalJobPending = false;
+    private long mExternalJobStartTime = 0;
+
+    // Measurements of the cost of a state
+    private long mSnapshotCount = 0;
+    private long mSkippedCount = 0;
+    private long mTotalCaptureTimeNs = 0;
+    private long mTotalCpuTimeNs = 0;
+    private long mMaxCostNs = 0;
+    private long mAverageCostNs = 0;
+
+    private final CoreInterface.OnStateCallbackListener mStateListener = this::onStateCallback;
+
+    private final Runnable mCaptureTask = this::capture;
+
+    /**
+     * @param coreInterface Core to take states from
+     * @param memoryCap Maximum number of bytes used, for the compressed states and the two
+     *                  uncompressed ones
+     * @param viRate VIs per second of the game, 50 for PAL and 60 for NTSC
+     */
+    RewindBuffer(CoreInterface coreInterface, long memoryCap, int viRate)
+    {
+        mCoreInterface = coreInterface;
+        mMemoryCap = memoryCap;
+        mViRate = viRate;
+
+        mThread = new HandlerThread("RewindBuffer", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    private void onStateCallback(int paramChanged, int newValue)
+    {
+        // Don't call back into the core from its own thread
+        if (paramChanged == CoreTypes.m64p_core_param.M64CORE_STATE_SAVECOMPLETE.ordinal()) {
+            final long completeTimeNs = SystemClock.elapsedRealtimeNanos();
+            mHandler.post(() -> onSaveComplete(newValue == 1, completeTimeNs));
+        } else if (paramChanged == CoreTypes.m64p_core_param.M64CORE_STATE_LOADCOMPLETE.ordinal()) {
+            mHandler.post(() -> onLoadComplete(newValue == 1));
+        }
+    }
+
+    /**
+     * Start taking states
+     */
+    void start()
+    {
+        mCoreInterface.addOnStateCallbackListener(mStateListener);
+        mHandler.post(() -> {
+            final int size = mCoreInterface.emuGetStateMemorySize();
+
+            if (size <= 0) {
+                Log.w(TAG, "The core doesn't support memory savestates, rewind is disabled");
+                mStopped = true;
+                return;
+            }
+
+            // The uncompressed states come out of the same budget as the compressed ones
+            final long historyBytes = mMemoryCap - 2L*size;
+
+            if (historyBytes < size/8) {
+                Log.w(TAG, "States of " + size + " bytes don't fit in " + mMemoryCap + " bytes, rewind is disabled");
+                mStopped = true;
+                return;
+            }
+
+            mCapture = new SavestateBuffer(size);
+            mHistory = new History(new SavestateBuffer(size), historyBytes);
+            scheduleCapture();
+        });
+    }
+
+    /**
+     * Stop taking states and free them, the buffer can't be restarted
+     */
+    void stop()
+    {
+        mCoreInterface.removeOnStateCallbackListener(mStateListener);
+        mHandler.post(() -> {
+            mStopped = true;
+            mHandler.removeCallbacks(mCaptureTask);
+            logStatistics();
+            if (mHistory != null) {
+                mHistory.clear();
+            }
+        });
+        mThread.quitSafely();
+    }
+
+    /**
+     * Don't take states until the core completes a save or load requested somewhere else. The core
+     * only runs one job at a time, so a state taken now could replace it.
+     */
+    void suspendForExternalJob()
+    {
+        synchronized (mJobLock) {
+            mExternalJobPending = true;
+            mExternalJobStartTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Load the newest state that is at least {@link #MIN_REWIND_AGE_MS} old. It's removed, so
+     * calling this again goes further back.
+     */
+    void rewind()
+    {
+        mHandler.post(this::loadPrevious);
+    }
+
+    private void scheduleCapture()
+    {
+        mHandler.removeCallbacks(mCaptureTask);
+        mHandler.postDelayed(mCaptureTask, mIntervalFrames * 1000L / mViRate);
+    }
+
+    /**
+     * Must be called while holding mJobLock
+     */
+    private boolean isBusy()
+    {
+        final long now = SystemClock.uptimeMillis();
+
+        if ((mSaving || mLoading) && now - mJobStartTime > JOB_TIMEOUT_MS) {
+            Log.w(TAG, "Core didn't complete a rewind state job, continuing");
+            mSaving = false;
+            mLoading = false;
+        }
+
+        if (mExternalJobPending && now - mExternalJobStartTime > JOB_TIMEOUT_MS) {
+            mExternalJobPending = false;
+        }
+
+        return mSaving || mLoading || mExternalJobPending;
+    }
+
+    private void capture()
+    {
+        if (mStopped) {
+            return;
+        }
+
+        if (mCoreInterface.emuGetState() == CoreTypes.m64p_emu_state.M64EMU_RUNNING) {
+            synchronized (mJobLock) {
+                if (isBusy()) {
+                    ++mSkippedCount;
+                } else {
+                    mCapture.invalidate();
+                    mSaveRequestTimeNs = SystemClock.elapsedRealtimeNanos();
+                    mSaving = mCoreInterface.emuSaveMemory(mCapture.getBuffer());
+                    mJobStartTime = SystemClock.uptimeMillis();
+                }
+            }
+        }
+
+        scheduleCapture();
+    }
+
+    private void onSaveComplete(boolean success, long completeTimeNs)
+    {
+        if (mStopped) {
+            return;
+        }
+
+        synchronized (mJobLock) {
+            if (mLoading) {
+                // A save requested somewhere else replaced the rewind
+                Log.i(TAG, "Another savestate job was requested, not rewinding");
+                mLoading = false;
+            }
+
+            if (!mSaving) {
+                mExternalJobPending = false;
+                return;
+            }
+
+            mSaving = false;
+
+            // The job may have been replaced by a save requested somewhere else, this is its
+            // callback and no other one follows
+            if (!success || !mCapture.isValid()) {
+                mExternalJobPending = false;
+                ++mSkippedCount;
+                return;
+            }
+        }
+
+        final long captureTimeNs = completeTimeNs - mSaveRequestTimeNs;
+        final long startTime = Debug.threadCpuTimeNanos();
+
+        mHistory.add(mCapture, SystemClock.uptimeMillis());
+
+        updateCost(captureTimeNs, Debug.threadCpuTimeNanos() - startTime);
+    }
+
+    private void onLoadComplete(boolean success)
+    {
+        if (mStopped) {
+            return;
+        }
+
+        synchronized (mJobLock) {
+            if (mSaving) {
+                // A load requested somewhere else replaced the rewind state
+                mSaving = false;
+                ++mSkippedCount;
+            }
+
+            // A load replacing the rewind can't be told apart from it, the external job is
+            // only given up on after JOB_TIMEOUT_MS then
+            if (!mLoading) {
+                mExternalJobPending = false;
+                return;
+            }
+
+            mLoading = false;
+        }
+
+        if (!success) {
+            Log.w(TAG, "Core couldn't load the rewind state");
+        }
+    }
+
+    private void loadPrevious()
+    {
+        if (mStopped || mCapture == null) {
+            return;
+        }
+
+        synchronized (mJobLock) {
+            if (isBusy()) {
+                // Still waiting for the core, try again after the next VI
+                mHandler.postDelayed(this::loadPrevious, 1000 / mViRate);
+                return;
+            }
+        }
+
+        if (!mHistory.restorePrevious(mCapture, SystemClock.uptimeMillis())) {
+            return;
+        }
+
+        synchronized (mJobLock) {
+            if (mExternalJobPending) {
+                Log.i(TAG, "Another savestate job was requested, not rewinding");
+                return;
+            }
+
+            mLoading = mCoreInterface.emuLoadMemory(mCapture.getBuffer());
+            mJobStartTime = SystemClock.uptimeMillis();
+        }
+
+        // Don't take a state until the old one is loaded
+        scheduleCapture();
+    }
+
+    /**
+     * @param captureTimeNs Time from requesting the state until the core completed it
+     * @param cpuTimeNs CPU time of compressing the state
+     */
+    private void updateCost(long captureTimeNs, long cpuTimeNs)
+    {
+        final long costNs = captureTimeNs + cpuTimeNs;
+
+        ++mSnapshotCount;
+        mTotalCaptureTimeNs += captureTimeNs;
+        mTotalCpuTimeNs += cpuTimeNs;
+        mMaxCostNs = Math.max(mMaxCostNs, costNs);
+        mAverageCostNs = mAverageCostNs == 0 ? costNs : (mAverageCostNs * 7 + costNs) / 8;
+
+        final long intervalNs = mIntervalFrames * 1000000000L / mViRate;
+        if (mAverageCostNs > intervalNs * MAX_CPU_FRACTION && mIntervalFrames < MAX_INTERVAL_FRAMES) {
+            mIntervalFrames = Math.min(mIntervalFrames * 2, MAX_INTERVAL_FRAMES);
+            Log.i(TAG, "A state takes " + mAverageCostNs/1000000 + " ms, taking states every " +
+                    mIntervalFrames + " frames");
+            scheduleCapture();
+        }
+
+        if (mSnapshotCount % 100 == 0) {
+            logStatistics();
+        }
+    }
+
+    private void logStatistics()
+    {
+        if (mSnapshotCount == 0) {
+            return;
+        }
+
+        Log.i(TAG, String.format(Locale.US,
+                "%d states, %d skipped, time per state: capture %.1f ms, compression CPU %.1f ms, max %.1f ms, %d states stored in %d KB",
+                mSnapshotCount, mSkippedCount, mTotalCaptureTimeNs/1e6/mSnapshotCount,
+                mTotalCpuTimeNs/1e6/mSnapshotCount, mMaxCostNs/1e6, mHistory.size(), mHistory.getStoredBytes()/1024));
+    }
+}
@@ -0,0 +1,217 @@
+package paulscode.android.mupen64plusae.jni;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Direct buffer that holds an uncompressed savestate, see
+ * {@link CoreInterface#emuSaveMemory(ByteBuffer)}. The core writes to and reads from it directly,
+ * so saving and loading never touch the disk. The state can be compressed to keep many of them
+ * in memory.
+ */
+class SavestateBuffer
+{
+    private static final int SCRATCH_SIZE = 64*1024;
+
+    // Every savestate written by the core starts with this
+    private static final byte[] MAGIC = {'M', '6', '4', '+', 'S', 'A', 'V', 'E'};
+
+    private final ByteBuffer mBuffer;
+    private final byte[] mScratch = new byte[SCRATCH_SIZE];
+
+    // Reused by every compression, allocated the first time a state is compressed
+    private ByteArrayOutputStream mOutput = null;
+    private byte[] mInputChunk = null;
+    private byte[] mReferenceChunk = null;
+
+    /**
+     * @param size Size of a savestate, see {@link CoreInterface#emuGetStateMemorySize()}
+     */
+    SavestateBuffer(int size)
+    {
+        mBuffer = ByteBuffer.allocateDirect(size);
+    }
+
+    ByteBuffer getBuffer()
+    {
+        return mBuffer;
+    }
+
+    int getSize()
+    {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Copy another state of the same size into this one
+     */
+    void copyFrom(SavestateBuffer other)
+    {
+        ByteBuffer source = other.mBuffer.duplicate();
+        source.clear();
+        ByteBuffer destination = mBuffer.duplicate();
+        destination.clear();
+        destination.put(source);
+    }
+
+    /**
+     * Invalidate the state, so {@link #isValid()} tells whether the core has written to it since
+     */
+    void invalidate()
+    {
+        for (int index = 0; index < MAGIC.length; ++index) {
+            mBuffer.put(index, (byte)0);
+        }
+    }
+
+    /**
+     * @return True if the buffer starts with a savestate header
+     */
+    boolean isValid()
+    {
+        for (int index = 0; index < MAGIC.length; ++index) {
+            if (mBuffer.get(index) != MAGIC[index]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compress the state, most of it is zeros and memory that barely changes between states
+     * @param level Deflater compression level
+     * @return Deflate compressed state
+     */
+    byte[] compress(int level)
+    {
+        return deflate(null, level);
+    }
+
+    /**
+     * Compress the difference with another state. The states are XORed before compressing, so
+     * memory that didn't change becomes runs of zeros.
+     * @param reference State of the same size to compare against
+     * @param level Deflater compression level
+     * @return Deflate compressed delta, see {@link #applyDelta(byte[])}
+     */
+    byte[] compressDelta(SavestateBuffer reference, int level)
+    {
+        return deflate(reference.mBuffer, level);
+    }
+
+    /**
+     * Replace the state with a compressed one
+     * @param data State returned by {@link #compress(int)}
+     * @return False if the data isn't a complete state of this size
+     */
+    boolean decompress(byte[] data)
+    {
+        return inflate(data, false);
+    }
+
+    /**
+     * Turn the reference state into the one a delta was created from
+     * @param data Delta returned by {@link #compressDelta(SavestateBuffer, int)}, this buffer
+     *             must hold the reference state
+     * @return False if the data isn't a complete delta of this size
+     */
+    boolean applyDelta(byte[] data)
+    {
+        return inflate(data, true);
+    }
+
+    private byte[] deflate(ByteBuffer reference, int level)
+    {
+        if (mOutput == null) {
+            mOutput = new ByteArrayOutputStream(mBuffer.capacity()/8);
+            mInputChunk = new byte[SCRATCH_SIZE];
+            mReferenceChunk = new byte[SCRATCH_SIZE];
+        }
+
+        Deflater deflater = new Deflater(level);
+        ByteArrayOutputStream output = mOutput;
+        output.reset();
+        ByteBuffer input = mBuffer.duplicate();
+        input.clear();
+        ByteBuffer referenceInput = reference != null ? reference.duplicate() : null;
+        if (referenceInput != null) {
+            referenceInput.clear();
+        }
+
+        byte[] inputChunk = mInputChunk;
+        byte[] referenceChunk = mReferenceChunk;
+
+        while (input.hasRemaining()) {
+            final int length = Math.min(inputChunk.length, input.remaining());
+            input.get(inputChunk, 0, length);
+
+            if (referenceInput != null) {
+                referenceInput.get(referenceChunk, 0, length);
+                for (int index = 0; index < length; ++index) {
+                    inputChunk[index] ^= referenceChunk[index];
+                }
+            }
+
+            deflater.setInput(inputChunk, 0, length);
+
+            while (!deflater.needsInput()) {
+                output.write(mScratch, 0, deflater.deflate(mScratch));
+            }
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            output.write(mScratch, 0, deflater.deflate(mScratch));
+        }
+
+        deflater.end();
+        return output.toByteArray();
+    }
+
+    private boolean inflate(byte[] data, boolean xor)
+    {
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+
+        ByteBuffer output = mBuffer.duplicate();
+        output.clear();
+
+        byte[] previous = xor ? new byte[SCRATCH_SIZE] : null;
+
+        try {
+            while (!inflater.finished()) {
+                final int length = inflater.inflate(mScratch);
+
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                if (length > output.remaining()) {
+                    return false;
+                }
+
+                if (xor) {
+                    output.mark();
+                    output.get(previous, 0, length);
+                    output.reset();
+                    for (int index = 0; index < length; ++index) {
+                        mScratch[index] ^= previous[index];
+                    }
+                }
+
+                output.put(mScratch, 0, length);
+            }
+
+            return inflater.finished() && !output.hasRemaining();
+        } catch (DataFormatException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            inflater.end();
+        }
+    }
+}
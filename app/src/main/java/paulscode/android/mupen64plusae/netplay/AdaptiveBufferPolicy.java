@@ -0,0 +1,133 @@
+package paulscode.android.mupen64plusae.netplay;
+
+/**
+ * Sizes the buffer like an adaptive playout buffer. The mean time between inputs and its mean
+ * deviation are tracked per player, the buffer needs to cover a few deviations to hide jitter,
+ * plus some extra counts when inputs are being lost.
+ *
+ * The buffer grows as soon as more is needed or a client runs dry, since a stall is far more
+ * noticeable than latency. It only shrinks one count at a time, after the estimate has stayed
+ * below the current size for {@link #SHRINK_HOLD_MS}, so the size doesn't oscillate.
+ */
+public class AdaptiveBufferPolicy implements BufferSizePolicy {
+
+    // Number of mean deviations of jitter the buffer covers. A late input shows up twice in the
+    // deviation, as a long interval followed by a short one, so this is half the usual four.
+    private static final double JITTER_MULTIPLIER = 2.0;
+
+    // Extra counts buffered per unit of loss rate
+    private static final double LOSS_MULTIPLIER = 20.0;
+
+    // Gain of the moving averages
+    private static final double INTERVAL_GAIN = 1.0/16.0;
+    private static final double LOSS_GAIN = 1.0/32.0;
+
+    // Time the estimate must stay below the buffer size before shrinking it
+    static final int SHRINK_HOLD_MS = 2000;
+    private static final long SHRINK_HOLD_NS = SHRINK_HOLD_MS * 1000000L;
+
+    private final int mMinBufferSize;
+    private final int mMaxBufferSize;
+
+    private final double[] mMeanIntervalNs;
+    private final double[] mJitterNs;
+    private final double[] mLossRate;
+    private final int[] mBufferHealth;
+    private final long[] mShrinkSinceNs;
+
+    /**
+     * @param numPlayers Number of players
+     * @param minBufferSize Smallest buffer size used
+     * @param maxBufferSize Largest buffer size used
+     */
+    public AdaptiveBufferPolicy(int numPlayers, int minBufferSize, int maxBufferSize)
+    {
+        mMinBufferSize = minBufferSize;
+        mMaxBufferSize = maxBufferSize;
+        mMeanIntervalNs = new double[numPlayers];
+        mJitterNs = new double[numPlayers];
+        mLossRate = new double[numPlayers];
+        mBufferHealth = new int[numPlayers];
+        mShrinkSinceNs = new long[numPlayers];
+
+        for (int playerIndex = 0; playerIndex < numPlayers; ++playerIndex) {
+            mBufferHealth[playerIndex] = -1;
+            mShrinkSinceNs[playerIndex] = -1;
+        }
+    }
+
+    @Override
+    public void onInputReceived(int playerNum, long intervalNs)
+    {
+        if (mMeanIntervalNs[playerNum] == 0) {
+            mMeanIntervalNs[playerNum] = intervalNs;
+        }
+
+        final double deviationNs = Math.abs(intervalNs - mMeanIntervalNs[playerNum]);
+        mMeanIntervalNs[playerNum] += (intervalNs - mMeanIntervalNs[playerNum]) * INTERVAL_GAIN;
+        mJitterNs[playerNum] += (deviationNs - mJitterNs[playerNum]) * INTERVAL_GAIN;
+        mLossRate[playerNum] -= mLossRate[playerNum] * LOSS_GAIN;
+    }
+
+    @Override
+    public void onInputsMissing(int playerNum, int missingCounts)
+    {
+        mLossRate[playerNum] = Math.min(mLossRate[playerNum] + missingCounts * LOSS_GAIN, 1.0);
+    }
+
+    @Override
+    public void onBufferHealth(int playerNum, int bufferHealth)
+    {
+        mBufferHealth[playerNum] = bufferHealth;
+    }
+
+    /**
+     * @return Smallest buffer size that should hide the measured jitter and loss of a player,
+     * -1 if nothing has been measured yet
+     */
+    int getEstimate(int playerNum)
+    {
+        if (mMeanIntervalNs[playerNum] <= 0) {
+            return -1;
+        }
+
+        final double counts = JITTER_MULTIPLIER * mJitterNs[playerNum] / mMeanIntervalNs[playerNum] +
+                LOSS_MULTIPLIER * mLossRate[playerNum];
+        return Math.max(mMinBufferSize, Math.min((int)Math.ceil(counts), mMaxBufferSize));
+    }
+
+    @Override
+    public int updateBufferSize(int playerNum, int bufferSize, long nowNs)
+    {
+        int estimate = getEstimate(playerNum);
+
+        if (estimate < 0) {
+            return bufferSize;
+        }
+
+        // The client ran out of inputs, whatever the estimate says we need more
+        if (mBufferHealth[playerNum] == 0 && bufferSize < mMaxBufferSize) {
+            estimate = Math.max(estimate, bufferSize + 1);
+            mBufferHealth[playerNum] = -1;
+        }
+
+        if (estimate > bufferSize) {
+            mShrinkSinceNs[playerNum] = -1;
+            return estimate;
+        }
+
+        if (estimate == bufferSize) {
+            mShrinkSinceNs[playerNum] = -1;
+            return bufferSize;
+        }
+
+        if (mShrinkSinceNs[playerNum] < 0) {
+            mShrinkSinceNs[playerNum] = nowNs;
+        } else if (nowNs - mShrinkSinceNs[playerNum] >= SHRINK_HOLD_NS) {
+            mShrinkSinceNs[playerNum] = nowNs;
+            return bufferSize - 1;
+        }
+
+        return bufferSize;
+    }
+}
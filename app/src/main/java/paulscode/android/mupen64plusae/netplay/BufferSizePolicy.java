@@ -0,0 +1,39 @@
+package paulscode.android.mupen64plusae.netplay;
+
+/**
+ * Decides how many counts of a player's inputs the {@link UdpServer} sends ahead of what a client
+ * requested. A larger buffer hides network jitter and loss from the clients at the cost of input
+ * latency. All methods are called from the {@link NetplayEventLoop} thread.
+ */
+public interface BufferSizePolicy {
+
+    /**
+     * Called when an input of a player is received
+     * @param playerNum Player the input belongs to
+     * @param intervalNs Time since the previous input of the player was received
+     */
+    void onInputReceived(int playerNum, long intervalNs);
+
+    /**
+     * Called when inputs of a player never arrived and had to be filled in
+     * @param playerNum Player the inputs belong to
+     * @param missingCounts Number of missing counts
+     */
+    void onInputsMissing(int playerNum, int missingCounts);
+
+    /**
+     * Called when the lead client reports how many inputs of a player it has buffered
+     * @param playerNum Player the inputs belong to
+     * @param bufferHealth Number of buffered inputs
+     */
+    void onBufferHealth(int playerNum, int bufferHealth);
+
+    /**
+     * Called every {@link UdpServer#BUFFER_UPDATE_INTERVAL_MS}
+     * @param playerNum Player to update the buffer size of
+     * @param bufferSize Current buffer size
+     * @param nowNs Current time from {@link System#nanoTime()}
+     * @return New buffer size
+     */
+    int updateBufferSize(int playerNum, int bufferSize, long nowNs);
+}
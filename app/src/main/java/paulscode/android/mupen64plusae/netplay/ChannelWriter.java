@@ -0,0 +1,161 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Writes to a non-blocking socket channel registered with the {@link NetplayEventLoop}. Data
+ * that the socket doesn't accept right away is queued and written once the channel becomes
+ * writable. Streams are queued as they are and read in chunks while the socket accepts data, so
+ * large files never have to be in memory. Only use from the loop thread.
+ */
+public class ChannelWriter {
+
+    private static final int STREAM_CHUNK_SIZE = 16*1024;
+
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+
+    // Either ByteBuffers or InputStreams, in the order they have to be written
+    private final ArrayDeque<Object> mPendingWrites = new ArrayDeque<>();
+
+    // Data read from the stream at the head of the queue that hasn't been written yet
+    private final ByteBuffer mStreamChunk = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+
+    private final OutputStream mOutputStream = new OutputStream() {
+        @Override
+        public void write(int data) throws IOException {
+            ChannelWriter.this.write(new byte[]{(byte)data}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            ChannelWriter.this.write(data, offset, length);
+        }
+    };
+
+    public ChannelWriter(SocketChannel channel, SelectionKey key)
+    {
+        mChannel = channel;
+        mKey = key;
+        mStreamChunk.flip();
+    }
+
+    /**
+     * Write data, the data is copied if it can't be written right away
+     */
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        if (!mChannel.isOpen()) {
+            throw new IOException("Channel is closed");
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+
+        if (mPendingWrites.isEmpty()) {
+            mChannel.write(buffer);
+
+            if (!buffer.hasRemaining()) {
+                return;
+            }
+        }
+
+        // The caller reuses its array, so keep a copy of what's left
+        ByteBuffer pending = ByteBuffer.allocate(buffer.remaining());
+        pending.put(buffer);
+        pending.flip();
+        mPendingWrites.add(pending);
+
+        mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Write all the data of a stream after the data that is already queued, the stream is
+     * closed once it ends or the channel is closed
+     */
+    public void write(InputStream stream) throws IOException
+    {
+        if (!mChannel.isOpen()) {
+            stream.close();
+            throw new IOException("Channel is closed");
+        }
+
+        mPendingWrites.add(stream);
+        flush();
+    }
+
+    /**
+     * Write queued data, call when the channel is writable
+     */
+    public void flush() throws IOException
+    {
+        while (!mPendingWrites.isEmpty()) {
+            Object pending = mPendingWrites.peek();
+            ByteBuffer buffer;
+
+            if (pending instanceof InputStream) {
+                if (!mStreamChunk.hasRemaining()) {
+                    mStreamChunk.clear();
+                    final int bytesRead = ((InputStream)pending).read(mStreamChunk.array(), 0, mStreamChunk.capacity());
+                    mStreamChunk.limit(Math.max(bytesRead, 0));
+
+                    if (bytesRead == -1) {
+                        ((InputStream)pending).close();
+                        mPendingWrites.poll();
+                        continue;
+                    }
+                }
+
+                buffer = mStreamChunk;
+            } else {
+                buffer = (ByteBuffer)pending;
+            }
+
+            mChannel.write(buffer);
+
+            if (buffer.hasRemaining()) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+
+            if (buffer != mStreamChunk) {
+                mPendingWrites.poll();
+            }
+        }
+
+        mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Discard queued data and close queued streams, call when the channel is closed
+     */
+    public void close()
+    {
+        for (Object pending : mPendingWrites) {
+            if (pending instanceof InputStream) {
+                try {
+                    ((InputStream)pending).close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        mPendingWrites.clear();
+        mStreamChunk.clear();
+        mStreamChunk.flip();
+    }
+
+    /**
+     * Output stream that writes to the channel
+     */
+    public OutputStream getOutputStream()
+    {
+        return mOutputStream;
+    }
+}
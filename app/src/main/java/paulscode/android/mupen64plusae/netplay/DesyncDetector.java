@@ -0,0 +1,204 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import java.util.Locale;
+
+/**
+ * Compares the CP0 registers that every player sends periodically. The first snapshot received
+ * for a VI is kept in a fixed size ring together with a 64-bit hash, later snapshots for the
+ * same VI are compared against it. Recording never allocates, only a detected desync creates a
+ * {@link Report} with both snapshots and the registers that differ. Only use from the
+ * {@link NetplayEventLoop} thread.
+ */
+public class DesyncDetector {
+
+    public static final int CP0_REGS_COUNT = 32;
+    public static final int SNAPSHOT_SIZE = CP0_REGS_COUNT * 4;
+
+    // The core sends its registers every this many VIs
+    static final int SYNC_INTERVAL_VIS = 60;
+
+    // Number of snapshots kept, players further apart than this many intervals aren't compared.
+    // Must be a power of two.
+    private static final int SLOTS = 64;
+
+    private static final String[] REGISTER_NAMES = {
+            "Index", "Random", "EntryLo0", "EntryLo1", "Context", "PageMask", "Wired", "Reserved7",
+            "BadVAddr", "Count", "EntryHi", "Compare", "Status", "Cause", "EPC", "PRevID",
+            "Config", "LLAddr", "WatchLo", "WatchHi", "XContext", "Reserved21", "Reserved22", "Reserved23",
+            "Reserved24", "Reserved25", "PErr", "CacheErr", "TagLo", "TagHi", "ErrorEPC", "Reserved31"
+    };
+
+    /**
+     * Details of a desync, the first one detected in a session
+     */
+    public static class Report {
+        Report(int vi, int firstPlayer, int[] firstRegisters, int player, int[] registers)
+        {
+            this.vi = vi;
+            this.firstPlayer = firstPlayer;
+            this.firstRegisters = firstRegisters;
+            this.player = player;
+            this.registers = registers;
+        }
+
+        /** VI in which the desync was detected */
+        public final int vi;
+        /** Player whose snapshot was received first, -1 if unknown */
+        public final int firstPlayer;
+        /** CP0 registers of the first player */
+        public final int[] firstRegisters;
+        /** Player whose snapshot didn't match, -1 if unknown */
+        public final int player;
+        /** CP0 registers of the player that didn't match */
+        public final int[] registers;
+
+        /**
+         * @return Indices of the registers that differ
+         */
+        public int[] getDivergingRegisters()
+        {
+            int count = 0;
+            for (int index = 0; index < CP0_REGS_COUNT; ++index) {
+                if (firstRegisters[index] != registers[index]) {
+                    ++count;
+                }
+            }
+
+            int[] diverging = new int[count];
+            count = 0;
+            for (int index = 0; index < CP0_REGS_COUNT; ++index) {
+                if (firstRegisters[index] != registers[index]) {
+                    diverging[count++] = index;
+                }
+            }
+
+            return diverging;
+        }
+
+        public static String getRegisterName(int index)
+        {
+            return REGISTER_NAMES[index];
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "Desync at VI %d between %s and %s:",
+                    vi, describePlayer(firstPlayer), describePlayer(player)));
+
+            for (int index : getDivergingRegisters()) {
+                builder.append(String.format(Locale.US, " %s=%08x/%08x", REGISTER_NAMES[index],
+                        firstRegisters[index], registers[index]));
+            }
+
+            return builder.toString();
+        }
+
+        /**
+         * Players are unknown until the server has received their first input
+         */
+        private static String describePlayer(int player)
+        {
+            return player < 0 ? "an unknown player" : "player " + (player + 1);
+        }
+    }
+
+    private final int[] mSlotVi = new int[SLOTS];
+    private final boolean[] mSlotUsed = new boolean[SLOTS];
+    private final long[] mSlotHash = new long[SLOTS];
+    private final int[] mSlotPlayer = new int[SLOTS];
+    private final byte[][] mSlotSnapshot = new byte[SLOTS][SNAPSHOT_SIZE];
+
+    private Report mReport = null;
+
+    /**
+     * Record the registers of a player
+     * @param vi VI the registers were sent in
+     * @param player Player number, -1 if unknown
+     * @param data Array holding the registers as sent by the core
+     * @param offset Offset of the registers in the array
+     * @return A report if this snapshot doesn't match the first one received for the VI,
+     * null otherwise. Nothing is compared once a desync has been detected.
+     */
+    Report record(int vi, int player, byte[] data, int offset)
+    {
+        if (mReport != null) {
+            return null;
+        }
+
+        final long hash = hash(data, offset);
+        final int slot = (vi / SYNC_INTERVAL_VIS) & (SLOTS - 1);
+
+        if (!mSlotUsed[slot] || mSlotVi[slot] != vi) {
+            // Replaces the oldest snapshot, unless this VI is older than it
+            if (!mSlotUsed[slot] || vi > mSlotVi[slot]) {
+                mSlotUsed[slot] = true;
+                mSlotVi[slot] = vi;
+                mSlotHash[slot] = hash;
+                mSlotPlayer[slot] = player;
+                System.arraycopy(data, offset, mSlotSnapshot[slot], 0, SNAPSHOT_SIZE);
+            }
+            return null;
+        }
+
+        if (mSlotHash[slot] == hash) {
+            // Name a player in reports if the first snapshot was sent before its player was known
+            if (mSlotPlayer[slot] < 0) {
+                mSlotPlayer[slot] = player;
+            }
+            return null;
+        }
+
+        mReport = new Report(vi, mSlotPlayer[slot], toRegisters(mSlotSnapshot[slot], 0), player,
+                toRegisters(data, offset));
+        return mReport;
+    }
+
+    /**
+     * @return The desync that was detected, null if there hasn't been one
+     */
+    Report getReport()
+    {
+        return mReport;
+    }
+
+    /**
+     * 64-bit hash of a snapshot, each register is mixed with the MurmurHash3 finalizer
+     */
+    static long hash(byte[] data, int offset)
+    {
+        long hash = 0x9E3779B97F4A7C15L;
+
+        for (int index = 0; index < SNAPSHOT_SIZE; index += 4) {
+            long value = ((data[offset + index] & 0xFFL) << 24) | ((data[offset + index + 1] & 0xFFL) << 16) |
+                    ((data[offset + index + 2] & 0xFFL) << 8) | (data[offset + index + 3] & 0xFFL);
+            hash = mix(hash ^ (value + index));
+        }
+
+        return hash;
+    }
+
+    private static long mix(long value)
+    {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static int[] toRegisters(byte[] data, int offset)
+    {
+        int[] registers = new int[CP0_REGS_COUNT];
+
+        for (int index = 0; index < CP0_REGS_COUNT; ++index) {
+            final int position = offset + index * 4;
+            registers[index] = ((data[position] & 0xFF) << 24) | ((data[position + 1] & 0xFF) << 16) |
+                    ((data[position + 2] & 0xFF) << 8) | (data[position + 3] & 0xFF);
+        }
+
+        return registers;
+    }
+}
@@ -0,0 +1,63 @@
+package paulscode.android.mupen64plusae.netplay;
+
+/**
+ * Moves the buffer size by one count every half second, towards the size that keeps the buffer
+ * health reported by the lead client at a fixed target
+ */
+public class FixedTargetBufferPolicy implements BufferSizePolicy {
+
+    private static final long UPDATE_INTERVAL_NS = 500 * 1000000L;
+
+    private final int mBufferTarget;
+    private final int[] mBufferHealth;
+    private final long[] mLastUpdateNs;
+
+    public FixedTargetBufferPolicy(int numPlayers, int bufferTarget)
+    {
+        mBufferTarget = bufferTarget;
+        mBufferHealth = new int[numPlayers];
+        mLastUpdateNs = new long[numPlayers];
+
+        for (int playerIndex = 0; playerIndex < numPlayers; ++playerIndex) {
+            mBufferHealth[playerIndex] = -1;
+        }
+    }
+
+    @Override
+    public void onInputReceived(int playerNum, long intervalNs)
+    {
+        // Not used
+    }
+
+    @Override
+    public void onInputsMissing(int playerNum, int missingCounts)
+    {
+        // Not used
+    }
+
+    @Override
+    public void onBufferHealth(int playerNum, int bufferHealth)
+    {
+        mBufferHealth[playerNum] = bufferHealth;
+    }
+
+    @Override
+    public int updateBufferSize(int playerNum, int bufferSize, long nowNs)
+    {
+        if (nowNs - mLastUpdateNs[playerNum] < UPDATE_INTERVAL_NS) {
+            return bufferSize;
+        }
+
+        mLastUpdateNs[playerNum] = nowNs;
+
+        if (mBufferHealth[playerNum] != -1)
+        {
+            if (mBufferHealth[playerNum] > mBufferTarget && bufferSize > 0)
+                --bufferSize;
+            else if (mBufferHealth[playerNum] < mBufferTarget)
+                ++bufferSize;
+        }
+
+        return bufferSize;
+    }
+}
@@ -0,0 +1,61 @@
+package paulscode.android.mupen64plusae.netplay;
+
+/**
+ * Inputs of a single player indexed by frame count. Inputs are stored in primitive arrays
+ * indexed by the low bits of the count, so nothing is allocated per input. Each slot remembers
+ * the count it was written for, an input is overwritten once a count CAPACITY frames later is
+ * stored.
+ */
+class InputRingBuffer {
+
+    /** Number of frames kept, must be a power of two */
+    static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    private final int[] mCounts = new int[CAPACITY];
+    private final boolean[] mValid = new boolean[CAPACITY];
+    private final int[] mKeys = new int[CAPACITY];
+    private final byte[] mPlugins = new byte[CAPACITY];
+
+    boolean contains(int count)
+    {
+        final int slot = count & MASK;
+        return mValid[slot] && mCounts[slot] == count;
+    }
+
+    void put(int count, int keys, int plugin)
+    {
+        final int slot = count & MASK;
+        mCounts[slot] = count;
+        mValid[slot] = true;
+        mKeys[slot] = keys;
+        mPlugins[slot] = (byte) plugin;
+    }
+
+    /**
+     * Copy the input of one frame to another
+     * @return False if there is no input for the source frame
+     */
+    boolean copy(int fromCount, int toCount)
+    {
+        if (!contains(fromCount)) {
+            return false;
+        }
+
+        final int slot = fromCount & MASK;
+        put(toCount, mKeys[slot], mPlugins[slot]);
+        return true;
+    }
+
+    /** Keys of a frame, only valid if {@link #contains(int)} is true */
+    int getKeys(int count)
+    {
+        return mKeys[count & MASK];
+    }
+
+    /** Plugin of a frame, only valid if {@link #contains(int)} is true */
+    int getPlugin(int count)
+    {
+        return mPlugins[count & MASK];
+    }
+}
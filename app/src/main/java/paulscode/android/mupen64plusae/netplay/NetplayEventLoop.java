@@ -0,0 +1,291 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single threaded event loop that owns every netplay server channel. Channels are non-blocking
+ * and registered with one selector, and timers run on the same thread, so all netplay server
+ * state is only ever touched from this thread.
+ *
+ * The loop is shared by everything that serves netplay in the process. It's started by the
+ * first {@link #acquire()} and stopped by the last {@link #release(NetplayEventLoop)}.
+ */
+public class NetplayEventLoop {
+
+    private static final String TAG = "NetplayEventLoop";
+
+    public interface ChannelHandler
+    {
+        /**
+         * Called from the loop thread when the channel is ready for one of its interest ops.
+         * The channel is closed if an exception is thrown.
+         * @param key Selection key of the channel
+         */
+        void onChannelReady(SelectionKey key) throws IOException;
+
+        /**
+         * Called from the loop thread once the channel has been closed
+         */
+        void onChannelClosed();
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        Timer(long deadline, long sequence, Runnable task) {
+            mDeadline = deadline;
+            mSequence = sequence;
+            mTask = task;
+        }
+
+        final long mDeadline;
+        final long mSequence;
+        final Runnable mTask;
+
+        @Override
+        public int compareTo(Timer other) {
+            if (mDeadline != other.mDeadline) {
+                return mDeadline < other.mDeadline ? -1 : 1;
+            }
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    private static NetplayEventLoop sInstance = null;
+    private static int sReferenceCount = 0;
+
+    private final Selector mSelector;
+    private final Thread mThread;
+
+    // Tasks posted from any thread, run in order on the next loop iteration
+    private final ConcurrentLinkedQueue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+
+    // Timers, only touched from the loop thread
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+    private long mTimerSequence = 0;
+
+    private volatile boolean mRunning = true;
+
+    /**
+     * Get the event loop, starting it if nobody else is using it. Every call must be matched by a
+     * call to {@link #release(NetplayEventLoop)}.
+     */
+    public static synchronized NetplayEventLoop acquire() throws IOException
+    {
+        if (sInstance == null) {
+            sInstance = new NetplayEventLoop();
+            sInstance.mThread.start();
+        }
+
+        ++sReferenceCount;
+        return sInstance;
+    }
+
+    /**
+     * Stop using the event loop, the loop stops once everybody has released it. Channels that
+     * are still registered at that point are closed.
+     */
+    public static synchronized void release(NetplayEventLoop eventLoop)
+    {
+        if (eventLoop != sInstance || sReferenceCount == 0) {
+            return;
+        }
+
+        --sReferenceCount;
+
+        if (sReferenceCount == 0) {
+            sInstance.quit();
+            sInstance = null;
+        }
+    }
+
+    private NetplayEventLoop() throws IOException
+    {
+        mSelector = Selector.open();
+        mThread = new Thread(this::runLoop, TAG);
+    }
+
+    /**
+     * @return True if called from the loop thread
+     */
+    public boolean isInLoop()
+    {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Run a task on the loop thread, can be called from any thread
+     */
+    public void post(Runnable task)
+    {
+        mPendingTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Run a task on the loop thread after a delay, can be called from any thread
+     */
+    public void postDelayed(Runnable task, long delayMs)
+    {
+        final long deadline = System.nanoTime() + delayMs * 1000000L;
+
+        if (isInLoop()) {
+            mTimers.add(new Timer(deadline, mTimerSequence++, task));
+        } else {
+            post(() -> mTimers.add(new Timer(deadline, mTimerSequence++, task)));
+        }
+    }
+
+    /**
+     * Remove all pending timers for a task, must be called from the loop thread
+     */
+    public void removeCallbacks(Runnable task)
+    {
+        mTimers.removeIf(timer -> timer.mTask == task);
+    }
+
+    /**
+     * Register a channel with the loop, must be called from the loop thread
+     * @param channel Channel to register, it's switched to non-blocking mode
+     * @param ops Interest ops
+     * @param handler Handler called when the channel is ready
+     * @return Selection key of the channel
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException
+    {
+        channel.configureBlocking(false);
+        return channel.register(mSelector, ops, handler);
+    }
+
+    /**
+     * Close a registered channel and notify its handler, must be called from the loop thread
+     */
+    public void close(SelectionKey key)
+    {
+        if (!key.channel().isOpen()) {
+            return;
+        }
+
+        key.cancel();
+
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        ((ChannelHandler)key.attachment()).onChannelClosed();
+    }
+
+    private void quit()
+    {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    private void runPendingTasks()
+    {
+        Runnable task;
+        while ((task = mPendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Netplay task failed");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run all timers that are due
+     * @return Time in milliseconds until the next timer is due, 0 if there are no timers
+     */
+    private long runTimers()
+    {
+        while (!mTimers.isEmpty()) {
+            Timer timer = mTimers.peek();
+            final long remainingNs = timer.mDeadline - System.nanoTime();
+
+            if (remainingNs > 0) {
+                return Math.max((remainingNs + 999999L) / 1000000L, 1);
+            }
+
+            mTimers.poll();
+
+            try {
+                timer.mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Netplay timer failed");
+                e.printStackTrace();
+            }
+        }
+
+        return 0;
+    }
+
+    private void runLoop()
+    {
+        // Run at higher priority to try to prevent skips
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        Log.i(TAG, "Netplay event loop started");
+
+        while (mRunning) {
+
+            runPendingTasks();
+            final long timeoutMs = runTimers();
+
+            if (!mRunning) {
+                break;
+            }
+
+            try {
+                if (mPendingTasks.isEmpty()) {
+                    mSelector.select(timeoutMs);
+                } else {
+                    mSelector.selectNow();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                try {
+                    ((ChannelHandler)key.attachment()).onChannelReady(key);
+                } catch (IOException|RuntimeException e) {
+                    Log.w(TAG, "Closing netplay channel: " + e);
+                    close(key);
+                }
+            }
+        }
+
+        for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+            close(key);
+        }
+
+        try {
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        Log.i(TAG, "Netplay event loop finished");
+    }
+}
@@ -36,6 +36,8 @@ import androidx.lifecycle.ViewModelProvider;
 
 import paulscode.android.mupen64plusae.R;
 
+import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.Notifier;
 
 @SuppressWarnings({"unused", "WeakerAccess", "RedundantSuppression"})
@@ -87,6 +89,30 @@ public class NetplayFragment extends Fragment implements NetplayService.NetplayS
         }
     }
 
+    /**
+     * @return Session host of the netplay service, null unless hosted games run as sessions
+     */
+    public NetplaySessionHost getSessionHost()
+    {
+        if (mViewModel != null && mViewModel.mNetplayServiceBinder != null) {
+            return mViewModel.mNetplayServiceBinder.getService().getSessionHost();
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Latest network statistics of the netplay session, null if netplay isn't running
+     */
+    public NetplayTelemetry getTelemetry()
+    {
+        if (mViewModel != null && mViewModel.mNetplayServiceBinder != null) {
+            return mViewModel.mNetplayServiceBinder.getService().getTelemetry();
+        }
+
+        return null;
+    }
+
     public boolean isNetplayStarted()
     {
         return mViewModel != null && mViewModel.mIsNetplayRunning;
@@ -94,13 +120,22 @@ public class NetplayFragment extends Fragment implements NetplayService.NetplayS
     
     private void actuallyStartNetplayService(Activity activity)
     {
+        AppData appData = new AppData(activity);
+        GlobalPrefs globalPrefs = new GlobalPrefs(activity, appData);
+        final boolean useSessionHost = globalPrefs.netplayUseSessionHost;
+
         /* Defines callbacks for service binding, passed to bindService() */
         mViewModel.mServiceConnection = new ServiceConnection() {
             
             @Override
             public void onServiceConnected(ComponentName className, IBinder service) {
                 mViewModel.mNetplayServiceBinder = (NetplayService.LocalBinder) service;
-                mViewModel.mNetplayServiceBinder.getService().startListening(mViewModel.mCurrentFragment);
+
+                if (useSessionHost) {
+                    mViewModel.mNetplayServiceBinder.getService().startSessionHost(mViewModel.mCurrentFragment);
+                } else {
+                    mViewModel.mNetplayServiceBinder.getService().startListening(mViewModel.mCurrentFragment);
+                }
             }
 
             @Override
@@ -49,6 +49,8 @@ import com.sun.jna.Native;
 
 import paulscode.android.mupen64plusae.R;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
@@ -57,6 +59,7 @@ import java.util.List;
 
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
+import paulscode.android.mupen64plusae.util.FileUtil;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class NetplayService extends Service
@@ -99,8 +102,10 @@ public class NetplayService extends Service
     private Looper mServiceLooper;
     private ServiceHandler mServiceHandler;
     private boolean mRunning = false;
-    private UdpServer mUdpServer;
+    private volatile UdpServer mUdpServer;
     private TcpServer mTcpServer;
+    private boolean mMultiSession = false;
+    private volatile NetplaySessionHost mSessionHost;
     private NetplayServiceListener mNetplayServiceListener;
     private boolean mPortMappingEnabled = false;
     private int mRoomPort = -1;
@@ -113,6 +118,12 @@ public class NetplayService extends Service
 
     private final IBinder mBinder = new LocalBinder();
 
+    // Maximum number of sessions when hosting several sessions
+    private final static int MAX_SESSIONS = 16;
+
+    // Network statistics of the last netplay session are written here
+    private final static String TELEMETRY_DUMP_FILE = "netplay_telemetry.txt";
+
     private final static int ONGOING_NOTIFICATION_ID = 5;
     private final static String NOTIFICATION_CHANNEL_ID = "NetplayServiceChannel";
 
@@ -140,25 +151,63 @@ public class NetplayService extends Service
         @Override
         public void handleMessage(@NonNull Message msg)
         {
-            // Run at higher priority to try to prevent skips
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            AppData appData = new AppData(getApplicationContext());
+            mGlobalPrefs = new GlobalPrefs(getApplicationContext(), appData);
 
-            final int bufferTarget = 2;
-            mUdpServer = new UdpServer(bufferTarget, vi -> mNetplayServiceListener.onDesync(vi));
-            mTcpServer = new TcpServer(bufferTarget, mUdpServer);
+            // The servers run on the netplay event loop, this thread only waits for them to end
+            NetplayEventLoop eventLoop = null;
+            try {
+                eventLoop = NetplayEventLoop.acquire();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start netplay event loop: " + e.getMessage());
+            }
 
-            Log.i(TAG, "Netplay service started");
+            if (eventLoop != null && mMultiSession) {
+                final int bufferTarget = 2;
+                mSessionHost = new NetplaySessionHost(bufferTarget, MAX_SESSIONS, eventLoop, getSaveFileDirectory(),
+                        new NetplaySessionHost.OnSessionEvent() {
+                            @Override
+                            public void onDesync(int sessionId, DesyncDetector.Report report) {
+                                Log.w(TAG, "Session " + sessionId + " desynced");
+                                mNetplayServiceListener.onDesync(report.vi);
+                            }
 
-            AppData appData = new AppData(getApplicationContext());
-            mGlobalPrefs = new GlobalPrefs(getApplicationContext(), appData);
-            int port = mGlobalPrefs.useUpnpToMapNetplayPorts ? 0 : mGlobalPrefs.netplayServerUdpTcpPort;
+                            @Override
+                            public void onSessionFinished(int sessionId) {
+                                Log.i(TAG, "Session " + sessionId + " finished");
+                            }
+                        });
+
+                Log.i(TAG, "Netplay session host started");
+
+                int port = mGlobalPrefs.useUpnpToMapNetplayPorts ? 0 : mGlobalPrefs.netplayServerUdpTcpPort;
+
+                mSessionHost.setPort(port);
+                mNetplayServiceListener.onPortObtained(mSessionHost.getPort());
+
+                mSessionHost.waitForHostToEnd();
+                dumpTelemetry();
+
+                NetplayEventLoop.release(eventLoop);
+            } else if (eventLoop != null) {
+                final int bufferTarget = 2;
+                mUdpServer = new UdpServer(bufferTarget, report -> mNetplayServiceListener.onDesync(report.vi), eventLoop);
+                mTcpServer = new TcpServer(bufferTarget, mUdpServer, eventLoop, getSaveFileDirectory());
+
+                Log.i(TAG, "Netplay service started");
+
+                int port = mGlobalPrefs.useUpnpToMapNetplayPorts ? 0 : mGlobalPrefs.netplayServerUdpTcpPort;
 
-            mTcpServer.setPort(port);
-            mNetplayServiceListener.onPortObtained(mTcpServer.getPort());
-            mUdpServer.setPort(mTcpServer.getPort());
+                mTcpServer.setPort(port);
+                mNetplayServiceListener.onPortObtained(mTcpServer.getPort());
+                mUdpServer.setPort(mTcpServer.getPort());
 
-            mUdpServer.waitForServerToEnd();
-            mTcpServer.waitForServerToEnd();
+                mUdpServer.waitForServerToEnd();
+                mTcpServer.waitForServerToEnd();
+                dumpTelemetry();
+
+                NetplayEventLoop.release(eventLoop);
+            }
 
             Log.i(TAG, "Netplay service finished");
             mRunning = false;
@@ -270,6 +319,91 @@ public class NetplayService extends Service
         }
     }
 
+    /**
+     * Start hosting several independent sessions on one TCP and UDP port instead of a single
+     * session. Sessions are created through {@link #getSessionHost()} once the port is obtained.
+     * @param netplayServiceListener Listener for service events
+     */
+    public void startSessionHost(NetplayServiceListener netplayServiceListener)
+    {
+        if (!mRunning) {
+            mMultiSession = true;
+        }
+
+        startListening(netplayServiceListener);
+    }
+
+    /**
+     * @return The session host, null unless started with {@link #startSessionHost(NetplayServiceListener)}
+     */
+    public NetplaySessionHost getSessionHost()
+    {
+        return mSessionHost;
+    }
+
+    /**
+     * @return Latest network statistics of the netplay session, null if no session is running.
+     * When hosting several sessions this is the first one, use {@link #getSessionHost()} for the
+     * statistics of every session.
+     */
+    public NetplayTelemetry getTelemetry()
+    {
+        NetplaySessionHost sessionHost = mSessionHost;
+        if (sessionHost != null) {
+            List<NetplaySessionHost.SessionStats> stats = sessionHost.getStats();
+            return stats.isEmpty() ? null : stats.get(0).telemetry;
+        }
+
+        UdpServer udpServer = mUdpServer;
+        return udpServer != null ? udpServer.getTelemetry() : null;
+    }
+
+    /**
+     * Write the network statistics of the sessions that just ended to a file, so they can be
+     * used to tune netplay settings
+     */
+    private void dumpTelemetry()
+    {
+        StringBuilder dump = new StringBuilder();
+
+        if (mSessionHost != null) {
+            // Every session has been closed by now, their statistics were kept as they closed
+            for (NetplaySessionHost.SessionStats stats : mSessionHost.getClosedStats()) {
+                dump.append("session ").append(stats.sessionId).append(System.lineSeparator());
+                dump.append(stats.telemetry.format());
+            }
+        } else if (mUdpServer != null) {
+            dump.append(mUdpServer.getTelemetry().format());
+        }
+
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+
+        File dumpFile = new File(directory, TELEMETRY_DUMP_FILE);
+
+        try {
+            FileUtil.writeStringToFile(dumpFile, dump.toString());
+            Log.i(TAG, "Netplay telemetry written to " + dumpFile.getPath());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write netplay telemetry: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Directory where save files sent by players are kept while the server runs
+     */
+    private File getSaveFileDirectory()
+    {
+        return new File(getCacheDir(), "netplay");
+    }
+
+    private int getServerPort()
+    {
+        return mSessionHost != null ? mSessionHost.getPort() : mTcpServer.getPort();
+    }
+
     @SuppressWarnings({"deprecation", "RedundantSuppression"})
     public void stopServers()
     {
@@ -283,6 +417,10 @@ public class NetplayService extends Service
             mTcpServer.stopServer();
         }
 
+        if (mSessionHost != null) {
+            mSessionHost.stopHost();
+        }
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             stopForeground(STOP_FOREGROUND_REMOVE);
         } else {
@@ -314,8 +452,8 @@ public class NetplayService extends Service
 
         mMiniUpnpLibrary.UPnPInit(2000);
         boolean port1Success = mMiniUpnpLibrary.UPnP_Add("TCP","M64Plus Room", mRoomPort, mRoomPort);
-        boolean port2Success = mMiniUpnpLibrary.UPnP_Add("TCP", "M64Plus Core TCP", mTcpServer.getPort(), mTcpServer.getPort());
-        boolean port3Success = mMiniUpnpLibrary.UPnP_Add("UDP", "M64Plus Core UDP", mTcpServer.getPort(), mTcpServer.getPort());
+        boolean port2Success = mMiniUpnpLibrary.UPnP_Add("TCP", "M64Plus Core TCP", getServerPort(), getServerPort());
+        boolean port3Success = mMiniUpnpLibrary.UPnP_Add("UDP", "M64Plus Core UDP", getServerPort(), getServerPort());
 
         return port1Success && port2Success && port3Success;
     }
@@ -326,8 +464,8 @@ public class NetplayService extends Service
 
         mMiniUpnpLibrary.NATPMP_Init(gatewayAddress);
         boolean port1Success = mMiniUpnpLibrary.NATPMP_Add("TCP", mRoomPort, mRoomPort);
-        boolean port2Success = mMiniUpnpLibrary.NATPMP_Add("TCP", mTcpServer.getPort(), mTcpServer.getPort());
-        boolean port3Success = mMiniUpnpLibrary.NATPMP_Add("UDP", mTcpServer.getPort(), mTcpServer.getPort());
+        boolean port2Success = mMiniUpnpLibrary.NATPMP_Add("TCP", getServerPort(), getServerPort());
+        boolean port3Success = mMiniUpnpLibrary.NATPMP_Add("UDP", getServerPort(), getServerPort());
 
         return port1Success && port2Success && port3Success;
     }
@@ -342,7 +480,7 @@ public class NetplayService extends Service
         }
 
         if (success) {
-            mNetplayServiceListener.onUpnpPortsObtained(mRoomPort, mTcpServer.getPort(), mTcpServer.getPort());
+            mNetplayServiceListener.onUpnpPortsObtained(mRoomPort, getServerPort(), getServerPort());
         } else {
             Log.w(TAG, "UPnP port forwading failed");
             mNetplayServiceListener.onUpnpPortsObtained(-1, -1, -1);
@@ -0,0 +1,616 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves many independent netplay sessions on one TCP port and one UDP port. Every session has
+ * its own {@link TcpServer} and {@link UdpServer}, so inputs, save files and settings of
+ * sessions never mix.
+ *
+ * Registration ids are assigned to sessions up front with {@link #addRegistration(int, int)},
+ * usually by the room server of each session. A TCP connection joins the session of the
+ * registration id in its first message, which is the player registration for every client. UDP
+ * datagrams are routed by the registration id they carry, and otherwise by their source address.
+ * Input requests always carry the registration id. Inputs and CP0 data carry it at the end from
+ * cores that support {@link UdpServer#PROTOCOL_VERSION} 1, older cores are only routed once an
+ * input request taught the host their address.
+ *
+ * Every room that hosts its game through the host gets its own session, see
+ * {@link paulscode.android.mupen64plusae.netplay.room.NetplayRoomServer#useSessionHost(NetplaySessionHost)}.
+ * The app hosts one room per running game, so on a phone the host normally serves a single
+ * session. A device that keeps the {@link NetplayService} running as a dedicated host serves
+ * the rooms of every game that creates a session through {@link #createSession()} and
+ * registers its players with {@link #addRegistration(int, int)}.
+ *
+ * Everything except the public methods runs on the {@link NetplayEventLoop} thread.
+ */
+public class NetplaySessionHost {
+
+    private static final String TAG = "NetplaySessionHost";
+
+    public interface OnSessionEvent
+    {
+        /**
+         * Called when a desync is detected in a session
+         * @param sessionId Session id
+         * @param report VI in which de-sync occurred and the registers that differ
+         */
+        void onDesync(int sessionId, DesyncDetector.Report report);
+
+        /**
+         * Called when every player of a session has disconnected, the session has been closed
+         * @param sessionId Session id
+         */
+        void onSessionFinished(int sessionId);
+    }
+
+    /**
+     * Statistics of one session
+     */
+    public static class SessionStats {
+        SessionStats(int sessionId, int players, int tcpClients, long udpPacketsReceived,
+                     long udpPacketsSent, boolean desynced, NetplayTelemetry telemetry) {
+            this.sessionId = sessionId;
+            this.players = players;
+            this.tcpClients = tcpClients;
+            this.udpPacketsReceived = udpPacketsReceived;
+            this.udpPacketsSent = udpPacketsSent;
+            this.desynced = desynced;
+            this.telemetry = telemetry;
+        }
+
+        public final int sessionId;
+        public final int players;
+        public final int tcpClients;
+        public final long udpPacketsReceived;
+        public final long udpPacketsSent;
+        public final boolean desynced;
+        public final NetplayTelemetry telemetry;
+    }
+
+    private static class Session {
+        Session(int sessionId, UdpServer udpServer, TcpServer tcpServer) {
+            mSessionId = sessionId;
+            mUdpServer = udpServer;
+            mTcpServer = tcpServer;
+        }
+
+        final int mSessionId;
+        final UdpServer mUdpServer;
+        final TcpServer mTcpServer;
+        final ArrayList<Integer> mRegistrationIds = new ArrayList<>();
+
+        boolean hasRegistration(int registrationId) {
+            for (int index = 0; index < mRegistrationIds.size(); ++index) {
+                if (mRegistrationIds.get(index) == registrationId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Player registration message, the first message of every client
+    private static final int PLAYER_REGISTRATION_MSG = 5;
+    private static final int PLAYER_REGISTRATION_SIZE = 8;
+    private static final int PLAYER_REGISTRATION_REG_ID_OFFSET = 4;
+
+    // Offset of the registration id in UDP input requests
+    private static final int REQUEST_DATA_REG_ID_OFFSET = 2;
+
+    // Newer cores append the registration id to inputs and CP0 data, after these fields
+    private static final int KEY_INFO_REG_ID_OFFSET = 11;
+    private static final int CP0_DATA_REG_ID_OFFSET = 5 + DesyncDetector.SNAPSHOT_SIZE;
+
+    // Maximum time to wait for the event loop to create a session
+    private static final int CREATE_SESSION_TIMEOUT_MS = 5000;
+
+    // Clients must register this soon after connecting
+    private static final int REGISTRATION_TIMEOUT_MS = 10000;
+
+    // How often finished sessions are removed and statistics are updated
+    private static final int CHECK_SESSIONS_INTERVAL_MS = 1000;
+
+    // Maximum number of datagrams handled before giving other channels a turn
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 256;
+
+    private static final int MAX_CLIENTS_PER_SESSION = 4;
+
+    // Statistics of at most this many closed sessions are kept
+    private static final int MAX_CLOSED_STATS = 64;
+
+    /**
+     * Connection that hasn't sent its player registration yet
+     */
+    private class PendingClient implements NetplayEventLoop.ChannelHandler {
+        PendingClient(SocketChannel channel) throws IOException {
+            mChannel = channel;
+            mReceivedData.order(ByteOrder.BIG_ENDIAN);
+            mKey = mEventLoop.register(channel, SelectionKey.OP_READ, this);
+            mEventLoop.postDelayed(mTimeout, REGISTRATION_TIMEOUT_MS);
+        }
+
+        final SocketChannel mChannel;
+        final SelectionKey mKey;
+        final ByteBuffer mReceivedData = ByteBuffer.allocate(PLAYER_REGISTRATION_SIZE);
+        final Runnable mTimeout = this::onTimeout;
+
+        @Override
+        public void onChannelReady(SelectionKey key) throws IOException {
+            if (mChannel.read(mReceivedData) == -1) {
+                mEventLoop.close(mKey);
+                return;
+            }
+
+            if (mReceivedData.hasRemaining()) {
+                return;
+            }
+
+            mEventLoop.removeCallbacks(mTimeout);
+            mReceivedData.flip();
+
+            Session session = null;
+            if (mReceivedData.get(0) == PLAYER_REGISTRATION_MSG) {
+                session = mSessionsByRegistration.get(mReceivedData.getInt(PLAYER_REGISTRATION_REG_ID_OFFSET));
+            }
+
+            if (session == null) {
+                Log.w(TAG, "Rejecting client without a valid registration");
+                ++mRejectedClients;
+                mEventLoop.close(mKey);
+            } else if (session.mTcpServer.getClientCount() >= MAX_CLIENTS_PER_SESSION) {
+                Log.w(TAG, "Rejecting client, session " + session.mSessionId + " is full");
+                ++mRejectedClients;
+                mEventLoop.close(mKey);
+            } else {
+                mPendingClients.remove(this);
+                session.mTcpServer.addClient(mChannel, mReceivedData);
+            }
+        }
+
+        @Override
+        public void onChannelClosed() {
+            mEventLoop.removeCallbacks(mTimeout);
+            mPendingClients.remove(this);
+        }
+
+        private void onTimeout() {
+            Log.w(TAG, "Client didn't register in time");
+            ++mRejectedClients;
+            mEventLoop.close(mKey);
+        }
+    }
+
+    private final NetplayEventLoop mEventLoop;
+    private final OnSessionEvent mOnSessionEvent;
+    private final int mBufferTarget;
+    private final File mSaveFileDirectory;
+    private final int mMaxSessions;
+
+    private ServerSocketChannel mServerChannel;
+    private SelectionKey mServerKey;
+    private DatagramChannel mUdpChannel;
+    private SelectionKey mUdpKey;
+    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(64*1024);
+    private final CountDownLatch mHostEnded = new CountDownLatch(1);
+    private boolean mRunning = true;
+
+    private final HashMap<Integer, Session> mSessions = new HashMap<>();
+    private final HashMap<Integer, Session> mSessionsByRegistration = new HashMap<>();
+    private final HashMap<SocketAddress, Session> mSessionsByAddress = new HashMap<>();
+    private final ArrayList<PendingClient> mPendingClients = new ArrayList<>();
+    private final AtomicInteger mNextSessionId = new AtomicInteger(1);
+    private final Runnable mCheckSessions = this::checkSessions;
+
+    private long mDroppedPackets = 0;
+    private long mRejectedClients = 0;
+
+    // Statistics of every session, updated periodically from the event loop
+    private volatile List<SessionStats> mStats = Collections.emptyList();
+
+    // Final statistics of closed sessions, oldest first
+    private final ArrayDeque<SessionStats> mClosedStats = new ArrayDeque<>();
+    private volatile List<SessionStats> mPublishedClosedStats = Collections.emptyList();
+
+    /**
+     * @param bufferTarget Buffer target used by every session
+     * @param maxSessions Maximum number of sessions that can run at the same time
+     * @param eventLoop Event loop that runs the host
+     * @param saveFileDirectory Every session keeps its save files in a subdirectory of this one
+     * @param onSessionEvent Called from the event loop thread on session events
+     */
+    public NetplaySessionHost(int bufferTarget, int maxSessions, NetplayEventLoop eventLoop,
+                              File saveFileDirectory, OnSessionEvent onSessionEvent)
+    {
+        mBufferTarget = bufferTarget;
+        mSaveFileDirectory = saveFileDirectory;
+        mMaxSessions = maxSessions;
+        mEventLoop = eventLoop;
+        mOnSessionEvent = onSessionEvent;
+        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Start listening, the TCP and UDP servers use the same port number
+     * @param port Port to listen on, 0 to pick any free port
+     */
+    public void setPort(int port)
+    {
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(port));
+
+            mUdpChannel = DatagramChannel.open();
+            mUdpChannel.socket().bind(new InetSocketAddress(mServerChannel.socket().getLocalPort()));
+
+            Log.i(TAG, "Hosting netplay sessions in port " + getPort());
+
+            mEventLoop.post(() -> {
+                try {
+                    mServerKey = mEventLoop.register(mServerChannel, SelectionKey.OP_ACCEPT, mAcceptHandler);
+                    mUdpKey = mEventLoop.register(mUdpChannel, SelectionKey.OP_READ, mUdpHandler);
+                    mEventLoop.postDelayed(mCheckSessions, CHECK_SESSIONS_INTERVAL_MS);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    close();
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeChannels();
+            mHostEnded.countDown();
+        }
+    }
+
+    public int getPort()
+    {
+        return mServerChannel != null ? mServerChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Create a new session, can be called from any thread
+     * @return Session id, or -1 if the maximum number of sessions is running or the event loop
+     * didn't get to it in time
+     */
+    public int createSession()
+    {
+        final int sessionId = mNextSessionId.getAndIncrement();
+
+        if (mEventLoop.isInLoop()) {
+            return addSession(sessionId) ? sessionId : -1;
+        }
+
+        final CountDownLatch created = new CountDownLatch(1);
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+        final boolean[] success = {false};
+
+        mEventLoop.post(() -> {
+            // Don't create a session nobody is waiting for anymore
+            if (claimed.compareAndSet(false, true)) {
+                success[0] = addSession(sessionId);
+                created.countDown();
+            }
+        });
+
+        try {
+            if (!created.await(CREATE_SESSION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (claimed.compareAndSet(false, true)) {
+                    Log.w(TAG, "Timed out creating session " + sessionId);
+                    return -1;
+                }
+
+                // The session is being created right now
+                created.await();
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return -1;
+        }
+
+        return success[0] ? sessionId : -1;
+    }
+
+    /**
+     * Allow a player registration id to join a session, can be called from any thread
+     */
+    public void addRegistration(int sessionId, int registrationId)
+    {
+        mEventLoop.post(() -> {
+            Session session = mSessions.get(sessionId);
+
+            if (session != null) {
+                session.mRegistrationIds.add(registrationId);
+                mSessionsByRegistration.put(registrationId, session);
+            }
+        });
+    }
+
+    /**
+     * Close a session and disconnect its clients, can be called from any thread
+     */
+    public void closeSession(int sessionId)
+    {
+        mEventLoop.post(() -> {
+            Session session = mSessions.get(sessionId);
+
+            if (session != null) {
+                removeSession(session);
+            }
+        });
+    }
+
+    /**
+     * @return Statistics of every session, updated about once a second. Can be called from
+     * any thread.
+     */
+    public List<SessionStats> getStats()
+    {
+        return mStats;
+    }
+
+    /**
+     * @return Statistics of the most recently closed sessions, taken as they closed. Can be
+     * called from any thread.
+     */
+    public List<SessionStats> getClosedStats()
+    {
+        return mPublishedClosedStats;
+    }
+
+    public void stopHost()
+    {
+        if (mHostEnded.getCount() == 0) {
+            return;
+        }
+
+        mEventLoop.post(this::close);
+        waitForHostToEnd();
+    }
+
+    public void waitForHostToEnd()
+    {
+        try {
+            mHostEnded.await();
+            Log.i(TAG, "Session host finished");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private final NetplayEventLoop.ChannelHandler mAcceptHandler = new NetplayEventLoop.ChannelHandler() {
+        @Override
+        public void onChannelReady(SelectionKey key) throws IOException {
+            SocketChannel clientChannel;
+            while ((clientChannel = mServerChannel.accept()) != null) {
+                try {
+                    mPendingClients.add(new PendingClient(clientChannel));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    clientChannel.close();
+                }
+            }
+        }
+
+        @Override
+        public void onChannelClosed() {
+            close();
+        }
+    };
+
+    private final NetplayEventLoop.ChannelHandler mUdpHandler = new NetplayEventLoop.ChannelHandler() {
+        @Override
+        public void onChannelReady(SelectionKey key) throws IOException {
+            for (int received = 0; received < MAX_DATAGRAMS_PER_WAKEUP && mRunning; ++received) {
+                mReceiveBuffer.clear();
+                SocketAddress source = mUdpChannel.receive(mReceiveBuffer);
+
+                if (source == null) {
+                    break;
+                }
+
+                mReceiveBuffer.flip();
+                routeDatagram(source);
+            }
+        }
+
+        @Override
+        public void onChannelClosed() {
+            close();
+        }
+    };
+
+    /**
+     * @return Offset of the registration id in the received datagram, -1 if it doesn't carry one
+     */
+    private int getRegistrationIdOffset()
+    {
+        final int length = mReceiveBuffer.remaining();
+        final int offset;
+
+        switch (mReceiveBuffer.get(0)) {
+            case UdpServer.REQUEST_DATA_MSG:
+                offset = REQUEST_DATA_REG_ID_OFFSET;
+                break;
+            case UdpServer.KEY_INFO_MSG:
+                offset = KEY_INFO_REG_ID_OFFSET;
+                break;
+            case UdpServer.CP0_DATA_MSG:
+                offset = CP0_DATA_REG_ID_OFFSET;
+                break;
+            default:
+                return -1;
+        }
+
+        return length >= offset + 4 ? offset : -1;
+    }
+
+    private void routeDatagram(SocketAddress source)
+    {
+        Session session = mSessionsByAddress.get(source);
+
+        // Use the registration id to learn where each client is, clients that don't send it
+        // are found by the address of their input requests
+        final int registrationIdOffset = mReceiveBuffer.hasRemaining() ? getRegistrationIdOffset() : -1;
+        if (registrationIdOffset >= 0) {
+            final int registrationId = mReceiveBuffer.getInt(registrationIdOffset);
+
+            // The address is usually known already, only look up registrations that moved
+            if (session == null || !session.hasRegistration(registrationId)) {
+                Session registeredSession = mSessionsByRegistration.get(registrationId);
+
+                if (registeredSession != null) {
+                    mSessionsByAddress.put(source, registeredSession);
+                    session = registeredSession;
+                }
+            }
+        }
+
+        if (session != null) {
+            session.mUdpServer.handleDatagram(mReceiveBuffer, source);
+        } else {
+            ++mDroppedPackets;
+        }
+    }
+
+    private boolean addSession(int sessionId)
+    {
+        if (!mRunning || mSessions.size() >= mMaxSessions) {
+            Log.w(TAG, "Unable to create session " + sessionId);
+            return false;
+        }
+
+        UdpServer udpServer = new UdpServer(mBufferTarget, report -> mOnSessionEvent.onDesync(sessionId, report),
+                mEventLoop, mUdpChannel);
+        TcpServer tcpServer = new TcpServer(mBufferTarget, udpServer, mEventLoop,
+                new File(mSaveFileDirectory, "session" + sessionId));
+        mSessions.put(sessionId, new Session(sessionId, udpServer, tcpServer));
+
+        Log.i(TAG, "Created session " + sessionId);
+        return true;
+    }
+
+    private void removeSession(Session session)
+    {
+        session.mUdpServer.closeChannel();
+        session.mTcpServer.closeChannel();
+
+        mSessions.remove(session.mSessionId);
+
+        for (Integer registrationId : session.mRegistrationIds) {
+            if (mSessionsByRegistration.get(registrationId) == session) {
+                mSessionsByRegistration.remove(registrationId);
+            }
+        }
+
+        mSessionsByAddress.values().removeIf(addressSession -> addressSession == session);
+
+        // Finished sessions are removed before anyone asks for their statistics, keep them
+        mClosedStats.addLast(createStats(session));
+        if (mClosedStats.size() > MAX_CLOSED_STATS) {
+            mClosedStats.removeFirst();
+        }
+        mPublishedClosedStats = Collections.unmodifiableList(new ArrayList<>(mClosedStats));
+
+        Log.i(TAG, "Closed session " + session.mSessionId);
+    }
+
+    private static SessionStats createStats(Session session)
+    {
+        return new SessionStats(session.mSessionId, session.mUdpServer.getPlayerCount(),
+                session.mTcpServer.getClientCount(), session.mUdpServer.getPacketsReceived(),
+                session.mUdpServer.getPacketsSent(), session.mUdpServer.isDesynced(),
+                session.mUdpServer.getTelemetry());
+    }
+
+    private void checkSessions()
+    {
+        if (!mRunning) {
+            return;
+        }
+
+        ArrayList<SessionStats> stats = new ArrayList<>(mSessions.size());
+
+        for (Session session : new ArrayList<>(mSessions.values())) {
+            if (session.mUdpServer.isFinished()) {
+                removeSession(session);
+                mOnSessionEvent.onSessionFinished(session.mSessionId);
+                continue;
+            }
+
+            stats.add(createStats(session));
+        }
+
+        mStats = Collections.unmodifiableList(stats);
+
+        mEventLoop.postDelayed(mCheckSessions, CHECK_SESSIONS_INTERVAL_MS);
+    }
+
+    private void closeChannels()
+    {
+        try {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+
+            if (mUdpChannel != null) {
+                mUdpChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void close()
+    {
+        if (!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        mEventLoop.removeCallbacks(mCheckSessions);
+
+        for (Session session : new ArrayList<>(mSessions.values())) {
+            removeSession(session);
+        }
+        mStats = Collections.emptyList();
+
+        for (PendingClient client : new ArrayList<>(mPendingClients)) {
+            mEventLoop.close(client.mKey);
+        }
+
+        if (mServerKey != null) {
+            mEventLoop.close(mServerKey);
+        }
+
+        if (mUdpKey != null) {
+            mEventLoop.close(mUdpKey);
+        }
+
+        closeChannels();
+
+        Log.i(TAG, "Dropped " + mDroppedPackets + " packets from unknown clients, rejected " +
+                mRejectedClients + " clients");
+
+        mHostEnded.countDown();
+    }
+}
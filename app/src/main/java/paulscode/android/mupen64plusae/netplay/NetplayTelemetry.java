@@ -0,0 +1,369 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import java.util.Locale;
+
+/**
+ * Network statistics of one netplay session, kept per player in fixed size histograms so
+ * recording never allocates. A {@link UdpServer} records into its own instance from the
+ * {@link NetplayEventLoop} thread and periodically publishes a copy through
+ * {@link #snapshot()}, copies are never modified and can be read from any thread.
+ */
+public class NetplayTelemetry {
+
+    /**
+     * Histogram with equally sized buckets, values past the last bucket are counted in it
+     */
+    public static class Histogram {
+        private final int mBucketWidth;
+        private final long[] mBuckets;
+        private long mCount = 0;
+        private long mSum = 0;
+        private int mMax = 0;
+
+        Histogram(int bucketWidth, int bucketCount)
+        {
+            mBucketWidth = bucketWidth;
+            mBuckets = new long[bucketCount];
+        }
+
+        private Histogram(Histogram other)
+        {
+            mBucketWidth = other.mBucketWidth;
+            mBuckets = other.mBuckets.clone();
+            mCount = other.mCount;
+            mSum = other.mSum;
+            mMax = other.mMax;
+        }
+
+        void record(int value)
+        {
+            if (value < 0) {
+                value = 0;
+            }
+
+            ++mBuckets[Math.min(value / mBucketWidth, mBuckets.length - 1)];
+            ++mCount;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        public long getCount()
+        {
+            return mCount;
+        }
+
+        public int getMax()
+        {
+            return mMax;
+        }
+
+        public double getMean()
+        {
+            return mCount == 0 ? 0 : (double)mSum / mCount;
+        }
+
+        /**
+         * @param percentile Percentile from 0 to 100
+         * @return Upper bound of the bucket the percentile falls in, 0 if nothing was recorded
+         */
+        public int getPercentile(double percentile)
+        {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            long target = (long)Math.ceil(mCount * percentile / 100.0);
+            long seen = 0;
+
+            for (int bucket = 0; bucket < mBuckets.length - 1; ++bucket) {
+                seen += mBuckets[bucket];
+
+                if (seen >= target && seen > 0) {
+                    return Math.min((bucket + 1) * mBucketWidth - 1, mMax);
+                }
+            }
+
+            return mMax;
+        }
+
+        public int getBucketWidth()
+        {
+            return mBucketWidth;
+        }
+
+        public int getBucketCount()
+        {
+            return mBuckets.length;
+        }
+
+        public long getBucket(int bucket)
+        {
+            return mBuckets[bucket];
+        }
+
+        void format(StringBuilder builder, String name)
+        {
+            builder.append(String.format(Locale.US, "  %-14s n=%d mean=%.1f p50=%d p95=%d p99=%d max=%d%n",
+                    name, mCount, getMean(), getPercentile(50), getPercentile(95),
+                    getPercentile(99), mMax));
+
+            if (mCount == 0) {
+                return;
+            }
+
+            builder.append("   ");
+            for (int bucket = 0; bucket < mBuckets.length; ++bucket) {
+                if (mBuckets[bucket] != 0) {
+                    builder.append(' ').append(bucket * mBucketWidth);
+                    builder.append(bucket == mBuckets.length - 1 ? "+:" : ":");
+                    builder.append(mBuckets[bucket]);
+                }
+            }
+            builder.append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Statistics of a single player
+     */
+    public static class PlayerStats {
+        /** Round trip estimate in milliseconds, see {@link UdpServer} for how it's measured */
+        public final Histogram roundTripMs;
+        /** Deviation of input packet inter-arrival time from its running average, in milliseconds */
+        public final Histogram jitterMs;
+        /** Number of consecutive counts that were missing when an input arrived */
+        public final Histogram inputGaps;
+        /** How many counts the player is behind the lead player when requesting inputs */
+        public final Histogram countLag;
+        /** Local buffer size reported by the player */
+        public final Histogram bufferHealth;
+
+        private long mPacketsIn = 0;
+        private long mBytesIn = 0;
+        private long mPacketsOut = 0;
+        private long mBytesOut = 0;
+        private int mBufferSize = 0;
+
+        PlayerStats()
+        {
+            roundTripMs = new Histogram(2, 128);
+            jitterMs = new Histogram(1, 64);
+            inputGaps = new Histogram(1, 32);
+            countLag = new Histogram(1, 64);
+            bufferHealth = new Histogram(1, 32);
+        }
+
+        private PlayerStats(PlayerStats other)
+        {
+            roundTripMs = new Histogram(other.roundTripMs);
+            jitterMs = new Histogram(other.jitterMs);
+            inputGaps = new Histogram(other.inputGaps);
+            countLag = new Histogram(other.countLag);
+            bufferHealth = new Histogram(other.bufferHealth);
+            mPacketsIn = other.mPacketsIn;
+            mBytesIn = other.mBytesIn;
+            mPacketsOut = other.mPacketsOut;
+            mBytesOut = other.mBytesOut;
+            mBufferSize = other.mBufferSize;
+        }
+
+        public long getPacketsIn()
+        {
+            return mPacketsIn;
+        }
+
+        public long getBytesIn()
+        {
+            return mBytesIn;
+        }
+
+        public long getPacketsOut()
+        {
+            return mPacketsOut;
+        }
+
+        public long getBytesOut()
+        {
+            return mBytesOut;
+        }
+
+        /**
+         * @return Number of counts the server sends ahead of what the player requested
+         */
+        public int getBufferSize()
+        {
+            return mBufferSize;
+        }
+    }
+
+    private final PlayerStats[] mPlayers;
+    private final int mBufferTarget;
+    private final long mStartTimeMs;
+    private long mEndTimeMs = 0;
+    private long mPacketsIn = 0;
+    private long mBytesIn = 0;
+    private long mPacketsOut = 0;
+    private long mBytesOut = 0;
+
+    NetplayTelemetry(int numPlayers, int bufferTarget)
+    {
+        mPlayers = new PlayerStats[numPlayers];
+        for (int playerIndex = 0; playerIndex < numPlayers; ++playerIndex) {
+            mPlayers[playerIndex] = new PlayerStats();
+        }
+
+        mBufferTarget = bufferTarget;
+        mStartTimeMs = System.currentTimeMillis();
+    }
+
+    private NetplayTelemetry(NetplayTelemetry other)
+    {
+        mPlayers = new PlayerStats[other.mPlayers.length];
+        for (int playerIndex = 0; playerIndex < mPlayers.length; ++playerIndex) {
+            mPlayers[playerIndex] = new PlayerStats(other.mPlayers[playerIndex]);
+        }
+
+        mBufferTarget = other.mBufferTarget;
+        mStartTimeMs = other.mStartTimeMs;
+        mEndTimeMs = other.mEndTimeMs;
+        mPacketsIn = other.mPacketsIn;
+        mBytesIn = other.mBytesIn;
+        mPacketsOut = other.mPacketsOut;
+        mBytesOut = other.mBytesOut;
+    }
+
+    /**
+     * @return Copy of the current statistics, its duration ends when it's taken unless the
+     * session already ended
+     */
+    NetplayTelemetry snapshot()
+    {
+        NetplayTelemetry copy = new NetplayTelemetry(this);
+
+        if (copy.mEndTimeMs == 0) {
+            copy.mEndTimeMs = System.currentTimeMillis();
+        }
+
+        return copy;
+    }
+
+    /**
+     * Called when the session closes, the duration of later snapshots ends here
+     * @param endTimeMs Time the session closed, from {@link System#currentTimeMillis()}
+     */
+    void end(long endTimeMs)
+    {
+        if (mEndTimeMs == 0) {
+            mEndTimeMs = endTimeMs;
+        }
+    }
+
+    /**
+     * @param playerNum Player number, -1 if the sender isn't known
+     */
+    void recordPacketIn(int playerNum, int bytes)
+    {
+        ++mPacketsIn;
+        mBytesIn += bytes;
+
+        if (playerNum >= 0 && playerNum < mPlayers.length) {
+            ++mPlayers[playerNum].mPacketsIn;
+            mPlayers[playerNum].mBytesIn += bytes;
+        }
+    }
+
+    void recordPacketOut(int playerNum, int bytes)
+    {
+        ++mPacketsOut;
+        mBytesOut += bytes;
+
+        if (playerNum >= 0 && playerNum < mPlayers.length) {
+            ++mPlayers[playerNum].mPacketsOut;
+            mPlayers[playerNum].mBytesOut += bytes;
+        }
+    }
+
+    void setBufferSize(int playerNum, int bufferSize)
+    {
+        mPlayers[playerNum].mBufferSize = bufferSize;
+    }
+
+    public int getNumPlayers()
+    {
+        return mPlayers.length;
+    }
+
+    public PlayerStats getPlayer(int playerNum)
+    {
+        return mPlayers[playerNum];
+    }
+
+    public int getBufferTarget()
+    {
+        return mBufferTarget;
+    }
+
+    public long getStartTimeMs()
+    {
+        return mStartTimeMs;
+    }
+
+    /**
+     * @return Time from the start of the session to when it ended or the statistics were copied,
+     * 0 if neither happened yet
+     */
+    public long getDurationMs()
+    {
+        return mEndTimeMs == 0 ? 0 : mEndTimeMs - mStartTimeMs;
+    }
+
+    public long getPacketsIn()
+    {
+        return mPacketsIn;
+    }
+
+    public long getBytesIn()
+    {
+        return mBytesIn;
+    }
+
+    public long getPacketsOut()
+    {
+        return mPacketsOut;
+    }
+
+    public long getBytesOut()
+    {
+        return mBytesOut;
+    }
+
+    /**
+     * @return Human readable report of every statistic, suitable for a dump file
+     */
+    public String format()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.US, "duration=%.1fs bufferTarget=%d%n", getDurationMs() / 1000.0, mBufferTarget));
+        builder.append(String.format(Locale.US, "in: %d packets %d bytes, out: %d packets %d bytes%n",
+                mPacketsIn, mBytesIn, mPacketsOut, mBytesOut));
+
+        for (int playerIndex = 0; playerIndex < mPlayers.length; ++playerIndex) {
+            PlayerStats player = mPlayers[playerIndex];
+
+            if (player.mPacketsIn == 0 && player.mPacketsOut == 0) {
+                continue;
+            }
+
+            builder.append(String.format(Locale.US, "player %d: in %d/%d, out %d/%d packets/bytes, buffer size=%d%n",
+                    playerIndex + 1, player.mPacketsIn, player.mBytesIn, player.mPacketsOut,
+                    player.mBytesOut, player.mBufferSize));
+            player.roundTripMs.format(builder, "rtt_ms");
+            player.jitterMs.format(builder, "jitter_ms");
+            player.inputGaps.format(builder, "input_gaps");
+            player.countLag.format(builder, "count_lag");
+            player.bufferHealth.format(builder, "buffer_health");
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,330 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Save files shared by the players of a netplay session. Files are streamed to disk as they are
+ * received and kept deflate compressed, so memory use doesn't depend on their size. The size and
+ * SHA-256 hash of the uncompressed contents are kept with every file so clients can verify
+ * transfers and skip files they already have. Only use from the {@link NetplayEventLoop} thread.
+ */
+public class SaveFileStore {
+
+    private static final String TAG = "SaveFileStore";
+
+    public static final int HASH_SIZE = 32;
+
+    private static final int SCRATCH_SIZE = 16*1024;
+
+    /** Largest save file accepted, far more than the 128 KiB of flash RAM or four controller paks */
+    public static final int MAX_FILE_SIZE = 4*1024*1024;
+
+    /** Largest compressed size accepted, incompressible data grows by a few bytes per deflate block */
+    public static final int MAX_COMPRESSED_SIZE = MAX_FILE_SIZE + MAX_FILE_SIZE/1024 + 1024;
+
+    public static class SaveFile {
+        SaveFile(File file, int size, int compressedSize, byte[] hash) {
+            mFile = file;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.hash = hash;
+        }
+
+        final File mFile;
+
+        /** Size of the uncompressed contents */
+        public final int size;
+        /** Size of the deflate compressed contents */
+        public final int compressedSize;
+        /** SHA-256 hash of the uncompressed contents */
+        public final byte[] hash;
+    }
+
+    /**
+     * Receives the contents of a file in parts, the file is only added to the store once
+     * {@link #finish(byte[])} succeeds
+     */
+    public class Writer {
+        private final String mName;
+        private final File mFile;
+        private final int mSize;
+        private final boolean mCompressedInput;
+        private OutputStream mOutputStream = null;
+        private final MessageDigest mDigest;
+        private final Inflater mInflater;
+        private Deflater mDeflater = null;
+        private int mRemaining;
+        private int mInflatedSize = 0;
+        private boolean mFailed = false;
+
+        private Writer(String name, int size, int compressedSize, boolean compressedInput)
+        {
+            mName = name;
+            mFile = new File(mDirectory, "save" + mNextFileId++ + ".z");
+            mSize = size;
+            mCompressedInput = compressedInput;
+            mRemaining = compressedInput ? compressedSize : size;
+            mDigest = newDigest();
+
+            mInflater = compressedInput ? new Inflater() : null;
+
+            try {
+                OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(mFile), SCRATCH_SIZE);
+
+                if (compressedInput) {
+                    mOutputStream = fileStream;
+                } else {
+                    mDeflater = new Deflater(Deflater.BEST_SPEED);
+                    mOutputStream = new DeflaterOutputStream(fileStream, mDeflater, SCRATCH_SIZE);
+                }
+            } catch (IOException e) {
+                // The data is still consumed so the connection stays usable
+                Log.w(TAG, "Unable to create " + mFile.getPath() + ": " + e.getMessage());
+                mFailed = true;
+            }
+        }
+
+        /**
+         * @return Number of bytes that haven't been received yet
+         */
+        public int getRemaining()
+        {
+            return mRemaining;
+        }
+
+        /**
+         * Write as much of the buffer as the file still needs
+         * @param buffer Heap buffer to read from
+         */
+        public void write(ByteBuffer buffer)
+        {
+            final int length = Math.min(buffer.remaining(), mRemaining);
+            final int offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + length);
+            mRemaining -= length;
+
+            if (mFailed || length == 0) {
+                return;
+            }
+
+            try {
+                mOutputStream.write(buffer.array(), offset, length);
+
+                if (mCompressedInput) {
+                    mInflater.setInput(buffer.array(), offset, length);
+                    while (!mInflater.needsInput() && !mInflater.finished()) {
+                        final int inflated = mInflater.inflate(mScratch);
+
+                        // A preset dictionary is never sent, without it nothing more can be inflated
+                        if (inflated == 0 && !mInflater.needsInput() && !mInflater.finished()) {
+                            Log.w(TAG, "Unable to inflate " + mName);
+                            mFailed = true;
+                            return;
+                        }
+
+                        mInflatedSize += inflated;
+
+                        if (mInflatedSize > mSize) {
+                            Log.w(TAG, "Save file " + mName + " is larger than " + mSize + " bytes");
+                            mFailed = true;
+                            return;
+                        }
+
+                        mDigest.update(mScratch, 0, inflated);
+                    }
+                } else {
+                    mDigest.update(buffer.array(), offset, length);
+                    mInflatedSize += length;
+                }
+            } catch (IOException|DataFormatException e) {
+                Log.w(TAG, "Unable to write " + mName + ": " + e.getMessage());
+                mFailed = true;
+            }
+        }
+
+        /**
+         * Add the file to the store once all of it has been written
+         * @param expectedHash Hash the contents must have, null to not verify it
+         * @return The file, null if it couldn't be stored or doesn't match the hash
+         */
+        public SaveFile finish(byte[] expectedHash)
+        {
+            final boolean complete = !mCompressedInput || mInflater.finished();
+            close();
+
+            byte[] hash = mDigest.digest();
+
+            if (mFailed || !complete || mRemaining != 0 || mInflatedSize != mSize) {
+                Log.w(TAG, "Incomplete save file " + mName);
+                deleteFile(mFile);
+                return null;
+            }
+
+            if (expectedHash != null && !Arrays.equals(hash, expectedHash)) {
+                Log.w(TAG, "Checksum mismatch for save file " + mName);
+                deleteFile(mFile);
+                return null;
+            }
+
+            SaveFile saveFile = new SaveFile(mFile, mSize, (int)mFile.length(), hash);
+            SaveFile previous = mFiles.put(mName, saveFile);
+
+            if (previous != null) {
+                deleteFile(previous.mFile);
+            }
+
+            Log.i(TAG, "Stored " + mName + ", " + mSize + " bytes, " + saveFile.compressedSize + " compressed");
+            return saveFile;
+        }
+
+        /**
+         * Discard the file, for example when the connection is lost while receiving it
+         */
+        public void abort()
+        {
+            close();
+            deleteFile(mFile);
+        }
+
+        private void close()
+        {
+            try {
+                if (mOutputStream != null) {
+                    mOutputStream.close();
+                }
+            } catch (IOException e) {
+                mFailed = true;
+                e.printStackTrace();
+            } finally {
+                // Streams don't end a deflater or inflater they were given
+                if (mDeflater != null) {
+                    mDeflater.end();
+                }
+
+                if (mInflater != null) {
+                    mInflater.end();
+                }
+            }
+        }
+    }
+
+    private final File mDirectory;
+    private final HashMap<String, SaveFile> mFiles = new HashMap<>();
+    private final byte[] mScratch = new byte[SCRATCH_SIZE];
+    private int mNextFileId = 0;
+
+    /**
+     * @param directory Directory the files are kept in, it's created if needed
+     */
+    public SaveFileStore(File directory)
+    {
+        mDirectory = directory;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDirectory.getPath());
+        }
+    }
+
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java and Android runtime provides SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Start receiving an uncompressed file
+     */
+    public Writer openWriter(String name, int size)
+    {
+        return new Writer(name, size, 0, false);
+    }
+
+    /**
+     * Start receiving a deflate compressed file
+     * @param size Size of the uncompressed contents
+     * @param compressedSize Number of compressed bytes that will be written
+     */
+    public Writer openCompressedWriter(String name, int size, int compressedSize)
+    {
+        return new Writer(name, size, compressedSize, true);
+    }
+
+    /**
+     * @return The file, null if nobody has sent it yet
+     */
+    public SaveFile get(String name)
+    {
+        return mFiles.get(name);
+    }
+
+    /**
+     * @return Stream of the uncompressed contents of a file
+     */
+    public InputStream openStream(SaveFile saveFile) throws IOException
+    {
+        final Inflater inflater = new Inflater();
+
+        return new InflaterInputStream(new BufferedInputStream(new FileInputStream(saveFile.mFile), SCRATCH_SIZE),
+                inflater, SCRATCH_SIZE) {
+            @Override
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return Stream of the deflate compressed contents of a file
+     */
+    public InputStream openCompressedStream(SaveFile saveFile) throws IOException
+    {
+        return new BufferedInputStream(new FileInputStream(saveFile.mFile), SCRATCH_SIZE);
+    }
+
+    /**
+     * Delete every file
+     */
+    public void clear()
+    {
+        for (SaveFile saveFile : mFiles.values()) {
+            deleteFile(saveFile.mFile);
+        }
+
+        mFiles.clear();
+    }
+
+    private static void deleteFile(File file)
+    {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file.getPath());
+        }
+    }
+}
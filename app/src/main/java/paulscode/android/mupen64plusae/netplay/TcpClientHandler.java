@@ -3,71 +3,197 @@ package paulscode.android.mupen64plusae.netplay;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 import paulscode.android.mupen64plusae.netplay.TcpMessage.MessageFactory;
+import paulscode.android.mupen64plusae.netplay.TcpMessage.StreamingTcpMessage;
 import paulscode.android.mupen64plusae.netplay.TcpMessage.TcpMessage;
 
-public class TcpClientHandler {
+public class TcpClientHandler implements NetplayEventLoop.ChannelHandler {
 
-    Thread mClientThread;
-    boolean mRunning = true;
-    OutputStream mSocketOutputStream;
-    InputStream mSocketInputStream;
-    MessageFactory mMessageFactory;
+    private static final String TAG = "TcpClientHandler";
 
-    int mBufferTarget;
+    private static final int INITIAL_RECEIVE_BUFFER_SIZE = 4*1024;
 
-    TcpClientHandler(TcpServer server, int _buffer_target, Socket socket)
+    // Largest message we accept, save files are streamed to disk so they don't count
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 1024*1024;
+
+    // How long to wait before processing a message that is waiting for data from another player again
+    private static final int RETRY_DELAY_MS = 100;
+
+    private final TcpServer mServer;
+    private final NetplayEventLoop mEventLoop;
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final ChannelWriter mWriter;
+    private final MessageFactory mMessageFactory;
+
+    // Received data that hasn't been parsed yet
+    private ByteBuffer mReceiveBuffer = ByteBuffer.allocate(INITIAL_RECEIVE_BUFFER_SIZE);
+
+    // Message that is waiting for data from another player, later messages wait for it so
+    // that responses are sent in order
+    private TcpMessage mPendingMessage = null;
+    private final Runnable mRetryPendingMessage = this::retryPendingMessage;
+
+    // Message whose data is still being received, it has consumed everything received so far
+    private StreamingTcpMessage mStreamingMessage = null;
+
+    /**
+     * @param receivedData Data already read from the client that must be processed first, can be null
+     */
+    TcpClientHandler(TcpServer server, NetplayEventLoop eventLoop, SocketChannel channel,
+                     ByteBuffer receivedData) throws IOException
     {
-        Log.i("TcpClientHandler", "New client connected");
+        Log.i(TAG, "New client connected");
 
-        mBufferTarget = _buffer_target;
+        mServer = server;
+        mEventLoop = eventLoop;
+        mChannel = channel;
+        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
 
-        try {
-            mSocketOutputStream = socket.getOutputStream();
-            mSocketInputStream = socket.getInputStream();
-            mMessageFactory = new MessageFactory(server, mSocketOutputStream);
-            mRunning = true;
-        } catch (IOException e) {
-            e.printStackTrace();
+        mKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
+        mWriter = new ChannelWriter(channel, mKey);
+        mMessageFactory = new MessageFactory(server, mWriter);
+
+        if (receivedData != null && receivedData.hasRemaining()) {
+            while (mReceiveBuffer.remaining() < receivedData.remaining()) {
+                growReceiveBuffer();
+            }
+            mReceiveBuffer.put(receivedData);
+            processMessages();
+        }
+    }
+
+    @Override
+    public void onChannelReady(SelectionKey key) throws IOException
+    {
+        if (key.isWritable()) {
+            mWriter.flush();
         }
 
-        mClientThread = new Thread(this::runClient);
-        mClientThread.start();
+        if (key.isValid() && key.isReadable()) {
+            if (mChannel.read(mReceiveBuffer) == -1) {
+                mEventLoop.close(mKey);
+                return;
+            }
+
+            processMessages();
+
+            if (!mReceiveBuffer.hasRemaining()) {
+                growReceiveBuffer();
+            }
+        }
     }
-    
-    void runClient()
+
+    @Override
+    public void onChannelClosed()
     {
-        while (mRunning)
-        {
-            // First read the whole message
-            try {
-                int id = mSocketInputStream.read();
+        mEventLoop.removeCallbacks(mRetryPendingMessage);
+        mServer.removeClient(this);
+        mWriter.close();
 
-                Log.i("TcpClientHandler", "Received message id=" + id);
+        if (mStreamingMessage != null) {
+            mStreamingMessage.abort();
+            mStreamingMessage = null;
+        }
+
+        Log.i(TAG, "Client disconnected");
+    }
 
-                if (id == -1) {
-                    mRunning = false;
+    void close()
+    {
+        mEventLoop.close(mKey);
+    }
+
+    /**
+     * Parse and process all complete messages in the receive buffer
+     */
+    private void processMessages() throws IOException
+    {
+        if (mPendingMessage != null) {
+            return;
+        }
+
+        mReceiveBuffer.flip();
+
+        while ((mReceiveBuffer.hasRemaining() || mStreamingMessage != null) && mChannel.isOpen()) {
+            TcpMessage message;
+
+            if (mStreamingMessage != null) {
+                message = mStreamingMessage;
+
+                if (!message.parse(mReceiveBuffer)) {
+                    break;
+                }
+
+                mStreamingMessage = null;
+            } else {
+                mReceiveBuffer.mark();
+
+                int id = mReceiveBuffer.get() & 0xFF;
+                message = mMessageFactory.getMessage(id);
+
+                if (message == null) {
+                    Log.w(TAG, "Received unknown message id=" + id);
+                    mEventLoop.close(mKey);
+                    break;
                 }
 
-                if (id >= 0) {
-                    TcpMessage message = mMessageFactory.getMessage(id);
-                    if (message != null) {
-                        message.parse(mSocketInputStream);
-                        message.process();
+                if (!message.parse(mReceiveBuffer)) {
+                    // Wait for the rest of the message, streaming messages keep what they have consumed
+                    if (message instanceof StreamingTcpMessage) {
+                        mStreamingMessage = (StreamingTcpMessage)message;
                     } else {
-                        mRunning = false;
-                        break;
+                        mReceiveBuffer.reset();
                     }
+                    break;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                mRunning = false;
+
+                Log.i(TAG, "Received message id=" + id);
+            }
+
+            if (!message.process()) {
+                mPendingMessage = message;
+                mEventLoop.postDelayed(mRetryPendingMessage, RETRY_DELAY_MS);
                 break;
             }
         }
+
+        mReceiveBuffer.compact();
+    }
+
+    private void retryPendingMessage()
+    {
+        try {
+            if (!mPendingMessage.process()) {
+                mEventLoop.postDelayed(mRetryPendingMessage, RETRY_DELAY_MS);
+                return;
+            }
+
+            mPendingMessage = null;
+            processMessages();
+        } catch (IOException e) {
+            e.printStackTrace();
+            mEventLoop.close(mKey);
+        }
+    }
+
+    private void growReceiveBuffer()
+    {
+        if (mReceiveBuffer.capacity() >= MAX_RECEIVE_BUFFER_SIZE) {
+            Log.w(TAG, "Message is too large, closing connection");
+            mEventLoop.close(mKey);
+            return;
+        }
+
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(mReceiveBuffer.capacity()*2);
+        receiveBuffer.order(ByteOrder.BIG_ENDIAN);
+        mReceiveBuffer.flip();
+        receiveBuffer.put(mReceiveBuffer);
+        mReceiveBuffer = receiveBuffer;
     }
 }
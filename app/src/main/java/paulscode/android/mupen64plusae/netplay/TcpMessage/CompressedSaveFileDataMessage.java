@@ -0,0 +1,99 @@
+package paulscode.android.mupen64plusae.netplay.TcpMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import paulscode.android.mupen64plusae.netplay.SaveFileStore;
+import paulscode.android.mupen64plusae.netplay.TcpServer;
+
+/**
+ * Deflate compressed save file, followed by the SHA-256 hash of the uncompressed contents.
+ * The file is only made available to other players if the hash matches.
+ */
+public class CompressedSaveFileDataMessage implements StreamingTcpMessage {
+
+    TcpServer mTcpServer;
+
+    String mFileName = null;
+    SaveFileStore.Writer mWriter = null;
+    byte[] mHash = new byte[SaveFileStore.HASH_SIZE];
+    boolean mInvalid = false;
+
+    public CompressedSaveFileDataMessage(TcpServer tcpServer) {
+        mTcpServer = tcpServer;
+    }
+
+    @Override
+    public boolean parse(ByteBuffer buffer) {
+
+        if (mFileName == null) {
+            // Variable size message, file name is terminated by 0
+            String fileName = MessageFactory.getString(buffer);
+
+            if (fileName == null) {
+                return false;
+            }
+
+            mFileName = fileName;
+            mInvalid = false;
+        }
+
+        if (mWriter == null) {
+            // Followed by the uncompressed and compressed sizes
+            final int sizesBytes = 8;
+
+            if (buffer.remaining() < sizesBytes) {
+                return false;
+            }
+
+            int sizeOfFile = buffer.getInt();
+            int compressedSize = buffer.getInt();
+
+            if (sizeOfFile < 0 || sizeOfFile > SaveFileStore.MAX_FILE_SIZE ||
+                    compressedSize < 0 || compressedSize > SaveFileStore.MAX_COMPRESSED_SIZE) {
+                mInvalid = true;
+                return true;
+            }
+
+            mWriter = mTcpServer.getSaveFileStore().openCompressedWriter(mFileName, sizeOfFile, compressedSize);
+        }
+
+        mWriter.write(buffer);
+
+        if (mWriter.getRemaining() != 0 || buffer.remaining() < mHash.length) {
+            return false;
+        }
+
+        buffer.get(mHash);
+        return true;
+    }
+
+    @Override
+    public boolean process() throws IOException {
+        String fileName = mFileName;
+        SaveFileStore.Writer writer = mWriter;
+        mFileName = null;
+        mWriter = null;
+
+        if (mInvalid) {
+            throw new IOException("Invalid size for save file " + fileName);
+        }
+
+        if (writer.finish(mHash) == null) {
+            // The player can't continue without a valid file
+            throw new IOException("Unable to store save file " + fileName);
+        }
+
+        return true;
+    }
+
+    @Override
+    public void abort() {
+        if (mWriter != null) {
+            mWriter.abort();
+        }
+
+        mFileName = null;
+        mWriter = null;
+    }
+}
@@ -1,7 +1,9 @@
 package paulscode.android.mupen64plusae.netplay.TcpMessage;
 
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
+import paulscode.android.mupen64plusae.netplay.ChannelWriter;
 import paulscode.android.mupen64plusae.netplay.TcpServer;
 
 public class MessageFactory {
@@ -14,6 +16,8 @@ public class MessageFactory {
         PLAYER_REGISTRATION(5),
         REQUEST_PLAYER_REGISTRATION(6),
         PLAYER_DISCONNECT(7),
+        REQUEST_SAVE_FILE_UPDATE(8),
+        COMPRESSED_SAVE_FILE_DATA(9),
         UNKNOWN(-1);
 
         int mId;
@@ -38,15 +42,39 @@ public class MessageFactory {
     RequestSettingsMessage mRequestSettingsMessage;
     SaveFileDataMessage mSaveFileDataMessage;
     SettingsUpdateMessage mSettingsUpdateMessage;
+    RequestSaveFileUpdateMessage mRequestSaveFileUpdateMessage;
+    CompressedSaveFileDataMessage mCompressedSaveFileDataMessage;
+
+    public MessageFactory(TcpServer server, ChannelWriter writer) {
+        OutputStream outputStream = writer.getOutputStream();
 
-    public MessageFactory(TcpServer server, OutputStream outputStream) {
         mPlayerDisconnectMessage = new PlayerDisconnectMessage(server);
         mPlayerRegistrationMessage = new PlayerRegistrationMessage(server, outputStream);
         mRequestPlayerRegistrationMessage = new RequestPlayerRegistrationMessage(server, outputStream);
-        mRequestSaveFileDataMessage = new RequestSaveFileDataMessage(server, outputStream);
+        mRequestSaveFileDataMessage = new RequestSaveFileDataMessage(server, writer);
         mRequestSettingsMessage = new RequestSettingsMessage(server, outputStream);
         mSaveFileDataMessage = new SaveFileDataMessage(server);
         mSettingsUpdateMessage = new SettingsUpdateMessage(server);
+        mRequestSaveFileUpdateMessage = new RequestSaveFileUpdateMessage(server, writer);
+        mCompressedSaveFileDataMessage = new CompressedSaveFileDataMessage(server);
+    }
+
+    /**
+     * Read a string terminated by 0
+     * @param buffer Buffer to read from, positioned after the terminator if a string is returned
+     * @return The string, null if the terminator hasn't been received yet
+     */
+    static String getString(ByteBuffer buffer) {
+        for (int index = buffer.position(); index < buffer.limit(); ++index) {
+            if (buffer.get(index) == 0) {
+                byte[] stringBytes = new byte[index - buffer.position()];
+                buffer.get(stringBytes);
+                buffer.get();
+                return new String(stringBytes);
+            }
+        }
+
+        return null;
     }
 
     public TcpMessage getMessage(int messageId) {
@@ -67,6 +95,10 @@ public class MessageFactory {
                 return mRequestPlayerRegistrationMessage;
             case PLAYER_DISCONNECT:
                 return mPlayerDisconnectMessage;
+            case REQUEST_SAVE_FILE_UPDATE:
+                return mRequestSaveFileUpdateMessage;
+            case COMPRESSED_SAVE_FILE_DATA:
+                return mCompressedSaveFileDataMessage;
             case UNKNOWN:
                 return null;
         }
@@ -2,10 +2,7 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 
 import android.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import paulscode.android.mupen64plusae.netplay.TcpServer;
 
@@ -13,34 +10,29 @@ public class PlayerDisconnectMessage implements TcpMessage {
 
     private static final int MESSAGE_SIZE = 5 - 1;
     TcpServer mTcpServer;
-    ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MESSAGE_SIZE);
 
     int mPlayerRegistrationId = 0;
 
     public PlayerDisconnectMessage(TcpServer tcpServer) {
         mTcpServer = tcpServer;
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
-
-        int offset = 0;
-        mReceiveBuffer.reset();
-        int bytesRead = 0;
-        while (offset < MESSAGE_SIZE && bytesRead != -1) {
-            bytesRead = stream.read(mReceiveBuffer.array(), offset, MESSAGE_SIZE - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
+    public boolean parse(ByteBuffer buffer) {
+
+        if (buffer.remaining() < MESSAGE_SIZE) {
+            return false;
         }
 
-        mPlayerRegistrationId = mReceiveBuffer.getInt();
+        mPlayerRegistrationId = buffer.getInt();
+        return true;
     }
 
     @Override
-    public void process() {
+    public boolean process() {
         Log.i("TcpServer", "Player disconnected: " + mPlayerRegistrationId);
 
         mTcpServer.removePlayer(mPlayerRegistrationId);
+        return true;
     }
 }
@@ -3,7 +3,6 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -14,7 +13,6 @@ public class PlayerRegistrationMessage implements TcpMessage {
 
     private static final int MESSAGE_SIZE = 8 - 1;
     TcpServer mTcpServer;
-    ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MESSAGE_SIZE);
     ByteBuffer mSendBuffer = ByteBuffer.allocate(2);
     OutputStream mOutputStream;
     int mBufferTarget;
@@ -28,31 +26,26 @@ public class PlayerRegistrationMessage implements TcpMessage {
         mTcpServer = tcpServer;
         mOutputStream = outputStream;
         mBufferTarget = tcpServer.getBufferTarget();
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
         mSendBuffer.order(ByteOrder.BIG_ENDIAN);
         mSendBuffer.mark();
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
-
-        int offset = 0;
-        mReceiveBuffer.reset();
-        int bytesRead = 0;
-        while (offset < MESSAGE_SIZE && bytesRead != -1) {
-            bytesRead = stream.read(mReceiveBuffer.array(), offset, MESSAGE_SIZE - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
+    public boolean parse(ByteBuffer buffer) {
+
+        if (buffer.remaining() < MESSAGE_SIZE) {
+            return false;
         }
 
-        mPlayer = mReceiveBuffer.get();
-        mPlugin = mReceiveBuffer.get();
-        mRawInput = mReceiveBuffer.get() != 0;
-        mRegistrationId = mReceiveBuffer.getInt();
+        mPlayer = buffer.get();
+        mPlugin = buffer.get();
+        mRawInput = buffer.get() != 0;
+        mRegistrationId = buffer.getInt();
+        return true;
     }
 
     @Override
-    public void process() throws IOException {
+    public boolean process() throws IOException {
 
         TcpServer.PlayerData playerData = mTcpServer.getPlayerData(mPlayer);
         mSendBuffer.reset();
@@ -84,5 +77,6 @@ public class PlayerRegistrationMessage implements TcpMessage {
         }
 
         mOutputStream.write(mSendBuffer.array());
+        return true;
     }
 }
@@ -3,7 +3,6 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -26,12 +25,13 @@ public class RequestPlayerRegistrationMessage implements TcpMessage {
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
+    public boolean parse(ByteBuffer buffer) {
         // Nothing to parse, it's a header only message
+        return true;
     }
 
     @Override
-    public void process() {
+    public boolean process() throws IOException {
 
         mSendBuffer.reset();
 
@@ -52,10 +52,7 @@ public class RequestPlayerRegistrationMessage implements TcpMessage {
                 mSendBuffer.put((byte)0);
             }
         }
-        try {
-            mOutputStream.write(mSendBuffer.array());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        mOutputStream.write(mSendBuffer.array());
+        return true;
     }
 }
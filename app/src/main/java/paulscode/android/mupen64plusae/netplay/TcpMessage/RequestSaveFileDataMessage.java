@@ -3,75 +3,60 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
+import paulscode.android.mupen64plusae.netplay.ChannelWriter;
+import paulscode.android.mupen64plusae.netplay.SaveFileStore;
 import paulscode.android.mupen64plusae.netplay.TcpServer;
 
 public class RequestSaveFileDataMessage implements TcpMessage {
 
+    private static final int MAX_TRIES = 100;
+
     TcpServer mTcpServer;
-    OutputStream mOutputStream;
-    ByteBuffer mReceiveBuffer = ByteBuffer.allocate(1000);
+    ChannelWriter mWriter;
     String mFileName = "";
+    int mCurrentTry = 0;
 
-    public RequestSaveFileDataMessage(TcpServer tcpServer, OutputStream outputStream) {
+    public RequestSaveFileDataMessage(TcpServer tcpServer, ChannelWriter writer) {
         mTcpServer = tcpServer;
-        mOutputStream = outputStream;
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
+        mWriter = writer;
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
+    public boolean parse(ByteBuffer buffer) {
 
-        mReceiveBuffer.reset();
-        int data = -1;
-        while (data != 0) {
-            data = stream.read();
+        String fileName = MessageFactory.getString(buffer);
 
-            if (data != -1) {
-                mReceiveBuffer.put((byte)data);
-            }
+        if (fileName == null) {
+            return false;
         }
 
-        mFileName = new String(mReceiveBuffer.array(), 0, mReceiveBuffer.position() - 1);
+        mFileName = fileName;
+        mCurrentTry = 0;
+        return true;
     }
 
     @Override
-    public void process() {
-        byte[] fileContents = null;
-
-        final int maxTries = 100;
-        int currentTry = 0;
-
-        while (fileContents == null && currentTry < maxTries) {
-
-            fileContents = mTcpServer.getFile(mFileName);
-
-            if (fileContents != null)
-            {
-                try {
-                    Log.i("Netplay", "Sending " + fileContents.length + " bytes");
-                    mOutputStream.write(fileContents);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            ++currentTry;
+    public boolean process() throws IOException {
+        SaveFileStore saveFileStore = mTcpServer.getSaveFileStore();
+        SaveFileStore.SaveFile saveFile = saveFileStore.get(mFileName);
+
+        if (saveFile != null) {
+            Log.i("Netplay", "Sending " + saveFile.size + " bytes");
+            // The contents are streamed from disk while the socket accepts them
+            mWriter.write(saveFileStore.openStream(saveFile));
+            return true;
         }
 
-        if (currentTry == maxTries) {
+        ++mCurrentTry;
+
+        if (mCurrentTry == MAX_TRIES) {
             Log.e("Netplay", "Unable to send file contents for " + mFileName);
+            return true;
         }
+
+        // Another player hasn't sent the file yet
+        return false;
     }
 }
@@ -0,0 +1,122 @@
+package paulscode.android.mupen64plusae.netplay.TcpMessage;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import paulscode.android.mupen64plusae.netplay.ChannelWriter;
+import paulscode.android.mupen64plusae.netplay.SaveFileStore;
+import paulscode.android.mupen64plusae.netplay.TcpServer;
+
+/**
+ * Request for a save file that tells the server what the client already has. The file is only
+ * sent if the client doesn't have an identical copy, compressed if the client supports it, and
+ * always followed by the SHA-256 hash of its contents so the client can verify it.
+ */
+public class RequestSaveFileUpdateMessage implements TcpMessage {
+
+    private static final int MAX_TRIES = 100;
+
+    // Request flags
+    private static final int FLAG_HAS_FILE = 1;
+    private static final int FLAG_ACCEPTS_DEFLATE = 2;
+
+    // Reply status
+    private static final int STATUS_IDENTICAL = 0;
+    private static final int STATUS_RAW = 1;
+    private static final int STATUS_DEFLATE = 2;
+    private static final int STATUS_NOT_AVAILABLE = 3;
+
+    TcpServer mTcpServer;
+    ChannelWriter mWriter;
+    ByteBuffer mOutboundByteBuffer = ByteBuffer.allocate(9);
+    String mFileName = "";
+    int mFlags = 0;
+    int mClientSize = 0;
+    byte[] mClientHash = new byte[SaveFileStore.HASH_SIZE];
+    int mCurrentTry = 0;
+
+    public RequestSaveFileUpdateMessage(TcpServer tcpServer, ChannelWriter writer) {
+        mTcpServer = tcpServer;
+        mWriter = writer;
+    }
+
+    @Override
+    public boolean parse(ByteBuffer buffer) {
+
+        String fileName = MessageFactory.getString(buffer);
+
+        // Followed by the flags, the size and hash of the file the client has
+        final int remainingBytes = 1 + 4 + mClientHash.length;
+
+        if (fileName == null || buffer.remaining() < remainingBytes) {
+            return false;
+        }
+
+        mFileName = fileName;
+        mFlags = buffer.get() & 0xFF;
+        mClientSize = buffer.getInt();
+        buffer.get(mClientHash);
+        mCurrentTry = 0;
+        return true;
+    }
+
+    @Override
+    public boolean process() throws IOException {
+        SaveFileStore saveFileStore = mTcpServer.getSaveFileStore();
+        SaveFileStore.SaveFile saveFile = saveFileStore.get(mFileName);
+
+        if (saveFile == null) {
+            ++mCurrentTry;
+
+            if (mCurrentTry < MAX_TRIES) {
+                // Another player hasn't sent the file yet
+                return false;
+            }
+
+            Log.e("Netplay", "Unable to send file contents for " + mFileName);
+            writeHeader(STATUS_NOT_AVAILABLE, -1, -1);
+            return true;
+        }
+
+        if ((mFlags & FLAG_HAS_FILE) != 0 && mClientSize == saveFile.size &&
+                Arrays.equals(mClientHash, saveFile.hash)) {
+            Log.i("Netplay", "Client already has " + mFileName);
+            writeHeader(STATUS_IDENTICAL, -1, -1);
+            return true;
+        }
+
+        if ((mFlags & FLAG_ACCEPTS_DEFLATE) != 0) {
+            Log.i("Netplay", "Sending " + saveFile.compressedSize + " compressed bytes");
+            writeHeader(STATUS_DEFLATE, saveFile.size, saveFile.compressedSize);
+            mWriter.write(saveFileStore.openCompressedStream(saveFile));
+        } else {
+            Log.i("Netplay", "Sending " + saveFile.size + " bytes");
+            writeHeader(STATUS_RAW, saveFile.size, -1);
+            mWriter.write(saveFileStore.openStream(saveFile));
+        }
+
+        mWriter.write(saveFile.hash, 0, saveFile.hash.length);
+        return true;
+    }
+
+    /**
+     * Write the reply status followed by the sizes that aren't negative
+     */
+    private void writeHeader(int status, int size, int compressedSize) throws IOException {
+        mOutboundByteBuffer.clear();
+        mOutboundByteBuffer.put((byte)status);
+
+        if (size >= 0) {
+            mOutboundByteBuffer.putInt(size);
+        }
+
+        if (compressedSize >= 0) {
+            mOutboundByteBuffer.putInt(compressedSize);
+        }
+
+        mWriter.write(mOutboundByteBuffer.array(), 0, mOutboundByteBuffer.position());
+    }
+}
@@ -3,7 +3,6 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
@@ -11,9 +10,12 @@ import paulscode.android.mupen64plusae.netplay.TcpServer;
 
 public class RequestSettingsMessage implements TcpMessage {
 
+    private static final int MAX_TRIES = 100;
+
     TcpServer mTcpServer;
     ByteBuffer mOutboundByteBuffer = ByteBuffer.allocate(24);
     OutputStream mOutputStream;
+    int mCurrentTry = 0;
 
     public RequestSettingsMessage(TcpServer tcpServer, OutputStream outputStream) {
         mTcpServer = tcpServer;
@@ -21,54 +23,46 @@ public class RequestSettingsMessage implements TcpMessage {
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
+    public boolean parse(ByteBuffer buffer) {
         // This is a header only message
+        mCurrentTry = 0;
+        return true;
     }
 
     @Override
-    public void process() {
-        TcpServer.CoreSettings settings = null;
-        final int maxTries = 100;
-        int currentTry = 0;
-
-        while (settings == null && currentTry < maxTries) {
-            settings = mTcpServer.getSettings();
-
-            if (settings != null) {
-                mOutboundByteBuffer.putInt(settings.mCountPerOp);
-                mOutboundByteBuffer.putInt(settings.mCountPerOpDenomPot);
-                mOutboundByteBuffer.putInt(settings.mDisableExtraMem);
-                mOutboundByteBuffer.putInt(settings.mSiDmADuration);
-                mOutboundByteBuffer.putInt(settings.mEmuMode);
-                mOutboundByteBuffer.putInt(settings.mNoCompiledJump);
-
-                Log.e("Netplay", "count_per_op=" + settings.mCountPerOp +
-                        " count_per_op_denom_pot=" + settings.mCountPerOpDenomPot +
-                        " disable_extra_mem=" + settings.mDisableExtraMem +
-                        " si_dma_duration=" + settings.mSiDmADuration +
-                                " emu_mode=" + settings.mEmuMode +
-                                " no_compiled_jump=" + settings.mNoCompiledJump
-
-                        );
-
-                try {
-                    mOutputStream.write(mOutboundByteBuffer.array());
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            } else {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            ++currentTry;
+    public boolean process() throws IOException {
+        TcpServer.CoreSettings settings = mTcpServer.getSettings();
+
+        if (settings != null) {
+            mOutboundByteBuffer.clear();
+            mOutboundByteBuffer.putInt(settings.mCountPerOp);
+            mOutboundByteBuffer.putInt(settings.mCountPerOpDenomPot);
+            mOutboundByteBuffer.putInt(settings.mDisableExtraMem);
+            mOutboundByteBuffer.putInt(settings.mSiDmADuration);
+            mOutboundByteBuffer.putInt(settings.mEmuMode);
+            mOutboundByteBuffer.putInt(settings.mNoCompiledJump);
+
+            Log.e("Netplay", "count_per_op=" + settings.mCountPerOp +
+                    " count_per_op_denom_pot=" + settings.mCountPerOpDenomPot +
+                    " disable_extra_mem=" + settings.mDisableExtraMem +
+                    " si_dma_duration=" + settings.mSiDmADuration +
+                            " emu_mode=" + settings.mEmuMode +
+                            " no_compiled_jump=" + settings.mNoCompiledJump
+
+                    );
+
+            mOutputStream.write(mOutboundByteBuffer.array());
+            return true;
         }
 
-        if (currentTry == maxTries) {
+        ++mCurrentTry;
+
+        if (mCurrentTry == MAX_TRIES) {
             Log.e("Netplay", "Unable to send settings");
+            return true;
         }
+
+        // Player 1 hasn't sent the settings yet
+        return false;
     }
 }
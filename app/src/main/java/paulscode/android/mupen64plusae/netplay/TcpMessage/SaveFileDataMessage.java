@@ -1,73 +1,83 @@
 package paulscode.android.mupen64plusae.netplay.TcpMessage;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
+import paulscode.android.mupen64plusae.netplay.SaveFileStore;
 import paulscode.android.mupen64plusae.netplay.TcpServer;
 
-public class SaveFileDataMessage implements TcpMessage {
+public class SaveFileDataMessage implements StreamingTcpMessage {
 
     TcpServer mTcpServer;
-    ByteBuffer mReceiveBuffer = ByteBuffer.allocate(1024*512);
 
-    String mFileName = "";
-    int mSizeOfFile;
-    byte[] mFileData = null;
+    String mFileName = null;
+    SaveFileStore.Writer mWriter = null;
+    boolean mInvalid = false;
 
     public SaveFileDataMessage(TcpServer tcpServer) {
         mTcpServer = tcpServer;
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
+    public boolean parse(ByteBuffer buffer) {
 
-        // Variable size message, ready until 0 is encountered.
-        int data = -1;
-        int offset = 0;
-        mReceiveBuffer.reset();
+        if (mFileName == null) {
+            // Variable size message, file name is terminated by 0
+            String fileName = MessageFactory.getString(buffer);
 
-        while (data != 0) {
-            data = stream.read();
-
-            if (data != -1) {
-                mReceiveBuffer.put((byte)data);
+            if (fileName == null) {
+                return false;
             }
+
+            mFileName = fileName;
+            mInvalid = false;
         }
 
-        mFileName = new String(mReceiveBuffer.array(), 0, mReceiveBuffer.position() - 1);
+        if (mWriter == null) {
+            // Followed by how many bytes of data are present
+            final int fileSizeBytes = 4;
 
-        // Read how many bytes of data are present
-        int fileSizeBytes = 4;
-        mReceiveBuffer.reset();
+            if (buffer.remaining() < fileSizeBytes) {
+                return false;
+            }
 
-        int bytesRead = 0;
-        while (offset < fileSizeBytes && bytesRead != -1) {
-            bytesRead = stream.read(mReceiveBuffer.array(), offset, fileSizeBytes - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
-        }
+            int sizeOfFile = buffer.getInt();
 
-        // Read remaining size
-        mSizeOfFile = mReceiveBuffer.getInt();
+            if (sizeOfFile < 0 || sizeOfFile > SaveFileStore.MAX_FILE_SIZE) {
+                mInvalid = true;
+                return true;
+            }
 
-        mReceiveBuffer.reset();
+            mWriter = mTcpServer.getSaveFileStore().openWriter(mFileName, sizeOfFile);
+        }
 
-        offset = 0;
-        while (offset < mSizeOfFile && bytesRead != -1) {
-            bytesRead = stream.read(mReceiveBuffer.array(), offset, mSizeOfFile - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
+        // The file data is written to disk as it arrives
+        mWriter.write(buffer);
+        return mWriter.getRemaining() == 0;
+    }
 
+    @Override
+    public boolean process() throws IOException {
+        String fileName = mFileName;
+        SaveFileStore.Writer writer = mWriter;
+        mFileName = null;
+        mWriter = null;
+
+        if (mInvalid) {
+            throw new IOException("Invalid size for save file " + fileName);
         }
 
-        mFileData = new byte[mSizeOfFile];
-        mReceiveBuffer.get(mFileData, 0, mSizeOfFile);
+        writer.finish(null);
+        return true;
     }
 
     @Override
-    public void process() {
-        mTcpServer.addFile(mFileName, mFileData);
+    public void abort() {
+        if (mWriter != null) {
+            mWriter.abort();
+        }
+
+        mFileName = null;
+        mWriter = null;
     }
 }
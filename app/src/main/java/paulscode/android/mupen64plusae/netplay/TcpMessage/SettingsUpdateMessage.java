@@ -2,10 +2,7 @@ package paulscode.android.mupen64plusae.netplay.TcpMessage;
 
 import android.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import paulscode.android.mupen64plusae.netplay.TcpServer;
 
@@ -13,32 +10,26 @@ public class SettingsUpdateMessage implements TcpMessage {
 
     private static final int MESSAGE_SIZE = 25 - 1;
     TcpServer mTcpServer;
-    ByteBuffer mReceiveBuffer = ByteBuffer.allocate(MESSAGE_SIZE);
 
     TcpServer.CoreSettings mSettings = new TcpServer.CoreSettings();
 
     public SettingsUpdateMessage(TcpServer tcpServer) {
         mTcpServer = tcpServer;
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
     }
 
     @Override
-    public void parse(InputStream stream) throws IOException {
-
-        int offset = 0;
-        mReceiveBuffer.reset();
-        int bytesRead = 0;
-        while (offset < MESSAGE_SIZE && bytesRead != -1) {
-            bytesRead = stream.read(mReceiveBuffer.array(), offset, MESSAGE_SIZE - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
+    public boolean parse(ByteBuffer buffer) {
+
+        if (buffer.remaining() < MESSAGE_SIZE) {
+            return false;
         }
-        mSettings.mCountPerOp = mReceiveBuffer.getInt();
-        mSettings.mCountPerOpDenomPot = mReceiveBuffer.getInt();
-        mSettings.mDisableExtraMem = mReceiveBuffer.getInt();
-        mSettings.mSiDmADuration = mReceiveBuffer.getInt();
-        mSettings.mEmuMode = mReceiveBuffer.getInt();
-        mSettings.mNoCompiledJump = mReceiveBuffer.getInt();
+
+        mSettings.mCountPerOp = buffer.getInt();
+        mSettings.mCountPerOpDenomPot = buffer.getInt();
+        mSettings.mDisableExtraMem = buffer.getInt();
+        mSettings.mSiDmADuration = buffer.getInt();
+        mSettings.mEmuMode = buffer.getInt();
+        mSettings.mNoCompiledJump = buffer.getInt();
 
         Log.i("Netplay", "GOT SETTINGS: count_per_op=" + mSettings.mCountPerOp +
                 " count_per_op_denom_pot=" + mSettings.mCountPerOpDenomPot +
@@ -48,10 +39,12 @@ public class SettingsUpdateMessage implements TcpMessage {
                 " no_compiled_jump=" + mSettings.mNoCompiledJump
 
         );
+        return true;
     }
 
     @Override
-    public void process() {
+    public boolean process() {
         mTcpServer.updateSettings(mSettings);
+        return true;
     }
 }
@@ -0,0 +1,16 @@
+package paulscode.android.mupen64plusae.netplay.TcpMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Message that is too large to be buffered, such as a save file. Unlike other messages, every
+ * call to {@link #parse(ByteBuffer)} consumes all the data it can use and the message keeps its
+ * own state until the whole message has been received.
+ */
+public interface StreamingTcpMessage extends TcpMessage {
+
+    /**
+     * Discard a partially received message, called when the connection is lost
+     */
+    void abort();
+}
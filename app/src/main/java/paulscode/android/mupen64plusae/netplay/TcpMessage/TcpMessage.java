@@ -1,11 +1,21 @@
 package paulscode.android.mupen64plusae.netplay.TcpMessage;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public interface TcpMessage {
 
-    void parse(InputStream stream) throws IOException;
+    /**
+     * Parse the message that follows the message id
+     * @param buffer Received data
+     * @return False if the whole message hasn't been received yet
+     */
+    boolean parse(ByteBuffer buffer);
 
-    void process() throws IOException;
+    /**
+     * Process the parsed message
+     * @return False if the message can't be processed yet because it's waiting for data
+     * from another player
+     */
+    boolean process() throws IOException;
 }
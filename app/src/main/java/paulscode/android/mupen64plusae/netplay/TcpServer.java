@@ -2,13 +2,25 @@ package paulscode.android.mupen64plusae.netplay;
 
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
-
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * TCP netplay server for one session. It either listens on its own port, or gets its clients
+ * from a {@link NetplaySessionHost} that serves several sessions on one port. Everything except {@link #setPort(int)}, {@link #getPort()},
+ * {@link #stopServer()} and {@link #waitForServerToEnd()} runs on the {@link NetplayEventLoop}
+ * thread.
+ */
 @SuppressWarnings("SameParameterValue")
-public class TcpServer {
+public class TcpServer implements NetplayEventLoop.ChannelHandler {
 
     public static class PlayerData {
         public int mRegId;
@@ -25,7 +37,7 @@ public class TcpServer {
         public int mNoCompiledJump;
     }
 
-    HashMap<String, byte[]> mFiles = new HashMap<>();
+    SaveFileStore mSaveFiles;
     CoreSettings mSettings = new CoreSettings();
     boolean mCoreSettingsSet = false;
     String mGliden64Settings = "";
@@ -33,21 +45,28 @@ public class TcpServer {
 
     int mBufferTarget;
 
-    ServerSocket mServerSocket;
-    Thread mServerThread;
-    boolean mRunning = true;
+    NetplayEventLoop mEventLoop;
+    ServerSocketChannel mServerChannel;
+    SelectionKey mServerKey;
+    final CountDownLatch mServerEnded = new CountDownLatch(1);
 
     UdpServer mUdpServer;
 
     ArrayList<TcpClientHandler> mClients = new ArrayList<>();
 
-    TcpServer(int _buffer_target, UdpServer udpServer)
+    /**
+     * @param saveFileDirectory Directory where save files sent by players are kept while the
+     *                          server runs
+     */
+    TcpServer(int _buffer_target, UdpServer udpServer, NetplayEventLoop eventLoop, File saveFileDirectory)
     {
         mBufferTarget = _buffer_target;
+        mSaveFiles = new SaveFileStore(saveFileDirectory);
         mUdpServer = udpServer;
+        mEventLoop = eventLoop;
     }
 
-    synchronized public void updateSettings(CoreSettings settings)
+    public void updateSettings(CoreSettings settings)
     {
         mSettings = settings;
         mCoreSettingsSet = true;
@@ -58,7 +77,7 @@ public class TcpServer {
         mGliden64Settings = settings;
     }
 
-    synchronized public CoreSettings getSettings()
+    public CoreSettings getSettings()
     {
         if (!mCoreSettingsSet)
             return null;
@@ -70,21 +89,12 @@ public class TcpServer {
         return mGliden64Settings;
     }
 
-    synchronized public byte[] getFile(String filename)
-    {
-        if (mFiles.containsKey(filename))
-        {
-            return mFiles.get(filename);
-        }
-        return null;
-    }
-
-    synchronized public void addFile(String filename, byte[] contents)
+    public SaveFileStore getSaveFileStore()
     {
-        mFiles.put(filename, contents.clone());
+        return mSaveFiles;
     }
 
-    synchronized public PlayerData getPlayerData(int player)
+    public PlayerData getPlayerData(int player)
     {
         if (mReg.containsKey(player)) {
             return mReg.get(player);
@@ -93,14 +103,14 @@ public class TcpServer {
         return null;
     }
 
-    synchronized public void addPlayerData(int player, PlayerData playerData)
+    public void addPlayerData(int player, PlayerData playerData)
     {
         mReg.put(player, playerData);
 
         mUdpServer.registerPlayer(playerData.mRegId, player, playerData.mPlugin);
     }
 
-    synchronized public void removePlayer(int regId)
+    public void removePlayer(int regId)
     {
         for (Integer player : mReg.keySet()) {
             if (mReg.get(player).mRegId == regId) {
@@ -112,33 +122,83 @@ public class TcpServer {
         mUdpServer.disconnectPlayer(regId);
     }
 
-    private void runTcpServer() {
-
-        while (mRunning) {
+    @Override
+    public void onChannelReady(SelectionKey key) throws IOException
+    {
+        SocketChannel clientChannel;
+        while ((clientChannel = mServerChannel.accept()) != null) {
             try {
-                Log.i("TcpServer", "Listening for messages in port " + mServerSocket.getLocalPort());
-                mClients.add(new TcpClientHandler(this, mBufferTarget, mServerSocket.accept()));
+                mClients.add(new TcpClientHandler(this, mEventLoop, clientChannel, null));
             } catch (IOException e) {
                 e.printStackTrace();
-                mRunning = false;
+                clientChannel.close();
             }
         }
     }
 
+    @Override
+    public void onChannelClosed()
+    {
+        for (TcpClientHandler client : new ArrayList<>(mClients)) {
+            client.close();
+        }
+
+        mSaveFiles.clear();
+        mServerEnded.countDown();
+    }
+
+    /**
+     * Add a client accepted by a {@link NetplaySessionHost}
+     * @param clientChannel Client channel, already registered with the event loop
+     * @param receivedData Data that was already read from the client
+     */
+    void addClient(SocketChannel clientChannel, ByteBuffer receivedData) throws IOException
+    {
+        mClients.add(new TcpClientHandler(this, mEventLoop, clientChannel, receivedData));
+    }
+
+    void removeClient(TcpClientHandler client)
+    {
+        mClients.remove(client);
+    }
+
+    int getClientCount()
+    {
+        return mClients.size();
+    }
+
     public void setPort(int port)
     {
         try {
-            mServerSocket = new ServerSocket(port);
-            mServerThread = new Thread(this::runTcpServer);
-            mServerThread.start();
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(port));
+            Log.i("TcpServer", "Listening for messages in port " + mServerChannel.socket().getLocalPort());
+
+            mEventLoop.post(() -> {
+                try {
+                    mServerKey = mEventLoop.register(mServerChannel, SelectionKey.OP_ACCEPT, this);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeChannel();
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
+
+            try {
+                if (mServerChannel != null) {
+                    mServerChannel.close();
+                }
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+            mServerEnded.countDown();
         }
     }
 
     public int getPort()
     {
-        return mServerSocket.getLocalPort();
+        return mServerChannel != null ? mServerChannel.socket().getLocalPort() : -1;
     }
 
     public int getBufferTarget()
@@ -146,20 +206,41 @@ public class TcpServer {
         return mBufferTarget;
     }
 
+    void closeChannel()
+    {
+        if (mServerKey != null) {
+            mEventLoop.close(mServerKey);
+        } else {
+            try {
+                if (mServerChannel != null) {
+                    mServerChannel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            onChannelClosed();
+        }
+    }
+
     public void stopServer() {
+        if (mServerEnded.getCount() == 0) {
+            return;
+        }
+
+        mEventLoop.post(this::closeChannel);
+
         try {
-            mRunning = false;
-            mServerSocket.close();
-            mServerThread.join();
-        } catch (IOException|InterruptedException e) {
+            mServerEnded.await();
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
     public void waitForServerToEnd() {
         try {
-            mServerThread.join();
-            Log.i("TcpServer", "Server thread finished");
+            mServerEnded.await();
+            Log.i("TcpServer", "Server finished");
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
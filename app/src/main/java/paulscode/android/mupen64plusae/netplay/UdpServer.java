@@ -1,21 +1,31 @@
 package paulscode.android.mupen64plusae.netplay;
 
-import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-
-public class UdpServer {
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * UDP netplay server for one session. It either owns its channel, or shares the channel of a
+ * {@link NetplaySessionHost} with other sessions. Everything except {@link #setPort(int)},
+ * {@link #stopServer()}, {@link #waitForServerToEnd()} and {@link #getTelemetry()} runs on the
+ * {@link NetplayEventLoop} thread.
+ *
+ * The server only ever answers clients, so round trip times are estimated from input requests:
+ * a client that runs out of inputs repeats its request every {@link #CLIENT_RETRY_INTERVAL_MS}
+ * until the inputs arrive. The time between answering such a request and the last repeat of it
+ * is the round trip time, give or take one retry interval.
+ */
+public class UdpServer implements NetplayEventLoop.ChannelHandler {
 
     static class KeepAlive {
         KeepAlive(int keepAlive, int playerNumber) {
@@ -27,62 +37,118 @@ public class UdpServer {
         public int mPlayerNumber;
     }
 
-    static class Buttons {
-        Buttons (int keys, int plugin) {
-            mKeys = keys;
-            mPlugin = plugin;
-        }
-        public int mKeys;
-        public int mPlugin;
-    }
-
     public interface OnDesync
     {
         /**
          * Called when a desync is detected
-         * @param vi VI in which de-sync occurred
+         * @param report VI in which de-sync occurred and the registers that differ
          */
-        void onDesync(int vi);
+        void onDesync(DesyncDetector.Report report);
     }
 
     private static final int NUM_PLAYERS = 4;
 
-    private static final int KEY_INFO_MSG = 0;
-    private static final int REQUEST_DATA_MSG = 2;
-    private static final int CP0_DATA_MSG = 4;
+    static final int KEY_INFO_MSG = 0;
+    static final int KEY_INFO_FROM_SERVER_MSG = 1;
+    static final int REQUEST_DATA_MSG = 2;
+    static final int CP0_DATA_MSG = 4;
+    static final int KEY_INFO_BATCH_FROM_SERVER_MSG = 5;
+
+    // Highest protocol version the server understands. Clients that support a newer protocol
+    // append their version to input requests, older clients don't and never see the newer
+    // messages. Version 1 sends all inputs for a client in batches, see sendBatch(). Newer clients
+    // also append their registration id to inputs and CP0 data, which is ignored here but lets
+    // a NetplaySessionHost route them.
+    static final int PROTOCOL_VERSION = 1;
+    static final int BATCHED_INPUTS_VERSION = 1;
+
+    // Stop adding inputs to a packet past this size
+    private static final int MAX_PACKET_FILL = 500;
+
+    // Interval at which a client repeats an input request while it waits for inputs
+    static final int CLIENT_RETRY_INTERVAL_MS = 5;
+
+    // Interval at which the buffer size policy is consulted
+    static final int BUFFER_UPDATE_INTERVAL_MS = 100;
 
-    private DatagramSocket mUdpSocket;
-    private Thread mUdpServerThread;
+    // Limits of the default buffer size policy, a packet can't hold many more inputs than this
+    private static final int MIN_BUFFER_SIZE = 0;
+    private static final int MAX_BUFFER_SIZE = 30;
+
+    // Maximum number of datagrams handled before giving other channels a turn
+    private static final int MAX_DATAGRAMS_PER_WAKEUP = 64;
+
+    private final NetplayEventLoop mEventLoop;
+    private DatagramChannel mUdpChannel;
+    private SelectionKey mUdpKey;
     private boolean mRunning = true;
-    private final ByteBuffer mSendBuffer = ByteBuffer.allocate( 512 );
-    private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate( 1024*512 );
+    private final CountDownLatch mServerEnded = new CountDownLatch(1);
+    private final ByteBuffer mSendBuffer = ByteBuffer.allocateDirect( 512 );
+    private ByteBuffer mReceiveBuffer = null;
+
+    // False if the channel is shared with other sessions and owned by a NetplaySessionHost
+    private final boolean mOwnsChannel;
+
+    // Statistics
+    private long mPacketsReceived = 0;
+    private long mPacketsSent = 0;
+    private boolean mHadPlayers = false;
 
-    private final DatagramPacket[] mSendPackets = new DatagramPacket[NUM_PLAYERS];
-    private final DatagramPacket mRequestInfoSendPacket;
-    private DatagramPacket mReceivePacket;
+    // Address of each registered player, null until we receive the first input of the player
+    private final boolean[] mPlayerRegistered = new boolean[NUM_PLAYERS];
+    private final SocketAddress[] mPlayerAddresses = new SocketAddress[NUM_PLAYERS];
 
-    // Array of states per count
-    private final ArrayList<HashMap<Integer, Buttons>> mInputs = new ArrayList<>(Arrays.asList(
-            new HashMap<>(), new HashMap<>(), new HashMap<>(), new HashMap<>()));
+    // Inputs of each player per count
+    private final InputRingBuffer[] mInputs = new InputRingBuffer[NUM_PLAYERS];
 
-    // Hash used to determine if we are in sync by using cp0
-    private final HashMap<Integer, Integer> mSyncHash = new HashMap<>();
+    // Compares the cp0 registers of every player to determine if we are in sync
+    private final DesyncDetector mDesyncDetector = new DesyncDetector();
 
     // Temporary byte array used for hashing
-    private final byte[] mHashData = new byte[128];
+    private final byte[] mHashData = new byte[DesyncDetector.SNAPSHOT_SIZE];
 
     //reg_id, <keepalive, playernumber>
     private final HashMap<Integer, KeepAlive> mPlayerKeepAlive = new HashMap<>();
 
-    // Buttons
-    private final ArrayList<LinkedList<Buttons>> mButtons = new ArrayList<>(Arrays.asList( new LinkedList<>(),
-            new LinkedList<>(), new LinkedList<>(), new LinkedList<>()));
+    // Latest registration of each player, looked up first so that input requests don't box
+    // their registration id
+    private final int[] mRegistrationIds = new int[NUM_PLAYERS];
+    private final KeepAlive[] mRegisteredKeepAlive = new KeepAlive[NUM_PLAYERS];
+
+    // Latest buttons received from each player that haven't been assigned to a count yet,
+    // only used when there is no input delay
+    private final boolean[] mHasPendingButtons = new boolean[NUM_PLAYERS];
+    private final int[] mPendingKeys = new int[NUM_PLAYERS];
+    private final int[] mPendingPlugin = new int[NUM_PLAYERS];
 
     private final int[] mLeadCount = new int[NUM_PLAYERS];
     private final int[] mBufferSize = new int[NUM_PLAYERS];
-    private final int[] mBufferHealth = new int[NUM_PLAYERS];
     private final int[] mInputDelay = new int[NUM_PLAYERS];
 
+    // Players that receive batched inputs, and for each of them the players that have inputs
+    // waiting to be relayed and the first count to relay
+    private final boolean[] mBatchedInputs = new boolean[NUM_PLAYERS];
+    private final boolean[][] mRelayPending = new boolean[NUM_PLAYERS][NUM_PLAYERS];
+    private final int[][] mRelayCount = new int[NUM_PLAYERS][NUM_PLAYERS];
+    private boolean mRelayFlushPosted = false;
+
+    // Network statistics, a copy is published for other threads every time connections are checked
+    private final NetplayTelemetry mTelemetry;
+    private volatile NetplayTelemetry mPublishedTelemetry;
+    private long mReceiveTimeNs = 0;
+
+    // Input jitter, arrival time of the last input of each player and the average time between inputs
+    private final long[] mLastInputTimeNs = new long[NUM_PLAYERS];
+    private final double[] mAverageInputIntervalNs = new double[NUM_PLAYERS];
+
+    // Round trip probe of each requesting player, the count an answered request was waiting
+    // for, when it was answered and when the last repeat of that request was received
+    private final boolean[] mProbeActive = new boolean[NUM_PLAYERS];
+    private final int[] mProbeControl = new int[NUM_PLAYERS];
+    private final int[] mProbeCount = new int[NUM_PLAYERS];
+    private final long[] mProbeSentNs = new long[NUM_PLAYERS];
+    private final long[] mProbeLastRepeatNs = new long[NUM_PLAYERS];
+
     private int mPort;
     private int mStatus;
 
@@ -90,145 +156,333 @@ public class UdpServer {
 
     private final OnDesync mOnDesync;
 
-    private final Handler mCheckConnectionsTimer = new Handler(Looper.getMainLooper());
+    private final Runnable mCheckConnections = this::checkConnections;
+    private final Runnable mUpdateBufferSizes = this::updateBufferSizes;
+    private final Runnable mFlushRelays = this::flushRelays;
+
+    private BufferSizePolicy mBufferSizePolicy;
 
     private boolean mCheckConnectionTimerStarted = false;
 
-    public UdpServer(int _buffer_target, OnDesync _onDesync)
+    public UdpServer(int _buffer_target, OnDesync _onDesync, NetplayEventLoop eventLoop)
+    {
+        this(_buffer_target, _onDesync, eventLoop, null);
+    }
+
+    /**
+     * Create a server that sends through a channel shared by several sessions, received
+     * datagrams are passed to {@link #handleDatagram(ByteBuffer, SocketAddress)} by the owner
+     * of the channel
+     */
+    UdpServer(int _buffer_target, OnDesync _onDesync, NetplayEventLoop eventLoop, DatagramChannel sharedChannel)
     {
         for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex)
         {
             mLeadCount[playerIndex] = 0;
             mBufferSize[playerIndex] = 3;
-            mBufferHealth[playerIndex] = -1;
             mInputDelay[playerIndex] = -1;
-            mSendPackets[playerIndex] = null;
+            mPlayerRegistered[playerIndex] = false;
+            mPlayerAddresses[playerIndex] = null;
+            mInputs[playerIndex] = new InputRingBuffer();
         }
         mStatus = 0;
         mBufferTarget = _buffer_target;
         mOnDesync = _onDesync;
+        mEventLoop = eventLoop;
+        mUdpChannel = sharedChannel;
+        mOwnsChannel = sharedChannel == null;
+        mBufferSizePolicy = new AdaptiveBufferPolicy(NUM_PLAYERS, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+        mTelemetry = new NetplayTelemetry(NUM_PLAYERS, mBufferTarget);
+        mPublishedTelemetry = mTelemetry.snapshot();
 
         mSendBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-
-        mReceiveBuffer.mark();
-        mSendBuffer.mark();
+    }
 
-        mRequestInfoSendPacket = new DatagramPacket(mSendBuffer.array(), mSendBuffer.array().length);
+    private static boolean isValidPlayer(int playerNum)
+    {
+        return playerNum >= 0 && playerNum < NUM_PLAYERS;
     }
 
-    private void handleKeyInfoMessage()
+    private void handleKeyInfoMessage(ByteBuffer datagram, SocketAddress source)
     {
-        int playerNum = mReceiveBuffer.get();
+        int playerNum = datagram.get();
 
-        if (mSendPackets[playerNum] == null) {
+        if (!isValidPlayer(playerNum) || !mPlayerRegistered[playerNum]) {
             return;
         }
 
-        mSendPackets[playerNum].setAddress(mReceivePacket.getAddress());
-        mSendPackets[playerNum].setPort(mReceivePacket.getPort());
+        mPlayerAddresses[playerNum] = source;
+        mTelemetry.recordPacketIn(playerNum, datagram.limit());
+        recordInputArrival(playerNum);
 
-        int count = mReceiveBuffer.getInt();
-        int keys = mReceiveBuffer.getInt();
-        int plugin = mReceiveBuffer.get();
+        int count = datagram.getInt();
+        int keys = datagram.getInt();
+        int plugin = datagram.get();
 
         if (mInputDelay[playerNum] >= 0) {
             insertInput(playerNum, count + mInputDelay[playerNum], keys, plugin);
-        } else if (mButtons.get(playerNum).size() == 0) {
-            mButtons.get(playerNum).add(new Buttons(keys, plugin));
+        } else if (!mHasPendingButtons[playerNum]) {
+            mHasPendingButtons[playerNum] = true;
+            mPendingKeys[playerNum] = keys;
+            mPendingPlugin[playerNum] = plugin;
         }
 
         for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex) {
-            if (mSendPackets[playerIndex] != null && mSendPackets[playerIndex].getPort() != -1) {
-                sendInput(count, playerNum, mSendPackets[playerIndex], 1);
+            if (!mPlayerRegistered[playerIndex] || mPlayerAddresses[playerIndex] == null) {
+                continue;
+            }
+
+            if (mBatchedInputs[playerIndex]) {
+                queueRelay(playerIndex, playerNum, count);
+            } else {
+                sendInput(count, playerNum, mPlayerAddresses[playerIndex], 1, playerIndex);
             }
         }
     }
 
-    private void handleRequestDataMessage()
+    /**
+     * Relay the inputs of a player to a client that receives batched inputs, once every
+     * datagram that is currently ready has been handled
+     */
+    private void queueRelay(int destinationPlayer, int playerNum, int count)
     {
-        int playerNum = mReceiveBuffer.get();
-        int regi_id = mReceiveBuffer.getInt();
-        mRequestInfoSendPacket.setAddress(mReceivePacket.getAddress());
-        mRequestInfoSendPacket.setPort(mReceivePacket.getPort());
+        if (!mRelayPending[destinationPlayer][playerNum]) {
+            mRelayPending[destinationPlayer][playerNum] = true;
+            mRelayCount[destinationPlayer][playerNum] = count;
+        } else {
+            mRelayCount[destinationPlayer][playerNum] = Math.min(mRelayCount[destinationPlayer][playerNum], count);
+        }
 
-        if (mPlayerKeepAlive.containsKey(regi_id)) {
-            KeepAlive playerKeepAlive = mPlayerKeepAlive.get(regi_id);
+        if (!mRelayFlushPosted) {
+            mRelayFlushPosted = true;
+            mEventLoop.post(mFlushRelays);
+        }
+    }
 
-            if (playerKeepAlive != null) {
-                playerKeepAlive.mKeepAlive = 0;
+    private void flushRelays()
+    {
+        mRelayFlushPosted = false;
+
+        if (!mRunning) {
+            return;
+        }
+
+        for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex) {
+            if (mBatchedInputs[playerIndex] && mPlayerAddresses[playerIndex] != null) {
+                sendBatch(-1, 0, mPlayerAddresses[playerIndex], 1, playerIndex);
             }
         }
+    }
+
+    private void handleRequestDataMessage(ByteBuffer datagram, SocketAddress source)
+    {
+        int playerNum = datagram.get();
+        int regi_id = datagram.getInt();
+
+        if (!isValidPlayer(playerNum)) {
+            return;
+        }
+
+        int requester = -1;
+        KeepAlive playerKeepAlive = getKeepAlive(regi_id);
+
+        if (playerKeepAlive != null) {
+            playerKeepAlive.mKeepAlive = 0;
+            requester = playerKeepAlive.mPlayerNumber;
+        }
+
+        mTelemetry.recordPacketIn(requester, datagram.limit());
 
-        int count = mReceiveBuffer.getInt();
-        int spectator = mReceiveBuffer.get();
+        int count = datagram.getInt();
+        int spectator = datagram.get();
+        int bufferHealth = datagram.get();
+
+        // Newer clients append the protocol version they support
+        if (datagram.hasRemaining() && isValidPlayer(requester) && !mBatchedInputs[requester] &&
+                datagram.get() >= BATCHED_INPUTS_VERSION) {
+            Log.i("UdpServer", "Player " + (requester + 1) + " receives batched inputs");
+            mBatchedInputs[requester] = true;
+        }
 
         if (count >= mLeadCount[playerNum] && spectator == 0) {
-            mBufferHealth[playerNum] = mReceiveBuffer.get();
+            mBufferSizePolicy.onBufferHealth(playerNum, bufferHealth);
             mLeadCount[playerNum] = count;
+            mTelemetry.getPlayer(playerNum).bufferHealth.record(bufferHealth);
+        }
+
+        if (spectator == 0) {
+            mTelemetry.getPlayer(playerNum).countLag.record(mLeadCount[playerNum] - count);
+        }
+
+        if (isValidPlayer(requester)) {
+            updateRoundTripProbe(requester, playerNum, count);
+        }
+
+        int counts;
+        if (isValidPlayer(requester) && mBatchedInputs[requester]) {
+            counts = sendBatch(playerNum, count, source, spectator, requester);
+        } else {
+            counts = sendInput(count, playerNum, source, spectator, requester);
+        }
+
+        // The requester had no inputs left and is now getting the one it waits for
+        if (isValidPlayer(requester) && !mProbeActive[requester] && bufferHealth == 0 && counts > 0) {
+            mProbeActive[requester] = true;
+            mProbeControl[requester] = playerNum;
+            mProbeCount[requester] = count;
+            mProbeSentNs[requester] = mReceiveTimeNs;
+            mProbeLastRepeatNs[requester] = mReceiveTimeNs;
+        }
+    }
+
+    private KeepAlive getKeepAlive(int regId)
+    {
+        for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex) {
+            if (mRegisteredKeepAlive[playerIndex] != null && mRegistrationIds[playerIndex] == regId) {
+                return mRegisteredKeepAlive[playerIndex];
+            }
         }
 
-        sendInput(count, playerNum, mRequestInfoSendPacket, spectator);
+        return mPlayerKeepAlive.get(regId);
     }
 
-    void handleCp0Message()
+    private void updateRoundTripProbe(int requester, int playerNum, int count)
     {
+        if (!mProbeActive[requester] || mProbeControl[requester] != playerNum) {
+            return;
+        }
+
+        if (count == mProbeCount[requester]) {
+            // The answer hasn't reached the requester yet
+            mProbeLastRepeatNs[requester] = mReceiveTimeNs;
+        } else if (count > mProbeCount[requester]) {
+            final long roundTripNs = mProbeLastRepeatNs[requester] - mProbeSentNs[requester];
+            mTelemetry.getPlayer(requester).roundTripMs.record((int)(roundTripNs / 1000000L));
+            mProbeActive[requester] = false;
+        }
+    }
+
+    private void recordInputArrival(int playerNum)
+    {
+        if (mLastInputTimeNs[playerNum] != 0) {
+            final long intervalNs = mReceiveTimeNs - mLastInputTimeNs[playerNum];
+
+            if (mAverageInputIntervalNs[playerNum] == 0) {
+                mAverageInputIntervalNs[playerNum] = intervalNs;
+            }
+
+            final double deviationNs = Math.abs(intervalNs - mAverageInputIntervalNs[playerNum]);
+            mAverageInputIntervalNs[playerNum] += (intervalNs - mAverageInputIntervalNs[playerNum]) / 16.0;
+            mTelemetry.getPlayer(playerNum).jitterMs.record((int)(deviationNs / 1000000.0));
+            mBufferSizePolicy.onInputReceived(playerNum, intervalNs);
+        }
+
+        mLastInputTimeNs[playerNum] = mReceiveTimeNs;
+    }
+
+    /**
+     * @return Player whose inputs come from an address, -1 if none do
+     */
+    private int getPlayerNumber(SocketAddress source)
+    {
+        for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex) {
+            if (source.equals(mPlayerAddresses[playerIndex])) {
+                return playerIndex;
+            }
+        }
+
+        return -1;
+    }
+
+    private void handleCp0Message(ByteBuffer datagram, SocketAddress source)
+    {
+        final int playerNum = getPlayerNumber(source);
+        mTelemetry.recordPacketIn(playerNum, datagram.limit());
+
         // On first receipt of this message, start checking connection status
         if (!mCheckConnectionTimerStarted) {
             mCheckConnectionTimerStarted = true;
-            mCheckConnectionsTimer.postDelayed(this::checkConnections, 500);
+            mEventLoop.postDelayed(mCheckConnections, 500);
+            mEventLoop.postDelayed(mUpdateBufferSizes, BUFFER_UPDATE_INTERVAL_MS);
         }
 
         if ((mStatus & 1) == 0) {
 
-            int vi_count = mReceiveBuffer.getInt();
-            mReceiveBuffer.get(mHashData, 0, mHashData.length);
-
-            int hash = Arrays.hashCode(mHashData);
-            Integer currentHash = mSyncHash.get(vi_count);
+            int vi_count = datagram.getInt();
+            datagram.get(mHashData, 0, mHashData.length);
 
-            if (currentHash == null) {
-                if (mSyncHash.size() > 500)
-                    mSyncHash.clear();
+            DesyncDetector.Report report = mDesyncDetector.record(vi_count, playerNum, mHashData, 0);
 
-                mSyncHash.put(vi_count, hash);
-            } else if (currentHash != hash) {
+            if (report != null) {
                 mStatus |= 1;
-                Log.w("UdpServer", "We have desynced!!!");
-                mOnDesync.onDesync(vi_count);
+                Log.w("UdpServer", "We have desynced!!! " + report);
+                mOnDesync.onDesync(report);
             }
         }
     }
 
-    private void runUdpServer()
+    @Override
+    public void onChannelReady(SelectionKey key) throws IOException
     {
-        while (mRunning) {
+        for (int received = 0; received < MAX_DATAGRAMS_PER_WAKEUP && mRunning; ++received) {
 
-            try {
-                mReceiveBuffer.reset();
-                mUdpSocket.receive(mReceivePacket);
+            mReceiveBuffer.clear();
+            SocketAddress source = mUdpChannel.receive(mReceiveBuffer);
 
-                int messageId = mReceiveBuffer.get();
+            if (source == null) {
+                break;
+            }
 
-                //Log.e("UdpServer", "GOT UDP MESSAGE: " + messageId);
+            mReceiveBuffer.flip();
+            handleDatagram(mReceiveBuffer, source);
+        }
+    }
 
-                if (messageId == KEY_INFO_MSG) {
-                    handleKeyInfoMessage();
-                } else if (messageId == REQUEST_DATA_MSG) {
-                    handleRequestDataMessage();
-                } else if (messageId == CP0_DATA_MSG) {
-                    handleCp0Message();
-                } else {
-                    Log.w("UdpServer", "Received unknown message with id=" + messageId);
-                }
+    /**
+     * Handle a received datagram
+     * @param datagram Datagram contents, from position to limit
+     * @param source Address the datagram was received from
+     */
+    void handleDatagram(ByteBuffer datagram, SocketAddress source)
+    {
+        if (!mRunning) {
+            return;
+        }
 
+        ++mPacketsReceived;
+        mReceiveTimeNs = System.nanoTime();
 
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            int messageId = datagram.get();
+
+            //Log.e("UdpServer", "GOT UDP MESSAGE: " + messageId);
+
+            if (messageId == KEY_INFO_MSG) {
+                handleKeyInfoMessage(datagram, source);
+            } else if (messageId == REQUEST_DATA_MSG) {
+                handleRequestDataMessage(datagram, source);
+            } else if (messageId == CP0_DATA_MSG) {
+                handleCp0Message(datagram, source);
+            } else {
+                Log.w("UdpServer", "Received unknown message with id=" + messageId);
             }
+        } catch (BufferUnderflowException e) {
+            Log.w("UdpServer", "Received truncated message from " + source);
         }
     }
 
+    @Override
+    public void onChannelClosed()
+    {
+        mRunning = false;
+        mTelemetry.end(System.currentTimeMillis());
+        mPublishedTelemetry = mTelemetry.snapshot();
+        mEventLoop.removeCallbacks(mCheckConnections);
+        mEventLoop.removeCallbacks(mUpdateBufferSizes);
+        mRelayFlushPosted = false;
+        mServerEnded.countDown();
+    }
+
     public int getPort()
     {
         return mPort;
@@ -239,13 +493,30 @@ public class UdpServer {
         mPort = _port;
 
         try {
-            mUdpSocket = new DatagramSocket(mPort);
-            mReceivePacket = new DatagramPacket(mReceiveBuffer.array(), mReceiveBuffer.array().length);
-
-            mUdpServerThread = new Thread(this::runUdpServer);
-            mUdpServerThread.start();
-        } catch (SocketException e) {
+            mReceiveBuffer = ByteBuffer.allocateDirect( 1024*512 );
+            mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
+            mUdpChannel = DatagramChannel.open();
+            mUdpChannel.socket().bind(new InetSocketAddress(mPort));
+
+            mEventLoop.post(() -> {
+                try {
+                    mUdpKey = mEventLoop.register(mUdpChannel, SelectionKey.OP_READ, this);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    closeChannel();
+                }
+            });
+        } catch (IOException|IllegalArgumentException e) {
             e.printStackTrace();
+
+            try {
+                if (mUdpChannel != null) {
+                    mUdpChannel.close();
+                }
+            } catch (IOException closeException) {
+                closeException.printStackTrace();
+            }
+            mServerEnded.countDown();
         }
     }
 
@@ -256,17 +527,12 @@ public class UdpServer {
 
     void checkConnections()
     {
-        for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex)
-        {
-            if (mBufferHealth[playerIndex] != -1)
-            {
-                if (mBufferHealth[playerIndex] > mBufferTarget && mBufferSize[playerIndex] > 0)
-                    --mBufferSize[playerIndex];
-                else if (mBufferHealth[playerIndex] < mBufferTarget)
-                    ++mBufferSize[playerIndex];
-            }
+        if (!mRunning) {
+            return;
         }
 
+        mPublishedTelemetry = mTelemetry.snapshot();
+
         int should_delete = 0;
 
         for (HashMap.Entry<Integer, KeepAlive> entry : mPlayerKeepAlive.entrySet()) {
@@ -282,18 +548,51 @@ public class UdpServer {
             disconnectPlayer(should_delete);
         }
 
-        mCheckConnectionsTimer.postDelayed(this::checkConnections, 500);
+        mEventLoop.postDelayed(mCheckConnections, 500);
     }
 
-    public synchronized void registerPlayer(int reg_id, int playerNum, int plugin)
+    void updateBufferSizes()
     {
-        mPlayerKeepAlive.put(reg_id, new KeepAlive(0, playerNum));
-        mInputs.get(playerNum).put(0, new Buttons(0, plugin));
+        if (!mRunning) {
+            return;
+        }
+
+        final long nowNs = System.nanoTime();
+
+        for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex)
+        {
+            mBufferSize[playerIndex] = mBufferSizePolicy.updateBufferSize(playerIndex, mBufferSize[playerIndex], nowNs);
+            mTelemetry.setBufferSize(playerIndex, mBufferSize[playerIndex]);
+        }
 
-        mSendPackets[playerNum] = new DatagramPacket(mSendBuffer.array(), mSendBuffer.array().length);
+        mEventLoop.postDelayed(mUpdateBufferSizes, BUFFER_UPDATE_INTERVAL_MS);
     }
 
-    public synchronized void disconnectPlayer(int reg_id)
+    /**
+     * Replace the policy that sizes the input buffers, must be called before the server is started
+     */
+    public void setBufferSizePolicy(BufferSizePolicy policy)
+    {
+        mBufferSizePolicy = policy;
+    }
+
+    public void registerPlayer(int reg_id, int playerNum, int plugin)
+    {
+        mBatchedInputs[playerNum] = false;
+        Arrays.fill(mRelayPending[playerNum], false);
+
+        KeepAlive keepAlive = new KeepAlive(0, playerNum);
+        mPlayerKeepAlive.put(reg_id, keepAlive);
+        mRegistrationIds[playerNum] = reg_id;
+        mRegisteredKeepAlive[playerNum] = keepAlive;
+        mInputs[playerNum].put(0, 0, plugin);
+
+        mPlayerRegistered[playerNum] = true;
+        mPlayerAddresses[playerNum] = null;
+        mHadPlayers = true;
+    }
+
+    public void disconnectPlayer(int reg_id)
     {
         if (mPlayerKeepAlive.containsKey(reg_id)) {
             KeepAlive keepAliveData = mPlayerKeepAlive.get(reg_id);
@@ -304,28 +603,119 @@ public class UdpServer {
             mStatus |= (0x1 << (playerNum + 1));
             mPlayerKeepAlive.remove(reg_id);
 
+            if (isValidPlayer(playerNum) && mRegisteredKeepAlive[playerNum] == keepAliveData) {
+                mRegisteredKeepAlive[playerNum] = null;
+            }
+
             if (mPlayerKeepAlive.isEmpty()) {
                 Log.i("UdpServer", "No players left!");
             }
         }
     }
 
-    private void sendInput(int count, int playerNum, DatagramPacket destPacket, int spectator)
+    /**
+     * Send inputs of a player starting at a count
+     * @param destinationPlayer Player the inputs are sent to, -1 if not known
+     * @return Number of counts sent
+     */
+    private int sendInput(int count, int playerNum, SocketAddress destination, int spectator, int destinationPlayer)
     {
-        int count_lag = mLeadCount[playerNum] - count;
-
-        mSendBuffer.reset();
-        mSendBuffer.put((byte)1);// Key info from server
+        mSendBuffer.clear();
+        mSendBuffer.put((byte)KEY_INFO_FROM_SERVER_MSG);
         mSendBuffer.put((byte)playerNum);
         mSendBuffer.put((byte)mStatus);
+
+        int counts = putInputs(count, playerNum, spectator);
+
+        if (counts > 0) {
+            send(destination, destinationPlayer);
+        }
+
+        return counts;
+    }
+
+    /**
+     * Send inputs of several players to a client in one datagram. The datagram starts with
+     * the message id, the status and the number of players it holds inputs for. Every player
+     * starts with the player number, the count lag and the number of counts, followed by the
+     * inputs like in a single player message.
+     *
+     * @param requestedPlayer Player the client requested inputs for, -1 to only send inputs
+     *                        waiting to be relayed
+     * @param requestedCount First count requested
+     * @param destinationPlayer Player the inputs are sent to
+     * @return Number of counts sent for the requested player
+     */
+    private int sendBatch(int requestedPlayer, int requestedCount, SocketAddress destination, int spectator, int destinationPlayer)
+    {
+        mSendBuffer.clear();
+        mSendBuffer.put((byte)KEY_INFO_BATCH_FROM_SERVER_MSG);
+        mSendBuffer.put((byte)mStatus);
+        mSendBuffer.put((byte)0);
+
+        int players = 0;
+        int requestedCounts = 0;
+
+        if (requestedPlayer >= 0) {
+            mSendBuffer.put((byte)requestedPlayer);
+            requestedCounts = putInputs(requestedCount, requestedPlayer, spectator);
+
+            if (requestedCounts > 0) {
+                ++players;
+            } else {
+                mSendBuffer.position(mSendBuffer.position() - 3);
+            }
+
+            // The client has everything before the requested count, the rest was just added
+            mRelayPending[destinationPlayer][requestedPlayer] = false;
+        }
+
+        boolean[] relayPending = mRelayPending[destinationPlayer];
+
+        for (int playerIndex = 0; playerIndex < NUM_PLAYERS && mSendBuffer.position() < MAX_PACKET_FILL; ++playerIndex) {
+            if (!relayPending[playerIndex]) {
+                continue;
+            }
+
+            mSendBuffer.put((byte)playerIndex);
+
+            if (putInputs(mRelayCount[destinationPlayer][playerIndex], playerIndex, 1) > 0) {
+                ++players;
+            } else {
+                mSendBuffer.position(mSendBuffer.position() - 3);
+            }
+
+            relayPending[playerIndex] = false;
+        }
+
+        //number of players in packet
+        mSendBuffer.put(2, (byte)players);
+
+        if (players > 0) {
+            send(destination, destinationPlayer);
+        }
+
+        return requestedCounts;
+    }
+
+    /**
+     * Add the count lag, the number of counts and the inputs of a player to the send buffer
+     * @return Number of counts added
+     */
+    private int putInputs(int count, int playerNum, int spectator)
+    {
+        int count_lag = mLeadCount[playerNum] - count;
+
         mSendBuffer.put((byte)count_lag);
+        final int countsPosition = mSendBuffer.position();
         mSendBuffer.put((byte)0);
         int start = count;
         int end = start + mBufferSize[playerNum];
 
-        while ( (mSendBuffer.position() < 500) && ( (spectator == 0 && count_lag == 0 && count < end) || mInputs.get(playerNum).containsKey(count) ) )
+        InputRingBuffer inputs = mInputs[playerNum];
+
+        while ( (mSendBuffer.position() < MAX_PACKET_FILL) && ( (spectator == 0 && count_lag == 0 && count < end) || inputs.contains(count) ) )
         {
-            mSendBuffer.putInt(count);
             if (!checkIfExists(playerNum, count))
             {
                 // we don't have an input for this frame yet
@@ -333,49 +723,44 @@ public class UdpServer {
                 continue;
             }
 
-            Buttons buttons = mInputs.get(playerNum).get(count);
-
-            if (buttons != null) {
-                mSendBuffer.putInt(buttons.mKeys);
-                mSendBuffer.put((byte)buttons.mPlugin);
-            } else {
-                mSendBuffer.putInt(0);
-                mSendBuffer.put((byte)0);
-            }
+            mSendBuffer.putInt(count);
+            mSendBuffer.putInt(inputs.getKeys(count));
+            mSendBuffer.put((byte)inputs.getPlugin(count));
             ++count;
         }
 
         int counts = count - start;
 
         //number of counts in packet
-        mSendBuffer.put(4, (byte)counts);
+        mSendBuffer.put(countsPosition, (byte)counts);
 
-        if (counts > 0) {
-            try {
-                destPacket.setData(mSendBuffer.array(), 0, mSendBuffer.position());
-                mUdpSocket.send(destPacket);
-               // if (playerNum == 1)
-                //Log.e("UdpServer", "Sent data, player=" + playerNum + " counts=" + counts);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        return counts;
+    }
+
+    private void send(SocketAddress destination, int destinationPlayer)
+    {
+        try {
+            mSendBuffer.flip();
+            mUdpChannel.send(mSendBuffer, destination);
+            ++mPacketsSent;
+            mTelemetry.recordPacketOut(destinationPlayer, mSendBuffer.limit());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
     private boolean checkIfExists(int playerNumber, int count)
     {
-        boolean inputExists = mInputs.get(playerNumber).containsKey(count);
-
-        mInputs.get(playerNumber).remove(count - 5000);
+        InputRingBuffer inputs = mInputs[playerNumber];
+        boolean inputExists = inputs.contains(count);
 
         if (mInputDelay[playerNumber] < 0 && !inputExists)
         {
-            if (!mButtons.get(playerNumber).isEmpty()) {
-                mInputs.get(playerNumber).put(count, mButtons.get(playerNumber).removeFirst());
-            } else if (mInputs.get(playerNumber).containsKey(count-1)) {
-                mInputs.get(playerNumber).put(count, mInputs.get(playerNumber).get(count - 1));
-            } else {
-                mInputs.get(playerNumber).put(count, new Buttons(0, 0/*Controller not present*/));
+            if (mHasPendingButtons[playerNumber]) {
+                inputs.put(count, mPendingKeys[playerNumber], mPendingPlugin[playerNumber]);
+                mHasPendingButtons[playerNumber] = false;
+            } else if (!inputs.copy(count - 1, count)) {
+                inputs.put(count, 0, 0/*Controller not present*/);
             }
 
             return true;
@@ -387,31 +772,96 @@ public class UdpServer {
 
     private void insertInput(int playerNum, int count, int button, int plugin)
     {
-        int previousCount = count - 1;
-
-        mInputs.get(playerNum).put(count, new Buttons(button, plugin));
+        InputRingBuffer inputs = mInputs[playerNum];
+        inputs.put(count, button, plugin);
 
-        /* The recursion here covers two situations:
+        /* Back fill previous counts, this covers two situations:
          *
          * 1. The count < inputDelay, so we need to populate the first frames
          * 2. We lost a udp packet, or received them out of order.
+         *
+         * Back filling further than the ring buffer holds would only overwrite newer counts.
          */
-        if (previousCount == 0 || (previousCount > 0 && !mInputs.get(playerNum).containsKey(previousCount)))
-            insertInput(playerNum, previousCount, button, plugin);
+        int previousCount = count - 1;
+        int filled = 0;
+        while ((previousCount == 0 || (previousCount > 0 && !inputs.contains(previousCount))) &&
+                filled < InputRingBuffer.CAPACITY - 1) {
+            inputs.put(previousCount, button, plugin);
+            --previousCount;
+            ++filled;
+        }
+
+        // Back filling all the way to the start only happens for the first input
+        if (filled > 0 && previousCount >= 0) {
+            mTelemetry.getPlayer(playerNum).inputGaps.record(filled);
+            mBufferSizePolicy.onInputsMissing(playerNum, filled);
+        }
     }
 
-    void stopServer() {
-        try {
-            mRunning = false;
+    /**
+     * @return Latest published network statistics, can be called from any thread
+     */
+    public NetplayTelemetry getTelemetry()
+    {
+        return mPublishedTelemetry;
+    }
 
-            if (mUdpSocket != null) {
-                mUdpSocket.close();
-            }
+    long getPacketsReceived()
+    {
+        return mPacketsReceived;
+    }
 
-            if (mUdpServerThread != null) {
-                mUdpServerThread.join();
+    long getPacketsSent()
+    {
+        return mPacketsSent;
+    }
+
+    int getPlayerCount()
+    {
+        return mPlayerKeepAlive.size();
+    }
+
+    boolean isDesynced()
+    {
+        return (mStatus & 1) != 0;
+    }
+
+    /**
+     * @return True once every player that registered has disconnected
+     */
+    boolean isFinished()
+    {
+        return mHadPlayers && mPlayerKeepAlive.isEmpty();
+    }
+
+    void closeChannel()
+    {
+        if (!mOwnsChannel) {
+            onChannelClosed();
+        } else if (mUdpKey != null) {
+            mEventLoop.close(mUdpKey);
+        } else {
+            try {
+                if (mUdpChannel != null) {
+                    mUdpChannel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
             }
 
+            onChannelClosed();
+        }
+    }
+
+    void stopServer() {
+        if (mServerEnded.getCount() == 0) {
+            return;
+        }
+
+        mEventLoop.post(this::closeChannel);
+
+        try {
+            mServerEnded.await();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -419,11 +869,9 @@ public class UdpServer {
 
     void waitForServerToEnd() {
         try {
-            if (mUdpServerThread != null) {
-                mUdpServerThread.join();
-            }
+            mServerEnded.await();
 
-            Log.i("UdpServer", "Server thread finished");
+            Log.i("UdpServer", "Server finished");
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
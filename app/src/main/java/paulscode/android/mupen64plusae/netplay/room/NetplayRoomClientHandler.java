@@ -3,15 +3,21 @@ package paulscode.android.mupen64plusae.netplay.room;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
-class NetplayRoomClientHandler
+import paulscode.android.mupen64plusae.netplay.ChannelWriter;
+import paulscode.android.mupen64plusae.netplay.NetplayEventLoop;
+
+/**
+ * Handles a client connected to the room server, only used from the {@link NetplayEventLoop}
+ * thread
+ */
+class NetplayRoomClientHandler implements NetplayEventLoop.ChannelHandler
 {
     public interface OnClientRegistered {
 
@@ -33,6 +39,11 @@ class NetplayRoomClientHandler
          * @param roomCode Room code
          */
         void onRoomCode(long roomCode);
+
+        /**
+         * Called when the connection to the client has been closed
+         */
+        void onClientClosed(NetplayRoomClientHandler client);
     }
 
     static final String TAG = "ClientHandler";
@@ -56,7 +67,9 @@ class NetplayRoomClientHandler
 
     static final int MAX_PLAYERS = 4;
 
-    static final int NETPLAY_VERSION = 3;
+    // Clients only join servers with the same version. Version 4 syncs save files with the
+    // compressed save file messages, which older servers don't know.
+    static final int NETPLAY_VERSION = 4;
 
     private final String mDeviceName;
     private final String mRomMd5;
@@ -68,10 +81,10 @@ class NetplayRoomClientHandler
 
     private final OnClientRegistered mOnClientRegistered;
 
-    private boolean mRunning = true;
-    private final Object mSocketOutputSync = new Object();
-    private OutputStream mSocketOutputStream;
-    private InputStream mSocketInputStream;
+    private final NetplayEventLoop mEventLoop;
+    private final SocketChannel mChannel;
+    private final SelectionKey mKey;
+    private final ChannelWriter mWriter;
 
     private final ByteBuffer mSendBuffer = ByteBuffer.allocate(300);
     private final ByteBuffer mReceiveBuffer = ByteBuffer.allocate(100);
@@ -80,7 +93,8 @@ class NetplayRoomClientHandler
     private boolean mClientRegistered = false;
 
     NetplayRoomClientHandler(String deviceName, String romMd5, String videoPlugin, String rspPlugin,
-                             int regId, int serverPort, Socket socket, OnClientRegistered onClientRegistered)
+                             int regId, int serverPort, NetplayEventLoop eventLoop, SocketChannel channel,
+                             OnClientRegistered onClientRegistered) throws IOException
     {
         mDeviceName = deviceName;
         mRomMd5 = romMd5;
@@ -93,18 +107,11 @@ class NetplayRoomClientHandler
         mSendBuffer.order(ByteOrder.BIG_ENDIAN);
         mSendBuffer.mark();
         mReceiveBuffer.order(ByteOrder.BIG_ENDIAN);
-        mReceiveBuffer.mark();
-
-        try {
-            mSocketOutputStream = socket.getOutputStream();
-            mSocketInputStream = socket.getInputStream();
-            mRunning = true;
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
 
-        Thread clientThread = new Thread(this::runClient);
-        clientThread.start();
+        mEventLoop = eventLoop;
+        mChannel = channel;
+        mKey = eventLoop.register(channel, SelectionKey.OP_READ, this);
+        mWriter = new ChannelWriter(channel, mKey);
     }
 
     private void putString(String theString, int maxSize)
@@ -120,22 +127,20 @@ class NetplayRoomClientHandler
 
     private void handleGetRoomData() throws IOException
     {
-        synchronized (mSocketOutputSync) {
-            mSendBuffer.reset();
-            // Message id
-            mSendBuffer.putInt(ID_SEND_ROOM_DATA);
+        mSendBuffer.reset();
+        // Message id
+        mSendBuffer.putInt(ID_SEND_ROOM_DATA);
 
-            // Netplay version
-            mSendBuffer.putInt(NETPLAY_VERSION);
+        // Netplay version
+        mSendBuffer.putInt(NETPLAY_VERSION);
 
-            // Device name, 30 bytes
-            putString(mDeviceName, DEVICE_NAME_MAX);
+        // Device name, 30 bytes
+        putString(mDeviceName, DEVICE_NAME_MAX);
 
-            // Rom MD5, 33 bytes
-            putString(mRomMd5, ROM_MD5_MAX);
+        // Rom MD5, 33 bytes
+        putString(mRomMd5, ROM_MD5_MAX);
 
-            mSocketOutputStream.write(mSendBuffer.array(), 0, mSendBuffer.position());
-        }
+        mWriter.write(mSendBuffer.array(), 0, mSendBuffer.position());
     }
 
     public synchronized static void resetPlayers()
@@ -155,13 +160,7 @@ class NetplayRoomClientHandler
         Log.i(TAG, "Requesting room registration");
 
         byte[] receiveDeviceNameBytes = new byte[DEVICE_NAME_MAX];
-
-        int offset = 0;
-        int bytesRead = 0;
-        while (offset < DEVICE_NAME_MAX && bytesRead != -1) {
-            bytesRead = mSocketInputStream.read(receiveDeviceNameBytes, offset, DEVICE_NAME_MAX - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
-        }
+        mReceiveBuffer.get(receiveDeviceNameBytes);
 
         int deviceNameEnd = 0;
         while (deviceNameEnd < receiveDeviceNameBytes.length && receiveDeviceNameBytes[deviceNameEnd] != 0) {
@@ -170,48 +169,45 @@ class NetplayRoomClientHandler
 
         String clientDeviceName = new String(receiveDeviceNameBytes, 0, deviceNameEnd, StandardCharsets.ISO_8859_1);
 
-        synchronized (mSocketOutputSync) {
+        // Player number
+        mCurrentPlayerNumber = getNextPlayer();
 
-            // Player number
-            mCurrentPlayerNumber = getNextPlayer();
+        if (mCurrentPlayerNumber <= MAX_PLAYERS) {
+            mClientRegistered = true;
 
-            if (mCurrentPlayerNumber <= MAX_PLAYERS) {
-                mClientRegistered = true;
-
-                mSendBuffer.reset();
-                // Message id
-                mSendBuffer.putInt(ID_SEND_REGISTRATION_DATA);
-                // Registration id
-                mSendBuffer.putInt(mRegId);
-                mSendBuffer.putInt(mCurrentPlayerNumber);
-                // Server port
-                mSendBuffer.putInt(mServerPort);
-
-                // Video plugin, 60 bytes
-                putString(mVideoPlugin, VIDEO_PLUGIN_MAX);
-
-                // RSP plugin 60 bytes
-                putString(mRspPlugin, RSP_PLUGIN_MAX);
-
-                mOnClientRegistered.onClientRegistration(mCurrentPlayerNumber, clientDeviceName);
-            } else {
-                // Stop accepting registrations
-                mSendBuffer.reset();
-                // Message id
-                mSendBuffer.putInt(ID_SEND_REGISTRATION_DATA);
-                // Registration id
-                mSendBuffer.putInt(0);
-                mSendBuffer.putInt(0);
-                // Server port
-                mSendBuffer.putInt(0);
-                // Video plugin, 60 bytes
-                putString("dummy", VIDEO_PLUGIN_MAX);
-
-                // RSP plugin 60 bytes
-                putString("dummy", RSP_PLUGIN_MAX);
-            }
-            mSocketOutputStream.write(mSendBuffer.array(), 0, mSendBuffer.position());
+            mSendBuffer.reset();
+            // Message id
+            mSendBuffer.putInt(ID_SEND_REGISTRATION_DATA);
+            // Registration id
+            mSendBuffer.putInt(mRegId);
+            mSendBuffer.putInt(mCurrentPlayerNumber);
+            // Server port
+            mSendBuffer.putInt(mServerPort);
+
+            // Video plugin, 60 bytes
+            putString(mVideoPlugin, VIDEO_PLUGIN_MAX);
+
+            // RSP plugin 60 bytes
+            putString(mRspPlugin, RSP_PLUGIN_MAX);
+
+            mOnClientRegistered.onClientRegistration(mCurrentPlayerNumber, clientDeviceName);
+        } else {
+            // Stop accepting registrations
+            mSendBuffer.reset();
+            // Message id
+            mSendBuffer.putInt(ID_SEND_REGISTRATION_DATA);
+            // Registration id
+            mSendBuffer.putInt(0);
+            mSendBuffer.putInt(0);
+            // Server port
+            mSendBuffer.putInt(0);
+            // Video plugin, 60 bytes
+            putString("dummy", VIDEO_PLUGIN_MAX);
+
+            // RSP plugin 60 bytes
+            putString("dummy", RSP_PLUGIN_MAX);
         }
+        mWriter.write(mSendBuffer.array(), 0, mSendBuffer.position());
     }
 
     private synchronized static void removePlayer()
@@ -228,90 +224,87 @@ class NetplayRoomClientHandler
         }
     }
 
-    private void handleCode() throws IOException {
-        int offset = 0;
-        mReceiveBuffer.reset();
-        while (offset < ID_SIZE && mRunning) {
-            int bytesRead = mSocketInputStream.read(mReceiveBuffer.array(), offset, ID_SIZE - offset);
-            offset += bytesRead != -1 ? bytesRead : 0;
-            if (bytesRead == -1) {
-                mRunning = false;
-            }
-        }
-
+    private void handleCode()
+    {
         int code = mReceiveBuffer.getInt();
         long codeLong = code & 0xFFFFFFFFL;
         mOnClientRegistered.onRoomCode(codeLong);
     }
 
-    public void sendStartAsync()
+    void sendStart()
     {
-        // Must run on a separate thread, running network operation on the main
-        // thread leads to NetworkOnMainThreadException exceptions
-        Thread registerThread = new Thread(this::sendStart);
-        registerThread.setDaemon(true);
-        registerThread.start();
+        mSendBuffer.reset();
+        mSendBuffer.putInt(ID_SEND_START_PLAY);
+
+        try {
+            mWriter.write(mSendBuffer.array(), 0, mSendBuffer.position());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private void sendStart()
+    void close()
     {
-        synchronized (mSocketOutputSync) {
-            mSendBuffer.reset();
-            mSendBuffer.putInt(ID_SEND_START_PLAY);
-
-            try {
-                mSocketOutputStream.write(mSendBuffer.array(), 0, mSendBuffer.position());
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        mEventLoop.close(mKey);
     }
 
-    private void runClient()
+    @Override
+    public void onChannelReady(SelectionKey key) throws IOException
     {
-        while (mRunning)
-        {
-            // First read the whole message
-            try {
-                int offset = 0;
-                mReceiveBuffer.reset();
-                int id;
-                while (offset < ID_SIZE && mRunning) {
-                    int bytesRead = mSocketInputStream.read(mReceiveBuffer.array(), offset, ID_SIZE - offset);
-                    offset += bytesRead != -1 ? bytesRead : 0;
-                    if (bytesRead == -1) {
-                        mRunning = false;
-                    }
-                }
+        if (key.isWritable()) {
+            mWriter.flush();
+        }
+
+        if (!key.isValid() || !key.isReadable()) {
+            return;
+        }
 
-                if (mRunning) {
-                    id = mReceiveBuffer.getInt();
-
-                    Log.i(TAG, "Got message with id=" + id);
-
-                    if (id == ID_GET_ROOM_DATA) {
-                        handleGetRoomData();
-                    }
-                    else if (id == ID_REGISTER_TO_ROOM) {
-                        handleRegisterToRoom();
-                    }
-                    else if (id == ID_LEAVE_ROOM) {
-                        handleLeaveRoom();
-                    }
-                    else if (id == ID_ONLINE_NETPLAY_ROOM) {
-                        handleCode();
-                    } else {
-                        mRunning = false;
-                    }
+        if (mChannel.read(mReceiveBuffer) == -1) {
+            close();
+            return;
+        }
+
+        mReceiveBuffer.flip();
+
+        // Handle every message that has been received completely
+        while (mReceiveBuffer.remaining() >= ID_SIZE && mChannel.isOpen()) {
+            mReceiveBuffer.mark();
+            int id = mReceiveBuffer.getInt();
+
+            Log.i(TAG, "Got message with id=" + id);
+
+            if (id == ID_GET_ROOM_DATA) {
+                handleGetRoomData();
+            }
+            else if (id == ID_REGISTER_TO_ROOM) {
+                if (mReceiveBuffer.remaining() < DEVICE_NAME_MAX) {
+                    mReceiveBuffer.reset();
+                    break;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                mRunning = false;
-                break;
+                handleRegisterToRoom();
+            }
+            else if (id == ID_LEAVE_ROOM) {
+                handleLeaveRoom();
+            }
+            else if (id == ID_ONLINE_NETPLAY_ROOM) {
+                if (mReceiveBuffer.remaining() < ID_SIZE) {
+                    mReceiveBuffer.reset();
+                    break;
+                }
+                handleCode();
+            } else {
+                close();
             }
         }
 
+        mReceiveBuffer.compact();
+    }
+
+    @Override
+    public void onChannelClosed()
+    {
         handleLeaveRoom();
+        mOnClientRegistered.onClientClosed(this);
 
         Log.i(TAG, "Socket has been closed");
     }
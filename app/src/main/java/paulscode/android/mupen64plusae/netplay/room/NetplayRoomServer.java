@@ -9,20 +9,24 @@ import android.os.Looper;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
 
+import paulscode.android.mupen64plusae.netplay.NetplayEventLoop;
+import paulscode.android.mupen64plusae.netplay.NetplaySessionHost;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
 
 import static android.content.Context.WIFI_SERVICE;
 
-public class NetplayRoomServer {
+public class NetplayRoomServer implements NetplayEventLoop.ChannelHandler {
 
     public interface OnClientFound {
 
@@ -51,11 +55,22 @@ public class NetplayRoomServer {
     static final String DEFAULT_SERVICE_NAME = "M64PlusAE";
     static final String DEFAULT_SERVICE_TYPE = "_m64plusae._tcp.";
 
+    // How long clients have to close their connection after the game starts
+    static final int CLIENT_CLOSE_TIMEOUT_MS = 5000;
+
     // Port where the netplay server is listening
     private int mServerPort;
 
     // TCP server used to communicate game data
-    private ServerSocket mServerSocket = null;
+    private ServerSocketChannel mServerChannel = null;
+
+    // Port the TCP server is listening on
+    private int mLocalPort = 0;
+
+    // Event loop that owns the server and client channels
+    private NetplayEventLoop mEventLoop = null;
+    private SelectionKey mServerKey = null;
+    private boolean mEventLoopReleased = false;
 
     // Broadcast service through NSD
     private NsdManager mNsdManager;
@@ -69,7 +84,7 @@ public class NetplayRoomServer {
     private String mNsdServiceName;
 
     // True if we are running
-    private boolean mRunning = true;
+    private volatile boolean mRunning = true;
 
     // Device name
     private final String mDeviceName;
@@ -91,17 +106,23 @@ public class NetplayRoomServer {
 
     private Object mOnClientFoundMutex = new Object();
 
-    // List of clients
+    // List of clients, only used from the event loop thread
     private final ArrayList<NetplayRoomClientHandler> mClients = new ArrayList<>();
 
     // List of registration ids
     private final Set<Integer> mRegistrationIds = new HashSet<>();
 
+    private final Random mRandom = new Random();
+
+    // Session host the room registers its players with, null if the room has its own server
+    private NetplaySessionHost mSessionHost = null;
+
+    // Session of this room in the session host
+    private int mSessionId = -1;
+
     // Handler for registering for the NSD service repeatedly
     private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    private final Object mClientSyncObject = new Object();
-
     /**
      * Constructor
      * @param serverPort Port in which the netplay server is listening on
@@ -129,14 +150,23 @@ public class NetplayRoomServer {
         GlobalPrefs globalPrefs = new GlobalPrefs(context, appData);
 
         try {
+            mEventLoop = NetplayEventLoop.acquire();
+
             int port = globalPrefs.useUpnpToMapNetplayPorts ? 0 : globalPrefs.netplayRoomTcpPort;
-            mServerSocket = new ServerSocket(port);
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(port));
+            mLocalPort = mServerChannel.socket().getLocalPort();
 
-            // Thread used to listen for new connections
-            Thread serverThread = new Thread(this::runTcpServer);
-            serverThread.start();
+            // New connections are accepted by the event loop
+            mEventLoop.post(this::registerServerChannel);
         } catch (IOException e) {
             e.printStackTrace();
+            closeServerChannel();
+
+            if (mEventLoop != null) {
+                NetplayEventLoop.release(mEventLoop);
+                mEventLoop = null;
+            }
         }
 
         // Register/Unregister in a loop to workaround issues with NSD in Android
@@ -145,11 +175,11 @@ public class NetplayRoomServer {
 
     public int getServerPort()
     {
-        return mServerSocket != null ? mServerSocket.getLocalPort() : 0;
+        return mLocalPort;
     }
 
     public void registerService() {
-        if (mServerSocket == null) {
+        if (mLocalPort == 0) {
             return;
         }
 
@@ -183,7 +213,7 @@ public class NetplayRoomServer {
         NsdServiceInfo serviceInfo = new NsdServiceInfo();
         serviceInfo.setServiceName(mNsdServiceName);
         serviceInfo.setServiceType(DEFAULT_SERVICE_TYPE);
-        serviceInfo.setPort(mServerSocket.getLocalPort());
+        serviceInfo.setPort(mLocalPort);
         serviceInfo.setHost(DeviceUtil.getIPAddress());
         serviceInfo.setAttribute("dummy", "dummy");
 
@@ -203,70 +233,161 @@ public class NetplayRoomServer {
         }
     }
 
-    private void runTcpServer() {
-
+    private void registerServerChannel()
+    {
         Log.i(TAG, "Started Room TCP server");
-        Random rand = new Random();
 
-        while (mRunning) {
+        try {
+            mServerKey = mEventLoop.register(mServerChannel, SelectionKey.OP_ACCEPT, this);
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeServerChannel();
+        }
+    }
+
+    private void closeServerChannel()
+    {
+        if (mServerKey != null) {
+            mEventLoop.close(mServerKey);
+        } else if (mServerChannel != null) {
             try {
-                // Get a valid registration ID that doesn't exist yet
-                int regId = rand.nextInt();
-                while (mRegistrationIds.contains(regId) && mRunning) {
-                    regId = rand.nextInt();
-                }
+                mServerChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private int getNewRegistrationId()
+    {
+        synchronized (mRegistrationIds) {
+            // Get a valid registration ID that doesn't exist yet
+            int regId = mRandom.nextInt();
+            while (mRegistrationIds.contains(regId)) {
+                regId = mRandom.nextInt();
+            }
+
+            mRegistrationIds.add(regId);
 
-                mRegistrationIds.add(regId);
+            if (mSessionHost != null) {
+                mSessionHost.addRegistration(mSessionId, regId);
+            }
 
-                Socket socketAccepted = mServerSocket.accept();
+            return regId;
+        }
+    }
 
-                synchronized (mClientSyncObject) {
-                    mClients.add(new NetplayRoomClientHandler(mDeviceName, mRomMd5, mVideoPlugin, mRspPlugin,
-                            regId, mServerPort, socketAccepted,
-                            new NetplayRoomClientHandler.OnClientRegistered() {
-                                @Override
-                                public void onClientRegistration(int playerNumber, String deviceName) {
-                                    synchronized (mOnClientFoundMutex) {
-                                        mOnClientFound.onClientRegistration(playerNumber, deviceName);
-                                    }
+    @Override
+    public void onChannelReady(SelectionKey key) throws IOException
+    {
+        SocketChannel clientChannel;
+        while ((clientChannel = mServerChannel.accept()) != null) {
+            try {
+                mClients.add(new NetplayRoomClientHandler(mDeviceName, mRomMd5, mVideoPlugin, mRspPlugin,
+                        getNewRegistrationId(), mServerPort, mEventLoop, clientChannel,
+                        new NetplayRoomClientHandler.OnClientRegistered() {
+                            @Override
+                            public void onClientRegistration(int playerNumber, String deviceName) {
+                                synchronized (mOnClientFoundMutex) {
+                                    mOnClientFound.onClientRegistration(playerNumber, deviceName);
                                 }
+                            }
 
-                                @Override
-                                public void onClientLeave(int playerNumber) {
-                                    synchronized (mOnClientFoundMutex) {
-                                        mOnClientFound.onClienLeave(playerNumber);
-                                    }
+                            @Override
+                            public void onClientLeave(int playerNumber) {
+                                synchronized (mOnClientFoundMutex) {
+                                    mOnClientFound.onClienLeave(playerNumber);
                                 }
+                            }
 
-                                @Override
-                                public void onRoomCode(long roomCode) {
-                                    synchronized (mOnClientFoundMutex) {
-                                        mOnClientFound.onRoomCode(roomCode);
-                                    }
+                            @Override
+                            public void onRoomCode(long roomCode) {
+                                synchronized (mOnClientFoundMutex) {
+                                    mOnClientFound.onRoomCode(roomCode);
                                 }
-                            }));
-                }
+                            }
+
+                            @Override
+                            public void onClientClosed(NetplayRoomClientHandler client) {
+                                mClients.remove(client);
+                                releaseEventLoopIfDone();
+                            }
+                        }));
             } catch (IOException e) {
                 e.printStackTrace();
-                mRunning = false;
+                clientChannel.close();
             }
         }
     }
 
-    public int registerPlayerOne()
+    @Override
+    public void onChannelClosed()
     {
-        Random rand = new Random();
+        mRunning = false;
+        releaseEventLoopIfDone();
+    }
+
+    /**
+     * Stop using the event loop once the server has stopped and every client has left
+     */
+    private void releaseEventLoopIfDone()
+    {
+        if (!mRunning && mClients.isEmpty() && !mEventLoopReleased) {
+            mEventLoopReleased = true;
+            NetplayEventLoop.release(mEventLoop);
+        }
+    }
+
+    /**
+     * Close clients that didn't leave on their own after the game started
+     */
+    private void closeRemainingClients()
+    {
+        for (NetplayRoomClientHandler client : new ArrayList<>(mClients)) {
+            client.close();
+        }
+    }
+
+    /**
+     * Host this room as a new session of a session host. Every player registered by the room
+     * is allowed to join that session. Each room that calls this gets a session of its own, which
+     * is how several rooms share the port of one host.
+     * @param sessionHost Session host serving the netplay server port
+     * @return True if the session was created
+     */
+    public boolean useSessionHost(NetplaySessionHost sessionHost)
+    {
+        int sessionId = sessionHost.createSession();
 
-        int regId = rand.nextInt();
-        mRegistrationIds.add(regId);
+        if (sessionId == -1) {
+            return false;
+        }
+
+        synchronized (mRegistrationIds) {
+            mSessionHost = sessionHost;
+            mSessionId = sessionId;
+
+            for (Integer regId : mRegistrationIds) {
+                sessionHost.addRegistration(sessionId, regId);
+            }
+        }
 
-        return regId;
+        return true;
+    }
+
+    public int registerPlayerOne()
+    {
+        return getNewRegistrationId();
     }
 
     public void start()
     {
-        for (NetplayRoomClientHandler client : mClients) {
-            client.sendStartAsync();
+        if (mEventLoop != null) {
+            mEventLoop.post(() -> {
+                for (NetplayRoomClientHandler client : mClients) {
+                    client.sendStart();
+                }
+            });
         }
 
         stopServer();
@@ -275,12 +396,15 @@ public class NetplayRoomServer {
     public void stopServer()
     {
         mRunning = false;
-        try {
-            if (mServerSocket != null) {
-                mServerSocket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+
+        if (mEventLoop != null) {
+            final NetplayEventLoop eventLoop = mEventLoop;
+
+            // Clients close their connection once they get the start message
+            eventLoop.post(() -> {
+                closeServerChannel();
+                eventLoop.postDelayed(this::closeRemainingClients, CLIENT_CLOSE_TIMEOUT_MS);
+            });
         }
 
         mMulticastLock.release();
@@ -290,10 +414,12 @@ public class NetplayRoomServer {
     {
         mServerPort = serverPort;
 
-        synchronized (mClientSyncObject) {
-            for (NetplayRoomClientHandler client : mClients) {
-                client.updateServerPort(serverPort);
-            }
+        if (mEventLoop != null) {
+            mEventLoop.post(() -> {
+                for (NetplayRoomClientHandler client : mClients) {
+                    client.updateServerPort(serverPort);
+                }
+            });
         }
     }
 }
@@ -40,6 +40,7 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
 
+import paulscode.android.mupen64plusae.netplay.NetplaySessionHost;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
@@ -78,6 +79,12 @@ public class NetplayServerSetupDialog extends DialogFragment
          * @param roomPort Port number being used by the room
          */
         void mapPorts(int roomPort);
+
+        /**
+         * @return Session host the room registers its players with, null if the game isn't
+         * hosted as a session
+         */
+        NetplaySessionHost getSessionHost();
     }
 
     private static final String ROM_MD5 = "ROM_MD5";
@@ -268,6 +275,14 @@ public class NetplayServerSetupDialog extends DialogFragment
                         }
                     });
 
+            if (mActivity instanceof OnClientDialogActionListener) {
+                NetplaySessionHost sessionHost = ((OnClientDialogActionListener)mActivity).getSessionHost();
+
+                if (sessionHost != null && !mNetplayRoomService.useSessionHost(sessionHost)) {
+                    Log.e(TAG, "Unable to create a netplay session");
+                }
+            }
+
             int registrationId = mNetplayRoomService.registerPlayerOne();
 
             if (mActivity instanceof OnClientDialogActionListener) {
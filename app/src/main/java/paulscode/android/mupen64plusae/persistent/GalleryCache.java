@@ -0,0 +1,563 @@
+package paulscode.android.mupen64plusae.persistent;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.util.FileUtil;
+
+/**
+ * Gallery view of the ROM info cache. The ROM info cache config file is still the source of
+ * truth, this keeps the fields the gallery needs for every ROM in a flat binary file that is read
+ * in one sequential pass, with file names already resolved so the gallery never has to query
+ * the content resolver.
+ * <p>
+ * The file is a header followed by a log of records. Changes are appended as new records, a
+ * later record for the same MD5 replaces an earlier one, and the file is rewritten once the log
+ * gets too long. The header stores the size and modification time of the config file the cache
+ * matches, if the config file is changed by anything else the cache is rebuilt from it. The
+ * entries that were in the cache are only used to skip resolving the file names of ROMs that are
+ * still at the same location.
+ * <p>
+ * A ROM scan changes many entries before it saves the config file. It brackets its changes with
+ * {@link #beginUpdate(Context)} and {@link #endUpdate()}, every ROM it finds or removes is
+ * appended as it goes and the header only matches the config file again once the scan saved it.
+ */
+public class GalleryCache
+{
+    private static final String TAG = "GalleryCache";
+
+    static final int MAGIC = 0x4347414D; // "MAGC" when read in big endian
+    static final int VERSION = 1;
+
+    /** Offset of the config file size and modification time in the header */
+    private static final int HEADER_STAMP_OFFSET = 8;
+
+    static final byte RECORD_ENTRY = 1;
+    private static final byte RECORD_REMOVED = 2;
+
+    /** Rewrite the file once it holds this many times more records than entries */
+    private static final int COMPACT_RATIO = 2;
+
+    /**
+     * Everything the gallery needs to know about a ROM
+     */
+    public static class Entry
+    {
+        public final String md5;
+        public final String crc;
+        public final String headerName;
+        public final byte countryCode;
+        public final String goodName;
+        public final String baseName;
+
+        /** Name of the ROM file, or of the zip entry for ROMs inside zip files */
+        public final String fileName;
+
+        /** File name of the cover art, without the directory */
+        public final String artName;
+        public final String romUri;
+        public final String zipUri;
+        public final int lastPlayed;
+
+        public Entry(@NonNull String md5, @NonNull String crc, @Nullable String headerName, byte countryCode,
+                     @Nullable String goodName, @Nullable String baseName, @NonNull String fileName,
+                     @Nullable String artName, @NonNull String romUri, @Nullable String zipUri, int lastPlayed)
+        {
+            this.md5 = md5;
+            this.crc = crc;
+            this.headerName = headerName;
+            this.countryCode = countryCode;
+            this.goodName = goodName;
+            this.baseName = baseName;
+            this.fileName = fileName;
+            this.artName = artName;
+            this.romUri = romUri;
+            this.zipUri = zipUri;
+            this.lastPlayed = lastPlayed;
+        }
+
+        Entry withLastPlayed(int lastPlayed)
+        {
+            return new Entry(md5, crc, headerName, countryCode, goodName, baseName, fileName, artName,
+                    romUri, zipUri, lastPlayed);
+        }
+    }
+
+    private final String mCachePath;
+    private final String mConfigPath;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+
+    /** Number of records in the file, including replaced and removed ones */
+    private int mRecordCount = 0;
+
+    /** Config file size and modification time the loaded entries match */
+    private long mConfigSize = -1;
+    private long mConfigModified = -1;
+
+    /** Length of the cache file as written by this instance, -1 if unknown */
+    private long mFileLength = -1;
+
+    /** True between beginUpdate and endUpdate */
+    private boolean mUpdating = false;
+
+    /**
+     * @param cachePath Path of the gallery cache
+     * @param configPath Path of the ROM info cache config file it mirrors
+     */
+    public GalleryCache(String cachePath, String configPath)
+    {
+        mCachePath = cachePath;
+        mConfigPath = configPath;
+    }
+
+    /**
+     * Get all gallery entries, loading the cache or rebuilding it from the config file first if
+     * the config file changed. Rebuilding may query the content resolver so don't call this on
+     * the UI thread unless the cache is known to be current.
+     * @param context Context used to resolve file names when rebuilding
+     * @return All entries, in config file order
+     */
+    public synchronized List<Entry> getEntries(Context context)
+    {
+        if (!mUpdating) {
+            refresh(context);
+        }
+
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Start a batch of changes made to the config file before it's saved, such as a ROM scan.
+     * The cache is brought up to date with the config file as it is now, then marked as not
+     * matching any config file, so a batch that never ends makes the next reader rebuild it.
+     * @param context Context used to resolve file names when rebuilding
+     */
+    public synchronized void beginUpdate(Context context)
+    {
+        refresh(context);
+        mUpdating = true;
+        writeConfigStamp(-1, -1);
+    }
+
+    /**
+     * Add or replace a ROM in the middle of an update, its record is appended right away
+     * @param context Context used to resolve the file name, can be null
+     * @param config Config file the ROM was just added to
+     * @param md5 MD5 of the ROM
+     */
+    public synchronized void put(Context context, ConfigFile config, String md5)
+    {
+        HashMap<String, String> knownFileNames = new HashMap<>();
+        Entry oldEntry = mEntries.get(md5);
+        if (oldEntry != null) {
+            knownFileNames.put(oldEntry.romUri, oldEntry.fileName);
+        }
+
+        Entry entry = createEntry(context, config, md5, knownFileNames);
+        if (entry != null) {
+            mEntries.put(md5, entry);
+            appendRecord(RECORD_ENTRY, md5, entry);
+        } else {
+            remove(md5);
+        }
+    }
+
+    /**
+     * End a batch of changes, call this after saving the config file. The cache matches the saved
+     * config file from then on.
+     */
+    public synchronized void endUpdate()
+    {
+        mUpdating = false;
+
+        // Something else rewrote the file during the update, records appended since then would be
+        // missing from it
+        if (new File(mCachePath).length() != mFileLength) {
+            File configFile = new File(mConfigPath);
+            mConfigSize = configFile.length();
+            mConfigModified = configFile.lastModified();
+            save();
+            return;
+        }
+
+        stampConfigFile();
+    }
+
+    /**
+     * Load the cache, or rebuild it from the config file, if the config file changed since the
+     * entries were last read
+     */
+    private void refresh(Context context)
+    {
+        File configFile = new File(mConfigPath);
+
+        if (configFile.length() != mConfigSize || configFile.lastModified() != mConfigModified) {
+            if (!load(configFile)) {
+                rebuild(context, new ConfigFile(mConfigPath), configFile);
+            }
+        }
+    }
+
+    /**
+     * Remove a ROM, call this after removing it from the config file and saving it
+     * @param md5 MD5 of the ROM to remove
+     */
+    public synchronized void remove(String md5)
+    {
+        if (mEntries.remove(md5) != null) {
+            appendRecord(RECORD_REMOVED, md5, null);
+        }
+    }
+
+    /**
+     * Update the last played time of a ROM, call this after updating the config file and saving it
+     * @param md5 MD5 of the ROM
+     * @param lastPlayed Last played time in seconds
+     */
+    public synchronized void setLastPlayed(String md5, int lastPlayed)
+    {
+        Entry entry = mEntries.get(md5);
+        if (entry != null) {
+            entry = entry.withLastPlayed(lastPlayed);
+            mEntries.put(md5, entry);
+            appendRecord(RECORD_ENTRY, md5, entry);
+        }
+    }
+
+    /**
+     * Load the cache file if it matches the config file. If it doesn't, the entries that could be
+     * read are kept until the rebuild checks them against the config file.
+     * @return True if the cache was loaded
+     */
+    private boolean load(File configFile)
+    {
+        File cacheFile = new File(mCachePath);
+        if (!cacheFile.exists()) {
+            return false;
+        }
+
+        // Read the whole file in one go, then parse it from memory
+        byte[] data = new byte[(int) cacheFile.length()];
+        try (FileInputStream in = new FileInputStream(cacheFile)) {
+            int offset = 0;
+            int count;
+            while (offset < data.length && (count = in.read(data, offset, data.length - offset)) > 0) {
+                offset += count;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read gallery cache: " + e.getMessage());
+            return false;
+        }
+
+        LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        int recordCount = 0;
+        long configSize = -1;
+        long configModified = -1;
+        boolean matches;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+
+            configSize = in.readLong();
+            configModified = in.readLong();
+            matches = configSize == configFile.length() && configModified == configFile.lastModified();
+
+            while (in.available() > 0) {
+                final byte type = in.readByte();
+                final String md5 = in.readUTF();
+
+                if (type == RECORD_ENTRY) {
+                    entries.put(md5, readEntry(in, md5));
+                } else {
+                    entries.remove(md5);
+                }
+                ++recordCount;
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "Gallery cache is truncated, rebuilding it");
+            matches = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to parse gallery cache: " + e.getMessage());
+            matches = false;
+        }
+
+        if (!matches) {
+            // The rebuild reuses the file names of ROMs that didn't move
+            mEntries.putAll(entries);
+            return false;
+        }
+
+        mEntries.clear();
+        mEntries.putAll(entries);
+        mRecordCount = recordCount;
+        mConfigSize = configSize;
+        mConfigModified = configModified;
+        mFileLength = data.length;
+        return true;
+    }
+
+    /**
+     * Rebuild all entries from the config file and rewrite the cache
+     */
+    private void rebuild(Context context, ConfigFile config, File configFile)
+    {
+        Log.i(TAG, "Rebuilding gallery cache");
+
+        // Keep resolved file names, looking them up is a content resolver query per ROM
+        HashMap<String, String> knownFileNames = new HashMap<>();
+        for (Entry entry : mEntries.values()) {
+            knownFileNames.put(entry.romUri, entry.fileName);
+        }
+
+        mEntries.clear();
+
+        for (String md5 : config.keySet()) {
+            if (ConfigFile.SECTIONLESS_NAME.equals(md5)) {
+                continue;
+            }
+
+            Entry entry = createEntry(context, config, md5, knownFileNames);
+            if (entry != null) {
+                mEntries.put(md5, entry);
+            }
+        }
+
+        mConfigSize = configFile.length();
+        mConfigModified = configFile.lastModified();
+        save();
+    }
+
+    /** Tries the key normally in use. If it doesn't exist, try the new and convert the value to a URI
+     *
+     * @param config Config file
+     * @param md5 MD5
+     * @param key Key currently in use
+     * @param alternateKey Aleternate legacy key
+     * @return URI string from key or alternate key if key doesn't exist
+     */
+    private static String getUriString(final ConfigFile config, String md5, String key, String alternateKey)
+    {
+        String path = config.get( md5, key);
+
+        // If the above doesn't exist, try the legacy path
+        if (TextUtils.isEmpty(path)) {
+            String pathString = config.get( md5, alternateKey);
+            if (!TextUtils.isEmpty(pathString)) {
+                path = Uri.fromFile(new File(pathString)).toString();
+            }
+        }
+
+        return path;
+    }
+
+    private static @Nullable Entry createEntry(Context context, ConfigFile config, String md5,
+                                               HashMap<String, String> knownFileNames)
+    {
+        String romPath = getUriString(config, md5, "romPathUri", "romPath");
+        String zipPath = getUriString(config, md5, "zipPathUri", "zipPath");
+        String crc = config.get( md5, "crc" );
+        final String countryCodeString = config.get( md5, "countryCode" );
+
+        // We can't do much with an invalid Rom path
+        if (romPath == null || crc == null || countryCodeString == null) {
+            return null;
+        }
+
+        String fileName;
+
+        // We only want the file name if Zip Path exists
+        if (!TextUtils.isEmpty(zipPath)) {
+            romPath = new File(romPath).getName();
+            try {
+                romPath = java.net.URLDecoder.decode(romPath, "UTF-8");
+            } catch (UnsupportedEncodingException|java.lang.IllegalArgumentException e) {
+                Log.e(TAG, "Unable to decode string: " + romPath);
+                return null;
+            }
+            fileName = romPath;
+        } else {
+            fileName = knownFileNames.get(romPath);
+
+            if (fileName == null && context != null) {
+                DocumentFile file = FileUtil.getDocumentFileSingle(context, Uri.parse(romPath));
+                fileName = file == null ? null : file.getName();
+            }
+
+            if (TextUtils.isEmpty(fileName)) {
+                fileName = romPath;
+            }
+        }
+
+        //We get the file name to support the old gallery format
+        final String artFullPath = config.get( md5, "artPath" );
+        String artName = !TextUtils.isEmpty(artFullPath) ? new File(artFullPath).getName() : null;
+
+        final String lastPlayedStr = config.get(md5, "lastPlayed");
+        int lastPlayed = 0;
+        if (lastPlayedStr != null)
+            lastPlayed = Integer.parseInt(lastPlayedStr);
+
+        return new Entry(md5, crc, config.get( md5, "headerName" ), Byte.parseByte(countryCodeString),
+                config.get( md5, "goodName" ), config.get( md5, "baseName" ), fileName, artName, romPath,
+                zipPath, lastPlayed);
+    }
+
+    private void save()
+    {
+        File cacheFile = new File(mCachePath);
+        if (cacheFile.getParentFile() != null) {
+            FileUtil.makeDirs(cacheFile.getParentFile().getPath());
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mConfigSize);
+            out.writeLong(mConfigModified);
+
+            for (Entry entry : mEntries.values()) {
+                out.writeByte(RECORD_ENTRY);
+                out.writeUTF(entry.md5);
+                writeEntry(out, entry);
+            }
+
+            mRecordCount = mEntries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException writing gallery cache " + mCachePath + ", error message: " + e.getMessage());
+        }
+
+        mFileLength = cacheFile.length();
+    }
+
+    /**
+     * Append a record, outside of an update the caller just saved the config file and the cache
+     * matches it again
+     */
+    private void appendRecord(byte type, String md5, @Nullable Entry entry)
+    {
+        // Compacting in the middle of an update waits for endUpdate, the file is rewritten then
+        if (!mUpdating && mRecordCount >= Math.max(mEntries.size(), 1) * COMPACT_RATIO) {
+            File configFile = new File(mConfigPath);
+            mConfigSize = configFile.length();
+            mConfigModified = configFile.lastModified();
+            save();
+            return;
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mCachePath, true)))) {
+            out.writeByte(type);
+            out.writeUTF(md5);
+            if (entry != null) {
+                writeEntry(out, entry);
+            }
+
+            // Counted from what was written, not the file length, so a file replaced by another
+            // writer in the meantime is noticed
+            mFileLength += out.size();
+        } catch (IOException e) {
+            Log.e(TAG, "IOException appending to gallery cache " + mCachePath + ", error message: " + e.getMessage());
+            return;
+        }
+
+        ++mRecordCount;
+
+        if (!mUpdating) {
+            stampConfigFile();
+        }
+    }
+
+    /**
+     * Mark the cache as matching the config file as it is now, compacting it first if needed
+     */
+    private void stampConfigFile()
+    {
+        File configFile = new File(mConfigPath);
+        mConfigSize = configFile.length();
+        mConfigModified = configFile.lastModified();
+
+        if (mRecordCount >= Math.max(mEntries.size(), 1) * COMPACT_RATIO) {
+            save();
+        } else {
+            writeConfigStamp(mConfigSize, mConfigModified);
+        }
+    }
+
+    private void writeConfigStamp(long configSize, long configModified)
+    {
+        try (RandomAccessFile file = new RandomAccessFile(mCachePath, "rw")) {
+            file.seek(HEADER_STAMP_OFFSET);
+            file.writeLong(configSize);
+            file.writeLong(configModified);
+        } catch (IOException e) {
+            Log.e(TAG, "IOException updating gallery cache " + mCachePath + ", error message: " + e.getMessage());
+        }
+    }
+
+    static void writeEntry(DataOutputStream out, Entry entry) throws IOException
+    {
+        out.writeUTF(entry.crc);
+        writeNullableString(out, entry.headerName);
+        out.writeByte(entry.countryCode);
+        writeNullableString(out, entry.goodName);
+        writeNullableString(out, entry.baseName);
+        out.writeUTF(entry.fileName);
+        writeNullableString(out, entry.artName);
+        out.writeUTF(entry.romUri);
+        writeNullableString(out, entry.zipUri);
+        out.writeInt(entry.lastPlayed);
+    }
+
+    private static Entry readEntry(DataInputStream in, String md5) throws IOException
+    {
+        String crc = in.readUTF();
+        String headerName = readNullableString(in);
+        byte countryCode = in.readByte();
+        String goodName = readNullableString(in);
+        String baseName = readNullableString(in);
+        String fileName = in.readUTF();
+        String artName = readNullableString(in);
+        String romUri = in.readUTF();
+        String zipUri = readNullableString(in);
+        int lastPlayed = in.readInt();
+
+        return new Entry(md5, crc, headerName, countryCode, goodName, baseName, fileName, artName, romUri,
+                zipUri, lastPlayed);
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -387,10 +387,7 @@ public class GamePrefsActivity extends AppCompatPreferenceActivity implements On
         if (FileUtil.isFileImage(getApplicationContext(), uri)) {
             DocumentFile file = FileUtil.getDocumentFileSingle(getApplicationContext(), uri);
             if (file != null && FileUtil.copyFolder(getApplicationContext(), file, new File(mGlobalPrefs.coverArtDir + "/" + file.getName() ), true )) {
-
-                ConfigFile configFile = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
-                configFile.put(mRomMd5, "artPath", mGlobalPrefs.coverArtDir + "/" + file.getName());
-                configFile.save();
+                setCoverArtPath(mGlobalPrefs.coverArtDir + "/" + file.getName());
             }
         }
     }
@@ -399,13 +396,31 @@ public class GamePrefsActivity extends AppCompatPreferenceActivity implements On
     {
         RomDatabase romDatabase = RomDatabase.getInstance();
         RomDetail detail = romDatabase.lookupByMd5WithFallback( mRomMd5, mRomDisplayName, mRomCrc, CountryCode.getCountryCode(mRomCountryCode) );
-        ConfigFile configFile = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
-        configFile.put(mRomMd5, "artPath", mGlobalPrefs.coverArtDir + "/" + detail.artName);
-        configFile.save();
+        setCoverArtPath(mGlobalPrefs.coverArtDir + "/" + detail.artName);
 
         Notifier.showToast(getApplicationContext(), R.string.actionClearGameCoverArt_toast);
     }
 
+    /**
+     * Save the cover art path to the ROM info cache, and update the gallery cache along with it
+     * so that the gallery doesn't have to rebuild it
+     * @param artPath Path of the new cover art
+     */
+    private void setCoverArtPath(String artPath)
+    {
+        GalleryCache galleryCache = new GalleryCache(mGlobalPrefs.galleryCache, mGlobalPrefs.romInfoCacheCfg);
+        galleryCache.beginUpdate(getApplicationContext());
+
+        ConfigFile configFile = new ConfigFile(mGlobalPrefs.romInfoCacheCfg);
+        configFile.put(mRomMd5, "artPath", artPath);
+        galleryCache.put(getApplicationContext(), configFile, mRomMd5);
+
+        // If the config file wasn't saved, the unfinished update makes the gallery rebuild the cache
+        if (configFile.save()) {
+            galleryCache.endUpdate();
+        }
+    }
+
     private void deleteGameData()
     {
         String title = getString( R.string.confirm_title );
@@ -121,6 +121,12 @@ public class GlobalPrefs
     /** The subdirectory containing cover art files. */
     public final String coverArtDir;
 
+    /** The subdirectory containing cover art scaled down to the size it's displayed at. */
+    public final String coverArtThumbnailDir;
+
+    /** The path of the journal of cover art downloads that haven't finished yet. */
+    public final String coverArtDownloadQueue;
+
     /** The subdirectory containing legacy cover art files. */
     public final String legacyCoverArtDir;
 
@@ -166,6 +172,12 @@ public class GlobalPrefs
     /** The path of the rom info cache for the gallery. */
     public final String romInfoCacheCfg;
 
+    /** The path of the file fingerprint index used to skip unchanged files when scanning. */
+    public final String romInfoCacheIndex;
+
+    /** The path of the gallery cache derived from the rom info cache. */
+    public final String galleryCache;
+
     /** The path of the legacy rom info cache for the gallery. */
     public final String legacyRomInfoCacheCfg;
 
@@ -271,6 +283,15 @@ public class GlobalPrefs
     /** FPS display y position */
     public final int fpsYPosition;
 
+    /** True if a graph of recent frame times is displayed. */
+    public final boolean isFrameTimeGraphEnabled;
+
+    /** True if network statistics are displayed while hosting netplay. */
+    public final boolean isNetplayStatsEnabled;
+
+    /** True if frame timings are written to a trace file. */
+    public final boolean isFrameTimingTraceEnabled;
+
     /** True if immersive mode should be used (KitKat only). */
     public final boolean isImmersiveModeEnabled;
 
@@ -394,6 +415,9 @@ public class GlobalPrefs
     /** Server UDP/TCP port number */
     public final int netplayServerUdpTcpPort;
 
+    /** True if hosted games run as a session of the netplay session host */
+    public final boolean netplayUseSessionHost;
+
     // Shared preferences keys and key templates
     static final String KEY_EMULATION_PROFILE_DEFAULT = "emulationProfileDefault";
     static final String KEY_TOUCHSCREEN_PROFILE_DEFAULT = "touchscreenProfileDefault";
@@ -468,7 +492,11 @@ public class GlobalPrefs
             FileUtil.makeDirs(screenshotsDir);
         }
         romInfoCacheCfg = context.getFilesDir().getAbsolutePath() + "/romInfoCache.cfg";
+        romInfoCacheIndex = context.getFilesDir().getAbsolutePath() + "/romInfoCache.idx";
+        galleryCache = context.getFilesDir().getAbsolutePath() + "/galleryCache.bin";
         coverArtDir = context.getFilesDir().getAbsolutePath() + "/CoverArt";
+        coverArtThumbnailDir = context.getCacheDir().getAbsolutePath() + "/CoverArtThumbnails";
+        coverArtDownloadQueue = context.getFilesDir().getAbsolutePath() + "/coverArtDownloads.journal";
         profilesDir = context.getFilesDir().getAbsolutePath() + "/Profiles";
         controllerProfiles_cfg = profilesDir + "/controller.cfg";
         touchscreenProfiles_cfg = profilesDir + "/touchscreen.cfg";
@@ -560,6 +588,9 @@ public class GlobalPrefs
 
 
         isFpsEnabled = !fpsPosition.equals("off");
+        isFrameTimeGraphEnabled = mPreferences.getBoolean( "displayFrameTimeGraph", false );
+        isNetplayStatsEnabled = mPreferences.getBoolean( "displayNetplayStats", false );
+        isFrameTimingTraceEnabled = mPreferences.getBoolean( "recordFrameTiming", false );
 
         int tempFpsXPosition = 0;
         int tempFpsYPosition = 0;
@@ -761,6 +792,7 @@ public class GlobalPrefs
         netplayRoomTcpPort = tempRoomTcpPort > 1024 ? tempRoomTcpPort : 43821;
         int tempServerUdpTcpPort = getSafeInt( mPreferences, SERVER_UDP_TCP_PORT, 43822 );
         netplayServerUdpTcpPort = tempServerUdpTcpPort > 1024 && tempServerUdpTcpPort != tempRoomTcpPort ? tempServerUdpTcpPort : 43822;
+        netplayUseSessionHost = mPreferences.getBoolean( "netplaySessionHost", false );
 
         supportedGlesVersion = AppData.getOpenGlEsVersion(context);
         gpuRenderer = AppData.getOpenGlEsRenderer();
@@ -89,6 +89,7 @@ public class ControllerProfileActivity extends ControllerProfileActivityBase imp
         setupButton( R.id.buttonSpeedUp,       InputMap.FUNC_SPEED_UP );
         setupButton( R.id.buttonFastForward,   InputMap.FUNC_FAST_FORWARD );
         setupButton( R.id.buttonFrameAdvance,  InputMap.FUNC_FRAME_ADVANCE );
+        setupButton( R.id.buttonRewind,        InputMap.FUNC_REWIND );
         setupButton( R.id.buttonGameshark,     InputMap.FUNC_GAMESHARK );
         setupButton( R.id.buttonSimulateBack,  InputMap.FUNC_SIMULATE_BACK );
         setupButton( R.id.buttonSimulateMenu,  InputMap.FUNC_SIMULATE_MENU );
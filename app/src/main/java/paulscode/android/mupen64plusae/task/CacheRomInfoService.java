@@ -53,23 +53,25 @@ import org.apache.commons.compress.archivers.zip.ZipFile;
 import paulscode.android.mupen64plusae.R;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -79,9 +81,11 @@ import paulscode.android.mupen64plusae.GalleryActivity;
 import paulscode.android.mupen64plusae.dialog.ProgressDialog;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.GalleryCache;
 import paulscode.android.mupen64plusae.util.CountryCode;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomFingerprintIndex;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
 import paulscode.android.mupen64plusae.util.RomHeader;
 import paulscode.android.mupen64plusae.util.SevenZInputStream;
@@ -91,13 +95,19 @@ public class CacheRomInfoService extends Service
     private Uri mSearchUri = null;
     private String mDatabasePath;
     private String mConfigPath;
+    private String mIndexPath;
+    private String mGalleryCachePath;
     private String mArtDir;
+    private String mArtQueuePath;
     private boolean mSearchZips;
     private boolean mDownloadArt;
     private boolean mClearGallery;
     private boolean mSearchSubdirectories;
     private boolean mSearchSingleFile;
-    private boolean mbStopped;
+    private volatile boolean mbStopped;
+    private volatile boolean mScanInParallel;
+    private CoverArtDownloadQueue mArtDownloadQueue = null;
+    private GalleryCache mGalleryCache = null;
     private int mCurrentProgress = 0;
     private int mCurrentMaxProgress = 0;
     private String mCurrentDialogText = "";
@@ -115,6 +125,15 @@ public class CacheRomInfoService extends Service
     final static String NOTIFICATION_CHANNEL_ID_V2 = "CacheRomInfoServiceChannelV2";
 
     final static int MAX_ROM_FILE_NAME_SIZE = 25;
+
+    // Upper limit on scan worker threads so we don't flood storage with concurrent reads
+    final static int MAX_SCAN_THREADS = 8;
+
+    // Number of cover art images downloaded at the same time
+    final static int MAX_ART_DOWNLOADS = 4;
+
+    // How often download progress is updated while waiting for cover art
+    final static long ART_PROGRESS_INTERVAL_MS = 250;
     
     public interface CacheRomInfoListener
     {
@@ -161,23 +180,31 @@ public class CacheRomInfoService extends Service
             // Ensure destination directories exist
             FileUtil.makeDirs(mArtDir);
 
-            List<Uri> filesToSearch;
+            // Start downloading cover art right away so that it overlaps with the scan
+            if (mDownloadArt && !TextUtils.isEmpty(mArtQueuePath)) {
+                mArtDownloadQueue = new CoverArtDownloadQueue(mArtQueuePath, MAX_ART_DOWNLOADS, FileUtil::isFileImage);
+                mArtDownloadQueue.start();
+            }
+
+            List<FileUtil.FileMetadata> filesToSearch;
             if (mSearchSingleFile)
             {
                 filesToSearch = new ArrayList<>();
 
                 if (mSearchUri != null) {
-                    filesToSearch.add(mSearchUri);
+                    filesToSearch.add(FileUtil.getFileMetadata(getApplicationContext(), mSearchUri));
                 }
             }
             else
             {
-                filesToSearch = FileUtil.listAllFiles(getApplicationContext(), mSearchUri, mSearchSubdirectories);
+                filesToSearch = FileUtil.listAllFilesWithMetadata(getApplicationContext(), mSearchUri, mSearchSubdirectories);
 
                 if (filesToSearch.isEmpty()) {
 
                     DocumentFile fileTree = FileUtil.getDocumentFileTree(getApplicationContext(), mSearchUri);
-                    filesToSearch = FileUtil.listAllFilesLegacy(fileTree, mSearchSubdirectories);
+                    for (Uri file : FileUtil.listAllFilesLegacy(fileTree, mSearchSubdirectories)) {
+                        filesToSearch.add(FileUtil.getFileMetadata(getApplicationContext(), file));
+                    }
                 }
             }
 
@@ -188,57 +215,67 @@ public class CacheRomInfoService extends Service
             }
             
             final ConfigFile config = new ConfigFile( mConfigPath );
-            if (mClearGallery)
+            final RomFingerprintIndex index = new RomFingerprintIndex( mIndexPath );
+
+            // ROMs found or removed by the scan are appended to the gallery cache as they change,
+            // instead of rebuilding it from the config file once the scan is done
+            if (!TextUtils.isEmpty(mGalleryCachePath)) {
+                mGalleryCache = new GalleryCache(mGalleryCachePath, mConfigPath);
+                mGalleryCache.beginUpdate(getApplicationContext());
+            }
+            final Set<String> keysBeforeCleanup = new HashSet<>(config.keySet());
+
+            if (mClearGallery) {
                 config.clear();
+                index.clear();
+            }
 
             // Don't do this if we are trying to just quickly search a single file
             if (!mSearchSingleFile)
             {
                 removeLegacyEntries(config);
-                cleanupMissingFiles(config);
-            }
-
-            mCurrentProgress = 0;
-            mCurrentMaxProgress = filesToSearch.size();
-            updateDialog();
-
-            for( final Uri file : filesToSearch )
-            {
-                mCurrentDialogSubText = "";
-                updateDialog();
+                Set<String> existingFiles = cleanupMissingFiles(config, filesToSearch);
 
-                String fileName = FileUtil.getFileName(getApplicationContext(), file);
-                if (fileName == null) {
-                    continue;
+                if (!existingFiles.isEmpty()) {
+                    index.retainAll(existingFiles);
                 }
+            }
 
-                mCurrentDialogText = getShortFileName(fileName);
-                mCurrentDialogMessage = getString(R.string.cacheRomInfo_searching);
-                updateDialog();
-
-                if( mbStopped ) break;
-                RomHeader header = new RomHeader( getApplicationContext(), file );
-                if( header.isValid || header.isNdd ) {
-                    cacheFile( file, database, config);
-                } else if (mSearchZips && !configHasZip(config, file)) {
-                    if (header.isZip) {
-                        if (AppData.IS_NOUGAT) {
-                            cacheZipFast(database, file, config);
-                        } else {
-                            cacheZip(database, file, config);
-                        }
-                    } else if (header.is7Zip && AppData.IS_NOUGAT) {
-                        cache7Zip(database, file, config);
+            if (mGalleryCache != null) {
+                for (String key : keysBeforeCleanup) {
+                    if (config.get(key) == null) {
+                        mGalleryCache.remove(key);
                     }
                 }
+            }
+
+            final HashMap<String, List<RomFingerprintIndex.RomEntry>> cachedZips = getCachedZips(config);
+
+            // Only open files that changed since the last scan, a single file is always searched
+            List<FileUtil.FileMetadata> changedFiles = mSearchSingleFile ? filesToSearch :
+                    findChangedFiles(filesToSearch, index, config, cachedZips);
+            Log.i( "CacheRomInfoService", changedFiles.size() + " of " + filesToSearch.size() + " files need to be scanned" );
 
-                ++mCurrentProgress;
-                updateDialog();
+            mCurrentProgress = filesToSearch.size() - changedFiles.size();
+            mCurrentMaxProgress = filesToSearch.size();
+            updateDialog();
+
+            // Searching a single file is quick, only spin up the worker pool for full scans
+            if (mSearchSingleFile || changedFiles.size() <= 1) {
+                scanFilesSequentially(changedFiles, database, config, index, cachedZips);
+            } else {
+                scanFilesInParallel(changedFiles, database, config, index, cachedZips);
             }
 
             downloadCoverArt(database, config);
 
             config.save();
+            index.save();
+
+            if (mGalleryCache != null) {
+                mGalleryCache.endUpdate();
+                mGalleryCache = null;
+            }
             
             if (mListener != null)
             {
@@ -321,7 +358,10 @@ public class CacheRomInfoService extends Service
             }
             mDatabasePath = extras.getString( ActivityHelper.Keys.DATABASE_PATH );
             mConfigPath = extras.getString( ActivityHelper.Keys.CONFIG_PATH );
+            mIndexPath = extras.getString( ActivityHelper.Keys.INDEX_PATH );
+            mGalleryCachePath = extras.getString( ActivityHelper.Keys.GALLERY_CACHE_PATH );
             mArtDir = extras.getString( ActivityHelper.Keys.ART_DIR );
+            mArtQueuePath = extras.getString( ActivityHelper.Keys.ART_QUEUE_PATH );
             mSearchZips = extras.getBoolean( ActivityHelper.Keys.SEARCH_ZIPS );
             mDownloadArt = extras.getBoolean( ActivityHelper.Keys.DOWNLOAD_ART );
             mClearGallery = extras.getBoolean( ActivityHelper.Keys.CLEAR_GALLERY );
@@ -336,7 +376,206 @@ public class CacheRomInfoService extends Service
         return START_STICKY;
     }
 
-    private void cacheZip(RomDatabase database, Uri file, ConfigFile config)
+    /**
+     * A ROM found while scanning, either a plain file or an entry inside an archive
+     */
+    private static class ScannedRom
+    {
+        final Uri uri;
+        final String name;
+        final RomHeader header;
+        final String md5;
+        final Uri zipFileLocation;
+
+        ScannedRom(@Nullable Uri uri, @NonNull String name, RomHeader header, String md5, @Nullable Uri zipFileLocation)
+        {
+            this.uri = uri;
+            this.name = name;
+            this.header = header;
+            this.md5 = md5;
+            this.zipFileLocation = zipFileLocation;
+        }
+    }
+
+    /**
+     * Everything found while scanning a single file from the search list
+     */
+    private static class ScanResult
+    {
+        final FileUtil.FileMetadata file;
+        final String fileName;
+        final List<ScannedRom> roms = new ArrayList<>();
+
+        // Header CRC if this is a plain ROM file
+        String crc = null;
+
+        // True if the file was fully searched and can be added to the fingerprint index
+        boolean complete = false;
+
+        ScanResult(FileUtil.FileMetadata file, @Nullable String fileName)
+        {
+            this.file = file;
+            this.fileName = fileName;
+        }
+    }
+
+    private void scanFilesSequentially(List<FileUtil.FileMetadata> filesToSearch, RomDatabase database, ConfigFile config,
+                                       RomFingerprintIndex index, HashMap<String, List<RomFingerprintIndex.RomEntry>> cachedZips)
+    {
+        mScanInParallel = false;
+
+        for( final FileUtil.FileMetadata file : filesToSearch )
+        {
+            if( mbStopped ) break;
+
+            mCurrentDialogSubText = "";
+
+            ScanResult result = scanFile(file, mSearchZips && !cachedZips.containsKey(file.uri.toString()));
+            writeScanResult(result, database, config, index);
+        }
+    }
+
+    /**
+     * Scan files on a bounded pool of worker threads. Workers only read the files, all results are
+     * merged into the config file from the calling thread so the config only ever has one writer.
+     */
+    private void scanFilesInParallel(List<FileUtil.FileMetadata> filesToSearch, RomDatabase database, ConfigFile config,
+                                     RomFingerprintIndex index, HashMap<String, List<RomFingerprintIndex.RomEntry>> cachedZips)
+    {
+        mScanInParallel = true;
+
+        final int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_SCAN_THREADS));
+        Log.i( "CacheRomInfoService", "Scanning " + filesToSearch.size() + " files using " + numThreads + " threads" );
+
+        // Keep the workers at background priority, same as the service thread
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads, runnable -> new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "CacheRomInfoWorker"));
+        ExecutorCompletionService<ScanResult> completionService = new ExecutorCompletionService<>(executorService);
+
+        mCurrentDialogMessage = getString(R.string.cacheRomInfo_searching);
+        updateDialog();
+
+        int pendingResults = 0;
+        for( final FileUtil.FileMetadata file : filesToSearch )
+        {
+            final boolean searchArchives = mSearchZips && !cachedZips.containsKey(file.uri.toString());
+            completionService.submit(() -> scanFile(file, searchArchives));
+            ++pendingResults;
+        }
+
+        try {
+            while (pendingResults > 0 && !mbStopped) {
+                Future<ScanResult> future = completionService.take();
+                --pendingResults;
+
+                try {
+                    writeScanResult(future.get(), database, config, index);
+                } catch (ExecutionException e) {
+                    Log.w( "CacheRomInfoService", e );
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w( "CacheRomInfoService", "ROM scan interrupted" );
+            Thread.currentThread().interrupt();
+        } finally {
+            executorService.shutdownNow();
+            mScanInParallel = false;
+        }
+    }
+
+    private void writeScanResult(ScanResult result, RomDatabase database, ConfigFile config, RomFingerprintIndex index)
+    {
+        if (result.fileName != null) {
+            mCurrentDialogText = getShortFileName(result.fileName);
+        }
+
+        List<RomFingerprintIndex.RomEntry> indexEntries = new ArrayList<>(result.roms.size());
+        for (ScannedRom rom : result.roms) {
+            mCurrentDialogSubText = getShortFileName(rom.name);
+            cacheFile(rom.uri, rom.name, rom.header, rom.md5, database, config, rom.zipFileLocation);
+            indexEntries.add(new RomFingerprintIndex.RomEntry(rom.name, rom.uri == null ? null : rom.uri.toString(), rom.md5));
+
+            if (mArtDownloadQueue != null) {
+                queueCoverArtDownload(rom.md5, database, config);
+            }
+        }
+
+        if (result.complete) {
+            index.put(result.file, result.crc, indexEntries);
+        }
+
+        ++mCurrentProgress;
+        updateDialog();
+    }
+
+    /**
+     * Read the header, MD5 and any archive entries of a file. This doesn't touch the config file
+     * so it is safe to call from scan worker threads.
+     * @param file File to scan
+     * @param searchArchives True if zip and 7zip files should be searched for ROMs
+     * @return All ROMs found in the file
+     */
+    private ScanResult scanFile(FileUtil.FileMetadata file, boolean searchArchives)
+    {
+        ScanResult result = new ScanResult(file, file.name != null ? file.name :
+                FileUtil.getFileName(getApplicationContext(), file.uri));
+
+        if (result.fileName == null || mbStopped) {
+            return result;
+        }
+
+        setScanStatus(result.fileName, null, R.string.cacheRomInfo_searching);
+
+        RomHeader header = new RomHeader( getApplicationContext(), file.uri );
+        if( header.isValid || header.isNdd ) {
+            result.crc = header.crc;
+            result.complete = scanRomFile( file.uri, result.fileName, header, result.roms );
+        } else if (header.isZip || header.is7Zip) {
+            if (!searchArchives) {
+                // Leave it out of the index so it's looked at again if zip searching is enabled
+                result.complete = false;
+            } else if (header.isZip) {
+                if (AppData.IS_NOUGAT) {
+                    result.complete = cacheZipFast(file.uri, result.roms);
+                } else {
+                    result.complete = cacheZip(file.uri, result.roms);
+                }
+            } else {
+                result.complete = !AppData.IS_NOUGAT || cache7Zip(file.uri, result.roms);
+            }
+        } else {
+            // Not a ROM, remember that so it's not opened again
+            result.complete = true;
+        }
+
+        result.complete = result.complete && !mbStopped;
+
+        return result;
+    }
+
+    /**
+     * Update the progress dialog while scanning. This is skipped when scanning in parallel since
+     * progress is then reported as results are merged.
+     */
+    private void setScanStatus(@Nullable String text, @Nullable String subText, int messageResId)
+    {
+        if (mScanInParallel) {
+            return;
+        }
+
+        if (text != null) {
+            mCurrentDialogText = getShortFileName(text);
+        }
+        if (subText != null) {
+            mCurrentDialogSubText = getShortFileName(subText);
+        }
+        mCurrentDialogMessage = getString(messageResId);
+        updateDialog();
+    }
+
+    private boolean cacheZip(Uri file, List<ScannedRom> roms)
     {
         Log.i( "CacheRomInfoService", "Found zip file " + file.toString() );
         ZipInputStream zipfile = null;
@@ -351,17 +590,15 @@ public class CacheRomInfoService extends Service
                 // Assume only one entry per zip file
                 if( entry != null && !mbStopped)
                 {
-                    mCurrentDialogSubText = getShortFileName(new File(entry.getName()).getName());
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_searchingZip);
-                    updateDialog();
+                    setScanStatus(null, new File(entry.getName()).getName(), R.string.cacheRomInfo_searchingZip);
 
                     InputStream zipStream = new BufferedInputStream(zipfile);
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_extractingZip);
-                    updateDialog();
+                    setScanStatus(null, null, R.string.cacheRomInfo_extractingZip);
 
-                    cacheZipFileFromInputStream(database, file, config, new File(entry.getName()).getName(), zipStream);
+                    cacheZipFileFromInputStream(file, roms, new File(entry.getName()).getName(), zipStream);
                 }
                 zipfile.close();
+                return true;
             }
         }
         catch (Exception|OutOfMemoryError e )
@@ -377,10 +614,12 @@ public class CacheRomInfoService extends Service
             } catch (IOException ignored) {
             }
         }
+
+        return false;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
-    private void cacheZipFast(RomDatabase database, Uri file, ConfigFile config)
+    private boolean cacheZipFast(Uri file, List<ScannedRom> roms)
     {
         Log.i( "CacheRomInfoService", "Found zip file " + file.toString() );
 
@@ -401,15 +640,12 @@ public class CacheRomInfoService extends Service
 
                     InputStream zipStream;
 
-                    mCurrentDialogSubText = getShortFileName(new File(zipEntry.getName()).getName());
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_searchingZip);
-                    updateDialog();
+                    setScanStatus(null, new File(zipEntry.getName()).getName(), R.string.cacheRomInfo_searchingZip);
 
                     zipStream = new BufferedInputStream(zipFile.getInputStream(zipEntry));
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_extractingZip);
-                    updateDialog();
+                    setScanStatus(null, null, R.string.cacheRomInfo_extractingZip);
 
-                    if (cacheZipFileFromInputStream(database, file, config, new File(zipEntry.getName()).getName(), zipStream)) {
+                    if (cacheZipFileFromInputStream(file, roms, new File(zipEntry.getName()).getName(), zipStream)) {
                         currentChance = 0;
                     } else {
                         ++currentChance;
@@ -417,14 +653,17 @@ public class CacheRomInfoService extends Service
                 }
                 zipFile.close();
                 fileInputStream.close();
+                return true;
             }
         } catch (Exception|OutOfMemoryError e) {
             Log.w("CacheRomInfoService", "IOException: " + e);
         }
+
+        return false;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
-    private void cache7Zip(RomDatabase database, Uri file, ConfigFile config)
+    private boolean cache7Zip(Uri file, List<ScannedRom> roms)
     {
         Log.i( "CacheRomInfoService", "Found 7zip file " + file.toString() );
 
@@ -447,15 +686,12 @@ public class CacheRomInfoService extends Service
                     }
 
                     InputStream zipStream;
-                    mCurrentDialogSubText = getShortFileName(new File(zipEntry.getName()).getName());
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_searchingZip);
-                    updateDialog();
+                    setScanStatus(null, new File(zipEntry.getName()).getName(), R.string.cacheRomInfo_searchingZip);
 
                     zipStream = new BufferedInputStream(new SevenZInputStream(zipFile));
-                    mCurrentDialogMessage = getString(R.string.cacheRomInfo_extractingZip);
-                    updateDialog();
+                    setScanStatus(null, null, R.string.cacheRomInfo_extractingZip);
 
-                    if (cacheZipFileFromInputStream(database, file, config, new File(zipEntry.getName()).getName(), zipStream)) {
+                    if (cacheZipFileFromInputStream(file, roms, new File(zipEntry.getName()).getName(), zipStream)) {
                         currentChance = 0;
                     } else {
                         ++currentChance;
@@ -463,14 +699,16 @@ public class CacheRomInfoService extends Service
                 }
                 zipFile.close();
                 fileInputStream.close();
-
+                return true;
             }
         } catch (Exception|OutOfMemoryError e) {
             Log.w("CacheRomInfoService", "IOException: " + e);
         }
+
+        return false;
     }
 
-    private boolean cacheZipFileFromInputStream(RomDatabase database, Uri zipFile, ConfigFile config, String name,
+    private boolean cacheZipFileFromInputStream(Uri zipFile, List<ScannedRom> roms, String name,
                                              InputStream inputStream) throws IOException, NoSuchAlgorithmException {
         //First get the rom header
         inputStream.mark(500);
@@ -485,11 +723,10 @@ public class CacheRomInfoService extends Service
 
                 //Then extract the ROM file
                 inputStream.reset();
-                mCurrentDialogMessage = getString(R.string.cacheRomInfo_computingMD5);
-                updateDialog();
+                setScanStatus(null, null, R.string.cacheRomInfo_computingMD5);
                 String md5 = FileUtil.computeMd5( inputStream );
 
-                cacheFile(null, name, extractedHeader, md5, database, config, zipFile );
+                roms.add(new ScannedRom(null, name, extractedHeader, md5, zipFile));
 
                 return true;
             }
@@ -518,122 +755,32 @@ public class CacheRomInfoService extends Service
 
             String countryCodeString = Byte.toString(header.countryCode.getValue());
             config.put( md5, "countryCode",  countryCodeString);
+
+            if (mGalleryCache != null) {
+                mGalleryCache.put(getApplicationContext(), config, md5);
+            }
         }
     }
 
-    private void cacheFile(Uri file, RomDatabase database, ConfigFile config )
+    private boolean scanRomFile(Uri file, @NonNull String fileName, RomHeader header, List<ScannedRom> roms)
     {
-        String fileName = FileUtil.getFileName(getApplicationContext(), file);
-        mCurrentDialogSubText = getShortFileName(fileName);
-        updateDialog();
+        setScanStatus(null, fileName, R.string.cacheRomInfo_computingMD5);
 
         try (ParcelFileDescriptor parcelFileDescriptor = getApplicationContext().getContentResolver().openFileDescriptor(file, "r")) {
 
             if (parcelFileDescriptor != null) {
-                InputStream bufferedStream = new BufferedInputStream(new FileInputStream(parcelFileDescriptor.getFileDescriptor()));
-                String md5 = FileUtil.computeMd5(bufferedStream);
-                RomHeader header = new RomHeader(getApplicationContext(), file);
+                FileInputStream fileInputStream = new FileInputStream(parcelFileDescriptor.getFileDescriptor());
+                String md5 = FileUtil.computeMd5(fileInputStream.getChannel());
 
-                if (fileName != null) {
-                    cacheFile(file, fileName, header, md5, database, config, null);
-                }
+                roms.add(new ScannedRom(file, fileName, header, md5, null));
+                return true;
             }
 
         } catch (Exception|OutOfMemoryError e) {
             e.printStackTrace();
         }
-    }
-
-    private void downloadFile( String sourceUrl, String destPath )
-    {
-        File destFile = new File(destPath);
-        boolean fileCreationSuccess = true;
-
-        File parentFile = destFile.getParentFile();
-
-        if (parentFile != null) {
-            // Be sure destination directory exists
-            FileUtil.makeDirs(destFile.getParentFile().getPath());
-        }
-
-        // Delete the file if it already exists, we are replacing it
-        if (destFile.exists())
-        {
-            if (destFile.delete())
-            {
-                Log.w( "CacheRomInfoService", "Unable to delete " + destFile.getName());
-            }
-        }
-
-        // Download file
-        InputStream inStream = null;
-        OutputStream outStream = null;
-        try
-        {
-            // Open the streams (throws exceptions)
-            URL url = new URL( sourceUrl );
-            inStream = url.openStream();
-            outStream = new FileOutputStream( destPath );
-
-            // Buffer the streams
-            inStream = new BufferedInputStream( inStream );
-            outStream = new BufferedOutputStream( outStream );
-
-            // Read/write the streams (throws exceptions)
-            byte[] buffer = new byte[1024];
-            int n;
-            while( ( n = inStream.read( buffer ) ) >= 0)
-            {
-                outStream.write( buffer, 0, n );
-            }
-
-            // Check if downloaded file is valid
-            if (!FileUtil.isFileImage(destFile))
-            {
-                if (destFile.delete())
-                {
-                    Log.w( "CacheRomInfoService", "Deleting invalid image " + destFile.getName());
-                }
-            }
-
-
-        }
-        catch( Throwable e )
-        {
-            Log.w( "CacheRomInfoService", e );
-            fileCreationSuccess = false;
-        }
-        finally
-        {
-            // Flush output stream and guarantee no memory leaks
-            if( outStream != null )
-                try
-                {
-                    outStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-            if( inStream != null )
-                try
-                {
-                    inStream.close();
-                }
-                catch( IOException e )
-                {
-                    Log.w( "CacheRomInfoService", e );
-                }
-        }
 
-        if (!fileCreationSuccess && !destFile.isDirectory())
-        {
-            // Delete any remnants if there was an exception. We don't want a
-            // corrupted graphic
-            if (!destFile.delete()) {
-                Log.w("CacheRomInfoService", "Unable to delete " + destFile.getName());
-            }
-        }
+        return false;
     }
 
     @Override
@@ -671,54 +818,108 @@ public class CacheRomInfoService extends Service
     }
 
     /**
-     * Return true if the config file already contains the given zip file, this is because
-     * exctracting zip files takes a long time
-     * @param zipFile Zip file to search config file for
-     * @return true if zip file is present
+     * Find all zip files already in the config file, this is because extracting zip files takes
+     * a long time
+     * @param theConfigFile Config file to search
+     * @return Map of zip file URIs to the ROMs found in them, only zips with valid data are included
      */
-    private boolean configHasZip(ConfigFile theConfigFile, Uri zipFile)
+    private HashMap<String, List<RomFingerprintIndex.RomEntry>> getCachedZips(ConfigFile theConfigFile)
     {
-        Set<String> keys = theConfigFile.keySet();
-        boolean found = false;
+        HashMap<String, List<RomFingerprintIndex.RomEntry>> cachedZips = new HashMap<>();
 
-        Iterator<String> iter = keys.iterator();
-        String key = null;
-        while (iter.hasNext() && !found) {
-            key = iter.next();
+        for (String key : theConfigFile.keySet()) {
             String foundZipPath = theConfigFile.get(key, "zipPathUri");
-            found = foundZipPath != null && foundZipPath.equals(zipFile.toString());
-        }
-
-        // If found,make sure it also has  valid data
-        if (found && key != null) {
+            String romPath = theConfigFile.get(key, "romPathUri");
             String crc = theConfigFile.get( key, "crc" );
             String headerName = theConfigFile.get( key, "headerName" );
             final String countryCodeString = theConfigFile.get( key, "countryCode" );
 
-            found = crc != null && headerName != null && countryCodeString != null;
+            if (!TextUtils.isEmpty(foundZipPath) && crc != null && headerName != null && countryCodeString != null) {
+                List<RomFingerprintIndex.RomEntry> roms = cachedZips.get(foundZipPath);
+                if (roms == null) {
+                    roms = new ArrayList<>();
+                    cachedZips.put(foundZipPath, roms);
+                }
+                // ROMs inside archives have no URI of their own, cacheFile stores their name as the
+                // ROM path instead
+                Uri romUri = TextUtils.isEmpty(romPath) ? null : Uri.parse(romPath);
+                if (romUri != null && romUri.getScheme() != null) {
+                    String name = romUri.getLastPathSegment();
+                    roms.add(new RomFingerprintIndex.RomEntry(name != null ? name : "", romPath, key));
+                } else {
+                    roms.add(new RomFingerprintIndex.RomEntry(romPath != null ? romPath : "", null, key));
+                }
+            }
+        }
+
+        return cachedZips;
+    }
+
+    /**
+     * Find all the files that need to be opened during this scan. A file is skipped if its
+     * fingerprint hasn't changed and all the ROMs found in it are still in the config file.
+     * Zip files already in the config file are also skipped and added to the index.
+     * @param filesToSearch All files that were found
+     * @param index Fingerprint index from the previous scan
+     * @param theConfigFile Config file
+     * @param cachedZips Zip files already in the config file
+     * @return Files that need to be scanned
+     */
+    private List<FileUtil.FileMetadata> findChangedFiles(List<FileUtil.FileMetadata> filesToSearch, RomFingerprintIndex index,
+                                                         ConfigFile theConfigFile, HashMap<String, List<RomFingerprintIndex.RomEntry>> cachedZips)
+    {
+        List<FileUtil.FileMetadata> changedFiles = new ArrayList<>();
+
+        for (FileUtil.FileMetadata file : filesToSearch) {
+            final String uriString = file.uri.toString();
+
+            if (index.isUnchanged(file)) {
+                RomFingerprintIndex.Fingerprint fingerprint = index.get(uriString);
+                boolean allRomsPresent = true;
+
+                for (RomFingerprintIndex.RomEntry rom : fingerprint.roms) {
+                    allRomsPresent = allRomsPresent && theConfigFile.get(rom.md5) != null;
+                }
+
+                if (allRomsPresent) {
+                    continue;
+                }
+            } else if (mSearchZips && cachedZips.containsKey(uriString)) {
+                index.put(file, null, cachedZips.get(uriString));
+                continue;
+            }
+
+            changedFiles.add(file);
         }
 
-        return found;
+        return changedFiles;
     }
 
     /**
      * Cleanup any missing files from the config file
      * @param theConfigFile Config file to clean up
+     * @param searchedFiles Files found in the current search folder, used to avoid listing it again
+     * @return URIs of all files that currently exist, empty if they could not be listed
      */
-    private void cleanupMissingFiles(ConfigFile theConfigFile )
+    private Set<String> cleanupMissingFiles(ConfigFile theConfigFile, List<FileUtil.FileMetadata> searchedFiles)
     {
         List<UriPermission> permissions = getContentResolver().getPersistedUriPermissions();
-        List<Uri> allFiles = new LinkedList<>();
+        HashSet<String> allFiles = new HashSet<>();
         for (UriPermission permission : permissions) {
-            List<Uri> files = FileUtil.listAllFiles(getApplicationContext(), permission.getUri(), true);
-            allFiles.addAll(files);
+            if (mSearchSubdirectories && permission.getUri().equals(mSearchUri)) {
+                for (FileUtil.FileMetadata file : searchedFiles) {
+                    allFiles.add(file.uri.toString());
+                }
+            } else {
+                for (Uri file : FileUtil.listAllFiles(getApplicationContext(), permission.getUri(), true)) {
+                    allFiles.add(file.toString());
+                }
+            }
         }
 
-        Set<String> keys = theConfigFile.keySet();
+        List<String> keysToRemove = new ArrayList<>();
 
-        Iterator<String> iter = keys.iterator();
-        while (iter.hasNext()) {
-            String key = iter.next();
+        for (String key : theConfigFile.keySet()) {
             String foundZipPath = theConfigFile.get(key, "zipPathUri");
             String foundRomPath = theConfigFile.get(key, "romPathUri");
 
@@ -740,7 +941,7 @@ public class CacheRomInfoService extends Service
                 //Remove the entry since it doesn't exist
                 boolean removeEntry;
                 if (!allFiles.isEmpty()) {
-                    removeEntry = !allFiles.contains(uri);
+                    removeEntry = !allFiles.contains(uri.toString());
                 } else {
                     DocumentFile romFile = FileUtil.getDocumentFileSingle(getApplicationContext(), uri);
                     //Remove the entry since it doesn't exist
@@ -748,13 +949,16 @@ public class CacheRomInfoService extends Service
                 }
 
                 if (removeEntry) {
-                    theConfigFile.remove(key);
-                    keys = theConfigFile.keySet();
-                    iter = keys.iterator();
+                    keysToRemove.add(key);
                 }
-
             }
         }
+
+        for (String key : keysToRemove) {
+            theConfigFile.remove(key);
+        }
+
+        return allFiles;
     }
 
     /**
@@ -783,70 +987,96 @@ public class CacheRomInfoService extends Service
         }
     }
 
-    private void downloadCoverArt(RomDatabase database, ConfigFile theConfigFile)
+    /**
+     * Queue a cover art download for a ROM if it doesn't have cover art yet
+     * @param md5 MD5 of the ROM
+     * @param database ROM database used to find the art URL
+     * @param theConfigFile Config file holding the ROM
+     */
+    private void queueCoverArtDownload(String md5, RomDatabase database, ConfigFile theConfigFile)
     {
-        if( mDownloadArt )
+        String artPath = theConfigFile.get(md5, "artPath");
+        String romGoodName = theConfigFile.get(md5, "goodName");
+        String crc = theConfigFile.get(md5, "crc");
+        final String countryCodeString = theConfigFile.get( md5, "countryCode" );
+        CountryCode countryCode = CountryCode.UNKNOWN;
+        if (countryCodeString != null)
         {
-            Set<String> keys = theConfigFile.keySet();
+            countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
+        }
 
-            mCurrentProgress = 0;
-            mCurrentMaxProgress = keys.size();
-            mCurrentDialogMessage = "";
-            mCurrentDialogSubText = getString(R.string.cacheRomInfo_downloadingArt);
-            updateDialog();
+        // Downloaded art is validated before it's put in place, so existing art is good
+        if(!TextUtils.isEmpty(artPath) && !TextUtils.isEmpty(romGoodName) && !TextUtils.isEmpty(crc) &&
+                !new File(artPath).exists())
+        {
+            RomDetail detail = database.lookupByMd5WithFallback( md5, romGoodName, crc, countryCode );
+            mArtDownloadQueue.enqueue( detail.artUrl, artPath );
+        }
+    }
 
-            for (String key : keys) {
-                String artPath = theConfigFile.get(key, "artPath");
-                String romGoodName = theConfigFile.get(key, "goodName");
-                String crc = theConfigFile.get(key, "crc");
-                final String countryCodeString = theConfigFile.get( key, "countryCode" );
-                CountryCode countryCode = CountryCode.UNKNOWN;
-                if (countryCodeString != null)
-                {
-                    countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
+    /**
+     * Queue cover art downloads for ROMs that were not scanned, then wait for all downloads
+     * to finish
+     */
+    private void downloadCoverArt(RomDatabase database, ConfigFile theConfigFile)
+    {
+        if( mArtDownloadQueue != null )
+        {
+            for (String key : theConfigFile.keySet()) {
+                if (ConfigFile.SECTIONLESS_NAME.equals(key)) {
+                    continue;
                 }
 
-                if(!TextUtils.isEmpty(artPath) && !TextUtils.isEmpty(romGoodName) && !TextUtils.isEmpty(crc))
+                boolean downloadArt = true;
+
+                if (mSearchSingleFile)
                 {
-                    //Only download art if it's not already present or current art is not a valid image
-                    File artPathFile = new File (artPath);
-                    if(!artPathFile.exists() || !FileUtil.isFileImage(artPathFile))
-                    {
-                        boolean downloadArt = true;
-
-                        if (mSearchSingleFile)
-                        {
-                            String zipUri = theConfigFile.get(key, "zipPathUri");
-                            String romUri = theConfigFile.get(key, "romPathUri");
-                            try {
-                                String decodedPath = URLDecoder.decode(mSearchUri.toString(), "UTF-8");
-                                String decodedItemZip = zipUri != null ? URLDecoder.decode(zipUri, "UTF-8") : null;
-                                String decodedItemRom = romUri != null ? URLDecoder.decode(romUri, "UTF-8") : null;
-
-                                downloadArt = (decodedItemZip != null && decodedItemZip.equals(decodedPath)) ||
-                                        (decodedItemRom != null && decodedItemRom.equals(decodedPath));
-                            } catch (UnsupportedEncodingException|java.lang.IllegalArgumentException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        if (downloadArt)
-                        {
-                            RomDetail detail = database.lookupByMd5WithFallback( key, romGoodName, crc, countryCode );
-                            mCurrentDialogText = getShortFileName(romGoodName);
-                            updateDialog();
-                            Log.i( "CacheRomInfoService", "Start art download: " +  artPath);
-                            downloadFile( detail.artUrl, artPath );
-                            Log.i( "CacheRomInfoService", "End art download: " +  artPath);
-                        }
+                    String zipUri = theConfigFile.get(key, "zipPathUri");
+                    String romUri = theConfigFile.get(key, "romPathUri");
+                    try {
+                        String decodedPath = URLDecoder.decode(mSearchUri.toString(), "UTF-8");
+                        String decodedItemZip = zipUri != null ? URLDecoder.decode(zipUri, "UTF-8") : null;
+                        String decodedItemRom = romUri != null ? URLDecoder.decode(romUri, "UTF-8") : null;
+
+                        downloadArt = (decodedItemZip != null && decodedItemZip.equals(decodedPath)) ||
+                                (decodedItemRom != null && decodedItemRom.equals(decodedPath));
+                    } catch (UnsupportedEncodingException|java.lang.IllegalArgumentException e) {
+                        e.printStackTrace();
                     }
                 }
 
-                ++mCurrentProgress;
-                updateDialog();
+                if (downloadArt)
+                {
+                    queueCoverArtDownload(key, database, theConfigFile);
+                }
 
                 if( mbStopped ) break;
             }
+
+            mCurrentDialogMessage = "";
+            mCurrentDialogText = "";
+            mCurrentDialogSubText = getString(R.string.cacheRomInfo_downloadingArt);
+
+            try {
+                boolean finished = false;
+                while (!finished && !mbStopped) {
+                    mCurrentProgress = mArtDownloadQueue.getFinishedCount();
+                    mCurrentMaxProgress = mArtDownloadQueue.getQueuedCount();
+                    updateDialog();
+
+                    finished = mArtDownloadQueue.awaitIdle(ART_PROGRESS_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Log.w( "CacheRomInfoService", "Cover art download interrupted" );
+                Thread.currentThread().interrupt();
+            }
+
+            Log.i( "CacheRomInfoService", mArtDownloadQueue.getSucceededCount() + " of " +
+                    mArtDownloadQueue.getQueuedCount() + " cover art downloads succeeded" );
+
+            // Anything that didn't finish is resumed on the next scan
+            mArtDownloadQueue.shutdown();
+            mArtDownloadQueue = null;
         }
 
         mCurrentDialogMessage = "";
@@ -0,0 +1,415 @@
+package paulscode.android.mupen64plusae.task;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Downloads cover art in the background with a fixed number of parallel connections. Jobs are
+ * written to a journal file as they are queued and finished, so downloads that didn't finish
+ * are picked up again the next time the queue is started. A job is only considered done once the
+ * downloaded file is validated, the image is downloaded next to its destination and only moved
+ * into place after that.
+ * <p>
+ * Connections are read to the end and closed without disconnecting, which lets
+ * {@link HttpURLConnection} reuse them for following downloads from the same host.
+ */
+public class CoverArtDownloadQueue
+{
+    private static final String TAG = "CoverArtDownloadQueue";
+
+    /** Bump this whenever the journal layout changes, older journals are then discarded */
+    private static final int JOURNAL_VERSION = 1;
+
+    private static final byte RECORD_QUEUED = 1;
+    private static final byte RECORD_DONE = 2;
+    private static final byte RECORD_FAILED = 3;
+
+    /** Jobs are dropped after failing this many times, even across restarts */
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    /**
+     * Decides if a downloaded file is a valid image
+     */
+    public interface Validator
+    {
+        boolean isValid(File file);
+    }
+
+    private static class Job
+    {
+        final String url;
+        final String destPath;
+        int attempts;
+
+        Job(String url, String destPath, int attempts)
+        {
+            this.url = url;
+            this.destPath = destPath;
+            this.attempts = attempts;
+        }
+    }
+
+    private final String mJournalPath;
+    private final int mMaxConnections;
+    private final Validator mValidator;
+
+    /** Queued jobs that are not finished, keyed by destination path */
+    private final LinkedHashMap<String, Job> mPendingJobs = new LinkedHashMap<>();
+
+    private ExecutorService mExecutorService = null;
+    private DataOutputStream mJournal = null;
+    private int mQueuedCount = 0;
+    private int mFinishedCount = 0;
+    private int mSucceededCount = 0;
+
+    /**
+     * @param journalPath Path of the journal file used to persist the queue
+     * @param maxConnections Maximum number of downloads running at the same time
+     * @param validator Used to check downloaded files
+     */
+    public CoverArtDownloadQueue(String journalPath, int maxConnections, Validator validator)
+    {
+        mJournalPath = journalPath;
+        mMaxConnections = Math.max(maxConnections, 1);
+        mValidator = validator;
+    }
+
+    /**
+     * Start downloading, resuming any jobs left over from last time
+     */
+    public synchronized void start()
+    {
+        if (mExecutorService != null) {
+            return;
+        }
+
+        loadJournal();
+        rewriteJournal();
+
+        mExecutorService = Executors.newFixedThreadPool(mMaxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "CoverArtDownload");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (Job job : new ArrayList<>(mPendingJobs.values())) {
+            submit(job);
+        }
+
+        if (!mPendingJobs.isEmpty()) {
+            Log.i(TAG, "Resuming " + mPendingJobs.size() + " cover art downloads");
+        }
+    }
+
+    /**
+     * Queue a download. Nothing is done if a download to the same destination is already queued.
+     * @param url URL to download from
+     * @param destPath Where to store the image
+     */
+    public synchronized void enqueue(String url, String destPath)
+    {
+        if (mExecutorService == null || TextUtils.isEmpty(url) || TextUtils.isEmpty(destPath) ||
+                mPendingJobs.containsKey(destPath)) {
+            return;
+        }
+
+        Job job = new Job(url, destPath, 0);
+        mPendingJobs.put(destPath, job);
+        writeRecord(RECORD_QUEUED, job);
+        submit(job);
+    }
+
+    /**
+     * Wait until all queued downloads are finished or the queue is shut down
+     * @param timeoutMs Maximum time to wait
+     * @return True if all downloads are finished
+     */
+    public synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+
+        while (mFinishedCount < mQueuedCount && mExecutorService != null && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        return mFinishedCount >= mQueuedCount;
+    }
+
+    /**
+     * Stop downloading. Unfinished jobs stay in the journal and are resumed by the next start.
+     */
+    public synchronized void shutdown()
+    {
+        if (mExecutorService == null) {
+            return;
+        }
+
+        mExecutorService.shutdownNow();
+        mExecutorService = null;
+
+        closeJournal();
+        notifyAll();
+    }
+
+    /** Number of downloads queued since the queue was started, including resumed ones */
+    public synchronized int getQueuedCount()
+    {
+        return mQueuedCount;
+    }
+
+    /** Number of downloads that finished, successfully or not */
+    public synchronized int getFinishedCount()
+    {
+        return mFinishedCount;
+    }
+
+    /** Number of downloads that produced a valid image */
+    public synchronized int getSucceededCount()
+    {
+        return mSucceededCount;
+    }
+
+    private void submit(Job job)
+    {
+        ++mQueuedCount;
+        mExecutorService.submit(() -> runJob(job));
+    }
+
+    private void runJob(Job job)
+    {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        Log.i(TAG, "Start art download: " + job.destPath);
+        final boolean success = download(job.url, job.destPath);
+        Log.i(TAG, "End art download: " + job.destPath + (success ? "" : " (failed)"));
+
+        synchronized (this) {
+            // Don't record anything if we were stopped, the job will be resumed next time
+            if (mExecutorService == null) {
+                return;
+            }
+
+            if (success) {
+                mPendingJobs.remove(job.destPath);
+                writeRecord(RECORD_DONE, job);
+                ++mSucceededCount;
+            } else {
+                ++job.attempts;
+                writeRecord(RECORD_FAILED, job);
+
+                if (job.attempts >= MAX_ATTEMPTS) {
+                    mPendingJobs.remove(job.destPath);
+                }
+            }
+
+            ++mFinishedCount;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Download a file, validate it and move it to its destination
+     * @return True if the destination now holds a valid image
+     */
+    private boolean download(String sourceUrl, String destPath)
+    {
+        File destFile = new File(destPath);
+        File partFile = new File(destPath + ".part");
+
+        File parentFile = destFile.getParentFile();
+        if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs()) {
+            Log.w(TAG, "Unable to create " + parentFile.getPath());
+            return false;
+        }
+
+        HttpURLConnection connection = null;
+        boolean partWritten = false;
+        boolean success = false;
+
+        try {
+            connection = (HttpURLConnection) new URL(sourceUrl).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+
+            final int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                Log.w(TAG, "Unable to download " + sourceUrl + ", response code " + responseCode);
+
+                // Consume the error body so that the connection can be reused
+                InputStream errorStream = connection.getErrorStream();
+                if (errorStream != null) {
+                    drain(errorStream);
+                }
+                return false;
+            }
+
+            partWritten = true;
+            try (InputStream inStream = new BufferedInputStream(connection.getInputStream());
+                 OutputStream outStream = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = inStream.read(buffer)) >= 0) {
+                    outStream.write(buffer, 0, n);
+                }
+            }
+
+            if (!mValidator.isValid(partFile)) {
+                Log.w(TAG, "Discarding invalid image " + destFile.getName());
+            } else if (destFile.exists() && !destFile.delete()) {
+                Log.w(TAG, "Unable to delete " + destFile.getName());
+            } else if (!partFile.renameTo(destFile)) {
+                Log.w(TAG, "Unable to rename " + partFile.getName());
+            } else {
+                success = true;
+            }
+        } catch (IOException|ClassCastException e) {
+            Log.w(TAG, "Unable to download " + sourceUrl + ": " + e.getMessage());
+
+            // A connection in an unknown state can't be reused
+            if (connection != null) {
+                connection.disconnect();
+            }
+        } finally {
+            // Delete any remnants, we don't want a corrupted graphic. A part file we didn't write may
+            // belong to a download of the same image that is still running.
+            if (partWritten && partFile.exists() && !partFile.delete()) {
+                Log.w(TAG, "Unable to delete " + partFile.getName());
+            }
+        }
+
+        return success;
+    }
+
+    private static void drain(InputStream stream) throws IOException
+    {
+        try (InputStream in = stream) {
+            byte[] buffer = new byte[1024];
+            //noinspection StatementWithEmptyBody
+            while (in.read(buffer) >= 0) {
+            }
+        }
+    }
+
+    private void loadJournal()
+    {
+        mPendingJobs.clear();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalPath)))) {
+            if (in.readInt() != JOURNAL_VERSION) {
+                Log.i(TAG, "Discarding journal with old version");
+                return;
+            }
+
+            while (true) {
+                final byte type = in.readByte();
+                final String destPath = in.readUTF();
+
+                if (type == RECORD_QUEUED) {
+                    mPendingJobs.put(destPath, new Job(in.readUTF(), destPath, 0));
+                } else if (type == RECORD_DONE) {
+                    mPendingJobs.remove(destPath);
+                } else {
+                    Job job = mPendingJobs.get(destPath);
+                    if (job != null && ++job.attempts >= MAX_ATTEMPTS) {
+                        mPendingJobs.remove(destPath);
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been queued yet
+        } catch (EOFException e) {
+            // End of the journal, a partially written last record is simply ignored
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a compacted journal holding only the pending jobs, and keep it open for appending
+     */
+    private void rewriteJournal()
+    {
+        File journalFile = new File(mJournalPath);
+        File parentFile = journalFile.getParentFile();
+        if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs()) {
+            Log.w(TAG, "Unable to create " + parentFile.getPath());
+        }
+
+        try {
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile)));
+            mJournal.writeInt(JOURNAL_VERSION);
+
+            for (Job job : mPendingJobs.values()) {
+                mJournal.writeByte(RECORD_QUEUED);
+                mJournal.writeUTF(job.destPath);
+                mJournal.writeUTF(job.url);
+
+                for (int attempt = 0; attempt < job.attempts; ++attempt) {
+                    mJournal.writeByte(RECORD_FAILED);
+                    mJournal.writeUTF(job.destPath);
+                }
+            }
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write journal: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private void writeRecord(byte type, Job job)
+    {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.writeByte(type);
+            mJournal.writeUTF(job.destPath);
+            if (type == RECORD_QUEUED) {
+                mJournal.writeUTF(job.url);
+            }
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write journal: " + e.getMessage());
+            closeJournal();
+        }
+    }
+
+    private void closeJournal()
+    {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close journal: " + e.getMessage());
+            }
+            mJournal = null;
+        }
+    }
+}
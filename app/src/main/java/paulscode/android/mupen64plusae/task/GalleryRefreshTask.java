@@ -21,63 +21,67 @@
 package paulscode.android.mupen64plusae.task;
 
 import android.content.Context;
-import android.net.Uri;
 import androidx.annotation.NonNull;
-import androidx.documentfile.provider.DocumentFile;
 
 import android.text.TextUtils;
-import android.util.Log;
 
-import java.io.File;
-import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Locale;
 
 import paulscode.android.mupen64plusae.GalleryItem;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.GallerySearchIndex;
+import paulscode.android.mupen64plusae.persistent.GalleryCache;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.CountryCode;
-import paulscode.android.mupen64plusae.util.FileUtil;
 
 public class GalleryRefreshTask
 {
     public interface GalleryRefreshFinishedListener
     {
-        void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems);
+        void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems,
+                                      GallerySearchIndex searchIndex);
     }
 
     private final GalleryRefreshFinishedListener mListener;
     private final GlobalPrefs mGlobalPrefs;
     private final WeakReference<Context> mContext;
-    private final String mSearchQuery;
     private final List<GalleryItem> mItems = new ArrayList<>();
     private final List<GalleryItem> mAllItems = new ArrayList<>();
     private final List<GalleryItem> mRecentItems = new ArrayList<>();
-    private final ConfigFile mConfig;
+    private final GallerySearchIndex mSearchIndex = new GallerySearchIndex();
+    private final GalleryCache mGalleryCache;
 
     public GalleryRefreshTask(GalleryRefreshFinishedListener listener, Context context, GlobalPrefs globalPrefs,
-                              String searchQuery, ConfigFile config)
+                              GalleryCache galleryCache)
     {
         mListener = listener;
         mContext = new WeakReference<>(context);
         mGlobalPrefs = globalPrefs;
-        mSearchQuery = searchQuery;
-        mConfig = config;
+        mGalleryCache = galleryCache;
     }
     
     public void doInBackground()
     {
         Thread refreshThread = new Thread(() -> {
             generateGridItemsAndSaveConfig(mItems, mAllItems, mRecentItems);
-            mListener.onGalleryRefreshFinished( mItems, mAllItems, mRecentItems );
+            mListener.onGalleryRefreshFinished( mItems, mAllItems, mRecentItems, mSearchIndex );
         });
         refreshThread.setDaemon(true);
         refreshThread.start();
     }
 
+    /**
+     * @return Search index over all items, populated by {@link #generateGridItemsAndSaveConfig}
+     */
+    public GallerySearchIndex getSearchIndex()
+    {
+        return mSearchIndex;
+    }
+
     /**
      * Limits the recent list to 12 items
      * @param recentItems List of recent items to update
@@ -95,168 +99,82 @@ public class GalleryRefreshTask
         }
     }
 
-    /** Tries the key normally in use. If it doesn't exist, try the new and convert the value to a URI
-     *
-     * @param config Config file
-     * @param md5 MD5
-     * @param key Key currently in use
-     * @param alternateKey Aleternate legacy key
-     * @return URI string from key or alternate key if key doesn't exist
-     */
-    private String getUriString(final ConfigFile config, String md5, String key, String alternateKey)
-    {
-        String path = config.get( md5, key);
-
-        // If the above doesn't exist, try the legacy path
-        if (TextUtils.isEmpty(path)) {
-            String pathString = config.get( md5, alternateKey);
-            if (!TextUtils.isEmpty(pathString)) {
-                path = Uri.fromFile(new File(pathString)).toString();
-            }
-        }
-
-        return path;
-    }
-
     /**
-     * Create a GallaryItem using a config file, md5, and good name
-     * @param config Config file
-     * @param md5 MD5 in config
+     * Create a GallaryItem from a gallery cache entry
+     * @param entry Gallery cache entry
      * @param displayName Text to display for this ROM
-     * @return A gallery item if one was created successfully.
+     * @return A gallery item
      */
-    private GalleryItem createGalleryItem(final ConfigFile config, String md5, String displayName)
+    private GalleryItem createGalleryItem(final GalleryCache.Entry entry, String displayName)
     {
-        GalleryItem item = null;
-
-        String romPath = getUriString(config, md5, "romPathUri", "romPath");
-        String zipPath = getUriString(config, md5, "zipPathUri", "zipPath");
-
-        // We only want the file name if Zip Path exists
-        if (!TextUtils.isEmpty(zipPath)) {
-            romPath = new File(romPath).getName();
-            try {
-                romPath = java.net.URLDecoder.decode(romPath, "UTF-8");
-            } catch (UnsupportedEncodingException|java.lang.IllegalArgumentException e) {
-                Log.e("GalleryRefreshTask", "Unable to decode string: " + romPath);
-                return null;
-            }
-        }
-
-        final String artFullPath = config.get( md5, "artPath" );
-        final String goodName = config.get( md5, "goodName" );
-
-        //We get the file name to support the old gallery format
-        String artPath = !TextUtils.isEmpty(artFullPath) ? new File(artFullPath).getName() : null;
-
-        if(artPath != null)
-            artPath = mGlobalPrefs.coverArtDir + "/" + artPath;
-
-        String crc = config.get( md5, "crc" );
-        String headerName = config.get( md5, "headerName" );
-        final String countryCodeString = config.get( md5, "countryCode" );
-        CountryCode countryCode = CountryCode.UNKNOWN;
-
-        if (countryCodeString != null)
-        {
-            countryCode = CountryCode.getCountryCode(Byte.parseByte(countryCodeString));
-        }
-        final String lastPlayedStr = config.get(md5, "lastPlayed");
-
-        int lastPlayed = 0;
-        if (lastPlayedStr != null)
-            lastPlayed = Integer.parseInt(lastPlayedStr);
+        String artPath = null;
+        if(entry.artName != null)
+            artPath = mGlobalPrefs.coverArtDir + "/" + entry.artName;
 
         // Some BETA ROMs don't have headers
+        String headerName = entry.headerName;
         if (headerName == null)
-            headerName = goodName;
+            headerName = entry.goodName;
 
-        if (crc != null && countryCodeString != null)
-        {
-            item = new GalleryItem(mContext.get(), md5, crc, headerName, countryCode, goodName, displayName, romPath,
-                    zipPath, artPath, lastPlayed, mGlobalPrefs.coverArtScale);
-        }
-        return item;
+        // For ROMs in zip files, we only want the file name
+        String romPath = TextUtils.isEmpty(entry.zipUri) ? entry.romUri : entry.fileName;
+
+        return new GalleryItem(mContext.get(), entry.md5, entry.crc, headerName,
+                CountryCode.getCountryCode(entry.countryCode), entry.goodName, displayName, romPath,
+                entry.zipUri, artPath, entry.lastPlayed, mGlobalPrefs.coverArtScale);
     }
 
     /**
-     * This will populate a list of Gallery items and recent items
+     * This will populate a list of Gallery items and recent items, and the search index over all items
      * @param items Items will be populated here
+     * @param allItems All items, including the ones from countries that are not shown, will be populated here
      * @param recentItems Recent items will be populated here.
      */
     public void generateGridItemsAndSaveConfig(List<GalleryItem> items, List<GalleryItem> allItems, @NonNull List<GalleryItem> recentItems)
     {
-        final String query = mSearchQuery.toLowerCase( Locale.US );
-        String[] searches = null;
-        if( query.length() > 0 )
-            searches = query.split( " " );
-
-        for ( final String md5 : mConfig.keySet() ) {
-            if ( !ConfigFile.SECTIONLESS_NAME.equals( md5 ) ) {
-                final ConfigFile.ConfigSection section = mConfig.get( md5 );
-
-                String romPath = getUriString(mConfig, md5, "romPathUri", "romPath");
-
-                // We can't do much with an invalid Rom path
-                if (romPath != null) {
-
-                    String displayName = "";
-                    if (mGlobalPrefs.sortByRomName) {
-                        if( mGlobalPrefs.isFullNameShown || !section.keySet().contains( "baseName" ) )
-                            displayName = section.get( "goodName" );
-                        else
-                            displayName = section.get( "baseName" );
-                    } else {
-
-                        if (mContext.get() != null) {
-                            DocumentFile file = FileUtil.getDocumentFileSingle(mContext.get(), Uri.parse(romPath));
-                            displayName = file == null ? "" : file.getName();
-                        }
-
-                        if (TextUtils.isEmpty(displayName)) {
-                            displayName = romPath;
-                        }
-                    }
-
-                    boolean matchesSearch = true;
-                    if ( searches != null && searches.length > 0 && displayName != null) {
-                        // Make sure the ROM name contains every token in the query
-                        final String lowerName = displayName.toLowerCase( Locale.US );
-                        for ( final String search : searches ) {
-                            if ( search.length() > 0 && !lowerName.contains( search ) ) {
-                                matchesSearch = false;
-                                break;
-                            }
-                        }
-                    }
-
-                    if ( matchesSearch && displayName != null) {
-                        GalleryItem item = createGalleryItem(mConfig, md5, displayName);
+        List<String> fileNames = new ArrayList<>();
+
+        for ( final GalleryCache.Entry entry : mGalleryCache.getEntries(mContext.get()) ) {
+            String displayName;
+            if (mGlobalPrefs.sortByRomName) {
+                if( mGlobalPrefs.isFullNameShown || entry.baseName == null )
+                    displayName = entry.goodName;
+                else
+                    displayName = entry.baseName;
+            } else {
+                displayName = entry.fileName;
+            }
 
-                        if (item != null) {
-                            allItems.add(item);
-                        }
+            if (displayName != null) {
+                GalleryItem item = createGalleryItem(entry, displayName);
+                allItems.add(item);
+                fileNames.add(entry.fileName);
 
-                        if (item != null && (mGlobalPrefs.getAllowedCountryCodes().contains(item.countryCode) ||
-                                searches != null)) {
+                if (mGlobalPrefs.getAllowedCountryCodes().contains(item.countryCode)) {
 
-                            items.add(item);
-                            if (item.lastPlayed != 0) {
-                                recentItems.add(item);
-                            }
-                        }
+                    items.add(item);
+                    if (item.lastPlayed != 0) {
+                        recentItems.add(item);
                     }
                 }
             }
         }
 
-        Collections.sort( items, mGlobalPrefs.sortByRomName ?
-                new GalleryItem.NameComparator() : new GalleryItem.RomFileComparator() );
+        final Comparator<GalleryItem> comparator = mGlobalPrefs.sortByRomName ?
+                new GalleryItem.NameComparator() : new GalleryItem.RomFileComparator();
+        Collections.sort( items, comparator );
 
-        //Don't delete any items when searching
-        if (searches == null) {
-            deleteOldItems(recentItems);
+        // Search results are shown in the same order as the library, so index items in sorted order
+        Integer[] order = new Integer[allItems.size()];
+        for (int index = 0; index < order.length; ++index) {
+            order[index] = index;
         }
+        Arrays.sort(order, (index1, index2) -> comparator.compare(allItems.get(index1), allItems.get(index2)));
+        for (Integer index : order) {
+            mSearchIndex.add(allItems.get(index), fileNames.get(index));
+        }
+
+        deleteOldItems(recentItems);
     }
 
 }
\ No newline at end of file
@@ -20,19 +20,20 @@
  */
 package paulscode.android.mupen64plusae.task;
 
-import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
-import android.text.TextUtils;
 import android.widget.ImageView;
 
-import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.util.CoverArtCache;
 
 @SuppressWarnings({"unused", "RedundantSuppression"})
 public class LoadBitmapTask
@@ -40,51 +41,49 @@ public class LoadBitmapTask
     ExecutorService mExecutorService;
     HashMap<Integer, LoadBitmapRunnable> mPendingJobs = new HashMap<>();
     HashMap<Integer, Future<?>> mPendingFutures = new HashMap<>();
+    HashMap<String, Future<?>> mPrefetchFutures = new HashMap<>();
     private final WeakReference<Activity> mActivity;
+    private final CoverArtCache mCoverArtCache;
 
     class LoadBitmapRunnable implements Runnable {
 
-        private boolean mCancel = false;
+        private volatile boolean mCancel = false;
+        private final String mMd5;
         private final String mBitmapPath;
+        private final int mWidth;
+        private final int mHeight;
         private final WeakReference<ImageView> mArtView;
 
-        public LoadBitmapRunnable(String bitmapPath, ImageView artView)
+        public LoadBitmapRunnable(String md5, String bitmapPath, int width, int height, ImageView artView)
         {
+            mMd5 = md5;
             mBitmapPath = bitmapPath;
+            mWidth = width;
+            mHeight = height;
             mArtView = new WeakReference<>(artView);
         }
 
         @Override
         public void run() {
             Activity tempActivity = mActivity.get();
-            BitmapDrawable artBitmap = null;
 
             boolean cancelled = Thread.currentThread().isInterrupted() || mCancel;
 
-            if( !TextUtils.isEmpty( mBitmapPath ) && new File( mBitmapPath ).exists() && tempActivity != null && !cancelled)
+            if( tempActivity != null && !cancelled)
             {
-                // Check if valid image
-                File imageFile = new File(mBitmapPath);
-                long imageSizeBytes = imageFile.length();
-
-                // Limit file size to 20 MB
-                final long maxImageSizeBytes = 1024*1024*20;
-                if (FileUtil.isFileImage(imageFile) && imageSizeBytes < maxImageSizeBytes) {
-                    artBitmap = new BitmapDrawable( tempActivity.getResources(), mBitmapPath );
-                }
+                Bitmap bitmap = mCoverArtCache.load(mMd5, mBitmapPath, mWidth, mHeight);
 
                 cancelled = Thread.currentThread().isInterrupted() || mCancel;
-                if(!cancelled)
+                if(!cancelled && bitmap != null)
                 {
-                    BitmapDrawable finalArtBitmap = artBitmap;
+                    BitmapDrawable finalArtBitmap = new BitmapDrawable( tempActivity.getResources(), bitmap );
 
                     tempActivity.runOnUiThread(() -> {
                         if (!mCancel) {
                             ImageView tempArtView = mArtView.get();
 
                             if( tempArtView != null ) {
-                                tempArtView.setImageDrawable(finalArtBitmap);
-                                tempArtView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+                                setImage(tempArtView, finalArtBitmap);
                             }
                         }
                     });
@@ -98,26 +97,93 @@ public class LoadBitmapTask
         }
     }
 
-    public LoadBitmapTask( Activity context)
+    public LoadBitmapTask( Activity context, CoverArtCache coverArtCache)
     {
         mExecutorService = Executors.newFixedThreadPool(3);
         mActivity = new WeakReference<>(context);
+        mCoverArtCache = coverArtCache;
     }
 
     public void Shutdown()
     {
-        mExecutorService.shutdown();
+        mExecutorService.shutdownNow();
     }
 
-    public void loadInBackGround(int itemId, String bitmapPath, ImageView artView)
+    private static void setImage(ImageView artView, BitmapDrawable artBitmap)
     {
-        LoadBitmapRunnable loadRunnable = new LoadBitmapRunnable(bitmapPath, artView);
+        artView.setImageDrawable(artBitmap);
+        artView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+    }
+
+    /**
+     * Load cover art scaled to the provided size into a view. If the art is already in memory,
+     * it's set right away.
+     * @param itemId Id used to cancel the load
+     * @param md5 MD5 of the ROM
+     * @param bitmapPath Path of the full size cover art
+     * @param bitmapLastModified Modification time of the full size cover art
+     * @param width Width the art is displayed at
+     * @param height Height the art is displayed at
+     * @param artView View to load the art into
+     */
+    public void loadInBackGround(int itemId, String md5, String bitmapPath, long bitmapLastModified, int width,
+                                 int height, ImageView artView)
+    {
+        Bitmap bitmap = mCoverArtCache.getFromMemory(md5, bitmapPath, bitmapLastModified, width, height);
+        Activity tempActivity = mActivity.get();
+
+        if (bitmap != null && tempActivity != null) {
+            setImage(artView, new BitmapDrawable(tempActivity.getResources(), bitmap));
+            return;
+        }
+
+        LoadBitmapRunnable loadRunnable = new LoadBitmapRunnable(md5, bitmapPath, width, height, artView);
 
         Future<?> future = mExecutorService.submit(loadRunnable);
         mPendingJobs.put(itemId, loadRunnable);
         mPendingFutures.put(itemId, future);
     }
 
+    /**
+     * Load cover art into the cache ahead of it being displayed
+     * @param md5 MD5 of the ROM
+     * @param bitmapPath Path of the full size cover art
+     * @param width Width the art will be displayed at
+     * @param height Height the art will be displayed at
+     */
+    public void prefetch(String md5, String bitmapPath, int width, int height)
+    {
+        // Forget about prefetches that already finished
+        Iterator<Map.Entry<String, Future<?>>> iter = mPrefetchFutures.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getValue().isDone()) {
+                iter.remove();
+            }
+        }
+
+        if (mPrefetchFutures.containsKey(md5)) {
+            return;
+        }
+
+        Future<?> future = mExecutorService.submit(() -> {
+            if (!Thread.currentThread().isInterrupted()) {
+                mCoverArtCache.load(md5, bitmapPath, width, height);
+            }
+        });
+        mPrefetchFutures.put(md5, future);
+    }
+
+    /**
+     * Cancel all prefetches that haven't started yet, used when the scroll direction changes
+     */
+    public void cancelPrefetches()
+    {
+        for (Future<?> future : mPrefetchFutures.values()) {
+            future.cancel(false);
+        }
+        mPrefetchFutures.clear();
+    }
+
     public void cancel(int itemId) {
         LoadBitmapRunnable pendingJob = mPendingJobs.get(itemId);
         if (pendingJob != null) {
@@ -131,4 +197,4 @@ public class LoadBitmapTask
             mPendingFutures.remove(itemId);
         }
     }
-}
\ No newline at end of file
+}
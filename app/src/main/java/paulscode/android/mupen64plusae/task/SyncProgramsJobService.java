@@ -47,9 +47,10 @@ import java.util.List;
 import paulscode.android.mupen64plusae.ActivityHelper;
 import paulscode.android.mupen64plusae.GalleryActivity;
 import paulscode.android.mupen64plusae.GalleryItem;
+import paulscode.android.mupen64plusae.GallerySearchIndex;
 import paulscode.android.mupen64plusae.SplashActivity;
 import paulscode.android.mupen64plusae.persistent.AppData;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.GalleryCache;
 import paulscode.android.mupen64plusae.persistent.GlobalPrefs;
 import paulscode.android.mupen64plusae.util.FileUtil;
 
@@ -170,10 +171,10 @@ public class SyncProgramsJobService extends JobService implements GalleryRefresh
 
         AppData appData = new AppData( getApplicationContext() );
         GlobalPrefs globalPrefs = new GlobalPrefs( getApplicationContext(), appData );
-        ConfigFile config = new ConfigFile(globalPrefs.romInfoCacheCfg);
+        GalleryCache galleryCache = new GalleryCache(globalPrefs.galleryCache, globalPrefs.romInfoCacheCfg);
 
         mGalleryRefreshTask = new GalleryRefreshTask(SyncProgramsJobService.this,
-                getApplicationContext(), globalPrefs, "", config);
+                getApplicationContext(), globalPrefs, galleryCache);
         mGalleryRefreshTask.doInBackground();
 
         return true;
@@ -273,7 +274,8 @@ public class SyncProgramsJobService extends JobService implements GalleryRefresh
     }
 
     @Override
-    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems)
+    public void onGalleryRefreshFinished(List<GalleryItem> items, List<GalleryItem> allItems, List<GalleryItem> recentItems,
+                                         GallerySearchIndex searchIndex)
     {
         syncPrograms(mChannelId, recentItems);
         // Daisy chain listening for the next change to the channel.
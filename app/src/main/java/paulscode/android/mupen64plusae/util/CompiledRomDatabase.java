@@ -0,0 +1,610 @@
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+/**
+ * Compiled binary form of mupen64plus.ini. The ini file is parsed once and written out as fixed
+ * size records plus open addressing hash tables keyed by MD5 and CRC, then memory mapped on every
+ * later start. Lookups read straight from the mapped buffer, so there is no per section object
+ * or string allocated until a ROM is actually looked up.
+ * <p>
+ * File layout, all values in little endian:
+ * <pre>
+ * header   magic, version, source size, source last modified, entry count,
+ *          MD5 table slots, CRC table slots, string table offset
+ * entries  entry count * ENTRY_SIZE, sorted by CRC so entries sharing a CRC are contiguous
+ * md5Table MD5 table slots * int, entry index + 1 or 0 if the slot is empty
+ * crcTable CRC table slots * int, index + 1 of the first entry with that CRC or 0 if empty
+ * strings  short length followed by UTF-8 bytes
+ * </pre>
+ */
+final class CompiledRomDatabase
+{
+    private static final String TAG = "CompiledRomDatabase";
+
+    private static final int MAGIC = 0x4434364D; // "M64D" when read in little endian
+
+    /** Bump this whenever the file layout changes, older files are then recompiled */
+    private static final int VERSION = 2;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SOURCE_SIZE = 8;
+    private static final int HEADER_SOURCE_MODIFIED = 16;
+    private static final int HEADER_ENTRY_COUNT = 24;
+    private static final int HEADER_MD5_SLOTS = 28;
+    private static final int HEADER_CRC_SLOTS = 32;
+    private static final int HEADER_STRINGS_OFFSET = 36;
+    private static final int HEADER_SIZE = 40;
+
+    private static final int ENTRY_MD5_HIGH = 0;
+    private static final int ENTRY_MD5_LOW = 8;
+    private static final int ENTRY_CRC1 = 16;
+    private static final int ENTRY_CRC2 = 20;
+    private static final int ENTRY_GOOD_NAME = 24;
+    private static final int ENTRY_SAVE_TYPE = 28;
+    private static final int ENTRY_STATUS = 32;
+    private static final int ENTRY_PLAYERS = 33;
+    private static final int ENTRY_RUMBLE = 34;
+    private static final int ENTRY_FLAGS = 35;
+    private static final int ENTRY_SIZE = 36;
+
+    /** The section has a CRC field */
+    private static final int FLAG_HAS_CRC = 1;
+
+    /** The section, or the section it references through RefMD5, was found */
+    private static final int FLAG_HAS_DETAILS = 2;
+
+    /** Offset used for strings that are not present */
+    private static final int NO_STRING = -1;
+
+    /**
+     * Fields of a single database entry, as read from the compiled file
+     */
+    static class Entry
+    {
+        String md5;
+        String crc;
+        String goodName;
+        String saveType;
+        int status;
+        int players;
+        boolean rumble;
+        boolean hasDetails;
+    }
+
+    private final ByteBuffer mBuffer;
+    private final int mEntryCount;
+    private final int mMd5Mask;
+    private final int mCrcMask;
+    private final int mMd5TableOffset;
+    private final int mCrcTableOffset;
+
+    private CompiledRomDatabase(ByteBuffer buffer)
+    {
+        mBuffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        mEntryCount = mBuffer.getInt(HEADER_ENTRY_COUNT);
+        mMd5Mask = mBuffer.getInt(HEADER_MD5_SLOTS) - 1;
+        mCrcMask = mBuffer.getInt(HEADER_CRC_SLOTS) - 1;
+        mMd5TableOffset = HEADER_SIZE + mEntryCount * ENTRY_SIZE;
+        mCrcTableOffset = mMd5TableOffset + (mMd5Mask + 1) * 4;
+    }
+
+    /**
+     * Load the compiled database for the given ini file, compiling it first if it doesn't exist
+     * or is out of date
+     * @param mupen64plusIni Path to mupen64plus.ini
+     * @param compiledPath Path of the compiled database
+     * @return The database or null if the ini file could not be read
+     */
+    static @Nullable CompiledRomDatabase load(String mupen64plusIni, String compiledPath)
+    {
+        File iniFile = new File(mupen64plusIni);
+        File compiledFile = new File(compiledPath);
+
+        if (compiledFile.exists()) {
+            try (RandomAccessFile file = new RandomAccessFile(compiledFile, "r");
+                 FileChannel channel = file.getChannel()) {
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+                if (isValid(buffer, iniFile)) {
+                    return new CompiledRomDatabase(buffer);
+                }
+
+                Log.i(TAG, "Compiled ROM database is out of date");
+            } catch (IOException|IndexOutOfBoundsException e) {
+                Log.w(TAG, "Unable to map compiled ROM database: " + e.getMessage());
+            }
+        }
+
+        if (!iniFile.exists()) {
+            return null;
+        }
+
+        ByteBuffer compiled = compile(new ConfigFile(mupen64plusIni), iniFile.length(), iniFile.lastModified());
+
+        // Another process may have the old file mapped, truncating it in place would make its
+        // reads fault. Write a new file and rename it over the old one instead, the old mapping
+        // keeps the old contents.
+        File tempFile = new File(compiledPath + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(compiled.array(), 0, compiled.limit());
+        } catch (IOException e) {
+            // Still usable from memory, it will be compiled again next time
+            Log.w(TAG, "Unable to write compiled ROM database: " + e.getMessage());
+        }
+
+        if (tempFile.exists() && !tempFile.renameTo(compiledFile)) {
+            Log.w(TAG, "Unable to replace compiled ROM database");
+            if (!tempFile.delete()) {
+                Log.w(TAG, "Unable to delete " + tempFile);
+            }
+        }
+
+        return new CompiledRomDatabase(compiled);
+    }
+
+    /**
+     * Check that the file was compiled from the current ini file and that every offset in it
+     * stays inside the buffer, so a partially written or corrupt file is compiled again instead
+     * of being read out of bounds
+     */
+    private static boolean isValid(ByteBuffer buffer, File iniFile)
+    {
+        if (buffer.capacity() < HEADER_SIZE ||
+                buffer.getInt(HEADER_MAGIC) != MAGIC ||
+                buffer.getInt(HEADER_VERSION) != VERSION ||
+                buffer.getLong(HEADER_SOURCE_SIZE) != iniFile.length() ||
+                buffer.getLong(HEADER_SOURCE_MODIFIED) != iniFile.lastModified()) {
+            return false;
+        }
+
+        final int entryCount = buffer.getInt(HEADER_ENTRY_COUNT);
+        final int md5Slots = buffer.getInt(HEADER_MD5_SLOTS);
+        final int crcSlots = buffer.getInt(HEADER_CRC_SLOTS);
+        final int stringsOffset = buffer.getInt(HEADER_STRINGS_OFFSET);
+
+        // Lookups mask the hash with the table size
+        if (entryCount < 0 || md5Slots <= entryCount || crcSlots <= entryCount ||
+                Integer.bitCount(md5Slots) != 1 || Integer.bitCount(crcSlots) != 1) {
+            return false;
+        }
+
+        final long tablesEnd = HEADER_SIZE + (long) entryCount * ENTRY_SIZE + ((long) md5Slots + crcSlots) * 4;
+        if (stringsOffset != tablesEnd || stringsOffset > buffer.capacity()) {
+            return false;
+        }
+
+        final int md5TableOffset = HEADER_SIZE + entryCount * ENTRY_SIZE;
+        if (!isValidTable(buffer, md5TableOffset, md5Slots, entryCount) ||
+                !isValidTable(buffer, md5TableOffset + md5Slots * 4, crcSlots, entryCount)) {
+            return false;
+        }
+
+        for (int index = 0; index < entryCount; ++index) {
+            final int entryOffset = HEADER_SIZE + index * ENTRY_SIZE;
+            if (!isValidString(buffer, buffer.getInt(entryOffset + ENTRY_GOOD_NAME), stringsOffset) ||
+                    !isValidString(buffer, buffer.getInt(entryOffset + ENTRY_SAVE_TYPE), stringsOffset)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Every slot has to reference an entry or be empty, and a lookup only ends at an empty slot
+     */
+    private static boolean isValidTable(ByteBuffer buffer, int tableOffset, int slots, int entryCount)
+    {
+        boolean hasEmptySlot = false;
+        for (int slot = 0; slot < slots; ++slot) {
+            final int value = buffer.getInt(tableOffset + slot * 4);
+            if (value < 0 || value > entryCount) {
+                return false;
+            }
+            hasEmptySlot |= value == 0;
+        }
+        return hasEmptySlot;
+    }
+
+    private static boolean isValidString(ByteBuffer buffer, int offset, int stringsOffset)
+    {
+        if (offset == NO_STRING) {
+            return true;
+        }
+
+        if (offset < stringsOffset || offset > buffer.capacity() - 2) {
+            return false;
+        }
+
+        final int length = ((buffer.get(offset) & 0xff) << 8) | (buffer.get(offset + 1) & 0xff);
+        return offset + 2 + length <= buffer.capacity();
+    }
+
+    /**
+     * Compile the parsed ini file into its binary form
+     */
+    private static ByteBuffer compile(ConfigFile configFile, long sourceSize, long sourceLastModified)
+    {
+        // Only sections named by a valid MD5 are ROM entries
+        ArrayList<ConfigSection> sections = new ArrayList<>();
+        for (String key : configFile.keySet()) {
+            ConfigSection section = configFile.get(key);
+            if (section != null && parseMd5(section.name) != null) {
+                sections.add(section);
+            }
+        }
+
+        // Stable sort by CRC so entries sharing a CRC are contiguous and stay in file order,
+        // entries without a CRC go last
+        Collections.sort(sections, (lhs, rhs) -> {
+            final boolean lhsValid = isValidCrc(lhs.get("CRC"));
+            final boolean rhsValid = isValidCrc(rhs.get("CRC"));
+            if (lhsValid != rhsValid) {
+                return lhsValid ? -1 : 1;
+            }
+            return lhsValid ? Long.compare(parseCrc(lhs.get("CRC")), parseCrc(rhs.get("CRC"))) : 0;
+        });
+
+        final int entryCount = sections.size();
+        final int md5Slots = tableSize(entryCount);
+        final int crcSlots = tableSize(entryCount);
+        final int stringsOffset = HEADER_SIZE + entryCount * ENTRY_SIZE + (md5Slots + crcSlots) * 4;
+
+        ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        HashMap<String, Integer> stringOffsets = new HashMap<>();
+        ByteBuffer records = ByteBuffer.allocate(entryCount * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int[] md5Table = new int[md5Slots];
+        int[] crcTable = new int[crcSlots];
+
+        for (int index = 0; index < entryCount; ++index) {
+            ConfigSection section = sections.get(index);
+            long[] md5 = parseMd5(section.name);
+            final boolean hasCrc = isValidCrc(section.get("CRC"));
+            final long crcKey = hasCrc ? parseCrc(section.get("CRC")) : 0;
+
+            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
+            // just references another entry.
+            ConfigSection detailSection = section;
+            String refMd5 = section.get("RefMD5");
+            if (!TextUtils.isEmpty(refMd5)) {
+                detailSection = configFile.get(refMd5);
+            }
+
+            int flags = 0;
+            String saveType = null;
+            int status = 0;
+            int players = 4;
+            boolean rumble = true;
+
+            if (hasCrc) {
+                flags |= FLAG_HAS_CRC;
+            }
+
+            if (detailSection != null) {
+                flags |= FLAG_HAS_DETAILS;
+                saveType = detailSection.get("SaveType");
+                String statusString = detailSection.get("Status");
+                String playersString = detailSection.get("Players");
+                String rumbleString = detailSection.get("Rumble");
+                status = SafeMethods.toInt(statusString, 0);
+                players = SafeMethods.toInt(playersString, 4);
+                rumble = TextUtils.isEmpty(rumbleString) || "Yes".equals(rumbleString);
+            }
+
+            final int entryOffset = index * ENTRY_SIZE;
+            records.putLong(entryOffset + ENTRY_MD5_HIGH, md5[0]);
+            records.putLong(entryOffset + ENTRY_MD5_LOW, md5[1]);
+            records.putInt(entryOffset + ENTRY_CRC1, (int) (crcKey >>> 32));
+            records.putInt(entryOffset + ENTRY_CRC2, (int) crcKey);
+            records.putInt(entryOffset + ENTRY_GOOD_NAME, addString(section.get("GoodName"), strings, stringOffsets, stringsOffset));
+            records.putInt(entryOffset + ENTRY_SAVE_TYPE, addString(saveType, strings, stringOffsets, stringsOffset));
+            records.put(entryOffset + ENTRY_STATUS, (byte) status);
+            records.put(entryOffset + ENTRY_PLAYERS, (byte) players);
+            records.put(entryOffset + ENTRY_RUMBLE, (byte) (rumble ? 1 : 0));
+            records.put(entryOffset + ENTRY_FLAGS, (byte) flags);
+
+            // Duplicate MD5s keep the first entry, same as the ini parser
+            int slot = findMd5Slot(md5Table, md5[0], md5[1], records);
+            if (md5Table[slot] == 0) {
+                md5Table[slot] = index + 1;
+            }
+
+            // Only the first entry of each CRC run goes in the table
+            if ((flags & FLAG_HAS_CRC) != 0) {
+                slot = findCrcSlot(crcTable, crcKey, records);
+                if (crcTable[slot] == 0) {
+                    crcTable[slot] = index + 1;
+                }
+            }
+        }
+
+        ByteBuffer compiled = ByteBuffer.allocate(stringsOffset + strings.size()).order(ByteOrder.LITTLE_ENDIAN);
+        compiled.putInt(MAGIC);
+        compiled.putInt(VERSION);
+        compiled.putLong(sourceSize);
+        compiled.putLong(sourceLastModified);
+        compiled.putInt(entryCount);
+        compiled.putInt(md5Slots);
+        compiled.putInt(crcSlots);
+        compiled.putInt(stringsOffset);
+        compiled.put(records.array());
+        for (int value : md5Table) {
+            compiled.putInt(value);
+        }
+        for (int value : crcTable) {
+            compiled.putInt(value);
+        }
+        compiled.put(strings.toByteArray());
+        compiled.flip();
+
+        Log.i(TAG, "Compiled " + entryCount + " ROM database entries into " + compiled.limit() + " bytes");
+        return compiled;
+    }
+
+    private static int addString(@Nullable String value, ByteArrayOutputStream strings,
+                                 HashMap<String, Integer> stringOffsets, int stringsOffset)
+    {
+        if (value == null) {
+            return NO_STRING;
+        }
+
+        Integer existingOffset = stringOffsets.get(value);
+        if (existingOffset != null) {
+            return existingOffset;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = Math.min(bytes.length, Short.MAX_VALUE);
+        final int offset = stringsOffset + strings.size();
+        strings.write((length >> 8) & 0xff);
+        strings.write(length & 0xff);
+        strings.write(bytes, 0, length);
+
+        stringOffsets.put(value, offset);
+        return offset;
+    }
+
+    /**
+     * Power of two table size with a load factor of at most 0.5
+     */
+    private static int tableSize(int entryCount)
+    {
+        int size = 16;
+        while (size < entryCount * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int hashMd5(long high, long low)
+    {
+        long hash = high ^ low;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static int hashCrc(long crcKey)
+    {
+        long hash = crcKey * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32);
+    }
+
+    private static int findMd5Slot(int[] table, long high, long low, ByteBuffer records)
+    {
+        final int mask = table.length - 1;
+        int slot = hashMd5(high, low) & mask;
+        while (table[slot] != 0) {
+            final int entryOffset = (table[slot] - 1) * ENTRY_SIZE;
+            if (records.getLong(entryOffset + ENTRY_MD5_HIGH) == high && records.getLong(entryOffset + ENTRY_MD5_LOW) == low) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int findCrcSlot(int[] table, long crcKey, ByteBuffer records)
+    {
+        final int mask = table.length - 1;
+        int slot = hashCrc(crcKey) & mask;
+        while (table[slot] != 0) {
+            if (readCrcKey(records, (table[slot] - 1) * ENTRY_SIZE) == crcKey) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long readCrcKey(ByteBuffer buffer, int entryOffset)
+    {
+        return ((long) buffer.getInt(entryOffset + ENTRY_CRC1) << 32) | (buffer.getInt(entryOffset + ENTRY_CRC2) & 0xffffffffL);
+    }
+
+    /**
+     * Look up an entry by MD5
+     * @param md5 MD5 as a hex string
+     * @return The entry or null if not found
+     */
+    @Nullable Entry lookupByMd5(String md5)
+    {
+        long[] md5Value = parseMd5(md5);
+        if (md5Value == null) {
+            return null;
+        }
+
+        int slot = hashMd5(md5Value[0], md5Value[1]) & mMd5Mask;
+        int value;
+        while ((value = mBuffer.getInt(mMd5TableOffset + slot * 4)) != 0) {
+            final int entryOffset = HEADER_SIZE + (value - 1) * ENTRY_SIZE;
+            if (mBuffer.getLong(entryOffset + ENTRY_MD5_HIGH) == md5Value[0] &&
+                    mBuffer.getLong(entryOffset + ENTRY_MD5_LOW) == md5Value[1]) {
+                return readEntry(entryOffset);
+            }
+            slot = (slot + 1) & mMd5Mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Look up all entries with the given CRC, in the order they appear in the ini file
+     * @param crc CRC in the "XXXXXXXX XXXXXXXX" format used in the ini file
+     * @return All matching entries, empty if none were found
+     */
+    ArrayList<Entry> lookupByCrc(String crc)
+    {
+        ArrayList<Entry> entries = new ArrayList<>();
+
+        if (!isValidCrc(crc)) {
+            return entries;
+        }
+
+        final long crcKey = parseCrc(crc);
+        int slot = hashCrc(crcKey) & mCrcMask;
+        int value;
+        while ((value = mBuffer.getInt(mCrcTableOffset + slot * 4)) != 0) {
+            int entryOffset = HEADER_SIZE + (value - 1) * ENTRY_SIZE;
+            if (readCrcKey(mBuffer, entryOffset) == crcKey) {
+
+                // Entries with the same CRC follow the first one
+                for (int index = value - 1; index < mEntryCount; ++index) {
+                    entryOffset = HEADER_SIZE + index * ENTRY_SIZE;
+                    if ((mBuffer.get(entryOffset + ENTRY_FLAGS) & FLAG_HAS_CRC) == 0 ||
+                            readCrcKey(mBuffer, entryOffset) != crcKey) {
+                        break;
+                    }
+                    entries.add(readEntry(entryOffset));
+                }
+                break;
+            }
+            slot = (slot + 1) & mCrcMask;
+        }
+
+        return entries;
+    }
+
+    private Entry readEntry(int entryOffset)
+    {
+        final int flags = mBuffer.get(entryOffset + ENTRY_FLAGS);
+
+        Entry entry = new Entry();
+        entry.md5 = md5ToString(mBuffer.getLong(entryOffset + ENTRY_MD5_HIGH), mBuffer.getLong(entryOffset + ENTRY_MD5_LOW));
+        entry.crc = (flags & FLAG_HAS_CRC) == 0 ? null : String.format("%08X %08X",
+                mBuffer.getInt(entryOffset + ENTRY_CRC1), mBuffer.getInt(entryOffset + ENTRY_CRC2));
+        entry.goodName = readString(mBuffer.getInt(entryOffset + ENTRY_GOOD_NAME));
+        entry.saveType = readString(mBuffer.getInt(entryOffset + ENTRY_SAVE_TYPE));
+        entry.status = mBuffer.get(entryOffset + ENTRY_STATUS);
+        entry.players = mBuffer.get(entryOffset + ENTRY_PLAYERS);
+        entry.rumble = mBuffer.get(entryOffset + ENTRY_RUMBLE) != 0;
+        entry.hasDetails = (flags & FLAG_HAS_DETAILS) != 0;
+        return entry;
+    }
+
+    private @Nullable String readString(int offset)
+    {
+        if (offset == NO_STRING) {
+            return null;
+        }
+
+        final int length = ((mBuffer.get(offset) & 0xff) << 8) | (mBuffer.get(offset + 1) & 0xff);
+        byte[] bytes = new byte[length];
+        for (int index = 0; index < length; ++index) {
+            bytes[index] = mBuffer.get(offset + 2 + index);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a 32 character hex MD5 string
+     * @return High and low 64 bits of the MD5, null if the string is not a valid MD5
+     */
+    private static @Nullable long[] parseMd5(@Nullable String md5)
+    {
+        if (md5 == null) {
+            return null;
+        }
+
+        md5 = md5.trim();
+        if (md5.length() != 32) {
+            return null;
+        }
+
+        long[] value = new long[2];
+        for (int index = 0; index < 32; ++index) {
+            final int digit = Character.digit(md5.charAt(index), 16);
+            if (digit < 0) {
+                return null;
+            }
+            value[index / 16] = (value[index / 16] << 4) | digit;
+        }
+        return value;
+    }
+
+    private static String md5ToString(long high, long low)
+    {
+        return String.format("%016X%016X", high, low);
+    }
+
+    /**
+     * Check that a CRC is in the "XXXXXXXX XXXXXXXX" format. Every 64 bit value is a valid CRC,
+     * so this is checked separately from parsing it.
+     */
+    private static boolean isValidCrc(@Nullable String crc)
+    {
+        if (crc == null) {
+            return false;
+        }
+
+        String[] parts = crc.trim().split("\\s+");
+        if (parts.length != 2) {
+            return false;
+        }
+
+        for (String part : parts) {
+            if (part.isEmpty() || part.length() > 8) {
+                return false;
+            }
+
+            for (int index = 0; index < part.length(); ++index) {
+                if (Character.digit(part.charAt(index), 16) < 0) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Parse a CRC in the "XXXXXXXX XXXXXXXX" format, it must have been checked with
+     * {@link #isValidCrc(String)} first
+     * @return CRC1 in the upper 32 bits and CRC2 in the lower 32 bits
+     */
+    private static long parseCrc(String crc)
+    {
+        String[] parts = crc.trim().split("\\s+");
+        return (Long.parseLong(parts[0], 16) << 32) | Long.parseLong(parts[1], 16);
+    }
+}
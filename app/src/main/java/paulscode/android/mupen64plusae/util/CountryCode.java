@@ -34,6 +34,26 @@ public enum CountryCode {
 		return value;
 	}
 	
+	/**
+	 * @return Video interrupts per second of games for this region, 50 for the codes the core
+	 * treats as PAL and 60 for everything else
+	 */
+	public int getViRate() {
+		switch (this) {
+			case GERMANY:
+			case FRANCE:
+			case ITALY:
+			case EUROPE_1:
+			case SPAIN:
+			case AUSTRALIA:
+			case EUROPE_2:
+			case AUSTRALIA_ALT:
+				return 50;
+			default:
+				return 60;
+		}
+	}
+	
 	@Override
 	public String toString() {
 		return this.text;
@@ -0,0 +1,388 @@
+package paulscode.android.mupen64plusae.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two level cache of cover art scaled down to the size it's displayed at. Scaled bitmaps are kept
+ * in a memory LRU bounded by their size in bytes, and are also written to a thumbnail directory
+ * so that they don't have to be decoded from the full size art again after the app restarts.
+ * Entries are keyed by ROM MD5, target size, and the path and modification time of the full size
+ * art they were made from, so changing the gallery scale doesn't reuse thumbnails of the wrong
+ * size, and replacing or reverting the cover art doesn't reuse thumbnails of the old art. The
+ * thumbnail directory is bounded too, the thumbnails that were
+ * used least recently are deleted once it grows past {@link #MAX_THUMBNAIL_DIR_BYTES}.
+ */
+public class CoverArtCache
+{
+    private static final String TAG = "CoverArtCache";
+
+    /** Fraction of the maximum heap the memory cache can use */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+
+    /** Cover art larger than this is ignored */
+    private static final long MAX_IMAGE_SIZE_BYTES = 1024*1024*20;
+
+    /** Thumbnails are deleted once the thumbnail directory is larger than this */
+    static final long MAX_THUMBNAIL_DIR_BYTES = 1024*1024*64;
+
+    /** Size the thumbnail directory is trimmed down to, so that it's not trimmed on every write */
+    static final long TRIMMED_THUMBNAIL_DIR_BYTES = MAX_THUMBNAIL_DIR_BYTES * 3 / 4;
+
+    /** Temporary files older than this are left over from a write that never finished */
+    private static final long STALE_TEMP_FILE_MS = 60 * 1000;
+
+    private static final String THUMBNAIL_SUFFIX = ".png";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static CoverArtCache sInstance = null;
+
+    /**
+     * Cache statistics, counted since the cache was created
+     */
+    public static class Stats
+    {
+        public final long memoryHits;
+        public final long diskHits;
+        public final long misses;
+        public final int memoryUsedBytes;
+        public final int memoryMaxBytes;
+
+        Stats(long memoryHits, long diskHits, long misses, int memoryUsedBytes, int memoryMaxBytes)
+        {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.memoryUsedBytes = memoryUsedBytes;
+            this.memoryMaxBytes = memoryMaxBytes;
+        }
+
+        @NonNull
+        @Override
+        public String toString()
+        {
+            final long total = memoryHits + diskHits + misses;
+            return String.format(Locale.US, "memory hits=%d disk hits=%d misses=%d hit rate=%.1f%% memory=%d/%d KiB",
+                    memoryHits, diskHits, misses, total == 0 ? 0.0f : (memoryHits + diskHits) * 100.0f / total,
+                    memoryUsedBytes / 1024, memoryMaxBytes / 1024);
+        }
+    }
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final String mThumbnailDir;
+
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /** Size of the thumbnail directory, -1 until it's first needed */
+    private final AtomicLong mThumbnailDirBytes = new AtomicLong(-1);
+
+    /**
+     * Get the process wide cover art cache
+     * @param thumbnailDir Directory where scaled thumbnails are stored
+     */
+    public static synchronized CoverArtCache getInstance(String thumbnailDir)
+    {
+        if (sInstance == null || !sInstance.mThumbnailDir.equals(thumbnailDir)) {
+            sInstance = new CoverArtCache(thumbnailDir);
+        }
+
+        return sInstance;
+    }
+
+    private CoverArtCache(String thumbnailDir)
+    {
+        mThumbnailDir = thumbnailDir;
+
+        final int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER, Integer.MAX_VALUE);
+        mMemoryCache = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    static String getKey(String md5, String artPath, long artLastModified, int width, int height)
+    {
+        return md5 + "_" + Integer.toHexString(artPath.hashCode()) + "_" + artLastModified + "_" + width + "x" + height;
+    }
+
+    /**
+     * Get scaled cover art if it's already in memory, this is cheap enough to call from the UI thread
+     * @param md5 MD5 of the ROM
+     * @param artPath Path of the full size cover art
+     * @param artLastModified Modification time of the full size cover art
+     * @param width Width the art will be displayed at
+     * @param height Height the art will be displayed at
+     * @return The scaled cover art, or null if it's not in memory
+     */
+    public @Nullable Bitmap getFromMemory(String md5, String artPath, long artLastModified, int width, int height)
+    {
+        if (TextUtils.isEmpty(md5) || TextUtils.isEmpty(artPath)) {
+            return null;
+        }
+
+        Bitmap bitmap = mMemoryCache.get(getKey(md5, artPath, artLastModified, width, height));
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Get scaled cover art, reading the thumbnail or decoding and scaling the full size art if it's
+     * not in memory. Don't call this from the UI thread.
+     * @param md5 MD5 of the ROM
+     * @param artPath Path of the full size cover art
+     * @param width Width the art will be displayed at
+     * @param height Height the art will be displayed at
+     * @return The scaled cover art, or null if there is no valid cover art
+     */
+    public @Nullable Bitmap load(String md5, String artPath, int width, int height)
+    {
+        if (TextUtils.isEmpty(md5) || TextUtils.isEmpty(artPath) || width <= 0 || height <= 0) {
+            return null;
+        }
+
+        File artFile = new File(artPath);
+        final long artLastModified = artFile.lastModified();
+        if (artLastModified == 0) {
+            return null;
+        }
+
+        final String key = getKey(md5, artPath, artLastModified, width, height);
+        Bitmap bitmap = mMemoryCache.get(key);
+        if (bitmap != null) {
+            mMemoryHits.incrementAndGet();
+            return bitmap;
+        }
+
+        // The key names the full size art the thumbnail was made from, a thumbnail of art that was
+        // replaced since is never read again and is deleted once the directory is trimmed
+        File thumbnailFile = new File(mThumbnailDir, key + THUMBNAIL_SUFFIX);
+        if (thumbnailFile.exists()) {
+            bitmap = BitmapFactory.decodeFile(thumbnailFile.getPath());
+            if (bitmap != null) {
+                mDiskHits.incrementAndGet();
+
+                // The modification time orders thumbnails by use when the directory is trimmed
+                //noinspection ResultOfMethodCallIgnored
+                thumbnailFile.setLastModified(System.currentTimeMillis());
+                mMemoryCache.put(key, bitmap);
+                return bitmap;
+            }
+        }
+
+        mMisses.incrementAndGet();
+
+        if (!FileUtil.isFileImage(artFile) || artFile.length() >= MAX_IMAGE_SIZE_BYTES) {
+            return null;
+        }
+
+        bitmap = decodeScaled(artPath, width, height);
+        if (bitmap != null) {
+            mMemoryCache.put(key, bitmap);
+            writeThumbnail(bitmap, thumbnailFile);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Drop everything from memory, thumbnails are kept
+     */
+    public void clearMemory()
+    {
+        mMemoryCache.evictAll();
+    }
+
+    public Stats getStats()
+    {
+        return new Stats(mMemoryHits.get(), mDiskHits.get(), mMisses.get(), mMemoryCache.size(),
+                mMemoryCache.maxSize());
+    }
+
+    /**
+     * Decode an image so that it fits in the provided size, keeping its aspect ratio. Images that
+     * are already smaller are not scaled up.
+     */
+    private static @Nullable Bitmap decodeScaled(String path, int width, int height)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        // Subsample while decoding as much as possible, then do the rest with a filtered scale
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+
+        if (bitmap == null) {
+            return null;
+        }
+
+        final float scale = Math.min(width / (float) bitmap.getWidth(), height / (float) bitmap.getHeight());
+        if (scale < 1.0f) {
+            Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, Math.max(Math.round(bitmap.getWidth() * scale), 1),
+                    Math.max(Math.round(bitmap.getHeight() * scale), 1), true);
+            if (scaledBitmap != bitmap) {
+                bitmap.recycle();
+            }
+            bitmap = scaledBitmap;
+        }
+
+        return bitmap;
+    }
+
+    private void writeThumbnail(Bitmap bitmap, File thumbnailFile)
+    {
+        FileUtil.makeDirs(mThumbnailDir);
+
+        // Write to a temporary file first so that a partially written thumbnail is never read. Two
+        // threads can write the same thumbnail at once, each one needs its own temporary file.
+        File tempFile;
+        try {
+            tempFile = File.createTempFile(thumbnailFile.getName(), TEMP_SUFFIX, new File(mThumbnailDir));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create thumbnail " + thumbnailFile.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write thumbnail " + thumbnailFile.getName() + ": " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+
+        final long length = tempFile.length();
+        if (!tempFile.renameTo(thumbnailFile)) {
+            Log.w(TAG, "Unable to rename thumbnail " + thumbnailFile.getName());
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+
+        // Count the directory once, then keep track of what's written to it
+        long dirBytes = mThumbnailDirBytes.get();
+        if (dirBytes < 0) {
+            dirBytes = getDirectorySize(new File(mThumbnailDir));
+            mThumbnailDirBytes.set(dirBytes);
+        } else {
+            dirBytes = mThumbnailDirBytes.addAndGet(length);
+        }
+
+        if (dirBytes > MAX_THUMBNAIL_DIR_BYTES) {
+            trimThumbnails();
+        }
+    }
+
+    private synchronized void trimThumbnails()
+    {
+        // Another thread may have trimmed already
+        if (mThumbnailDirBytes.get() <= MAX_THUMBNAIL_DIR_BYTES) {
+            return;
+        }
+
+        final long dirBytes = trimDirectory(new File(mThumbnailDir), TRIMMED_THUMBNAIL_DIR_BYTES,
+                System.currentTimeMillis());
+        mThumbnailDirBytes.set(dirBytes);
+        Log.i(TAG, "Trimmed thumbnails to " + dirBytes / 1024 + " KiB");
+    }
+
+    private static long getDirectorySize(File dir)
+    {
+        File[] files = dir.listFiles();
+        long size = 0;
+
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Delete the thumbnails that were used least recently until the directory is no larger than
+     * the provided size. Temporary files left over from writes that never finished are deleted too.
+     * @param dir Thumbnail directory
+     * @param maxBytes Size to trim the directory down to
+     * @param now Current time in milliseconds
+     * @return Size of the directory after trimming it
+     */
+    static long trimDirectory(File dir, long maxBytes, long now)
+    {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        ArrayList<File> thumbnails = new ArrayList<>();
+        long size = 0;
+
+        for (File file : files) {
+            final String name = file.getName();
+
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Leave temporary files that are still being written alone
+                if (now - file.lastModified() > STALE_TEMP_FILE_MS && file.delete()) {
+                    continue;
+                }
+            } else if (name.endsWith(THUMBNAIL_SUFFIX)) {
+                thumbnails.add(file);
+            }
+
+            size += file.length();
+        }
+
+        // Reading the modification time while sorting would see it change if a thumbnail is used
+        final HashMap<File, Long> lastModified = new HashMap<>();
+        for (File thumbnail : thumbnails) {
+            lastModified.put(thumbnail, thumbnail.lastModified());
+        }
+        Collections.sort(thumbnails, (file1, file2) -> Long.compare(lastModified.get(file1), lastModified.get(file2)));
+
+        for (File thumbnail : thumbnails) {
+            if (size <= maxBytes) {
+                break;
+            }
+
+            final long length = thumbnail.length();
+            if (thumbnail.delete()) {
+                size -= length;
+            }
+        }
+
+        return size;
+    }
+}
@@ -49,6 +49,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
@@ -1258,13 +1260,13 @@ public final class FileUtil
         MessageDigest digester = MessageDigest.getInstance( "MD5" );
         byte[] bytes = new byte[byteCache];
         int byteCount;
-        while( ( byteCount = inputStream.read( bytes ) ) > 0 )
+        while( ( byteCount = readFully( inputStream, bytes ) ) > 0 )
         {
             switch( firstByte )
             {
                 case 0x37:
                     // Byteswap if .v64 image
-                    for( int i = 0; i < byteCount; i += 2 )
+                    for( int i = 0; i + 1 < byteCount; i += 2 )
                     {
                         byte temp = bytes[i];
                         bytes[i] = bytes[i + 1];
@@ -1273,7 +1275,7 @@ public final class FileUtil
                     break;
                 case 0x40:
                     // Wordswap if .n64 image
-                    for( int i = 0; i < byteCount; i += 4 )
+                    for( int i = 0; i + 3 < byteCount; i += 4 )
                     {
                         byte temp = bytes[i];
                         bytes[i] = bytes[i + 3];
@@ -1292,6 +1294,135 @@ public final class FileUtil
         return convertHashToString( digester.digest() );
     }
 
+    /**
+     * Read until the array is full or the stream ends, so a short read in the middle of the
+     * stream doesn't split a word that has to be swapped
+     * @return Number of bytes read, 0 at the end of the stream
+     */
+    private static int readFully( InputStream inputStream, byte[] bytes ) throws java.io.IOException
+    {
+        int total = 0;
+        int byteCount;
+        while( total < bytes.length && ( byteCount = inputStream.read( bytes, total, bytes.length - total ) ) > 0 )
+        {
+            total += byteCount;
+        }
+        return total;
+    }
+
+    /** Size of the per thread buffer used when hashing through a file channel */
+    private static final int MD5_CHANNEL_BUFFER_SIZE = 1024*1024;
+
+    /** Direct buffer reused by every hash computed on the same thread, ROM scans hash on several threads */
+    private static final ThreadLocal<ByteBuffer> sMd5Buffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(MD5_CHANNEL_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        }
+    };
+
+    /** MD5 digest reused by every hash computed on the same thread */
+    private static final ThreadLocal<MessageDigest> sMd5Digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance( "MD5" );
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     * Compute the MD5 of a ROM read through a file channel. Same result as
+     * {@link #computeMd5(InputStream)} but the data is read straight into a reusable direct
+     * buffer and .v64/.n64 images are byte swapped 8 bytes at a time, so nothing is allocated
+     * per file.
+     * @param channel Channel to read the ROM from, read from the current position until the end
+     * @return MD5 hash of the ROM in big endian (.z64) byte order
+     */
+    public static String computeMd5( FileChannel channel ) throws java.io.IOException, NoSuchAlgorithmException
+    {
+        MessageDigest digester = sMd5Digest.get();
+        if (digester == null) {
+            throw new NoSuchAlgorithmException("MD5 not available");
+        }
+        digester.reset();
+
+        ByteBuffer buffer = sMd5Buffer.get();
+        buffer.clear();
+
+        int firstByte = -1;
+        while( channel.read( buffer ) >= 0 )
+        {
+            // Keep filling the buffer until it's full or we reach the end of the file
+            if (buffer.hasRemaining()) {
+                continue;
+            }
+
+            firstByte = updateMd5WithSwap(digester, buffer, firstByte);
+        }
+        updateMd5WithSwap(digester, buffer, firstByte);
+
+        return convertHashToString( digester.digest() );
+    }
+
+    /**
+     * Byte swap the data in the buffer based on the first byte of the ROM and add it to the digest
+     * @param digester Digest to update
+     * @param buffer Buffer in write mode, it's cleared after the digest is updated
+     * @param firstByte First byte of the ROM, -1 if the first chunk hasn't been read yet
+     * @return First byte of the ROM
+     */
+    private static int updateMd5WithSwap( MessageDigest digester, ByteBuffer buffer, int firstByte )
+    {
+        buffer.flip();
+        final int byteCount = buffer.limit();
+
+        if (byteCount > 0) {
+            if (firstByte == -1) {
+                firstByte = buffer.get(0) & 0xff;
+            }
+
+            // Swap 8 bytes at a time, any trailing bytes are done one word at a time
+            final int wideCount = byteCount & ~7;
+            switch( firstByte )
+            {
+                case 0x37:
+                    // Byteswap if .v64 image
+                    for( int i = 0; i < wideCount; i += 8 )
+                    {
+                        long value = buffer.getLong(i);
+                        buffer.putLong(i, ((value & 0x00FF00FF00FF00FFL) << 8) | ((value >>> 8) & 0x00FF00FF00FF00FFL));
+                    }
+                    for( int i = wideCount; i + 1 < byteCount; i += 2 )
+                    {
+                        buffer.putShort(i, Short.reverseBytes(buffer.getShort(i)));
+                    }
+                    break;
+                case 0x40:
+                    // Wordswap if .n64 image
+                    for( int i = 0; i < wideCount; i += 8 )
+                    {
+                        buffer.putLong(i, Long.rotateLeft(Long.reverseBytes(buffer.getLong(i)), 32));
+                    }
+                    for( int i = wideCount; i + 3 < byteCount; i += 4 )
+                    {
+                        buffer.putInt(i, Integer.reverseBytes(buffer.getInt(i)));
+                    }
+                    break;
+                default:
+                    // No swap otherwise
+                    break;
+            }
+
+            digester.update( buffer );
+        }
+
+        buffer.clear();
+        return firstByte;
+    }
+
     private static String convertHashToString( byte[] md5Bytes )
     {
         StringBuilder stringBuilder = new StringBuilder(100);
@@ -1338,11 +1469,42 @@ public final class FileUtil
         return listAllFilesLegacy(documentFile, subDirectories, 0);
     }
 
+    /**
+     * Basic file metadata returned by a folder listing. Size and last modified time come for free
+     * with the listing query, so they can be used to detect changed files without opening them.
+     */
+    public static class FileMetadata
+    {
+        public final Uri uri;
+        public final String name;
+        public final long size;
+        public final long lastModified;
+
+        public FileMetadata(Uri uri, String name, long size, long lastModified)
+        {
+            this.uri = uri;
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
     public static @NonNull List<Uri> listAllFiles(Context context, Uri rootUri, boolean subdirs) {
+        List<FileMetadata> filesMetadata = listAllFilesWithMetadata(context, rootUri, subdirs);
+        List<Uri> files = new ArrayList<>(filesMetadata.size());
+
+        for (FileMetadata metadata : filesMetadata) {
+            files.add(metadata.uri);
+        }
+
+        return files;
+    }
+
+    public static @NonNull List<FileMetadata> listAllFilesWithMetadata(Context context, Uri rootUri, boolean subdirs) {
         ContentResolver contentResolver = context.getContentResolver();
 
         Uri childrenUri;
-        List<Uri> files = new ArrayList<>();
+        List<FileMetadata> files = new ArrayList<>();
 
         try {
             childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(rootUri, DocumentsContract.getTreeDocumentId(rootUri));
@@ -1361,7 +1523,9 @@ public final class FileUtil
             try {
                 c = contentResolver.query(childrenUri, new String[]{DocumentsContract.Document.COLUMN_DOCUMENT_ID,
                         DocumentsContract.Document.COLUMN_DISPLAY_NAME,
-                        DocumentsContract.Document.COLUMN_MIME_TYPE}, null, null, null);
+                        DocumentsContract.Document.COLUMN_MIME_TYPE,
+                        DocumentsContract.Document.COLUMN_SIZE,
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED}, null, null, null);
             } catch (Exception e) {
                 // Catch all exceptions, this has thrown 4 different exceptions at this time across different devices
                 c = null;
@@ -1382,7 +1546,9 @@ public final class FileUtil
                         }
                     } else {
                         final Uri newNode = DocumentsContract.buildDocumentUriUsingTree(rootUri, docId);
-                        files.add(newNode);
+                        final long size = c.isNull(3) ? -1 : c.getLong(3);
+                        final long lastModified = c.isNull(4) ? -1 : c.getLong(4);
+                        files.add(new FileMetadata(newNode, name, size, lastModified));
                     }
                 }
             } finally {
@@ -1393,6 +1559,25 @@ public final class FileUtil
         return files;
     }
 
+    /**
+     * Get the metadata of a single file, used when the file didn't come from a folder listing
+     * @param context Context used to query the file
+     * @param uri File to query
+     * @return File metadata, size and last modified are -1 if unknown
+     */
+    public static @NonNull FileMetadata getFileMetadata(Context context, Uri uri) {
+        long size = -1;
+        long lastModified = -1;
+
+        DocumentFile file = getDocumentFileSingle(context, uri);
+        if (file != null && file.exists()) {
+            size = file.length();
+            lastModified = file.lastModified();
+        }
+
+        return new FileMetadata(uri, getFileName(context, uri), size, lastModified);
+    }
+
     // Util method to check if the mime type is a directory
     private static boolean isDirectory(String mimeType) {
         return DocumentsContract.Document.MIME_TYPE_DIR.equals(mimeType);
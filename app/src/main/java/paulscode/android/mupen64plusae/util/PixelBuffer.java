@@ -280,17 +280,48 @@ public class PixelBuffer {
 
     private void convertToBitmap() {
         IntBuffer ib = IntBuffer.allocate(mWidth*mHeight);
-        IntBuffer ibt = IntBuffer.allocate(mWidth*mHeight);
         mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
 
-        // Convert upside down mirror-reversed image to right-side up normal image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                ibt.put((mHeight-i-1)*mWidth + j, ib.get(i*mWidth + j));
+        // Convert upside down image to right-side up image.
+        flipVertically(ib, mWidth, mHeight, 0);
+
+        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+        mBitmap.copyPixelsFromBuffer(ib);
+    }
+
+    /**
+     * Flip pixels read with glReadPixels, which start at the bottom row, in place. Whole rows are
+     * copied at a time.
+     * @param pixels RGBA pixels, starting at index 0
+     * @param orMask Value ORed to every pixel, for example to make every pixel opaque. 0 to leave
+     *               the pixels as they are.
+     */
+    public static void flipVertically(IntBuffer pixels, int width, int height, int orMask) {
+        int[] top = new int[width];
+        int[] bottom = new int[width];
+
+        for (int row = 0; row < (height + 1)/2; row++) {
+            final int topPosition = row*width;
+            final int bottomPosition = (height - row - 1)*width;
+
+            pixels.position(topPosition);
+            pixels.get(top);
+            pixels.position(bottomPosition);
+            pixels.get(bottom);
+
+            if (orMask != 0) {
+                for (int column = 0; column < width; column++) {
+                    top[column] |= orMask;
+                    bottom[column] |= orMask;
+                }
             }
+
+            pixels.position(topPosition);
+            pixels.put(bottom);
+            pixels.position(bottomPosition);
+            pixels.put(top);
         }
 
-        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(ibt);
+        pixels.rewind();
     }
-}
\ No newline at end of file
+}
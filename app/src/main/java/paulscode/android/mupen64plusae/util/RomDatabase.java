@@ -19,16 +19,11 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
 
 /**
  * This class wraps the <a href=https://github.com/mupen64plus/mupen64plus-core/tree/master/data>ROM
@@ -97,8 +92,10 @@ public class RomDatabase
     private static final String ART_URL_TEMPLATE = "http://coverart.zurita.me/CoverArt/%s";
     private static final String WIKI_URL_TEMPLATE = "https://github.com/mupen64plus-ae/mupen64plus-ae-meta/wiki/%s";
     
-    private ConfigFile mConfigFile = null;
-    private final HashMap<String, ArrayList<ConfigSection>> mCrcMap = new HashMap<>();
+    /** Extension of the compiled database, stored next to the ini file */
+    private static final String COMPILED_EXTENSION = ".bin";
+
+    private CompiledRomDatabase mDatabase = null;
     
     private static RomDatabase instance = null;
     private RomDatabase() {
@@ -111,29 +108,19 @@ public class RomDatabase
        return instance;
     }
     
-    public void setDatabaseFile( String mupen64plusIni )
+    /**
+     * Load the ROM database. The ini file is only parsed the first time or when it changes, after
+     * that the compiled form stored next to it is memory mapped.
+     * @param mupen64plusIni Path to mupen64plus.ini
+     */
+    public synchronized void setDatabaseFile( String mupen64plusIni )
     {
-        mConfigFile = new ConfigFile( mupen64plusIni );
-        for( String key : mConfigFile.keySet() )
-        {
-            ConfigSection section = mConfigFile.get( key );
-            if( section != null )
-            {
-                String crc = section.get( "CRC" );
-                if( crc != null )
-                {
-                    if( mCrcMap.get(crc) == null )
-                        mCrcMap.put(crc, new ArrayList<>());
-
-                    mCrcMap.get(crc).add(section);
-                }
-            }
-        }
+        mDatabase = CompiledRomDatabase.load( mupen64plusIni, mupen64plusIni + COMPILED_EXTENSION );
     }
     
-    public boolean hasDatabaseFile()
+    public synchronized boolean hasDatabaseFile()
     {
-        return mConfigFile != null;
+        return mDatabase != null;
     }
 
     public RomDetail lookupByMd5WithFallback(String md5, String fileName, String crc, CountryCode countryCode )
@@ -161,10 +148,9 @@ public class RomDatabase
         ArrayList<RomDetail> romDetails = new ArrayList<>();
 
         //First try to find a unique match
-        ArrayList<ConfigSection> sections = mCrcMap.get( crc );
-        if( sections != null ) {
-            for( int i = 0; i < sections.size(); i++ )
-                romDetails.add(new RomDetail( sections.get( i ) ));
+        if( mDatabase != null ) {
+            for( CompiledRomDatabase.Entry entry : mDatabase.lookupByCrc( crc ) )
+                romDetails.add(new RomDetail( entry ));
         }
 
         if (romDetails.size() > 1) {
@@ -211,8 +197,8 @@ public class RomDatabase
     
     private RomDetail lookupByMd5( String md5 )
     {
-        ConfigSection section = mConfigFile.get( md5 );
-        return section == null ? null : new RomDetail( section );
+        CompiledRomDatabase.Entry entry = mDatabase == null ? null : mDatabase.lookupByMd5( md5 );
+        return entry == null ? null : new RomDetail( entry );
     }
     
     @SuppressWarnings("RegExpRedundantEscape")
@@ -230,16 +216,16 @@ public class RomDatabase
         public final int players;
         public final boolean rumble;
         
-        private RomDetail( ConfigSection section )
+        private RomDetail( CompiledRomDatabase.Entry entry )
         {
-            crc = section.get( "CRC" );
-            md5 = section.name;
+            crc = entry.crc;
+            md5 = entry.md5;
             
             // Use an empty goodname (not null) for certain homebrew ROMs
             if( "00000000 00000000".equals( crc ) )
                 goodName = "";
             else
-                goodName = section.get( "GoodName" );
+                goodName = entry.goodName;
             
             if( goodName != null )
             {
@@ -267,21 +253,13 @@ public class RomDatabase
                 wikiUrl = null;
             }
             
-            // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
-            // just references another entry.
-            String refMd5 = section.get( "RefMD5" );
-            if( !TextUtils.isEmpty( refMd5 ) )
-                section = mConfigFile.get( refMd5 );
-            
-            if( section != null )
+            // Entries referencing another entry through RefMD5 were resolved when compiling
+            if( entry.hasDetails )
             {
-                saveType = section.get( "SaveType" );
-                String statusString = section.get( "Status" );
-                String playersString = section.get( "Players" );
-                String rumbleString = section.get( "Rumble" );
-                status = TextUtils.isEmpty( statusString ) ? 0 : Integer.parseInt( statusString );
-                players = TextUtils.isEmpty( playersString ) ? 4 : Integer.parseInt( playersString );
-                rumble = TextUtils.isEmpty( rumbleString ) || "Yes".equals( rumbleString );
+                saveType = entry.saveType;
+                status = entry.status;
+                players = entry.players;
+                rumble = entry.rumble;
             }
             else
             {
@@ -0,0 +1,240 @@
+package paulscode.android.mupen64plusae.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent index of every file seen during a ROM scan. Each file URI maps to the size and last
+ * modified time reported by the file listing, along with the ROMs that were found in it. A rescan
+ * only needs to open files whose fingerprint changed since the last scan.
+ */
+public class RomFingerprintIndex
+{
+    private static final String TAG = "RomFingerprintIndex";
+
+    /** Bump this whenever the file layout changes, older files are then discarded */
+    private static final int INDEX_VERSION = 2;
+
+    /**
+     * A ROM found in an indexed file. Plain ROM files have a single entry, archives have one
+     * entry per ROM found inside them.
+     */
+    public static class RomEntry
+    {
+        public final String name;
+
+        /** URI of the ROM file, empty for ROMs inside archives */
+        public final String uri;
+        public final String md5;
+
+        public RomEntry(@NonNull String name, @Nullable String uri, @NonNull String md5)
+        {
+            this.name = name;
+            this.uri = uri == null ? "" : uri;
+            this.md5 = md5;
+        }
+    }
+
+    public static class Fingerprint
+    {
+        public final long size;
+        public final long lastModified;
+
+        /** Header CRC for plain ROM files, empty for archives and non-ROM files */
+        public final String crc;
+        public final List<RomEntry> roms;
+
+        public Fingerprint(long size, long lastModified, @Nullable String crc, @NonNull List<RomEntry> roms)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.crc = crc == null ? "" : crc;
+            this.roms = roms;
+        }
+    }
+
+    /** Name of the index file */
+    private final String mFilename;
+
+    private final HashMap<String, Fingerprint> mFingerprints = new HashMap<>();
+
+    /**
+     * Reads the whole index file
+     * @param filename Index file to read from
+     */
+    public RomFingerprintIndex(String filename)
+    {
+        mFilename = filename;
+        load();
+    }
+
+    /**
+     * Returns true if the file is in the index and its size and last modified time haven't changed.
+     * Files with unknown size or last modified time are never considered unchanged.
+     */
+    public boolean isUnchanged(FileUtil.FileMetadata file)
+    {
+        if (file.size < 0 || file.lastModified <= 0) {
+            return false;
+        }
+
+        Fingerprint fingerprint = mFingerprints.get(file.uri.toString());
+        return fingerprint != null && fingerprint.size == file.size &&
+                fingerprint.lastModified == file.lastModified;
+    }
+
+    public @Nullable Fingerprint get(String uri)
+    {
+        return mFingerprints.get(uri);
+    }
+
+    public void put(FileUtil.FileMetadata file, @Nullable String crc, @NonNull List<RomEntry> roms)
+    {
+        mFingerprints.put(file.uri.toString(), new Fingerprint(file.size, file.lastModified, crc, roms));
+    }
+
+    public void remove(String uri)
+    {
+        mFingerprints.remove(uri);
+    }
+
+    /**
+     * Remove all entries for files that are not in the provided set
+     * @param existingUris URIs of all files that still exist
+     */
+    public void retainAll(Set<String> existingUris)
+    {
+        Iterator<Map.Entry<String, Fingerprint>> iter = mFingerprints.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (!existingUris.contains(iter.next().getKey())) {
+                iter.remove();
+            }
+        }
+    }
+
+    public void clear()
+    {
+        mFingerprints.clear();
+    }
+
+    private void load()
+    {
+        if (TextUtils.isEmpty(mFilename)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFilename)))) {
+
+            if (in.readInt() != INDEX_VERSION) {
+                Log.i(TAG, "Discarding index with old version");
+                return;
+            }
+
+            final int numFingerprints = in.readInt();
+            for (int index = 0; index < numFingerprints; ++index) {
+                String uri = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                String crc = in.readUTF();
+
+                final int numRoms = in.readInt();
+                List<RomEntry> roms = numRoms == 0 ? Collections.emptyList() : new ArrayList<>(numRoms);
+                for (int romIndex = 0; romIndex < numRoms; ++romIndex) {
+                    String name = in.readUTF();
+                    String romUri = in.readUTF();
+                    String md5 = in.readUTF();
+                    roms.add(new RomEntry(name, romUri, md5));
+                }
+
+                mFingerprints.put(uri, new Fingerprint(size, lastModified, crc, roms));
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing has been indexed yet
+        } catch (EOFException e) {
+            Log.w(TAG, "Index file is truncated, discarding it");
+            mFingerprints.clear();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read index: " + e.getMessage());
+            mFingerprints.clear();
+        }
+    }
+
+    /**
+     * Saves the index back to disk
+     * @return True if successful
+     */
+    public boolean save()
+    {
+        if (TextUtils.isEmpty(mFilename)) {
+            Log.e(TAG, "Filename not specified in method save()");
+            return false;
+        }
+
+        File indexFile = new File(mFilename);
+        if (indexFile.getParentFile() != null) {
+            FileUtil.makeDirs(indexFile.getParentFile().getPath());
+        }
+
+        // Write to a temporary file first so a crash while saving never leaves a partial index
+        File tempFile = new File(mFilename + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(mFingerprints.size());
+
+            for (Map.Entry<String, Fingerprint> entry : mFingerprints.entrySet()) {
+                Fingerprint fingerprint = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(fingerprint.size);
+                out.writeLong(fingerprint.lastModified);
+                out.writeUTF(fingerprint.crc);
+                out.writeInt(fingerprint.roms.size());
+
+                for (RomEntry rom : fingerprint.roms) {
+                    out.writeUTF(rom.name);
+                    out.writeUTF(rom.uri);
+                    out.writeUTF(rom.md5);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IOException writing index " + mFilename + ", error message: " + e.getMessage());
+            deleteFile(tempFile);
+            return false;
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            Log.e(TAG, "Unable to replace index " + mFilename);
+            deleteFile(tempFile);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static void deleteFile(File file)
+    {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package paulscode.android.mupen64plusae;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.util.CountryCode;
+
+import static org.junit.Assert.assertEquals;
+
+public class GallerySearchIndexTest {
+
+    private GallerySearchIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mIndex = new GallerySearchIndex();
+        add("Super Mario 64", "Super Mario 64 (U) [!]", "SUPER MARIO 64", "mario.z64");
+        add("Mario Kart 64", "Mario Kart 64 (U) [!]", "MARIOKART64", "kart.z64");
+        add("The Legend of Zelda", "Legend of Zelda, The - Ocarina of Time (U) [!]", "THE LEGEND OF ZELDA", "zelda.n64");
+        add("Wave Race 64", "Wave Race 64 (U) [!]", "WAVE RACE 64", "wave.v64");
+    }
+
+    private void add(String displayName, String goodName, String headerName, String fileName) {
+        GalleryItem item = new GalleryItem(null, "", "", headerName, CountryCode.USA, goodName,
+                displayName, "content://roms/" + fileName, null, "", 0, 1.0f);
+        mIndex.add(item, fileName);
+    }
+
+    private List<String> search(String query) {
+        List<String> names = new ArrayList<>();
+        for (GalleryItem item : mIndex.search(query)) {
+            names.add(item.displayName);
+        }
+        return names;
+    }
+
+    @Test
+    public void emptyQueryMatchesEverythingInOrder() {
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "The Legend of Zelda", "Wave Race 64"),
+                search(""));
+        assertEquals(search(""), search("   "));
+    }
+
+    @Test
+    public void everyTokenMustMatch() {
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mario 64"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("64 KART"));
+        assertEquals(Arrays.asList("The Legend of Zelda"), search("ocarina  zelda"));
+        assertEquals(Arrays.asList(), search("mario zelda"));
+        assertEquals(Arrays.asList(), search("yoshi"));
+    }
+
+    @Test
+    public void tokensMatchAnyField() {
+        // Header name and file name only
+        assertEquals(Arrays.asList("Mario Kart 64"), search("mariokart"));
+        assertEquals(Arrays.asList("Wave Race 64"), search("wave.v64"));
+        assertEquals(Arrays.asList("The Legend of Zelda"), search("n64"));
+    }
+
+    @Test
+    public void shortTokensAreMatchedWithoutTrigrams() {
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "The Legend of Zelda", "Wave Race 64"),
+                search("64"));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "The Legend of Zelda"), search("z"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("ka 64"));
+        assertEquals(Arrays.asList("The Legend of Zelda"), search("ti zel"));
+    }
+
+    @Test
+    public void tokensDontMatchAcrossFields() {
+        // "WAVE RACE 64" is followed by "wave.v64", and "Super Mario 64 (U) [!]" by "SUPER MARIO 64"
+        assertEquals(Arrays.asList(), search("64wave"));
+        assertEquals(Arrays.asList(), search("4w"));
+        assertEquals(Arrays.asList(), search("]super"));
+        assertEquals(Arrays.asList("Super Mario 64"), search("[!] super"));
+    }
+
+    @Test
+    public void typingForwardAndDeletingTokens() {
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mar"));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mario"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("mario k"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("mario kart"));
+
+        // The last matches must not limit queries that are broader than the last one
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mario"));
+        assertEquals(Arrays.asList("Super Mario 64"), search("mario."));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mario"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("mario kart"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("kart"));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("io 64"));
+        assertEquals(Arrays.asList("Mario Kart 64"), search("kart"));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "The Legend of Zelda", "Wave Race 64"),
+                search("64"));
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "The Legend of Zelda", "Wave Race 64"),
+                search(""));
+    }
+
+    @Test
+    public void addClearsTheLastMatches() {
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64"), search("mario"));
+
+        add("Dr. Mario 64", "Dr. Mario 64 (U) [!]", "DR.MARIO 64", "drmario.z64");
+
+        // This narrows the last query, but the new item wasn't there when it ran
+        assertEquals(Arrays.asList("Super Mario 64", "Mario Kart 64", "Dr. Mario 64"), search("mario 64"));
+        assertEquals(Arrays.asList("Dr. Mario 64"), search("dr.mario"));
+    }
+}
@@ -0,0 +1,30 @@
+package paulscode.android.mupen64plusae.game;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hands out render targets without a GL context and keeps track of the ones not deleted yet
+ */
+class FakeRenderTargetAllocator implements RenderTargetPool.Allocator {
+
+    final ArrayList<RenderTargetPool.RenderTarget> mLiveTargets = new ArrayList<>();
+    int mCreated = 0;
+    private int mNextName = 1;
+
+    @Override
+    public RenderTargetPool.RenderTarget create(int width, int height, boolean linear) {
+        RenderTargetPool.RenderTarget target = new RenderTargetPool.RenderTarget(mNextName, mNextName + 1,
+                width, height, linear);
+        mNextName += 2;
+        mLiveTargets.add(target);
+        ++mCreated;
+        return target;
+    }
+
+    @Override
+    public void delete(RenderTargetPool.RenderTarget target) {
+        assertTrue("Target deleted twice or never created", mLiveTargets.remove(target));
+    }
+}
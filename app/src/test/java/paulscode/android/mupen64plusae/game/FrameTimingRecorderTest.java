@@ -0,0 +1,369 @@
+package paulscode.android.mupen64plusae.game;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTimingRecorderTest {
+
+    private static final int CAPACITY = FrameTimingRecorder.CAPACITY;
+    private static final int READ_MARGIN = FrameTimingRecorder.READ_MARGIN;
+    private static final int CONTENT_INTERVAL_WINDOW = FrameTimingRecorder.CONTENT_INTERVAL_WINDOW;
+    private static final long FRAME_NS = 1000000000L / 60;
+    private static final long MS = 1000000L;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Record a frame whose values are all derived from its index, so a frame copied while it was
+     * being overwritten doesn't match itself
+     */
+    private static void recordFrame(FrameTimingRecorder recorder, long frame)
+    {
+        final long drawStart = frame * FRAME_NS;
+        recorder.onFrameAvailable(drawStart - 1000);
+        recorder.recordFrame(frame * FRAME_NS + 1, drawStart, drawStart + frame % 1000, drawStart + 2 * (frame % 1000));
+    }
+
+    private static void checkFrames(FrameTimingRecorder.Snapshot snapshot)
+    {
+        for (int index = 0; index < snapshot.count; ++index) {
+            final long frame = snapshot.firstFrame + index;
+            assertEquals(frame * FRAME_NS + 2 * (frame % 1000), snapshot.presentTime[index]);
+            assertEquals(frame * FRAME_NS - 1000, snapshot.frameAvailableTime[index]);
+            assertEquals(frame * FRAME_NS + 1, snapshot.contentTimestamp[index]);
+            assertEquals(frame % 1000, snapshot.cpuTime[index]);
+            assertEquals(frame % 1000, snapshot.swapTime[index]);
+            assertEquals(-1, snapshot.gpuTime[index]);
+        }
+    }
+
+    /**
+     * Snapshot with the given intervals between frames, in milliseconds
+     */
+    private static FrameTimingRecorder.Snapshot withIntervals(long[] intervalsMs)
+    {
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(intervalsMs.length + 1);
+        snapshot.count = intervalsMs.length + 1;
+
+        for (int index = 1; index < snapshot.count; ++index) {
+            snapshot.presentTime[index] = snapshot.presentTime[index - 1] + intervalsMs[index - 1] * MS;
+        }
+        for (int index = 0; index < snapshot.count; ++index) {
+            snapshot.contentTimestamp[index] = index + 1;
+            snapshot.gpuTime[index] = -1;
+        }
+
+        return snapshot;
+    }
+
+    @Test
+    public void intervalPercentiles() {
+        // 1 to 100 ms, in an order that isn't sorted
+        long[] intervals = new long[100];
+        for (int index = 0; index < intervals.length; ++index) {
+            intervals[index] = (index * 37) % 100 + 1;
+        }
+
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats(withIntervals(intervals));
+
+        assertEquals(101, stats.frames);
+        assertEquals(50, stats.intervalP50, 0.001);
+        assertEquals(95, stats.intervalP95, 0.001);
+        assertEquals(99, stats.intervalP99, 0.001);
+        assertEquals(100, stats.intervalMax, 0.001);
+        assertEquals(0, stats.duplicated);
+        assertEquals(0, stats.dropped);
+    }
+
+    @Test
+    public void cpuAndGpuPercentiles() {
+        FrameTimingRecorder.Snapshot snapshot = withIntervals(new long[199]);
+
+        for (int index = 0; index < snapshot.count; ++index) {
+            snapshot.cpuTime[index] = (int) ((snapshot.count - index) * MS / 10);
+
+            // Only every other frame has a GPU time
+            if (index % 2 == 0) {
+                snapshot.gpuTime[index] = (int) ((index / 2 + 1) * MS);
+            }
+        }
+
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats(snapshot);
+
+        assertEquals(10, stats.cpuP50, 0.001);
+        assertEquals(19.8f, stats.cpuP99, 0.001);
+        assertEquals(50, stats.gpuP50, 0.001);
+        assertEquals(99, stats.gpuP99, 0.001);
+    }
+
+    @Test
+    public void missingGpuTimes() {
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats(withIntervals(new long[]{16, 17}));
+
+        assertEquals(-1, stats.gpuP50, 0);
+        assertEquals(-1, stats.gpuP99, 0);
+    }
+
+    @Test
+    public void emptyAndSingleFrame() {
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats(new FrameTimingRecorder.Snapshot(4));
+        assertEquals(0, stats.frames);
+        assertEquals(0, stats.intervalMax, 0);
+        assertEquals(-1, stats.gpuP50, 0);
+
+        stats = FrameTimingRecorder.computeStats(withIntervals(new long[0]));
+        assertEquals(1, stats.frames);
+        assertEquals(0, stats.intervalP50, 0);
+        assertEquals(0, stats.intervalMax, 0);
+    }
+
+    @Test
+    public void duplicatedAndDroppedFrames() {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        long[] contentTimestamps = {
+                FRAME_NS,
+                2 * FRAME_NS,
+                2 * FRAME_NS,     // Drawn twice
+                5 * FRAME_NS,     // 2 frames were never drawn
+                0,                // Unknown, neither a duplicate nor a drop
+                6 * FRAME_NS,
+                6 * FRAME_NS};    // Drawn twice
+
+        for (int frame = 0; frame < contentTimestamps.length; ++frame) {
+            recorder.recordFrame(contentTimestamps[frame], frame * FRAME_NS, frame * FRAME_NS + MS,
+                    frame * FRAME_NS + 2 * MS);
+        }
+
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(CAPACITY);
+        recorder.read(snapshot, 0, Long.MAX_VALUE);
+        assertEquals(contentTimestamps.length, snapshot.count);
+
+        assertFalse(snapshot.isDuplicate(0));
+        assertTrue(snapshot.isDuplicate(2));
+        assertFalse(snapshot.isDuplicate(4));
+        assertTrue(snapshot.isDuplicate(6));
+        assertEquals(2, snapshot.droppedBefore[3]);
+        assertEquals(0, snapshot.droppedBefore[5]);
+
+        FrameTimingRecorder.Stats stats = FrameTimingRecorder.computeStats(snapshot);
+        assertEquals(2, stats.duplicated);
+        assertEquals(2, stats.dropped);
+        assertEquals(FRAME_NS / 1e6f, stats.intervalMax, 0.001);
+        assertEquals(1, stats.cpuP99, 0.001);
+    }
+
+    /**
+     * Record frames drawn once per display refresh, showing the given images
+     * @return Frames dropped according to the recorder
+     */
+    private static int droppedWithContent(long[] contentTimestamps)
+    {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        for (int frame = 0; frame < contentTimestamps.length; ++frame) {
+            recorder.recordFrame(contentTimestamps[frame], frame * FRAME_NS, frame * FRAME_NS + MS,
+                    frame * FRAME_NS + 2 * MS);
+        }
+
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(CAPACITY);
+        recorder.read(snapshot, 0, Long.MAX_VALUE);
+        return FrameTimingRecorder.computeStats(snapshot).dropped;
+    }
+
+    /**
+     * A game that produces a new image every few refreshes, each one drawn until the next arrives
+     */
+    private static long[] contentEvery(int refreshes, int frames)
+    {
+        long[] contentTimestamps = new long[frames];
+        for (int frame = 0; frame < frames; ++frame) {
+            contentTimestamps[frame] = (frame / refreshes + 1) * refreshes * FRAME_NS;
+        }
+        return contentTimestamps;
+    }
+
+    @Test
+    public void lowerFrameRatesAreNotDrops() {
+        assertEquals(0, droppedWithContent(contentEvery(1, 300)));
+        assertEquals(0, droppedWithContent(contentEvery(2, 300)));
+        assertEquals(0, droppedWithContent(contentEvery(3, 300)));
+    }
+
+    @Test
+    public void dropsAtThirtyFps() {
+        long[] contentTimestamps = contentEvery(2, 200);
+
+        // One image of the game was never drawn, the previous one stays on screen instead
+        contentTimestamps[100] = contentTimestamps[98];
+        contentTimestamps[101] = contentTimestamps[98];
+
+        assertEquals(1, droppedWithContent(contentTimestamps));
+    }
+
+    @Test
+    public void frameRateChangeIsFollowed() {
+        long[] contentTimestamps = new long[400];
+        System.arraycopy(contentEvery(1, 200), 0, contentTimestamps, 0, 200);
+
+        // The game drops from 60 to 20 FPS, like when a cutscene starts
+        long[] slower = contentEvery(3, 200);
+        for (int frame = 0; frame < 200; ++frame) {
+            contentTimestamps[200 + frame] = contentTimestamps[199] + slower[frame];
+        }
+
+        // Gaps seen before most of the recent ones are at the new rate count as two drops each
+        assertEquals(2 * (CONTENT_INTERVAL_WINDOW / 2 + 1), droppedWithContent(contentTimestamps));
+    }
+
+    @Test
+    public void readBeforeWrapping() {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        for (int frame = 0; frame < 100; ++frame) {
+            recordFrame(recorder, frame);
+        }
+
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(CAPACITY);
+        recorder.read(snapshot, 20, 50);
+        assertEquals(20, snapshot.firstFrame);
+        assertEquals(30, snapshot.count);
+        checkFrames(snapshot);
+
+        // Frames that weren't recorded yet aren't read
+        recorder.read(snapshot, 90, 200);
+        assertEquals(90, snapshot.firstFrame);
+        assertEquals(10, snapshot.count);
+        checkFrames(snapshot);
+    }
+
+    @Test
+    public void readAfterWrapping() {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        final long frames = 3L * CAPACITY + 100;
+        for (long frame = 0; frame < frames; ++frame) {
+            recordFrame(recorder, frame);
+        }
+        assertEquals(frames, recorder.getFrameCount());
+
+        // Frames close to the write position are never returned, they may be overwritten next
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(CAPACITY);
+        recorder.read(snapshot, 0, frames);
+        assertEquals(frames - CAPACITY + READ_MARGIN, snapshot.firstFrame);
+        assertEquals(CAPACITY - READ_MARGIN, snapshot.count);
+        checkFrames(snapshot);
+
+        // A smaller snapshot gets the newest frames
+        FrameTimingRecorder.Snapshot small = new FrameTimingRecorder.Snapshot(60);
+        recorder.read(small, 0, frames);
+        assertEquals(frames - 60, small.firstFrame);
+        assertEquals(60, small.count);
+        checkFrames(small);
+
+        // Frames across the end of the ring come back in order
+        final long from = 3L * CAPACITY - 10;
+        recorder.read(snapshot, from, from + 20);
+        assertEquals(from, snapshot.firstFrame);
+        assertEquals(20, snapshot.count);
+        checkFrames(snapshot);
+    }
+
+    @Test
+    public void concurrentReadsNeverSeeOverwrittenFrames() throws InterruptedException {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        final long frames = 200L * CAPACITY;
+        AtomicBoolean done = new AtomicBoolean(false);
+
+        Thread writer = new Thread(() -> {
+            for (long frame = 0; frame < frames; ++frame) {
+                recordFrame(recorder, frame);
+            }
+            done.set(true);
+        });
+        writer.start();
+
+        FrameTimingRecorder.Snapshot snapshot = new FrameTimingRecorder.Snapshot(CAPACITY);
+        int reads = 0;
+        while (!done.get()) {
+            final long published = recorder.getFrameCount();
+            recorder.read(snapshot, 0, Long.MAX_VALUE);
+
+            assertTrue(snapshot.count <= CAPACITY - READ_MARGIN);
+            assertTrue(snapshot.firstFrame >= published - CAPACITY + READ_MARGIN);
+            checkFrames(snapshot);
+            ++reads;
+        }
+        writer.join();
+
+        assertTrue(reads > 0);
+        assertEquals(frames, recorder.getFrameCount());
+    }
+
+    private static List<String> readTrace(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals("# Frame timing trace: test", lines.get(0));
+        assertTrue(lines.get(1).startsWith("# Device: "));
+        assertTrue(lines.get(2).startsWith("frame,present_ns,"));
+        return lines.subList(3, lines.size());
+    }
+
+    @Test
+    public void traceHoldsEveryFrameUntilStopped() throws IOException, InterruptedException {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+        File file = mFolder.newFile("trace.csv");
+
+        // Frames from before the trace was started aren't written
+        for (long frame = 0; frame < 10; ++frame) {
+            recordFrame(recorder, frame);
+        }
+
+        recorder.startTrace(file, "test");
+        for (long frame = 10; frame < 310; ++frame) {
+            recordFrame(recorder, frame);
+        }
+        recorder.stopTrace();
+        assertTrue(recorder.awaitTraceClosed(TIMEOUT_MS));
+
+        long nextFrame = 10;
+        String lastLine = null;
+        for (String line : readTrace(file)) {
+            if (!line.startsWith("#")) {
+                assertEquals(nextFrame, Long.parseLong(line.substring(0, line.indexOf(','))));
+                ++nextFrame;
+            }
+            lastLine = line;
+        }
+
+        // Every frame was written, and the file ends with the summary of the last write
+        assertEquals(310, nextFrame);
+        assertTrue(lastLine, lastLine.startsWith("# ") && lastLine.endsWith(" dropped"));
+    }
+
+    @Test
+    public void traceStoppedRightAfterStartIsClosed() throws IOException, InterruptedException {
+        FrameTimingRecorder recorder = new FrameTimingRecorder();
+
+        for (int trace = 0; trace < 20; ++trace) {
+            File file = mFolder.newFile("trace" + trace + ".csv");
+            recorder.startTrace(file, "test");
+            recordFrame(recorder, recorder.getFrameCount());
+            recorder.stopTrace();
+            assertTrue(recorder.awaitTraceClosed(TIMEOUT_MS));
+
+            // A trace can be started again once stopped
+            List<String> frames = readTrace(file);
+            assertEquals(2, frames.size());
+            assertTrue(frames.get(1).startsWith("# 1 frames"));
+        }
+    }
+}
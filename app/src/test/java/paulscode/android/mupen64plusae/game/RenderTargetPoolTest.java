@@ -0,0 +1,109 @@
+package paulscode.android.mupen64plusae.game;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RenderTargetPoolTest {
+
+    private FakeRenderTargetAllocator mAllocator;
+    private RenderTargetPool mPool;
+
+    @Before
+    public void setUp() {
+        mAllocator = new FakeRenderTargetAllocator();
+        mPool = new RenderTargetPool(mAllocator);
+    }
+
+    @Test
+    public void recycledTargetIsReused() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget first = mPool.obtain(640, 480, false);
+        mPool.recycle(first);
+
+        assertSame(first, mPool.obtain(640, 480, false));
+        assertEquals(1, mAllocator.mCreated);
+        assertEquals(1, mPool.getTargetCount());
+    }
+
+    @Test
+    public void targetsInUseAreNotShared() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget first = mPool.obtain(640, 480, false);
+        RenderTargetPool.RenderTarget second = mPool.obtain(640, 480, false);
+
+        assertNotSame(first, second);
+        assertEquals(2, mPool.getTargetCount());
+    }
+
+    @Test
+    public void sizeAndFilterMustMatch() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget target = mPool.obtain(640, 480, false);
+        mPool.recycle(target);
+
+        RenderTargetPool.RenderTarget linear = mPool.obtain(640, 480, true);
+        RenderTargetPool.RenderTarget smaller = mPool.obtain(320, 240, false);
+
+        assertNotSame(target, linear);
+        assertNotSame(target, smaller);
+        assertTrue(linear.mLinear);
+        assertEquals(320, smaller.mWidth);
+        assertEquals(240, smaller.mHeight);
+        assertEquals(3, mAllocator.mCreated);
+    }
+
+    @Test
+    public void nextPlanReusesTargetsAndDeletesTheRest() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget kept = mPool.obtain(640, 480, false);
+        mPool.obtain(320, 240, false);
+        mPool.endAllocation();
+        assertEquals(2, mAllocator.mLiveTargets.size());
+
+        // The new plan only needs one of the sizes
+        mPool.beginAllocation();
+        assertSame(kept, mPool.obtain(640, 480, false));
+        mPool.endAllocation();
+
+        assertEquals(2, mAllocator.mCreated);
+        assertEquals(1, mAllocator.mLiveTargets.size());
+        assertSame(kept, mAllocator.mLiveTargets.get(0));
+        assertEquals(1, mPool.getTargetCount());
+    }
+
+    @Test
+    public void recycledTargetsOfThePlanAreKept() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget target = mPool.obtain(640, 480, false);
+        mPool.recycle(target);
+        mPool.endAllocation();
+
+        // Handed back during planning, but the plan still draws into it
+        assertEquals(1, mAllocator.mLiveTargets.size());
+        assertEquals(1, mPool.getTargetCount());
+    }
+
+    @Test
+    public void releaseDeletesEveryTargetOnce() {
+        mPool.beginAllocation();
+        RenderTargetPool.RenderTarget first = mPool.obtain(640, 480, false);
+        mPool.obtain(320, 240, true);
+        mPool.recycle(first);
+        mPool.endAllocation();
+
+        // Targets left over from a plan that was never finished are deleted too
+        mPool.beginAllocation();
+        mPool.obtain(100, 100, false);
+
+        mPool.release();
+
+        assertEquals(3, mAllocator.mCreated);
+        assertTrue(mAllocator.mLiveTargets.isEmpty());
+        assertEquals(0, mPool.getTargetCount());
+    }
+}
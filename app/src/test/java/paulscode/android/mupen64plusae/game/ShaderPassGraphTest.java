@@ -0,0 +1,258 @@
+package paulscode.android.mupen64plusae.game;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShaderPassGraphTest {
+
+    private static final String PASS_THROUGH = "pass through";
+
+    private static final int INPUT_WIDTH = 640;
+    private static final int INPUT_HEIGHT = 480;
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+
+    private FakeRenderTargetAllocator mAllocator;
+    private RenderTargetPool mPool;
+
+    @Before
+    public void setUp() {
+        mAllocator = new FakeRenderTargetAllocator();
+        mPool = new RenderTargetPool(mAllocator);
+    }
+
+    private static ArrayList<ArrayList<String>> groups(String[]... groups)
+    {
+        ArrayList<ArrayList<String>> result = new ArrayList<>();
+        for (String[] group : groups) {
+            result.add(new ArrayList<>(Arrays.asList(group)));
+        }
+        return result;
+    }
+
+    private ArrayList<ShaderPassGraph.Pass> plan(int inputWidth, int inputHeight, String[]... groups)
+    {
+        mPool.beginAllocation();
+        ArrayList<ShaderPassGraph.Pass> passes = ShaderPassGraph.plan(groups(groups), PASS_THROUGH,
+                inputWidth, inputHeight, WIDTH, HEIGHT, mPool);
+        mPool.endAllocation();
+
+        checkTargets(passes);
+        return passes;
+    }
+
+    private ArrayList<ShaderPassGraph.Pass> plan(String[]... groups)
+    {
+        return plan(INPUT_WIDTH, INPUT_HEIGHT, groups);
+    }
+
+    private static boolean reads(ShaderPassGraph.Pass reader, ShaderPassGraph.Pass pass)
+    {
+        if (reader.mSource == pass) {
+            return true;
+        }
+
+        for (int previous = 0; previous < reader.mPreviousSources.length; ++previous) {
+            if (reader.mPreviousUsed[previous] && reader.mPreviousSources[previous] == pass) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Only the last pass draws to the surface, and no pass draws into a target whose contents a
+     * later pass still samples
+     */
+    private static void checkTargets(ArrayList<ShaderPassGraph.Pass> passes)
+    {
+        for (int index = 0; index < passes.size(); ++index) {
+            ShaderPassGraph.Pass pass = passes.get(index);
+            final boolean last = index == passes.size() - 1;
+
+            assertEquals(last, pass.mLast);
+            assertEquals(last, pass.mTarget == null);
+
+            if (pass.mTarget != null) {
+                assertEquals(pass.mOutputWidth, pass.mTarget.mWidth);
+                assertEquals(pass.mOutputHeight, pass.mTarget.mHeight);
+                assertEquals(pass.mReduced, pass.mTarget.mLinear);
+            }
+
+            for (int reader = index + 1; reader < passes.size(); ++reader) {
+                if (!reads(passes.get(reader), pass)) {
+                    continue;
+                }
+
+                for (int writer = index + 1; writer <= reader; ++writer) {
+                    assertNotSame("Pass " + writer + " overwrites the output of pass " + index +
+                            " before pass " + reader + " reads it", pass.mTarget, passes.get(writer).mTarget);
+                }
+            }
+        }
+    }
+
+    private static String[] codes(ArrayList<ShaderPassGraph.Pass> passes)
+    {
+        String[] codes = new String[passes.size()];
+        for (int index = 0; index < codes.length; ++index) {
+            codes[index] = passes.get(index).mCode;
+        }
+        return codes;
+    }
+
+    @Test
+    public void singlePassDrawsToTheSurface() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"fxaa"});
+
+        assertEquals(1, passes.size());
+        assertNull(passes.get(0).mSource);
+        assertEquals(WIDTH, passes.get(0).mOutputWidth);
+        assertEquals(HEIGHT, passes.get(0).mOutputHeight);
+        assertEquals(0, mAllocator.mCreated);
+    }
+
+    @Test
+    public void passesAreDrawnInOrder() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"a", "b"}, new String[]{"c"});
+
+        assertEquals(Arrays.asList("a", "b", "c"), Arrays.asList(codes(passes)));
+        assertNull(passes.get(0).mSource);
+        assertSame(passes.get(0), passes.get(1).mSource);
+        assertSame(passes.get(1), passes.get(2).mSource);
+
+        // The first group scales to the surface size at its last pass
+        assertEquals(INPUT_WIDTH, passes.get(0).mOutputWidth);
+        assertEquals(INPUT_HEIGHT, passes.get(0).mOutputHeight);
+        assertEquals(WIDTH, passes.get(1).mOutputWidth);
+        assertEquals(HEIGHT, passes.get(2).mOutputHeight);
+        assertEquals(0, passes.get(1).mGroup);
+        assertEquals(1, passes.get(1).mIndex);
+        assertEquals(1, passes.get(2).mGroup);
+        assertEquals(0, passes.get(2).mIndex);
+    }
+
+    @Test
+    public void chainOfPassesSharesTwoTargets() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"a"}, new String[]{"b"}, new String[]{"c"},
+                new String[]{"d"}, new String[]{"e"});
+
+        assertEquals(5, passes.size());
+        assertEquals(2, mAllocator.mCreated);
+        assertEquals(2, mPool.getTargetCount());
+        assertSame(passes.get(0).mTarget, passes.get(2).mTarget);
+        assertSame(passes.get(1).mTarget, passes.get(3).mTarget);
+    }
+
+    @Test
+    public void passPrevTextureKeepsTargetAlive() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"scale"},
+                new String[]{"a", "b", "c reads PassPrev3Texture"});
+
+        assertEquals(4, passes.size());
+
+        // PassPrev3 of the third pass of a group is the input of the group
+        ShaderPassGraph.Pass last = passes.get(3);
+        assertSame(passes.get(2), last.mPreviousSources[0]);
+        assertSame(passes.get(1), last.mPreviousSources[1]);
+        assertSame(passes.get(0), last.mPreviousSources[2]);
+        assertTrue(last.mPreviousUsed[2]);
+
+        // The output of scale is still needed while a and b draw
+        assertEquals(3, mAllocator.mCreated);
+    }
+
+    @Test
+    public void passThroughIsSkipped() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"fxaa"}, new String[]{PASS_THROUGH},
+                new String[]{"scanlines"});
+
+        assertEquals(Arrays.asList("fxaa", "scanlines"), Arrays.asList(codes(passes)));
+        assertSame(passes.get(0), passes.get(1).mSource);
+        assertEquals(1, mAllocator.mCreated);
+    }
+
+    @Test
+    public void passThroughThatScalesIsKept() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"fxaa", PASS_THROUGH}, new String[]{"scanlines"});
+
+        assertEquals(Arrays.asList("fxaa", PASS_THROUGH, "scanlines"), Arrays.asList(codes(passes)));
+    }
+
+    @Test
+    public void passThroughReadAsPassPrevIsKept() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"a"},
+                new String[]{PASS_THROUGH, "b", "c reads PassPrev2Texture"});
+
+        assertEquals(Arrays.asList("a", PASS_THROUGH, "b", "c reads PassPrev2Texture"), Arrays.asList(codes(passes)));
+        assertSame(passes.get(1), passes.get(3).mPreviousSources[1]);
+    }
+
+    @Test
+    public void leadingPassThroughReadsTheGameTexture() {
+        // The game texture is already at the surface size
+        ArrayList<ShaderPassGraph.Pass> passes = plan(WIDTH, HEIGHT, new String[]{PASS_THROUGH}, new String[]{"fxaa"});
+
+        assertEquals(1, passes.size());
+        assertEquals("fxaa", passes.get(0).mCode);
+        assertNull(passes.get(0).mSource);
+        assertNull(passes.get(0).mPreviousSources[0]);
+    }
+
+    @Test
+    public void trailingPassThroughHandsTheSurfaceBack() {
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"fxaa"}, new String[]{PASS_THROUGH});
+
+        assertEquals(1, passes.size());
+        assertTrue(passes.get(0).mLast);
+        assertEquals(0, mAllocator.mCreated);
+    }
+
+    @Test
+    public void intermediateScaleReducesTarget() {
+        final String blur = "#pragma intermediate_scale 0.5\nblur";
+        ArrayList<ShaderPassGraph.Pass> passes = plan(new String[]{"a"}, new String[]{blur}, new String[]{"c"});
+
+        ShaderPassGraph.Pass reduced = passes.get(1);
+        assertTrue(reduced.mReduced);
+        assertEquals(WIDTH/2, reduced.mOutputWidth);
+        assertEquals(HEIGHT/2, reduced.mOutputHeight);
+        assertTrue(reduced.mTarget.mLinear);
+        assertEquals(WIDTH, passes.get(2).mOutputWidth);
+
+        // The last pass always draws at the surface size
+        passes = plan(new String[]{"a"}, new String[]{blur});
+        assertFalse(passes.get(1).mReduced);
+        assertEquals(WIDTH, passes.get(1).mOutputWidth);
+    }
+
+    @Test
+    public void targetsAreReusedByTheNextPlanAndReleased() {
+        String[][] groups = {{"a", "b"}, {"c"}, {"d"}};
+        plan(groups);
+        final int created = mAllocator.mCreated;
+
+        plan(groups);
+        assertEquals(created, mAllocator.mCreated);
+        assertEquals(created, mAllocator.mLiveTargets.size());
+
+        // A plan with fewer passes deletes what it doesn't need
+        plan(new String[]{"a"});
+        assertTrue(mAllocator.mLiveTargets.isEmpty());
+
+        plan(groups);
+        mPool.release();
+        assertTrue(mAllocator.mLiveTargets.isEmpty());
+    }
+}
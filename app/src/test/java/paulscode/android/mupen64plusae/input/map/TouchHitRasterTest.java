@@ -0,0 +1,256 @@
+package paulscode.android.mupen64plusae.input.map;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TouchHitRasterTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 200;
+
+    static final int[] BUTTON_COLORS = {0xFF0000, 0x00FF00, 0x0000FF, 0xFFB400};
+    static final int UNMAPPED_COLOR = 0x808080;
+    private static final int MATCH_TOLERANCE = 10;
+
+    /**
+     * Matches colors the same way TouchMap does, with a small tolerance
+     */
+    static final TouchHitRaster.ColorMatcher MATCHER = rgb -> {
+        int closestMatch = TouchMap.UNMAPPED;
+        int matchDif = MATCH_TOLERANCE * MATCH_TOLERANCE;
+
+        for (int button = 0; button < BUTTON_COLORS.length; ++button) {
+            int difR = ((rgb >> 16) & 0xFF) - ((BUTTON_COLORS[button] >> 16) & 0xFF);
+            int difG = ((rgb >> 8) & 0xFF) - ((BUTTON_COLORS[button] >> 8) & 0xFF);
+            int difB = (rgb & 0xFF) - (BUTTON_COLORS[button] & 0xFF);
+            int dif = difR * difR + difG * difG + difB * difB;
+
+            if (dif < matchDif) {
+                closestMatch = button;
+                matchDif = dif;
+            }
+        }
+
+        return closestMatch;
+    };
+
+    static class Mask {
+        int[] pixels;
+        int width;
+        int height;
+        int x;
+        int y;
+        float scale;
+
+        int getScaledWidth()
+        {
+            return (int) (width * scale);
+        }
+
+        int getScaledHeight()
+        {
+            return (int) (height * scale);
+        }
+    }
+
+    /**
+     * A round button of one color, with softened edges and black around it
+     */
+    static Mask roundMask(Random random, int size, int color, int x, int y, float scale)
+    {
+        Mask mask = new Mask();
+        mask.width = size;
+        mask.height = size;
+        mask.x = x;
+        mask.y = y;
+        mask.scale = scale;
+        mask.pixels = new int[size * size];
+
+        final float radius = size / 2.0f;
+        for (int row = 0; row < size; ++row) {
+            for (int column = 0; column < size; ++column) {
+                final float dx = column + 0.5f - radius;
+                final float dy = row + 0.5f - radius;
+                final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+
+                int rgb = 0;
+                if (distance < radius - 1) {
+                    rgb = color;
+                } else if (distance < radius) {
+                    // Scaled masks blend the edge with black
+                    rgb = color == 0 ? 0 : (color & 0xFEFEFE) >> 1;
+                }
+
+                // Some skins have an alpha channel, some don't
+                final int alpha = random.nextBoolean() ? 0xFF000000 : 0;
+                mask.pixels[row * size + column] = rgb == 0 ? alpha : alpha | rgb;
+            }
+        }
+
+        return mask;
+    }
+
+    /**
+     * Looks up a location the way TouchMap did before the raster: the first mask that covers the
+     * location and isn't black there decides.
+     */
+    static int scanMasks(ArrayList<Mask> masks, int x, int y)
+    {
+        for (Mask mask : masks) {
+            int left = mask.x;
+            int right = left + mask.getScaledWidth();
+            int bottom = mask.y;
+            int top = bottom + mask.getScaledHeight();
+
+            if (x >= left && x < right && y >= bottom && y < top) {
+                // Bitmap.getPixel would throw past the last pixel
+                int column = Math.min((int) ((x - mask.x) / mask.scale), mask.width - 1);
+                int row = Math.min((int) ((y - mask.y) / mask.scale), mask.height - 1);
+                int rgb = mask.pixels[row * mask.width + column] & 0x00ffffff;
+
+                if (rgb > 0) {
+                    return MATCHER.getButton(rgb);
+                }
+            }
+        }
+
+        return TouchMap.UNMAPPED;
+    }
+
+    static TouchHitRaster rasterize(ArrayList<Mask> masks, int width, int height)
+    {
+        TouchHitRaster raster = new TouchHitRaster();
+        raster.reset(width, height);
+
+        for (Mask mask : masks) {
+            if (raster.overlaps(mask.x, mask.y, mask.getScaledWidth(), mask.getScaledHeight())) {
+                raster.addMask(mask.pixels, mask.width, mask.height, mask.x, mask.y,
+                        mask.getScaledWidth(), mask.getScaledHeight(), mask.scale, MATCHER);
+            }
+        }
+
+        return raster;
+    }
+
+    /**
+     * Masks that overlap each other at different scales, some with colors slightly off the
+     * button colors and one with a color that isn't mapped
+     */
+    private static ArrayList<Mask> overlappingLayout(Random random)
+    {
+        ArrayList<Mask> masks = new ArrayList<>();
+        masks.add(roundMask(random, 40, BUTTON_COLORS[0], 20, 30, 1.7f));
+        masks.add(roundMask(random, 64, BUTTON_COLORS[1] + 0x030000, 60, 50, 1.0f));
+        masks.add(roundMask(random, 90, BUTTON_COLORS[2], 100, 20, 0.6f));
+        masks.add(roundMask(random, 30, UNMAPPED_COLOR, 140, 60, 2.5f));
+        masks.add(roundMask(random, 50, BUTTON_COLORS[3] - 0x000004, 170, 90, 1.33f));
+        masks.add(roundMask(random, 37, BUTTON_COLORS[0], 250, 120, 1.9f));
+        return masks;
+    }
+
+    @Test
+    public void rasterMatchesMaskScan() {
+        Random random = new Random(25);
+
+        for (int layout = 0; layout < 4; ++layout) {
+            ArrayList<Mask> masks = overlappingLayout(random);
+            TouchHitRaster raster = rasterize(masks, WIDTH, HEIGHT);
+            int buttons = 0;
+
+            // A border outside the digitizer too, no mask reaches it
+            for (int y = -5; y < HEIGHT + 5; ++y) {
+                for (int x = -5; x < WIDTH + 5; ++x) {
+                    final int expected = scanMasks(masks, x, y);
+                    assertEquals("(" + x + ", " + y + ")", expected, raster.get(x, y));
+                    if (expected != TouchMap.UNMAPPED) {
+                        ++buttons;
+                    }
+                }
+            }
+
+            assertTrue(buttons > 0);
+        }
+    }
+
+    @Test
+    public void firstMaskWins() {
+        Random random = new Random(1);
+        ArrayList<Mask> masks = new ArrayList<>();
+        masks.add(roundMask(random, 20, BUTTON_COLORS[0], 0, 0, 1.0f));
+        masks.add(roundMask(random, 20, BUTTON_COLORS[1], 10, 0, 1.0f));
+        masks.add(roundMask(random, 20, UNMAPPED_COLOR, 0, 10, 1.0f));
+        masks.add(roundMask(random, 20, BUTTON_COLORS[2], 5, 10, 1.0f));
+        TouchHitRaster raster = rasterize(masks, 40, 40);
+
+        // Both of the first masks cover this, the first one is on top
+        assertEquals(0, raster.get(15, 10));
+        assertEquals(0, scanMasks(masks, 15, 10));
+
+        // Black corners of the first mask show the second one
+        assertEquals(1, raster.get(19, 1));
+        assertEquals(1, scanMasks(masks, 19, 1));
+
+        // An unmapped color still hides the masks below it
+        assertEquals(TouchMap.UNMAPPED, raster.get(10, 25));
+        assertEquals(TouchMap.UNMAPPED, scanMasks(masks, 10, 25));
+        assertEquals(2, raster.get(20, 20));
+    }
+
+    @Test
+    public void masksPastTheEdges() {
+        Random random = new Random(2);
+        ArrayList<Mask> masks = new ArrayList<>();
+        masks.add(roundMask(random, 40, BUTTON_COLORS[0], -20, -15, 1.5f));
+        masks.add(roundMask(random, 40, BUTTON_COLORS[1], WIDTH - 30, HEIGHT - 25, 1.5f));
+        masks.add(roundMask(random, 40, BUTTON_COLORS[2], WIDTH + 10, 0, 1.0f));
+        TouchHitRaster raster = rasterize(masks, WIDTH, HEIGHT);
+
+        assertFalse(raster.overlaps(WIDTH + 10, 0, 40, 40));
+        assertFalse(raster.overlaps(-40, 0, 40, 40));
+
+        // Inside the digitizer the parts that are visible match
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                assertEquals("(" + x + ", " + y + ")", scanMasks(masks, x, y), raster.get(x, y));
+            }
+        }
+        assertEquals(0, raster.get(5, 5));
+        assertEquals(1, raster.get(WIDTH - 1, HEIGHT - 1));
+
+        // Touches never land outside of it, the raster doesn't map anything there
+        assertEquals(0, scanMasks(masks, -1, 5));
+        assertEquals(TouchMap.UNMAPPED, raster.get(-1, 5));
+        assertEquals(TouchMap.UNMAPPED, raster.get(WIDTH, HEIGHT - 1));
+        assertEquals(TouchMap.UNMAPPED, raster.get(WIDTH + 20, 20));
+    }
+
+    @Test
+    public void resetRemovesMasks() {
+        Random random = new Random(3);
+        ArrayList<Mask> masks = new ArrayList<>();
+        masks.add(roundMask(random, 20, BUTTON_COLORS[3], 0, 0, 1.0f));
+        TouchHitRaster raster = rasterize(masks, 20, 20);
+        assertEquals(3, raster.get(10, 10));
+
+        raster.reset(20, 20);
+        assertEquals(TouchMap.UNMAPPED, raster.get(10, 10));
+
+        raster.reset(10, 10);
+        assertEquals(TouchMap.UNMAPPED, raster.get(5, 5));
+        assertEquals(TouchMap.UNMAPPED, raster.get(15, 15));
+    }
+
+    @Test
+    public void emptyRaster() {
+        TouchHitRaster raster = new TouchHitRaster();
+
+        assertEquals(TouchMap.UNMAPPED, raster.get(0, 0));
+        assertFalse(raster.overlaps(0, 0, 10, 10));
+    }
+}
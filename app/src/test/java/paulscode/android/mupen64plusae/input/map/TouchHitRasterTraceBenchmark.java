@@ -0,0 +1,143 @@
+package paulscode.android.mupen64plusae.input.map;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.util.MicroBenchmark;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a multi-touch trace through {@link TouchHitRaster}, the way the touch controller looks
+ * up every pointer of every motion event, and compares it with scanning the button masks for each
+ * touch the way it was done before the raster. The trace is a minute of play on a 2400x1080
+ * screen at a 120 Hz touch sampling rate: a thumb on the d-pad, a thumb moving between the face
+ * buttons and fingers that press Z and the shoulder buttons now and then.
+ */
+public class TouchHitRasterTraceBenchmark {
+
+    private static final int WIDTH = 2400;
+    private static final int HEIGHT = 1080;
+    private static final int EVENTS = 60 * 120;
+
+    /**
+     * Every pointer location looked up, in the order of the motion events
+     */
+    private static class Trace {
+        int[] x = new int[EVENTS * 4];
+        int[] y = new int[EVENTS * 4];
+        int lookups = 0;
+
+        void add(float pointerX, float pointerY) {
+            x[lookups] = Math.round(pointerX);
+            y[lookups] = Math.round(pointerY);
+            ++lookups;
+        }
+    }
+
+    /**
+     * A phone sized layout: d-pad, A and B, four C buttons, Z, L, R and an unmapped start button
+     */
+    private static ArrayList<TouchHitRasterTest.Mask> layout(Random random) {
+        final int[] colors = TouchHitRasterTest.BUTTON_COLORS;
+        ArrayList<TouchHitRasterTest.Mask> masks = new ArrayList<>();
+        masks.add(TouchHitRasterTest.roundMask(random, 120, colors[3], 120, 560, 3.0f));
+        masks.add(TouchHitRasterTest.roundMask(random, 80, colors[2], 1900, 700, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 80, colors[1], 1700, 820, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 48, colors[3], 2120, 420, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 48, colors[3], 2000, 540, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 48, colors[3], 2240, 540, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 48, colors[3], 2120, 660, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 64, colors[0], 560, 860, 2.5f));
+        masks.add(TouchHitRasterTest.roundMask(random, 96, colors[0], 40, 60, 2.0f));
+        masks.add(TouchHitRasterTest.roundMask(random, 96, colors[1], 2160, 60, 2.0f));
+        masks.add(TouchHitRasterTest.roundMask(random, 40, TouchHitRasterTest.UNMAPPED_COLOR, 1150, 960, 2.5f));
+        return masks;
+    }
+
+    private static float center(TouchHitRasterTest.Mask mask, boolean horizontal) {
+        return horizontal ? mask.x + mask.getScaledWidth() / 2.0f : mask.y + mask.getScaledHeight() / 2.0f;
+    }
+
+    private static Trace record(ArrayList<TouchHitRasterTest.Mask> masks, Random random) {
+        Trace trace = new Trace();
+        TouchHitRasterTest.Mask dpad = masks.get(0);
+        float rightX = center(masks.get(1), true);
+        float rightY = center(masks.get(1), false);
+        int target = 1;
+
+        for (int event = 0; event < EVENTS; ++event) {
+            // The left thumb rolls around the d-pad
+            final double angle = event * 0.05;
+            trace.add(center(dpad, true) + (float) Math.cos(angle) * 150 + random.nextInt(9) - 4,
+                    center(dpad, false) + (float) Math.sin(angle) * 150 + random.nextInt(9) - 4);
+
+            // The right thumb slides over to another of A, B and the C buttons every few events
+            if (random.nextInt(30) == 0) {
+                target = 1 + random.nextInt(6);
+            }
+            rightX += (center(masks.get(target), true) - rightX) * 0.3f + random.nextInt(7) - 3;
+            rightY += (center(masks.get(target), false) - rightY) * 0.3f + random.nextInt(7) - 3;
+            trace.add(rightX, rightY);
+
+            // Z is held for a while every couple of seconds, the shoulder buttons less often
+            if (event % 240 < 60) {
+                trace.add(center(masks.get(7), true) + random.nextInt(21) - 10,
+                        center(masks.get(7), false) + random.nextInt(21) - 10);
+            }
+            if (event % 600 < 90) {
+                TouchHitRasterTest.Mask shoulder = masks.get(event % 1200 < 600 ? 8 : 9);
+                trace.add(center(shoulder, true) + random.nextInt(31) - 15,
+                        center(shoulder, false) + random.nextInt(31) - 15);
+            }
+        }
+
+        return trace;
+    }
+
+    @Test
+    public void replayMultiTouchTrace() throws Exception {
+        Random random = new Random(25);
+        ArrayList<TouchHitRasterTest.Mask> masks = layout(random);
+        Trace trace = record(masks, random);
+        TouchHitRaster raster = TouchHitRasterTest.rasterize(masks, WIDTH, HEIGHT);
+
+        final String name = String.format(Locale.US, "%d events, %d pointers", EVENTS, trace.lookups);
+
+        MicroBenchmark.Result scan = MicroBenchmark.run(name + " scan", 5, 11, trace.lookups, () -> {
+            long hits = 0;
+            for (int index = 0; index < trace.lookups; ++index) {
+                hits += TouchHitRasterTest.scanMasks(masks, trace.x[index], trace.y[index]);
+            }
+            return hits;
+        });
+        MicroBenchmark.Result lookup = MicroBenchmark.run(name + " raster", 5, 11, trace.lookups, () -> {
+            long hits = 0;
+            for (int index = 0; index < trace.lookups; ++index) {
+                hits += raster.get(trace.x[index], trace.y[index]);
+            }
+            return hits;
+        });
+        MicroBenchmark.run(String.format(Locale.US, "%dx%d raster build", WIDTH, HEIGHT), 3, 11, 1,
+                () -> TouchHitRasterTest.rasterize(masks, WIDTH, HEIGHT).get(0, 0));
+
+        System.out.println(String.format(Locale.US, "%s: scan %.1f M/s, raster %.1f M/s, %.1fx", name,
+                scan.getOperationsPerSecond() / 1e6, lookup.getOperationsPerSecond() / 1e6,
+                scan.nanosPerOperation / lookup.nanosPerOperation));
+
+        // Both find the same buttons, and the trace hits a good share of them
+        int pressed = 0;
+        for (int index = 0; index < trace.lookups; ++index) {
+            final int button = raster.get(trace.x[index], trace.y[index]);
+            assertEquals(TouchHitRasterTest.scanMasks(masks, trace.x[index], trace.y[index]), button);
+            if (button != TouchMap.UNMAPPED) {
+                ++pressed;
+            }
+        }
+        assertTrue(pressed > trace.lookups / 4);
+    }
+}
@@ -0,0 +1,178 @@
+package paulscode.android.mupen64plusae.jni;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RewindBufferTest {
+
+    private static final int STATE_SIZE = 64*1024;
+
+    // Far enough apart that no state is too recent to rewind to
+    private static final long STATE_INTERVAL_MS = 1000;
+
+    /**
+     * State where every byte differs from other states, so it's always stored as a keyframe
+     */
+    private static SavestateBuffer randomState(long seed)
+    {
+        SavestateBuffer state = new SavestateBuffer(STATE_SIZE);
+        byte[] contents = new byte[STATE_SIZE];
+        new Random(seed).nextBytes(contents);
+        state.getBuffer().put(contents);
+        return state;
+    }
+
+    /**
+     * Copy of a state with a few bytes changed, like the memory touched between two frames
+     */
+    private static SavestateBuffer changed(SavestateBuffer state, long seed)
+    {
+        SavestateBuffer next = new SavestateBuffer(STATE_SIZE);
+        next.copyFrom(state);
+
+        ByteBuffer buffer = next.getBuffer();
+        Random random = new Random(seed);
+        for (int change = 0; change < 50; ++change) {
+            final int index = random.nextInt(STATE_SIZE);
+            buffer.put(index, (byte)(buffer.get(index) + 1));
+        }
+
+        return next;
+    }
+
+    private static byte[] contents(SavestateBuffer state)
+    {
+        ByteBuffer buffer = state.getBuffer().duplicate();
+        buffer.clear();
+        byte[] contents = new byte[buffer.remaining()];
+        buffer.get(contents);
+        return contents;
+    }
+
+    private static RewindBuffer.History history(long maxBytes)
+    {
+        return new RewindBuffer.History(new SavestateBuffer(STATE_SIZE), maxBytes);
+    }
+
+    private static void assertRestores(RewindBuffer.History history, SavestateBuffer expected, long now)
+    {
+        SavestateBuffer restored = new SavestateBuffer(STATE_SIZE);
+        assertTrue(history.restorePrevious(restored, now));
+        assertArrayEquals(contents(expected), contents(restored));
+    }
+
+    @Test
+    public void smallChangesAreStoredAsDeltas() {
+        RewindBuffer.History history = history(Long.MAX_VALUE);
+        SavestateBuffer keyframe = randomState(1);
+
+        assertTrue(history.add(keyframe, 0));
+        assertFalse(history.add(changed(keyframe, 2), STATE_INTERVAL_MS));
+        assertFalse(history.add(changed(keyframe, 3), 2*STATE_INTERVAL_MS));
+
+        // A delta against a completely different state would be as large as a keyframe
+        assertTrue(history.add(randomState(4), 3*STATE_INTERVAL_MS));
+        assertEquals(4, history.size());
+    }
+
+    @Test
+    public void keyframeAfterTooManyDeltas() {
+        RewindBuffer.History history = history(Long.MAX_VALUE);
+        SavestateBuffer keyframe = randomState(5);
+        assertTrue(history.add(keyframe, 0));
+
+        int deltas = 0;
+        while (!history.add(changed(keyframe, deltas), (deltas + 1)*STATE_INTERVAL_MS)) {
+            ++deltas;
+            assertTrue(deltas <= 100);
+        }
+
+        assertTrue(deltas > 1);
+        assertTrue(history.getStoredBytes() < 2L*STATE_SIZE + (deltas + 1)*STATE_SIZE/4);
+    }
+
+    @Test
+    public void restoresThroughDeltas() {
+        RewindBuffer.History history = history(Long.MAX_VALUE);
+        SavestateBuffer first = randomState(6);
+        SavestateBuffer second = changed(first, 7);
+        SavestateBuffer third = changed(second, 8);
+
+        assertTrue(history.add(first, 0));
+        assertFalse(history.add(second, STATE_INTERVAL_MS));
+        assertFalse(history.add(third, 2*STATE_INTERVAL_MS));
+
+        // The newest state was only just taken, it's skipped
+        final long now = 2*STATE_INTERVAL_MS + 100;
+        assertRestores(history, second, now);
+        assertRestores(history, first, now);
+        assertEquals(0, history.size());
+        assertEquals(0, history.getStoredBytes());
+
+        // The keyframe is gone, the next state can't be a delta against it
+        assertTrue(history.add(changed(first, 9), now));
+    }
+
+    @Test
+    public void oldestStatesAreDroppedWithTheirDeltas() {
+        final int keyframeBytes = randomState(10).compress(Deflater.BEST_SPEED).length;
+        RewindBuffer.History history = history(2L*keyframeBytes + keyframeBytes/2);
+
+        SavestateBuffer first = randomState(11);
+        SavestateBuffer second = randomState(12);
+        SavestateBuffer secondChanged = changed(second, 13);
+        SavestateBuffer third = randomState(14);
+
+        assertTrue(history.add(first, 0));
+        assertFalse(history.add(changed(first, 15), STATE_INTERVAL_MS));
+        assertFalse(history.add(changed(first, 16), 2*STATE_INTERVAL_MS));
+        assertTrue(history.add(second, 3*STATE_INTERVAL_MS));
+        assertFalse(history.add(secondChanged, 4*STATE_INTERVAL_MS));
+        assertEquals(5, history.size());
+
+        // The third keyframe doesn't fit, the first one goes along with its deltas
+        assertTrue(history.add(third, 5*STATE_INTERVAL_MS));
+        assertEquals(3, history.size());
+        assertTrue(history.getStoredBytes() <= 2L*keyframeBytes + keyframeBytes/2);
+
+        final long now = 10*STATE_INTERVAL_MS;
+        assertRestores(history, third, now);
+        assertRestores(history, secondChanged, now);
+        assertRestores(history, second, now);
+        assertFalse(history.restorePrevious(new SavestateBuffer(STATE_SIZE), now));
+    }
+
+    @Test
+    public void nothingToRewindTo() {
+        RewindBuffer.History history = history(Long.MAX_VALUE);
+        SavestateBuffer state = new SavestateBuffer(STATE_SIZE);
+        assertFalse(history.restorePrevious(state, 0));
+
+        // Only states that were just taken
+        history.add(randomState(17), 1000);
+        history.add(randomState(18), 1200);
+        assertFalse(history.restorePrevious(state, 1300));
+        assertEquals(0, history.size());
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        RewindBuffer.History history = history(Long.MAX_VALUE);
+        SavestateBuffer keyframe = randomState(19);
+        history.add(keyframe, 0);
+        history.add(changed(keyframe, 20), STATE_INTERVAL_MS);
+
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(0, history.getStoredBytes());
+        assertTrue(history.add(changed(keyframe, 21), 2*STATE_INTERVAL_MS));
+    }
+}
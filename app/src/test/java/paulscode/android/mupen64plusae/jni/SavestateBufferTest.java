@@ -0,0 +1,135 @@
+package paulscode.android.mupen64plusae.jni;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SavestateBufferTest {
+
+    private static final int STATE_SIZE = 256*1024 + 13;
+
+    private static final byte[] MAGIC = {'M', '6', '4', '+', 'S', 'A', 'V', 'E'};
+
+    /**
+     * State that looks like one written by the core, mostly zeros with scattered data
+     */
+    private static SavestateBuffer state(int size, long seed)
+    {
+        SavestateBuffer state = new SavestateBuffer(size);
+        ByteBuffer buffer = state.getBuffer();
+        Random random = new Random(seed);
+
+        for (int index = MAGIC.length; index < size; index += 1 + random.nextInt(32)) {
+            buffer.put(index, (byte)random.nextInt());
+        }
+
+        for (int index = 0; index < MAGIC.length; ++index) {
+            buffer.put(index, MAGIC[index]);
+        }
+
+        return state;
+    }
+
+    /**
+     * Change a few bytes, like the memory touched between two frames
+     */
+    private static void changeSome(SavestateBuffer state, long seed)
+    {
+        ByteBuffer buffer = state.getBuffer();
+        Random random = new Random(seed);
+
+        for (int change = 0; change < 200; ++change) {
+            final int index = MAGIC.length + random.nextInt(buffer.capacity() - MAGIC.length);
+            buffer.put(index, (byte)(buffer.get(index) + 1));
+        }
+    }
+
+    private static byte[] contents(SavestateBuffer state)
+    {
+        ByteBuffer buffer = state.getBuffer().duplicate();
+        buffer.clear();
+        byte[] contents = new byte[buffer.remaining()];
+        buffer.get(contents);
+        return contents;
+    }
+
+    @Test
+    public void compressRoundTrip() {
+        SavestateBuffer state = state(STATE_SIZE, 1);
+        byte[] compressed = state.compress(1);
+        assertTrue(compressed.length < STATE_SIZE);
+
+        SavestateBuffer restored = new SavestateBuffer(STATE_SIZE);
+        assertTrue(restored.decompress(compressed));
+        assertArrayEquals(contents(state), contents(restored));
+        assertTrue(restored.isValid());
+    }
+
+    @Test
+    public void deltaRoundTrip() {
+        SavestateBuffer reference = state(STATE_SIZE, 2);
+        SavestateBuffer next = new SavestateBuffer(STATE_SIZE);
+        next.copyFrom(reference);
+        changeSome(next, 3);
+
+        byte[] delta = next.compressDelta(reference, 1);
+        assertTrue(delta.length < reference.compress(1).length / 4);
+
+        // The delta turns a copy of the reference into the next state
+        SavestateBuffer restored = new SavestateBuffer(STATE_SIZE);
+        restored.copyFrom(reference);
+        assertTrue(restored.applyDelta(delta));
+        assertArrayEquals(contents(next), contents(restored));
+    }
+
+    @Test
+    public void deltaOfAnotherSizeIsRejected() {
+        SavestateBuffer reference = state(STATE_SIZE, 4);
+        SavestateBuffer next = state(STATE_SIZE, 5);
+        byte[] delta = next.compressDelta(reference, 1);
+
+        SavestateBuffer smaller = state(STATE_SIZE - 1, 4);
+        assertFalse(smaller.applyDelta(delta));
+
+        SavestateBuffer larger = state(STATE_SIZE + 1, 4);
+        assertFalse(larger.applyDelta(delta));
+    }
+
+    @Test
+    public void stateOfAnotherSizeIsRejected() {
+        byte[] compressed = state(STATE_SIZE, 6).compress(1);
+
+        assertFalse(new SavestateBuffer(STATE_SIZE - 1).decompress(compressed));
+        assertFalse(new SavestateBuffer(STATE_SIZE + 1).decompress(compressed));
+    }
+
+    @Test
+    public void corruptInputIsRejected() {
+        byte[] compressed = state(STATE_SIZE, 7).compress(1);
+
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        assertFalse(new SavestateBuffer(STATE_SIZE).decompress(truncated));
+
+        byte[] garbage = new byte[compressed.length];
+        new Random(8).nextBytes(garbage);
+        assertFalse(new SavestateBuffer(STATE_SIZE).decompress(garbage));
+
+        assertFalse(new SavestateBuffer(STATE_SIZE).applyDelta(new byte[0]));
+    }
+
+    @Test
+    public void invalidateClearsTheHeader() {
+        SavestateBuffer state = state(STATE_SIZE, 9);
+        assertTrue(state.isValid());
+
+        state.invalidate();
+        assertFalse(state.isValid());
+        assertFalse(new SavestateBuffer(STATE_SIZE).isValid());
+    }
+}
@@ -0,0 +1,222 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays the input arrival times of one player through a {@link BufferSizePolicy} to compare
+ * policies offline. The client is modelled as a playout buffer: it plays one count per frame,
+ * running the current buffer size worth of frames behind the first input, and stalls whenever
+ * the input it needs hasn't arrived yet. Missing counts are filled in when a later count
+ * arrives, like {@link UdpServer} does.
+ *
+ * A trace has one received input per line, the count followed by the arrival time in milliseconds.
+ * Empty lines and lines starting with # are ignored. {@link BufferPolicySimulatorTest} compares
+ * the policies on generated traces.
+ */
+public class BufferPolicySimulator {
+
+    private static final long NS_PER_MS = 1000000L;
+
+    public static class Trace {
+        /**
+         * @param arrivalNs Arrival time of each count, negative if it was lost
+         * @param frameIntervalNs Time the client takes to play one count
+         */
+        public Trace(long[] arrivalNs, long frameIntervalNs)
+        {
+            mArrivalNs = arrivalNs;
+            mFrameIntervalNs = frameIntervalNs;
+        }
+
+        final long[] mArrivalNs;
+        final long mFrameIntervalNs;
+    }
+
+    public static class Result {
+        public int stalls = 0;
+        public double stallMs = 0;
+        public double meanLatencyMs = 0;
+        public double meanBufferSize = 0;
+        public int bufferSizeChanges = 0;
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.US, "stalls=%d stall_ms=%.0f latency_ms=%.1f buffer=%.2f changes=%d",
+                    stalls, stallMs, meanLatencyMs, meanBufferSize, bufferSizeChanges);
+        }
+    }
+
+    /**
+     * Read a trace, see the class description for the format
+     */
+    public static Trace parseTrace(BufferedReader reader, double frameIntervalMs) throws IOException
+    {
+        ArrayList<long[]> samples = new ArrayList<>();
+        int lastCount = -1;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] fields = line.split("\\s+");
+            if (fields.length < 2) {
+                throw new IOException("Invalid trace line: " + line);
+            }
+
+            try {
+                final int count = Integer.parseInt(fields[0]);
+                final long arrivalNs = (long)(Double.parseDouble(fields[1]) * NS_PER_MS);
+
+                if (count < 0) {
+                    throw new IOException("Invalid count: " + line);
+                }
+
+                samples.add(new long[]{count, arrivalNs});
+                lastCount = Math.max(lastCount, count);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid trace line: " + line);
+            }
+        }
+
+        long[] arrivalNs = new long[lastCount + 1];
+        Arrays.fill(arrivalNs, -1);
+
+        for (long[] sample : samples) {
+            arrivalNs[(int)sample[0]] = sample[1];
+        }
+
+        return new Trace(arrivalNs, (long)(frameIntervalMs * NS_PER_MS));
+    }
+
+    /**
+     * Play a trace with a buffer size policy
+     * @param policy Policy to evaluate, used for player 0
+     * @param initialBufferSize Buffer size at the start
+     */
+    public static Result simulate(Trace trace, BufferSizePolicy policy, int initialBufferSize)
+    {
+        final long[] arrivalNs = trace.mArrivalNs;
+
+        // Lost counts at the end are never filled in, so they can't be played
+        int lastReceived = arrivalNs.length - 1;
+        while (lastReceived >= 0 && arrivalNs[lastReceived] < 0) {
+            --lastReceived;
+        }
+
+        final int numCounts = lastReceived + 1;
+        final long frameNs = trace.mFrameIntervalNs;
+        final long updateIntervalNs = UdpServer.BUFFER_UPDATE_INTERVAL_MS * NS_PER_MS;
+
+        // Received counts in the order they arrive
+        Integer[] byArrival = new Integer[numCounts];
+        int received = 0;
+        long startNs = Long.MAX_VALUE;
+
+        for (int count = 0; count < numCounts; ++count) {
+            if (arrivalNs[count] >= 0) {
+                byArrival[received++] = count;
+                startNs = Math.min(startNs, arrivalNs[count]);
+            }
+        }
+
+        Result result = new Result();
+
+        if (received == 0) {
+            return result;
+        }
+
+        Arrays.sort(byArrival, 0, received, (first, second) -> Long.compare(arrivalNs[first], arrivalNs[second]));
+
+        // Time each count is available to the client, lost counts are filled by a later one
+        long[] availableNs = new long[numCounts];
+        Arrays.fill(availableNs, Long.MAX_VALUE);
+
+        int bufferSize = initialBufferSize;
+        int nextArrival = 0;
+        int highestCount = -1;
+        long previousArrivalNs = -1;
+        int nextPlay = 0;
+        long stalledNs = 0;
+        long stallStartNs = -1;
+        long nextUpdateNs = startNs;
+        double latencySumNs = 0;
+        double bufferSizeSum = 0;
+        int updates = 0;
+
+        for (long nowNs = startNs; nextPlay < numCounts; nowNs += NS_PER_MS) {
+
+            while (nextArrival < received && arrivalNs[byArrival[nextArrival]] <= nowNs) {
+                final int count = byArrival[nextArrival++];
+                final long timeNs = arrivalNs[count];
+
+                if (previousArrivalNs >= 0) {
+                    policy.onInputReceived(0, timeNs - previousArrivalNs);
+                }
+                previousArrivalNs = timeNs;
+
+                if (count > highestCount + 1) {
+                    policy.onInputsMissing(0, count - highestCount - 1);
+                }
+
+                for (int filled = Math.max(highestCount + 1, 0); filled <= count; ++filled) {
+                    availableNs[filled] = Math.min(availableNs[filled], timeNs);
+                }
+                availableNs[count] = Math.min(availableNs[count], timeNs);
+                highestCount = Math.max(highestCount, count);
+            }
+
+            if (nowNs >= nextUpdateNs) {
+                final int newBufferSize = policy.updateBufferSize(0, bufferSize, nowNs);
+
+                if (newBufferSize != bufferSize) {
+                    ++result.bufferSizeChanges;
+                    bufferSize = newBufferSize;
+                }
+
+                bufferSizeSum += bufferSize;
+                ++updates;
+                nextUpdateNs += updateIntervalNs;
+            }
+
+            while (nextPlay < numCounts && startNs + (nextPlay + bufferSize) * frameNs + stalledNs <= nowNs) {
+                if (availableNs[nextPlay] > nowNs) {
+                    if (stallStartNs < 0) {
+                        stallStartNs = nowNs;
+                        ++result.stalls;
+                        policy.onBufferHealth(0, 0);
+                    }
+                    break;
+                }
+
+                if (stallStartNs >= 0) {
+                    stalledNs += nowNs - stallStartNs;
+                    stallStartNs = -1;
+                }
+
+                // Like the client, count the input that is about to be played
+                int bufferHealth = 1;
+                while (nextPlay + bufferHealth < numCounts && availableNs[nextPlay + bufferHealth] <= nowNs) {
+                    ++bufferHealth;
+                }
+                policy.onBufferHealth(0, bufferHealth);
+
+                latencySumNs += nowNs - availableNs[nextPlay];
+                ++nextPlay;
+            }
+        }
+
+        result.stallMs = stalledNs / (double)NS_PER_MS;
+        result.meanLatencyMs = latencySumNs / numCounts / NS_PER_MS;
+        result.meanBufferSize = updates == 0 ? 0 : bufferSizeSum / updates;
+        return result;
+    }
+}
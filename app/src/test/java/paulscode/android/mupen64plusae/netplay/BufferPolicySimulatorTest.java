@@ -0,0 +1,142 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPolicySimulatorTest {
+
+    private static final double FRAME_MS = 1000.0/60.0;
+    private static final int COUNTS = 3600;
+    private static final int INITIAL_BUFFER_SIZE = 3;
+
+    /**
+     * Inputs sent once per frame that arrive after a fixed delay plus random jitter
+     * @param jitterMs Random extra delay, up to this much
+     * @param lossPercent Percentage of inputs that never arrive
+     */
+    private static BufferPolicySimulator.Trace trace(double jitterMs, double lossPercent)
+    {
+        Random random = new Random(1);
+        long[] arrivalNs = new long[COUNTS];
+
+        for (int count = 0; count < COUNTS; ++count) {
+            final boolean lost = random.nextDouble() * 100 < lossPercent;
+            final double arrivalMs = count * FRAME_MS + 20 + random.nextDouble() * jitterMs;
+            arrivalNs[count] = lost ? -1 : (long)(arrivalMs * 1000000L);
+        }
+
+        return new BufferPolicySimulator.Trace(arrivalNs, (long)(FRAME_MS * 1000000L));
+    }
+
+    private static BufferPolicySimulator.Result fixed(BufferPolicySimulator.Trace trace)
+    {
+        return BufferPolicySimulator.simulate(trace, new FixedTargetBufferPolicy(1, 2), INITIAL_BUFFER_SIZE);
+    }
+
+    private static BufferPolicySimulator.Result adaptive(BufferPolicySimulator.Trace trace)
+    {
+        return BufferPolicySimulator.simulate(trace, new AdaptiveBufferPolicy(1, 0, 30), INITIAL_BUFFER_SIZE);
+    }
+
+    @Test
+    public void steadyNetworkNeedsNoBuffer() {
+        BufferPolicySimulator.Trace trace = trace(0, 0);
+        BufferPolicySimulator.Result fixed = fixed(trace);
+        BufferPolicySimulator.Result adaptive = adaptive(trace);
+
+        assertEquals(0, fixed.stalls);
+        assertEquals(0, adaptive.stalls);
+
+        // The adaptive policy settles quickly and adds no more than a frame of latency
+        assertTrue(adaptive.toString(), adaptive.meanBufferSize < 2);
+        assertTrue(adaptive.toString(), adaptive.bufferSizeChanges <= 4);
+        assertTrue(adaptive.meanLatencyMs < fixed.meanLatencyMs + FRAME_MS);
+    }
+
+    @Test
+    public void adaptiveIsStableWithLowJitter() {
+        BufferPolicySimulator.Trace trace = trace(5, 0);
+        BufferPolicySimulator.Result fixed = fixed(trace);
+        BufferPolicySimulator.Result adaptive = adaptive(trace);
+
+        assertEquals(0, fixed.stalls);
+        assertEquals(0, adaptive.stalls);
+
+        // The fixed target keeps chasing the buffer health of the client
+        assertTrue(fixed + " " + adaptive, adaptive.bufferSizeChanges * 10 < fixed.bufferSizeChanges);
+        assertTrue(fixed + " " + adaptive, adaptive.meanLatencyMs <= fixed.meanLatencyMs);
+    }
+
+    @Test
+    public void adaptiveAvoidsStallsWithHighJitter() {
+        BufferPolicySimulator.Trace trace = trace(40, 0);
+        BufferPolicySimulator.Result fixed = fixed(trace);
+        BufferPolicySimulator.Result adaptive = adaptive(trace);
+
+        assertTrue(fixed.toString(), fixed.stalls > 0);
+        assertEquals(adaptive.toString(), 0, adaptive.stalls);
+        assertEquals(0, adaptive.stallMs, 0);
+        assertTrue(fixed + " " + adaptive, adaptive.meanBufferSize > fixed.meanBufferSize);
+    }
+
+    @Test
+    public void adaptiveAvoidsStallsWithLoss() {
+        BufferPolicySimulator.Trace trace = trace(0, 5);
+        BufferPolicySimulator.Result fixed = fixed(trace);
+        BufferPolicySimulator.Result adaptive = adaptive(trace);
+
+        assertTrue(fixed.toString(), fixed.stalls > 0);
+        assertEquals(adaptive.toString(), 0, adaptive.stalls);
+        assertTrue(fixed + " " + adaptive, adaptive.meanBufferSize > fixed.meanBufferSize);
+    }
+
+    @Test
+    public void adaptiveBufferGrowsWithJitter() {
+        double previousBufferSize = -1;
+
+        for (double jitterMs : new double[]{5, 20, 40, 80}) {
+            BufferPolicySimulator.Result adaptive = adaptive(trace(jitterMs, 0));
+
+            assertEquals(0, adaptive.stalls);
+            assertTrue(adaptive.toString(), adaptive.meanBufferSize > previousBufferSize);
+            previousBufferSize = adaptive.meanBufferSize;
+        }
+    }
+
+    @Test
+    public void parseTrace() throws IOException {
+        String text = "# count arrival_ms\n" +
+                "0 10\n" +
+                "\n" +
+                "1 26.5\n" +
+                "3   60\n";
+
+        BufferPolicySimulator.Trace trace = BufferPolicySimulator.parseTrace(
+                new BufferedReader(new StringReader(text)), 16);
+
+        // Count 2 never arrived
+        assertArrayEquals(new long[]{10000000L, 26500000L, -1, 60000000L}, trace.mArrivalNs);
+        assertEquals(16000000L, trace.mFrameIntervalNs);
+    }
+
+    @Test(expected = IOException.class)
+    public void parseTraceRejectsInvalidLines() throws IOException {
+        BufferPolicySimulator.parseTrace(new BufferedReader(new StringReader("0 10\nabc 20\n")), 16);
+    }
+
+    @Test
+    public void emptyTraceHasNoResult() {
+        BufferPolicySimulator.Result result = adaptive(new BufferPolicySimulator.Trace(new long[]{-1, -1}, 16000000L));
+
+        assertEquals(0, result.stalls);
+        assertEquals(0, result.meanLatencyMs, 0);
+    }
+}
@@ -0,0 +1,211 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DesyncDetectorTest {
+
+    private static final int INTERVAL = DesyncDetector.SYNC_INTERVAL_VIS;
+
+    // Number of snapshots the detector keeps
+    private static final int SLOTS = 64;
+
+    // Index of the Count register
+    private static final int COUNT = 9;
+
+    /**
+     * CP0 registers as the core sends them, big endian
+     */
+    private static byte[] snapshot(int vi)
+    {
+        int[] registers = new int[DesyncDetector.CP0_REGS_COUNT];
+        for (int index = 0; index < registers.length; ++index) {
+            registers[index] = vi * 31 + index;
+        }
+        return toBytes(registers, 0);
+    }
+
+    private static byte[] toBytes(int[] registers, int offset)
+    {
+        byte[] data = new byte[offset + DesyncDetector.SNAPSHOT_SIZE];
+        for (int index = 0; index < registers.length; ++index) {
+            final int position = offset + index * 4;
+            data[position] = (byte)(registers[index] >>> 24);
+            data[position + 1] = (byte)(registers[index] >>> 16);
+            data[position + 2] = (byte)(registers[index] >>> 8);
+            data[position + 3] = (byte)registers[index];
+        }
+        return data;
+    }
+
+    private static byte[] withRegister(byte[] snapshot, int register, int value)
+    {
+        byte[] data = snapshot.clone();
+        data[register * 4] = (byte)(value >>> 24);
+        data[register * 4 + 1] = (byte)(value >>> 16);
+        data[register * 4 + 2] = (byte)(value >>> 8);
+        data[register * 4 + 3] = (byte)value;
+        return data;
+    }
+
+    @Test
+    public void matchingSnapshotsDontDesync() {
+        DesyncDetector detector = new DesyncDetector();
+
+        for (int vi = 0; vi < INTERVAL * SLOTS * 3; vi += INTERVAL) {
+            for (int player = 0; player < 4; ++player) {
+                assertNull(detector.record(vi, player, snapshot(vi), 0));
+            }
+        }
+
+        assertNull(detector.getReport());
+    }
+
+    @Test
+    public void reportContents() {
+        DesyncDetector detector = new DesyncDetector();
+        final int vi = 5 * INTERVAL;
+        byte[] first = snapshot(vi);
+        byte[] second = withRegister(withRegister(first, COUNT, 0x12345678), 14, 0x80001000);
+
+        assertNull(detector.record(vi, 1, first, 0));
+        DesyncDetector.Report report = detector.record(vi, 2, second, 0);
+
+        assertNotNull(report);
+        assertSame(report, detector.getReport());
+        assertEquals(vi, report.vi);
+        assertEquals(1, report.firstPlayer);
+        assertEquals(2, report.player);
+        assertEquals(vi * 31 + COUNT, report.firstRegisters[COUNT]);
+        assertEquals(0x12345678, report.registers[COUNT]);
+        assertEquals(0x80001000, report.registers[14]);
+        assertArrayEquals(new int[]{COUNT, 14}, report.getDivergingRegisters());
+
+        assertEquals("Count", DesyncDetector.Report.getRegisterName(COUNT));
+        assertEquals("EPC", DesyncDetector.Report.getRegisterName(14));
+
+        String text = report.toString();
+        assertTrue(text, text.startsWith("Desync at VI 300 between player 2 and player 3:"));
+        assertTrue(text, text.contains(String.format(" Count=%08x/12345678", vi * 31 + COUNT)));
+        assertTrue(text, text.contains(" EPC="));
+        assertFalse(text, text.contains("Status"));
+    }
+
+    @Test
+    public void onlyFirstDesyncIsReported() {
+        DesyncDetector detector = new DesyncDetector();
+        byte[] snapshot = snapshot(0);
+
+        detector.record(0, 0, snapshot, 0);
+        DesyncDetector.Report report = detector.record(0, 1, withRegister(snapshot, 0, 1), 0);
+        assertNotNull(report);
+
+        detector.record(INTERVAL, 0, snapshot(INTERVAL), 0);
+        assertNull(detector.record(INTERVAL, 1, snapshot(0), 0));
+        assertSame(report, detector.getReport());
+    }
+
+    @Test
+    public void snapshotsAreKeyedByInterval() {
+        DesyncDetector detector = new DesyncDetector();
+
+        // Every interval has its own slot, players can be a full ring apart
+        for (int interval = 0; interval < SLOTS; ++interval) {
+            assertNull(detector.record(interval * INTERVAL, 0, snapshot(interval * INTERVAL), 0));
+        }
+
+        for (int interval = 0; interval < SLOTS; ++interval) {
+            final int vi = interval * INTERVAL;
+            assertNull(detector.record(vi, 1, snapshot(vi), 0));
+        }
+
+        // The last slot is still compared
+        final int lastVi = (SLOTS - 1) * INTERVAL;
+        assertNotNull(detector.record(lastVi, 1, withRegister(snapshot(lastVi), COUNT, 0), 0));
+    }
+
+    @Test
+    public void newerSnapshotEvictsOlderSlot() {
+        DesyncDetector detector = new DesyncDetector();
+        final int oldVi = 2 * INTERVAL;
+        final int newVi = oldVi + SLOTS * INTERVAL;
+
+        assertNull(detector.record(oldVi, 0, snapshot(oldVi), 0));
+
+        // Same slot, the newer VI replaces the snapshot
+        assertNull(detector.record(newVi, 0, snapshot(newVi), 0));
+
+        // The evicted VI can't be compared anymore, and doesn't evict the newer one
+        assertNull(detector.record(oldVi, 1, withRegister(snapshot(oldVi), COUNT, 0), 0));
+        assertNull(detector.record(newVi, 1, snapshot(newVi), 0));
+
+        DesyncDetector.Report report = detector.record(newVi, 2, withRegister(snapshot(newVi), COUNT, 0), 0);
+        assertNotNull(report);
+        assertEquals(newVi, report.vi);
+        assertEquals(0, report.firstPlayer);
+    }
+
+    @Test
+    public void unknownPlayerIsReported() {
+        DesyncDetector detector = new DesyncDetector();
+        byte[] snapshot = snapshot(0);
+
+        // Registers sent before the first input of the player reached the server
+        assertNull(detector.record(0, -1, snapshot, 0));
+        DesyncDetector.Report report = detector.record(0, 2, withRegister(snapshot, COUNT, 0), 0);
+
+        assertNotNull(report);
+        assertEquals(-1, report.firstPlayer);
+        assertEquals(2, report.player);
+        assertTrue(report.toString(), report.toString().startsWith("Desync at VI 0 between an unknown player and player 3:"));
+    }
+
+    @Test
+    public void knownPlayerReplacesUnknownOne() {
+        DesyncDetector detector = new DesyncDetector();
+        byte[] snapshot = snapshot(INTERVAL);
+
+        assertNull(detector.record(INTERVAL, -1, snapshot, 0));
+        assertNull(detector.record(INTERVAL, 0, snapshot, 0));
+        DesyncDetector.Report report = detector.record(INTERVAL, -1, withRegister(snapshot, COUNT, 0), 0);
+
+        assertNotNull(report);
+        assertEquals(0, report.firstPlayer);
+        assertEquals(-1, report.player);
+        assertTrue(report.toString(), report.toString().contains("between player 1 and an unknown player"));
+    }
+
+    @Test
+    public void recordUsesOffset() {
+        DesyncDetector detector = new DesyncDetector();
+        int[] registers = new int[DesyncDetector.CP0_REGS_COUNT];
+        registers[COUNT] = 42;
+
+        assertNull(detector.record(0, 0, toBytes(registers, 0), 0));
+        assertNull(detector.record(0, 1, toBytes(registers, 13), 13));
+        assertEquals(DesyncDetector.hash(toBytes(registers, 0), 0), DesyncDetector.hash(toBytes(registers, 7), 7));
+    }
+
+    @Test
+    public void hashSeesEveryRegister() {
+        byte[] snapshot = snapshot(INTERVAL);
+        final long hash = DesyncDetector.hash(snapshot, 0);
+
+        for (int register = 0; register < DesyncDetector.CP0_REGS_COUNT; ++register) {
+            byte[] changed = withRegister(snapshot, register, ~(INTERVAL * 31 + register));
+            assertNotEquals(hash, DesyncDetector.hash(changed, 0));
+        }
+
+        // Swapping two registers changes the hash too
+        byte[] swapped = withRegister(withRegister(snapshot, 1, INTERVAL * 31 + 2), 2, INTERVAL * 31 + 1);
+        assertNotEquals(hash, DesyncDetector.hash(swapped, 0));
+    }
+}
@@ -0,0 +1,156 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InputRingBufferTest {
+
+    @Test
+    public void emptyBufferContainsNothing() {
+        InputRingBuffer buffer = new InputRingBuffer();
+
+        // Slots start zeroed, frame 0 must still not be found
+        assertFalse(buffer.contains(0));
+        assertFalse(buffer.contains(1));
+        assertFalse(buffer.contains(InputRingBuffer.CAPACITY));
+    }
+
+    @Test
+    public void putThenContains() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        buffer.put(5, 0x12345678, 2);
+
+        assertTrue(buffer.contains(5));
+        assertEquals(0x12345678, buffer.getKeys(5));
+        assertEquals(2, buffer.getPlugin(5));
+        assertFalse(buffer.contains(4));
+        assertFalse(buffer.contains(6));
+    }
+
+    @Test
+    public void putOverwritesSameFrame() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        buffer.put(7, 1, 1);
+        buffer.put(7, 2, 5);
+
+        assertEquals(2, buffer.getKeys(7));
+        assertEquals(5, buffer.getPlugin(7));
+    }
+
+    @Test
+    public void slotTagRejectsFrameSharingTheSlot() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        buffer.put(3, 0xAA, 1);
+
+        // Same slot, different frame
+        assertFalse(buffer.contains(3 + InputRingBuffer.CAPACITY));
+        assertFalse(buffer.contains(3 - InputRingBuffer.CAPACITY));
+
+        buffer.put(3 + InputRingBuffer.CAPACITY, 0xBB, 2);
+        assertTrue(buffer.contains(3 + InputRingBuffer.CAPACITY));
+        assertFalse(buffer.contains(3));
+        assertEquals(0xBB, buffer.getKeys(3 + InputRingBuffer.CAPACITY));
+    }
+
+    @Test
+    public void wrapsAroundCapacity() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        final int first = InputRingBuffer.CAPACITY - 4;
+        final int last = InputRingBuffer.CAPACITY + 4;
+        buffer.put(4, 0xFF, 1);
+
+        for (int count = first; count <= last; ++count) {
+            buffer.put(count, count * 3, count & 3);
+        }
+
+        for (int count = first; count <= last; ++count) {
+            assertTrue(buffer.contains(count));
+            assertEquals(count * 3, buffer.getKeys(count));
+            assertEquals(count & 3, buffer.getPlugin(count));
+        }
+
+        // The frame a full buffer length before the last one was overwritten
+        assertFalse(buffer.contains(4));
+    }
+
+    @Test
+    public void keepsTheLastCapacityFrames() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        final int end = 3 * InputRingBuffer.CAPACITY + 17;
+
+        for (int count = 0; count < end; ++count) {
+            buffer.put(count, ~count, 1);
+        }
+
+        for (int count = end - InputRingBuffer.CAPACITY; count < end; ++count) {
+            assertTrue(buffer.contains(count));
+            assertEquals(~count, buffer.getKeys(count));
+        }
+        assertFalse(buffer.contains(end - InputRingBuffer.CAPACITY - 1));
+        assertFalse(buffer.contains(end));
+    }
+
+    @Test
+    public void wrapsAroundIntegerOverflow() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        buffer.put(Integer.MAX_VALUE, 1, 1);
+        buffer.put(Integer.MIN_VALUE, 2, 1);
+
+        assertTrue(buffer.contains(Integer.MAX_VALUE));
+        assertTrue(buffer.contains(Integer.MIN_VALUE));
+        assertEquals(1, buffer.getKeys(Integer.MAX_VALUE));
+        assertEquals(2, buffer.getKeys(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void copyOnlyCopiesStoredFrames() {
+        InputRingBuffer buffer = new InputRingBuffer();
+        assertFalse(buffer.copy(10, 11));
+        assertFalse(buffer.contains(11));
+
+        buffer.put(10, 0x55, 3);
+        assertTrue(buffer.copy(10, 11));
+        assertEquals(0x55, buffer.getKeys(11));
+        assertEquals(3, buffer.getPlugin(11));
+    }
+
+    /**
+     * Four players send inputs with different, jittering lead times over the buffer, like the
+     * server sees them, and every frame inside the window is read back intact
+     */
+    @Test
+    public void fourPlayerTrace() {
+        final int players = 4;
+        final int frames = 10 * InputRingBuffer.CAPACITY;
+        InputRingBuffer[] buffers = new InputRingBuffer[players];
+        int[] sent = new int[players];
+        for (int player = 0; player < players; ++player) {
+            buffers[player] = new InputRingBuffer();
+        }
+
+        Random random = new Random(4);
+        for (int frame = 0; frame < frames; ++frame) {
+            for (int player = 0; player < players; ++player) {
+                // Each player runs up to a few hundred frames ahead of the frame being read
+                final int target = frame + 2 + random.nextInt(60 * (player + 1));
+                while (sent[player] <= target) {
+                    buffers[player].put(sent[player], keysFor(player, sent[player]), player + 1);
+                    ++sent[player];
+                }
+
+                assertTrue(buffers[player].contains(frame));
+                assertEquals(keysFor(player, frame), buffers[player].getKeys(frame));
+                assertEquals(player + 1, buffers[player].getPlugin(frame));
+            }
+        }
+    }
+
+    private static int keysFor(int player, int count) {
+        return count * 31 + player;
+    }
+}
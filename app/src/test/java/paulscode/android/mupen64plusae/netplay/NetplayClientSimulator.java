@@ -0,0 +1,655 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Headless netplay clients for load testing {@link UdpServer} and {@link TcpServer} without
+ * devices. Each client registers and exchanges settings over TCP like the core does, then runs
+ * a frame loop that sends its inputs, CP0 data and input requests over UDP and waits whenever
+ * the input it needs hasn't arrived yet. Clients keep their TCP connection open while playing
+ * and send a disconnect notice when done, so the server sees every player leave. Traffic in both directions goes through a simulated
+ * link that adds delay, jitter, loss and reordering.
+ *
+ * The result reports how long clients waited for inputs. When the servers run in the same
+ * process, the CPU time and allocated bytes of the netplay event loop thread are reported too.
+ * Only plain Java is used so it runs as a JVM unit test.
+ */
+public class NetplayClientSimulator {
+
+    private static final String TAG = "NetplayClientSimulator";
+
+    private static final int NUM_PLAYERS = 4;
+
+    // Message ids, see MessageFactory and the core's netplay.c
+    private static final int TCP_SETTINGS_UPDATE = 3;
+    private static final int TCP_REQUEST_SETTINGS = 4;
+    private static final int TCP_PLAYER_REGISTRATION = 5;
+    private static final int TCP_REQUEST_PLAYER_REGISTRATION = 6;
+    private static final int TCP_PLAYER_DISCONNECT = 7;
+
+    // Like the core, repeat requests at this interval while waiting and give up after the timeout
+    private static final int REQUEST_RETRY_MS = UdpServer.CLIENT_RETRY_INTERVAL_MS;
+    private static final long INPUT_TIMEOUT_NS = 10000 * 1000000L;
+
+    /**
+     * Receives the packets clients send, in the order they reach the server
+     */
+    public interface PacketRecorder {
+        void record(int player, byte[] data, int length);
+    }
+
+    public static class Config {
+        /** Number of clients, one per player */
+        public int players = 2;
+        /** Number of frames every client plays */
+        public int frames = 3600;
+        /** Time between frames */
+        public double frameIntervalMs = 1000.0/60.0;
+        /** One way delay added in each direction */
+        public int delayMs = 0;
+        /** Random extra delay, up to this much */
+        public int jitterMs = 0;
+        /** Percentage of packets dropped */
+        public double lossPercent = 0;
+        /** Percentage of packets held back so later packets overtake them */
+        public double reorderPercent = 0;
+        /** Seed of the random impairments */
+        public long seed = 1;
+        /** Ask the server for batched inputs and send the registration id with every packet, like newer clients do */
+        public boolean batchedInputs = false;
+        /** Registration id of the first player, the others follow it */
+        public int registrationIdBase = 1000;
+        /** Records every UDP packet that crosses the link to the server, null to not record them */
+        public PacketRecorder recorder = null;
+    }
+
+    public static class Result {
+        /** Time a client waited for an input it needed, in milliseconds */
+        public final NetplayTelemetry.Histogram waitMs = new NetplayTelemetry.Histogram(1, 512);
+        /** Number of times a client had to wait for an input */
+        public int stalls = 0;
+        /** Number of clients that gave up waiting or failed to connect */
+        public int failedClients = 0;
+        public long udpPacketsSent = 0;
+        public long udpPacketsReceived = 0;
+        public double durationMs = 0;
+        /** CPU time of the netplay event loop thread, -1 if not measured */
+        public double serverCpuMs = -1;
+        /** Bytes allocated by the netplay event loop thread, -1 if not measured */
+        public long serverAllocatedBytes = -1;
+        /** Telemetry of the server, only set by {@link #runLoopback(Config)} */
+        public NetplayTelemetry serverTelemetry = null;
+
+        public String format()
+        {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "duration=%.0fms stalls=%d failed=%d udp sent=%d received=%d%n",
+                    durationMs, stalls, failedClients, udpPacketsSent, udpPacketsReceived));
+            builder.append(String.format(Locale.US, "server cpu=%.1fms allocated=%d bytes%n", serverCpuMs, serverAllocatedBytes));
+            waitMs.format(builder, "wait_ms");
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Delivers packets after a simulated network delay, from a single thread
+     */
+    private static class Link {
+        private static class Delivery implements Comparable<Delivery> {
+            Delivery(long dueNs, long sequence, Runnable action) {
+                mDueNs = dueNs;
+                mSequence = sequence;
+                mAction = action;
+            }
+
+            final long mDueNs;
+            final long mSequence;
+            final Runnable mAction;
+
+            @Override
+            public int compareTo(Delivery other) {
+                if (mDueNs != other.mDueNs) {
+                    return mDueNs < other.mDueNs ? -1 : 1;
+                }
+                return Long.compare(mSequence, other.mSequence);
+            }
+        }
+
+        private final Config mConfig;
+        private final Random mRandom;
+        private final PriorityQueue<Delivery> mDeliveries = new PriorityQueue<>();
+        private final Thread mThread;
+        private long mSequence = 0;
+        private boolean mRunning = true;
+
+        Link(Config config)
+        {
+            mConfig = config;
+            mRandom = new Random(config.seed);
+            mThread = new Thread(this::run, TAG + "Link");
+            mThread.start();
+        }
+
+        /**
+         * Run an action once the packet it delivers has crossed the link, unless it's lost
+         */
+        synchronized void send(Runnable action)
+        {
+            if (mRandom.nextDouble() * 100 < mConfig.lossPercent) {
+                return;
+            }
+
+            long delayNs = mConfig.delayMs * 1000000L;
+
+            if (mConfig.jitterMs > 0) {
+                delayNs += (long)(mRandom.nextDouble() * mConfig.jitterMs * 1000000L);
+            }
+
+            if (mRandom.nextDouble() * 100 < mConfig.reorderPercent) {
+                delayNs += (long)(mConfig.frameIntervalMs * 2 * 1000000L);
+            }
+
+            mDeliveries.add(new Delivery(System.nanoTime() + delayNs, mSequence++, action));
+            notifyAll();
+        }
+
+        synchronized void stop()
+        {
+            mRunning = false;
+            notifyAll();
+        }
+
+        private synchronized Delivery nextDelivery() throws InterruptedException
+        {
+            while (mRunning) {
+                Delivery delivery = mDeliveries.peek();
+
+                if (delivery == null) {
+                    wait();
+                } else {
+                    long remainingNs = delivery.mDueNs - System.nanoTime();
+
+                    if (remainingNs <= 0) {
+                        return mDeliveries.poll();
+                    }
+
+                    wait(remainingNs / 1000000L, (int)(remainingNs % 1000000L));
+                }
+            }
+
+            return null;
+        }
+
+        private void run()
+        {
+            try {
+                Delivery delivery;
+                while ((delivery = nextDelivery()) != null) {
+                    delivery.mAction.run();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A client playing one player, runs on its own thread
+     */
+    private static class Client {
+        private final int mPlayer;
+        private final int mRegistrationId;
+        private final Config mConfig;
+        private final Link mLink;
+        private final InetSocketAddress mServerAddress;
+        private final long mStartNs;
+
+        private final DatagramSocket mUdpSocket;
+        private final Socket mTcpSocket = new Socket();
+        private final ConcurrentLinkedQueue<byte[]> mReceived = new ConcurrentLinkedQueue<>();
+        private final InputRingBuffer[] mInputs = new InputRingBuffer[NUM_PLAYERS];
+        private final byte[] mCp0Data = new byte[128];
+
+        // Shared by every client
+        private final NetplayTelemetry.Histogram mWaitMs;
+        private int mStalls = 0;
+        private boolean mFailed = false;
+        private long mPacketsSent = 0;
+        private volatile long mPacketsReceived = 0;
+
+        Client(int player, Config config, Link link, InetSocketAddress serverAddress, long startNs,
+               NetplayTelemetry.Histogram waitMs) throws SocketException
+        {
+            mPlayer = player;
+            mWaitMs = waitMs;
+            mRegistrationId = config.registrationIdBase + player;
+            mConfig = config;
+            mLink = link;
+            mServerAddress = serverAddress;
+            mStartNs = startNs;
+            mUdpSocket = new DatagramSocket();
+
+            for (int playerIndex = 0; playerIndex < NUM_PLAYERS; ++playerIndex) {
+                mInputs[playerIndex] = new InputRingBuffer();
+            }
+        }
+
+        /**
+         * Register with the TCP server and exchange settings like the core does
+         */
+        void register() throws IOException
+        {
+            try {
+                mTcpSocket.connect(mServerAddress, 5000);
+                mTcpSocket.setSoTimeout(5000);
+                DataOutputStream output = new DataOutputStream(mTcpSocket.getOutputStream());
+                DataInputStream input = new DataInputStream(mTcpSocket.getInputStream());
+
+                output.write(new byte[]{TCP_PLAYER_REGISTRATION, (byte)mPlayer, 1, 0});
+                output.writeInt(mRegistrationId);
+
+                if (input.readByte() != 1) {
+                    throw new IOException("Player " + (mPlayer + 1) + " registration rejected");
+                }
+                input.readByte(); // Buffer target
+
+                if (mPlayer == 0) {
+                    output.writeByte(TCP_SETTINGS_UPDATE);
+                    for (int setting = 0; setting < 6; ++setting) {
+                        output.writeInt(setting);
+                    }
+                } else {
+                    output.writeByte(TCP_REQUEST_SETTINGS);
+                    input.readFully(new byte[24]);
+                }
+
+                output.writeByte(TCP_REQUEST_PLAYER_REGISTRATION);
+                input.readFully(new byte[24]);
+            } catch (IOException e) {
+                mTcpSocket.close();
+                mUdpSocket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Tell the server this player left, like the core does when it stops
+         */
+        void disconnect()
+        {
+            try {
+                DataOutputStream output = new DataOutputStream(mTcpSocket.getOutputStream());
+                output.writeByte(TCP_PLAYER_DISCONNECT);
+                output.writeInt(mRegistrationId);
+                output.flush();
+            } catch (IOException e) {
+                System.err.println(TAG + ": Unable to disconnect: " + e.getMessage());
+            }
+
+            try {
+                mTcpSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        void startReceiving()
+        {
+            Thread receiver = new Thread(() -> {
+                byte[] buffer = new byte[512];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+
+                while (!mUdpSocket.isClosed()) {
+                    try {
+                        mUdpSocket.receive(packet);
+                    } catch (IOException e) {
+                        break;
+                    }
+
+                    final byte[] data = new byte[packet.getLength()];
+                    System.arraycopy(buffer, 0, data, 0, data.length);
+                    mLink.send(() -> mReceived.add(data));
+                }
+            }, TAG + "Receiver" + mPlayer);
+            receiver.start();
+        }
+
+        private void send(ByteBuffer message)
+        {
+            final DatagramPacket packet = new DatagramPacket(message.array(), message.position(), mServerAddress);
+            ++mPacketsSent;
+
+            mLink.send(() -> {
+                if (mUdpSocket.isClosed()) {
+                    return;
+                }
+
+                if (mConfig.recorder != null) {
+                    mConfig.recorder.record(mPlayer, packet.getData(), packet.getLength());
+                }
+
+                try {
+                    mUdpSocket.send(packet);
+                } catch (IOException e) {
+                    System.err.println(TAG + ": Unable to send: " + e.getMessage());
+                }
+            });
+        }
+
+        private void processReceived()
+        {
+            byte[] data;
+            while ((data = mReceived.poll()) != null) {
+                ++mPacketsReceived;
+                ByteBuffer message = ByteBuffer.wrap(data);
+                int messageId = message.get();
+
+                if (messageId == UdpServer.KEY_INFO_FROM_SERVER_MSG) {
+                    int player = message.get();
+                    message.get(); // Status
+                    readInputs(message, player);
+                } else if (messageId == UdpServer.KEY_INFO_BATCH_FROM_SERVER_MSG) {
+                    message.get(); // Status
+                    int players = message.get();
+
+                    for (int index = 0; index < players; ++index) {
+                        readInputs(message, message.get());
+                    }
+                }
+            }
+        }
+
+        private void readInputs(ByteBuffer message, int player)
+        {
+            message.get(); // Count lag
+            int counts = message.get() & 0xff;
+
+            for (int index = 0; index < counts; ++index) {
+                int count = message.getInt();
+                int keys = message.getInt();
+                int plugin = message.get();
+
+                if (player >= 0 && player < NUM_PLAYERS) {
+                    mInputs[player].put(count, keys, plugin);
+                }
+            }
+        }
+
+        private int bufferedInputs(int player, int count)
+        {
+            int buffered = 0;
+            while (buffered < 127 && mInputs[player].contains(count + buffered)) {
+                ++buffered;
+            }
+            return buffered;
+        }
+
+        private void sendRequest(int player, int count)
+        {
+            ByteBuffer request = ByteBuffer.allocate(13);
+            request.put((byte)UdpServer.REQUEST_DATA_MSG);
+            request.put((byte)player);
+            request.putInt(mRegistrationId);
+            request.putInt(count);
+            request.put((byte)0);
+            request.put((byte)bufferedInputs(player, count));
+
+            if (mConfig.batchedInputs) {
+                request.put((byte)UdpServer.PROTOCOL_VERSION);
+            }
+
+            send(request);
+        }
+
+        void run()
+        {
+            final long frameNs = (long)(mConfig.frameIntervalMs * 1000000L);
+            long deadlineNs = mStartNs;
+
+            for (int frame = 0; frame < mConfig.frames && !mFailed; ++frame) {
+                deadlineNs = Math.max(deadlineNs + frameNs, System.nanoTime());
+                sleepUntil(deadlineNs);
+
+                processReceived();
+
+                // Newer clients append their registration id
+                ByteBuffer keyInfo = ByteBuffer.allocate(15);
+                keyInfo.put((byte)UdpServer.KEY_INFO_MSG);
+                keyInfo.put((byte)mPlayer);
+                keyInfo.putInt(frame);
+                keyInfo.putInt(frame * (mPlayer + 1));
+                keyInfo.put((byte)1);
+                if (mConfig.batchedInputs) {
+                    keyInfo.putInt(mRegistrationId);
+                }
+                send(keyInfo);
+
+                ByteBuffer cp0 = ByteBuffer.allocate(137);
+                cp0.put((byte)UdpServer.CP0_DATA_MSG);
+                cp0.putInt(frame);
+                cp0.put(mCp0Data);
+                if (mConfig.batchedInputs) {
+                    cp0.putInt(mRegistrationId);
+                }
+                send(cp0);
+
+                for (int player = 0; player < mConfig.players && !mFailed; ++player) {
+                    waitForInput(player, frame);
+                }
+            }
+
+            mUdpSocket.close();
+            disconnect();
+        }
+
+        private void waitForInput(int player, int count)
+        {
+            sendRequest(player, count);
+
+            if (mInputs[player].contains(count)) {
+                recordWait(0);
+                return;
+            }
+
+            ++mStalls;
+            final long startNs = System.nanoTime();
+
+            while (!mInputs[player].contains(count)) {
+                if (System.nanoTime() - startNs > INPUT_TIMEOUT_NS) {
+                    System.err.println(TAG + ": Player " + (mPlayer + 1) + " lost connection to server");
+                    mFailed = true;
+                    return;
+                }
+
+                sleepUntil(System.nanoTime() + REQUEST_RETRY_MS * 1000000L);
+                processReceived();
+
+                if (!mInputs[player].contains(count)) {
+                    sendRequest(player, count);
+                }
+            }
+
+            recordWait((int)((System.nanoTime() - startNs) / 1000000L));
+        }
+
+        private void recordWait(int waitMs)
+        {
+            synchronized (mWaitMs) {
+                mWaitMs.record(waitMs);
+            }
+        }
+
+        private static void sleepUntil(long deadlineNs)
+        {
+            long remainingNs;
+            while ((remainingNs = deadlineNs - System.nanoTime()) > 0) {
+                try {
+                    Thread.sleep(remainingNs / 1000000L, (int)(remainingNs % 1000000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Run clients against servers
+     * @param serverAddress Address of the TCP and UDP servers
+     * @param config Client and network configuration
+     * @param serverLoop Event loop of the servers if they run in this process, null otherwise
+     */
+    public static Result run(InetSocketAddress serverAddress, Config config, NetplayEventLoop serverLoop)
+    {
+        Result result = new Result();
+        Link link = new Link(config);
+        ArrayList<Client> clients = new ArrayList<>();
+
+        final long[] serverUsage = new long[2];
+        if (serverLoop != null) {
+            runInLoop(serverLoop, () -> {
+                serverUsage[0] = threadCpuTimeNanos();
+                serverUsage[1] = threadAllocatedBytes();
+            });
+        }
+
+        final long startNs = System.nanoTime();
+
+        try {
+            for (int player = 0; player < config.players; ++player) {
+                Client client = new Client(player, config, link, serverAddress, startNs, result.waitMs);
+                client.register();
+                client.startReceiving();
+                clients.add(client);
+            }
+        } catch (IOException e) {
+            System.err.println(TAG + ": Unable to connect clients: " + e.getMessage());
+            result.failedClients = config.players - clients.size();
+        }
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (Client client : clients) {
+            Thread thread = new Thread(client::run, TAG + "Client" + client.mPlayer);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        result.durationMs = (System.nanoTime() - startNs) / 1000000.0;
+        link.stop();
+
+        if (serverLoop != null) {
+            runInLoop(serverLoop, () -> {
+                long cpuNs = threadCpuTimeNanos();
+                long allocatedBytes = threadAllocatedBytes();
+
+                if (cpuNs >= 0 && serverUsage[0] >= 0) {
+                    result.serverCpuMs = (cpuNs - serverUsage[0]) / 1000000.0;
+                }
+
+                if (allocatedBytes >= 0 && serverUsage[1] >= 0) {
+                    result.serverAllocatedBytes = allocatedBytes - serverUsage[1];
+                }
+            });
+        }
+
+        for (Client client : clients) {
+            result.stalls += client.mStalls;
+            result.udpPacketsSent += client.mPacketsSent;
+            result.udpPacketsReceived += client.mPacketsReceived;
+
+            if (client.mFailed) {
+                ++result.failedClients;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Start a server on the loopback interface, run clients against it and stop it
+     */
+    public static Result runLoopback(Config config) throws IOException
+    {
+        NetplayEventLoop eventLoop = NetplayEventLoop.acquire();
+        final int bufferTarget = 2;
+
+        UdpServer udpServer = new UdpServer(bufferTarget, report -> System.err.println(TAG + ": " + report), eventLoop);
+        TcpServer tcpServer = new TcpServer(bufferTarget, udpServer, eventLoop,
+                new File(System.getProperty("java.io.tmpdir"), "netplay_simulator"));
+        tcpServer.setPort(0);
+        udpServer.setPort(tcpServer.getPort());
+
+        Result result = run(new InetSocketAddress("127.0.0.1", tcpServer.getPort()), config, eventLoop);
+
+        result.serverTelemetry = udpServer.getTelemetry();
+
+        tcpServer.stopServer();
+        udpServer.stopServer();
+        NetplayEventLoop.release(eventLoop);
+
+        return result;
+    }
+
+    /**
+     * @return CPU time of the calling thread, -1 if the JVM can't measure it
+     */
+    private static long threadCpuTimeNanos()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * @return Bytes allocated by the calling thread, -1 if the JVM can't measure it
+     */
+    @SuppressWarnings("deprecation")
+    private static long threadAllocatedBytes()
+    {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean)threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private static void runInLoop(NetplayEventLoop eventLoop, Runnable task)
+    {
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.post(() -> {
+            task.run();
+            done.countDown();
+        });
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+}
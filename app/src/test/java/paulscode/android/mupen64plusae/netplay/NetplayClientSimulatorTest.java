@@ -0,0 +1,74 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetplayClientSimulatorTest {
+
+    private static final int FRAMES = 240;
+
+    private static NetplayClientSimulator.Config config(int players)
+    {
+        NetplayClientSimulator.Config config = new NetplayClientSimulator.Config();
+        config.players = players;
+        config.frames = FRAMES;
+        return config;
+    }
+
+    private static void assertCompleted(NetplayClientSimulator.Config config, NetplayClientSimulator.Result result)
+    {
+        assertEquals(result.format(), 0, result.failedClients);
+
+        // Every client waits once for the input of every player in every frame
+        assertEquals((long)config.players * config.players * config.frames, result.waitMs.getCount());
+        assertTrue(result.waitMs.getMax() < 10000);
+
+        assertTrue(result.udpPacketsSent >= 3L * config.players * config.frames);
+        assertTrue(result.udpPacketsReceived > 0);
+        assertTrue(result.durationMs >= config.frames * config.frameIntervalMs * 0.9);
+
+        // Only the players that joined have traffic
+        NetplayTelemetry telemetry = result.serverTelemetry;
+        for (int player = 0; player < telemetry.getNumPlayers(); ++player) {
+            assertEquals(player < config.players, telemetry.getPlayer(player).getPacketsIn() > 0);
+            assertEquals(player < config.players, telemetry.getPlayer(player).getPacketsOut() > 0);
+        }
+    }
+
+    @Test
+    public void loopbackTwoPlayers() throws IOException {
+        NetplayClientSimulator.Config config = config(2);
+        NetplayClientSimulator.Result result = NetplayClientSimulator.runLoopback(config);
+
+        assertCompleted(config, result);
+        assertTrue(result.serverCpuMs != 0);
+    }
+
+    @Test
+    public void loopbackFourPlayersBatched() throws IOException {
+        NetplayClientSimulator.Config config = config(4);
+        config.batchedInputs = true;
+        NetplayClientSimulator.Result result = NetplayClientSimulator.runLoopback(config);
+
+        assertCompleted(config, result);
+    }
+
+    @Test
+    public void loopbackWithImpairedLink() throws IOException {
+        NetplayClientSimulator.Config config = config(2);
+        config.delayMs = 10;
+        config.jitterMs = 10;
+        config.lossPercent = 5;
+        config.reorderPercent = 5;
+        NetplayClientSimulator.Result result = NetplayClientSimulator.runLoopback(config);
+
+        // Lost packets are recovered through repeated requests, so clients stall but never fail
+        assertCompleted(config, result);
+        assertTrue(result.stalls > 0);
+        assertTrue(result.waitMs.getMax() >= config.delayMs);
+    }
+}
@@ -0,0 +1,300 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NetplaySessionHostLoadTest {
+
+    private static final int SESSIONS = 24;
+    private static final int PLAYERS = 2;
+    private static final int FRAMES = 180;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private NetplayEventLoop mEventLoop;
+    private NetplaySessionHost mHost;
+    private final Set<Integer> mFinishedSessions = new HashSet<>();
+    private final AtomicInteger mDesyncs = new AtomicInteger();
+    private CountDownLatch mAllFinished;
+
+    @Before
+    public void setUp() throws IOException {
+        mEventLoop = NetplayEventLoop.acquire();
+        mAllFinished = new CountDownLatch(SESSIONS);
+        mHost = new NetplaySessionHost(2, SESSIONS, mEventLoop, mFolder.newFolder("saves"),
+                new NetplaySessionHost.OnSessionEvent() {
+                    @Override
+                    public void onDesync(int sessionId, DesyncDetector.Report report) {
+                        mDesyncs.incrementAndGet();
+                    }
+
+                    @Override
+                    public void onSessionFinished(int sessionId) {
+                        synchronized (mFinishedSessions) {
+                            mFinishedSessions.add(sessionId);
+                        }
+                        mAllFinished.countDown();
+                    }
+                });
+        mHost.setPort(0);
+    }
+
+    @After
+    public void tearDown() {
+        mHost.stopHost();
+        NetplayEventLoop.release(mEventLoop);
+    }
+
+    private static NetplayClientSimulator.Config config(int registrationIdBase)
+    {
+        NetplayClientSimulator.Config config = new NetplayClientSimulator.Config();
+        config.players = PLAYERS;
+        config.frames = FRAMES;
+        config.batchedInputs = true;
+        config.registrationIdBase = registrationIdBase;
+        return config;
+    }
+
+    /**
+     * Run one simulator per room at the same time against the shared port
+     */
+    private List<NetplayClientSimulator.Result> runRooms(List<NetplayClientSimulator.Config> configs)
+            throws InterruptedException
+    {
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", mHost.getPort());
+        final List<NetplayClientSimulator.Result> results = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+
+        for (NetplayClientSimulator.Config config : configs) {
+            Thread thread = new Thread(() -> {
+                NetplayClientSimulator.Result result = NetplayClientSimulator.run(address, config, null);
+                synchronized (results) {
+                    results.add(result);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        return results;
+    }
+
+    @Test
+    public void dozensOfRoomsShareOnePort() throws InterruptedException {
+        assertTrue(mHost.getPort() > 0);
+
+        Set<Integer> sessionIds = new HashSet<>();
+        ArrayList<NetplayClientSimulator.Config> configs = new ArrayList<>();
+
+        for (int room = 0; room < SESSIONS; ++room) {
+            int sessionId = mHost.createSession();
+            assertNotEquals(-1, sessionId);
+            sessionIds.add(sessionId);
+
+            NetplayClientSimulator.Config config = config((room + 1) * 1000);
+            for (int player = 0; player < PLAYERS; ++player) {
+                mHost.addRegistration(sessionId, config.registrationIdBase + player);
+            }
+            configs.add(config);
+        }
+
+        assertEquals(SESSIONS, sessionIds.size());
+
+        // The host is full
+        assertEquals(-1, mHost.createSession());
+
+        for (NetplayClientSimulator.Result result : runRooms(configs)) {
+            assertEquals(result.format(), 0, result.failedClients);
+
+            // Inputs of other rooms never leak in, every client got exactly its own players
+            assertEquals((long)PLAYERS * PLAYERS * FRAMES, result.waitMs.getCount());
+        }
+
+        // Sessions end once their players disconnect
+        assertTrue(mAllFinished.await(10, TimeUnit.SECONDS));
+        synchronized (mFinishedSessions) {
+            assertEquals(sessionIds, mFinishedSessions);
+        }
+        assertEquals(0, mDesyncs.get());
+
+        // Statistics of the sessions are kept after the host removed them
+        Set<Integer> closedIds = new HashSet<>();
+        for (NetplaySessionHost.SessionStats stats : mHost.getClosedStats()) {
+            closedIds.add(stats.sessionId);
+            assertTrue(stats.udpPacketsReceived > 0);
+            assertTrue(stats.udpPacketsSent > 0);
+            assertTrue(stats.telemetry.getPlayer(0).getPacketsIn() > 0);
+            assertTrue(stats.telemetry.getPlayer(1).getPacketsIn() > 0);
+            assertFalse(stats.desynced);
+        }
+        assertEquals(sessionIds, closedIds);
+
+        // Finished sessions free their slots
+        assertNotEquals(-1, mHost.createSession());
+    }
+
+    private static void sendDatagram(DatagramSocket socket, int port, ByteBuffer message) throws IOException
+    {
+        socket.send(new DatagramPacket(message.array(), message.position(), new InetSocketAddress("127.0.0.1", port)));
+    }
+
+    private static ByteBuffer keyInfo(int player, int count, boolean withRegistrationId, int registrationId)
+    {
+        ByteBuffer keyInfo = ByteBuffer.allocate(15);
+        keyInfo.put((byte)UdpServer.KEY_INFO_MSG);
+        keyInfo.put((byte)player);
+        keyInfo.putInt(count);
+        keyInfo.putInt(0);
+        keyInfo.put((byte)1);
+        if (withRegistrationId) {
+            keyInfo.putInt(registrationId);
+        }
+        return keyInfo;
+    }
+
+    private NetplaySessionHost.SessionStats closeAndGetStats(int sessionId) throws InterruptedException
+    {
+        mHost.closeSession(sessionId);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (NetplaySessionHost.SessionStats stats : mHost.getClosedStats()) {
+                if (stats.sessionId == sessionId) {
+                    return stats;
+                }
+            }
+            Thread.sleep(10);
+        }
+
+        throw new AssertionError("Session " + sessionId + " didn't close");
+    }
+
+    private long receivedBy(int sessionId)
+    {
+        for (NetplaySessionHost.SessionStats stats : mHost.getStats()) {
+            if (stats.sessionId == sessionId) {
+                return stats.udpPacketsReceived;
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void inputsAreRoutedByRegistrationId() throws Exception {
+        int first = mHost.createSession();
+        int second = mHost.createSession();
+        mHost.addRegistration(first, 1000);
+        mHost.addRegistration(second, 2000);
+
+        // Registrations are added on the event loop
+        CountDownLatch registered = new CountDownLatch(1);
+        mEventLoop.post(registered::countDown);
+        assertTrue(registered.await(5, TimeUnit.SECONDS));
+
+        try (DatagramSocket newClient = new DatagramSocket();
+             DatagramSocket oldClient = new DatagramSocket()) {
+            // Inputs reach the session before the client ever asked for any
+            sendDatagram(newClient, mHost.getPort(), keyInfo(0, 0, true, 2000));
+            sendDatagram(newClient, mHost.getPort(), keyInfo(0, 1, true, 2000));
+
+            // Older clients can't be routed until they send an input request
+            sendDatagram(oldClient, mHost.getPort(), keyInfo(0, 0, false, 0));
+
+            // Routing by address still works for datagrams without the registration id
+            sendDatagram(newClient, mHost.getPort(), keyInfo(0, 2, false, 0));
+
+            // Statistics are updated about once a second
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline && receivedBy(second) < 3) {
+                Thread.sleep(10);
+            }
+        }
+
+        assertEquals(0, closeAndGetStats(first).udpPacketsReceived);
+        assertEquals(3, closeAndGetStats(second).udpPacketsReceived);
+    }
+
+    @Test
+    public void createSessionTimesOut() throws Exception {
+        // Keep the event loop busy
+        CountDownLatch release = new CountDownLatch(1);
+        mEventLoop.post(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        final long startMs = System.currentTimeMillis();
+        assertEquals(-1, mHost.createSession());
+        assertTrue(System.currentTimeMillis() - startMs < 10000);
+        release.countDown();
+
+        // The abandoned session was never created, a new one still can be
+        int sessionId = mHost.createSession();
+        assertNotEquals(-1, sessionId);
+        mHost.closeSession(sessionId - 1);
+        closeAndGetStats(sessionId);
+        for (NetplaySessionHost.SessionStats stats : mHost.getClosedStats()) {
+            assertEquals(sessionId, stats.sessionId);
+        }
+    }
+
+    @Test
+    public void unknownRegistrationIsRejected() throws InterruptedException {
+        int sessionId = mHost.createSession();
+        NetplayClientSimulator.Config registered = config(1000);
+        for (int player = 0; player < PLAYERS; ++player) {
+            mHost.addRegistration(sessionId, registered.registrationIdBase + player);
+        }
+
+        ArrayList<NetplayClientSimulator.Config> configs = new ArrayList<>();
+        configs.add(config(5000));
+        NetplayClientSimulator.Result result = runRooms(configs).get(0);
+
+        assertEquals(PLAYERS, result.failedClients);
+        assertEquals(0, result.udpPacketsSent);
+    }
+
+    @Test
+    public void closedSessionRejectsItsPlayers() throws InterruptedException {
+        int sessionId = mHost.createSession();
+        NetplayClientSimulator.Config config = config(1000);
+        for (int player = 0; player < PLAYERS; ++player) {
+            mHost.addRegistration(sessionId, config.registrationIdBase + player);
+        }
+
+        mHost.closeSession(sessionId);
+
+        ArrayList<NetplayClientSimulator.Config> configs = new ArrayList<>();
+        configs.add(config);
+        assertEquals(PLAYERS, runRooms(configs).get(0).failedClients);
+    }
+}
@@ -0,0 +1,103 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NetplayTelemetryTest {
+
+    @Test
+    public void histogramPercentiles() {
+        NetplayTelemetry.Histogram histogram = new NetplayTelemetry.Histogram(2, 8);
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int value = 0; value < 10; ++value) {
+            histogram.record(value);
+        }
+
+        assertEquals(10, histogram.getCount());
+        assertEquals(4.5, histogram.getMean(), 0.001);
+        assertEquals(9, histogram.getMax());
+
+        // Upper bound of the bucket the percentile falls in
+        assertEquals(1, histogram.getPercentile(20));
+        assertEquals(5, histogram.getPercentile(50));
+        assertEquals(9, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void histogramClampsToTheOuterBuckets() {
+        NetplayTelemetry.Histogram histogram = new NetplayTelemetry.Histogram(1, 4);
+        histogram.record(-5);
+        histogram.record(100);
+
+        assertEquals(1, histogram.getBucket(0));
+        assertEquals(1, histogram.getBucket(3));
+        assertEquals(100, histogram.getMax());
+        assertEquals(100, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void packetsAreCountedPerPlayer() {
+        NetplayTelemetry telemetry = new NetplayTelemetry(4, 2);
+        telemetry.recordPacketIn(1, 20);
+        telemetry.recordPacketIn(1, 30);
+        telemetry.recordPacketIn(-1, 8);
+        telemetry.recordPacketOut(2, 100);
+
+        assertEquals(3, telemetry.getPacketsIn());
+        assertEquals(58, telemetry.getBytesIn());
+        assertEquals(2, telemetry.getPlayer(1).getPacketsIn());
+        assertEquals(50, telemetry.getPlayer(1).getBytesIn());
+        assertEquals(0, telemetry.getPlayer(0).getPacketsIn());
+        assertEquals(1, telemetry.getPacketsOut());
+        assertEquals(100, telemetry.getPlayer(2).getBytesOut());
+    }
+
+    @Test
+    public void snapshotIsNotChangedByLaterRecording() {
+        NetplayTelemetry telemetry = new NetplayTelemetry(4, 2);
+        telemetry.recordPacketIn(0, 10);
+        telemetry.getPlayer(0).roundTripMs.record(30);
+        telemetry.setBufferSize(0, 3);
+
+        NetplayTelemetry snapshot = telemetry.snapshot();
+        telemetry.recordPacketIn(0, 10);
+        telemetry.getPlayer(0).roundTripMs.record(40);
+        telemetry.setBufferSize(0, 5);
+
+        assertEquals(1, snapshot.getPacketsIn());
+        assertEquals(1, snapshot.getPlayer(0).roundTripMs.getCount());
+        assertEquals(3, snapshot.getPlayer(0).getBufferSize());
+        assertEquals(2, telemetry.getPlayer(0).roundTripMs.getCount());
+    }
+
+    @Test
+    public void durationEndsWhenTheSessionCloses() {
+        NetplayTelemetry telemetry = new NetplayTelemetry(4, 2);
+        assertEquals(0, telemetry.getDurationMs());
+
+        telemetry.end(telemetry.getStartTimeMs() + 1500);
+        assertEquals(1500, telemetry.getDurationMs());
+
+        // Later copies and a second close keep the time the session closed
+        telemetry.end(telemetry.getStartTimeMs() + 9000);
+        NetplayTelemetry snapshot = telemetry.snapshot();
+        assertEquals(1500, snapshot.getDurationMs());
+        assertTrue(snapshot.format().startsWith("duration=1.5s bufferTarget=2"));
+    }
+
+    @Test
+    public void formatSkipsIdlePlayers() {
+        NetplayTelemetry telemetry = new NetplayTelemetry(4, 2);
+        telemetry.recordPacketIn(2, 20);
+        telemetry.getPlayer(2).jitterMs.record(3);
+
+        final String report = telemetry.snapshot().format();
+        assertTrue(report.contains("player 3: in 1/20"));
+        assertTrue(report.contains("jitter_ms"));
+        assertFalse(report.contains("player 1:"));
+    }
+}
@@ -0,0 +1,352 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import paulscode.android.mupen64plusae.netplay.TcpMessage.CompressedSaveFileDataMessage;
+import paulscode.android.mupen64plusae.netplay.TcpMessage.SaveFileDataMessage;
+import paulscode.android.mupen64plusae.netplay.TcpMessage.TcpMessage;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SaveFileStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final int MAX_TEST_INFLATED_SIZE = 8*1024*1024;
+
+    private File mDirectory;
+    private SaveFileStore mStore;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "saves");
+        mStore = new SaveFileStore(mDirectory);
+    }
+
+    /**
+     * Save data that compresses somewhat, like an EEPROM or SRAM save
+     */
+    private static byte[] saveData(int size)
+    {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+
+        for (int index = 0; index < size; index += 1 + random.nextInt(64)) {
+            data[index] = (byte)random.nextInt();
+        }
+
+        return data;
+    }
+
+    private static byte[] sha256(byte[] data) throws NoSuchAlgorithmException
+    {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    private static byte[] deflate(byte[] data)
+    {
+        return deflate(data, null);
+    }
+
+    private static byte[] deflate(byte[] data, byte[] dictionary)
+    {
+        Deflater deflater = new Deflater();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            output.write(chunk, 0, deflater.deflate(chunk));
+        }
+        deflater.end();
+
+        return output.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream stream) throws IOException
+    {
+        try (InputStream input = stream) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1000];
+            int bytesRead;
+            while ((bytesRead = input.read(chunk)) != -1) {
+                output.write(chunk, 0, bytesRead);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    /**
+     * Write data in parts of different sizes, like it arrives from a connection
+     */
+    private static void writeInParts(SaveFileStore.Writer writer, byte[] data)
+    {
+        int offset = 0;
+        int part = 1;
+
+        while (offset < data.length) {
+            final int length = Math.min(part, data.length - offset);
+            writer.write(ByteBuffer.wrap(data, offset, length));
+            offset += length;
+            part = part * 3 + 1;
+        }
+    }
+
+    private int storedFiles()
+    {
+        String[] names = mDirectory.list();
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void uncompressedRoundTrip() throws Exception {
+        byte[] data = saveData(32*1024 + 7);
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.sra", data.length);
+        writeInParts(writer, data);
+        assertEquals(0, writer.getRemaining());
+
+        SaveFileStore.SaveFile saveFile = writer.finish(sha256(data));
+        assertNotNull(saveFile);
+        assertSame(saveFile, mStore.get("game.sra"));
+
+        assertEquals(data.length, saveFile.size);
+        assertArrayEquals(sha256(data), saveFile.hash);
+        assertEquals(SaveFileStore.HASH_SIZE, saveFile.hash.length);
+
+        // Files are kept compressed
+        byte[] compressed = readAll(mStore.openCompressedStream(saveFile));
+        assertEquals(saveFile.compressedSize, compressed.length);
+        assertTrue(compressed.length < data.length);
+        assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+
+        assertArrayEquals(data, readAll(mStore.openStream(saveFile)));
+    }
+
+    @Test
+    public void compressedRoundTrip() throws Exception {
+        byte[] data = saveData(128*1024);
+        byte[] compressed = deflate(data);
+
+        SaveFileStore.Writer writer = mStore.openCompressedWriter("game.fla", data.length, compressed.length);
+        assertEquals(compressed.length, writer.getRemaining());
+        writeInParts(writer, compressed);
+
+        SaveFileStore.SaveFile saveFile = writer.finish(sha256(data));
+        assertNotNull(saveFile);
+
+        // The hash is of the uncompressed contents
+        assertEquals(data.length, saveFile.size);
+        assertArrayEquals(sha256(data), saveFile.hash);
+
+        // Compressed data is stored as it was received
+        assertArrayEquals(compressed, readAll(mStore.openCompressedStream(saveFile)));
+        assertArrayEquals(data, readAll(mStore.openStream(saveFile)));
+    }
+
+    @Test
+    public void writeOnlyConsumesItsOwnBytes() {
+        byte[] data = saveData(100);
+        ByteBuffer buffer = ByteBuffer.allocate(150);
+        buffer.put(data).put(new byte[50]).flip();
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.eep", data.length);
+        writer.write(buffer);
+
+        // The rest belongs to the next message
+        assertEquals(50, buffer.remaining());
+        assertNotNull(writer.finish(null));
+    }
+
+    @Test
+    public void hashMismatchIsRejected() throws Exception {
+        byte[] data = saveData(4096);
+        byte[] otherHash = sha256(saveData(4095));
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.sra", data.length);
+        writeInParts(writer, data);
+
+        assertNull(writer.finish(otherHash));
+        assertNull(mStore.get("game.sra"));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test
+    public void incompleteFileIsRejected() {
+        byte[] data = saveData(4096);
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.sra", data.length);
+        writer.write(ByteBuffer.wrap(data, 0, 1000));
+        assertEquals(data.length - 1000, writer.getRemaining());
+
+        assertNull(writer.finish(null));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test
+    public void wrongUncompressedSizeIsRejected() {
+        byte[] data = saveData(4096);
+        byte[] compressed = deflate(data);
+
+        SaveFileStore.Writer writer = mStore.openCompressedWriter("game.sra", data.length + 1, compressed.length);
+        writeInParts(writer, compressed);
+
+        assertNull(writer.finish(null));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test
+    public void corruptCompressedDataIsRejected() {
+        byte[] data = saveData(4096);
+        byte[] compressed = deflate(data);
+        compressed[compressed.length/2] ^= 0x5a;
+        compressed[compressed.length/2 + 1] ^= 0x5a;
+
+        SaveFileStore.Writer writer = mStore.openCompressedWriter("game.sra", data.length, compressed.length);
+        writeInParts(writer, compressed);
+
+        assertNull(writer.finish(null));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test(timeout = 10000)
+    public void presetDictionaryIsRejected() {
+        byte[] data = saveData(4096);
+        byte[] compressed = deflate(data, saveData(512));
+
+        SaveFileStore.Writer writer = mStore.openCompressedWriter("game.sra", data.length, compressed.length);
+        writeInParts(writer, compressed);
+
+        assertNull(writer.finish(null));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test
+    public void inflatingPastTheDeclaredSizeStops() {
+        // Compresses very well, a small declared size must not inflate all of it
+        byte[] data = new byte[MAX_TEST_INFLATED_SIZE];
+        byte[] compressed = deflate(data);
+
+        SaveFileStore.Writer writer = mStore.openCompressedWriter("game.sra", 1024, compressed.length);
+        writeInParts(writer, compressed);
+
+        assertEquals(0, writer.getRemaining());
+        assertNull(writer.finish(null));
+        assertEquals(0, storedFiles());
+    }
+
+    private static ByteBuffer saveFileHeader(String name, int... sizes)
+    {
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(nameBytes.length + 1 + 4*sizes.length);
+        buffer.put(nameBytes).put((byte)0);
+        for (int size : sizes) {
+            buffer.putInt(size);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Test
+    public void oversizedFilesAreRefused() {
+        // The connection is dropped before any data is stored
+        SaveFileDataMessage message = new SaveFileDataMessage(null);
+        assertTrue(message.parse(saveFileHeader("game.sra", SaveFileStore.MAX_FILE_SIZE + 1)));
+        assertProcessFails(message);
+
+        CompressedSaveFileDataMessage compressedMessage = new CompressedSaveFileDataMessage(null);
+        assertTrue(compressedMessage.parse(saveFileHeader("game.sra", SaveFileStore.MAX_FILE_SIZE + 1, 100)));
+        assertProcessFails(compressedMessage);
+
+        compressedMessage = new CompressedSaveFileDataMessage(null);
+        assertTrue(compressedMessage.parse(saveFileHeader("game.sra", 100, SaveFileStore.MAX_COMPRESSED_SIZE + 1)));
+        assertProcessFails(compressedMessage);
+
+        assertEquals(0, storedFiles());
+    }
+
+    private static void assertProcessFails(TcpMessage message)
+    {
+        try {
+            message.process();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Invalid size"));
+        }
+    }
+
+    @Test
+    public void newerFileReplacesOlder() throws Exception {
+        byte[] first = saveData(2048);
+        byte[] second = saveData(3000);
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.sra", first.length);
+        writeInParts(writer, first);
+        assertNotNull(writer.finish(null));
+
+        writer = mStore.openWriter("game.sra", second.length);
+        writeInParts(writer, second);
+        SaveFileStore.SaveFile saveFile = writer.finish(null);
+
+        assertSame(saveFile, mStore.get("game.sra"));
+        assertArrayEquals(sha256(second), saveFile.hash);
+        assertArrayEquals(second, readAll(mStore.openStream(saveFile)));
+        assertEquals(1, storedFiles());
+    }
+
+    @Test
+    public void abortAndClearDeleteFiles() {
+        byte[] data = saveData(2048);
+
+        SaveFileStore.Writer writer = mStore.openWriter("game.sra", data.length);
+        writeInParts(writer, data);
+        assertNotNull(writer.finish(null));
+
+        writer = mStore.openWriter("game.eep", data.length);
+        writer.write(ByteBuffer.wrap(data, 0, 10));
+        writer.abort();
+
+        assertNull(mStore.get("game.eep"));
+        assertEquals(1, storedFiles());
+
+        mStore.clear();
+        assertNull(mStore.get("game.sra"));
+        assertEquals(0, storedFiles());
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        SaveFileStore.SaveFile saveFile = mStore.openWriter("empty", 0).finish(sha256(new byte[0]));
+
+        assertNotNull(saveFile);
+        assertEquals(0, saveFile.size);
+        assertEquals(0, readAll(mStore.openStream(saveFile)).length);
+    }
+}
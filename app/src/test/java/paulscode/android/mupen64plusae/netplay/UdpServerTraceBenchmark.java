@@ -0,0 +1,312 @@
+package paulscode.android.mupen64plusae.netplay;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a recorded four player packet trace through the receive path of {@link UdpServer},
+ * where inputs are stored in and read back from {@link InputRingBuffer}. The trace is recorded
+ * from {@link NetplayClientSimulator} clients playing over a link with delay, jitter, loss and
+ * reordering, so it holds the input repeats, requests and out of order inputs of a real session.
+ *
+ * The replay runs on the netplay event loop thread the way the server normally runs, handling
+ * at most as many datagrams between other tasks as a single wakeup does. Replies go to a channel
+ * that drops them, so only the server itself is measured. Packets per second and bytes
+ * allocated on the loop thread are reported.
+ */
+public class UdpServerTraceBenchmark {
+
+    private static final int PLAYERS = 4;
+    private static final int FRAMES = 600;
+    private static final int REGISTRATION_ID_BASE = 1000;
+
+    // Same as the limit of UdpServer.onChannelReady()
+    private static final int DATAGRAMS_PER_WAKEUP = 64;
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 9;
+
+    private static class Trace implements NetplayClientSimulator.PacketRecorder {
+        final ArrayList<Integer> players = new ArrayList<>();
+        final ArrayList<byte[]> packets = new ArrayList<>();
+
+        @Override
+        public synchronized void record(int player, byte[] data, int length) {
+            players.add(player);
+            packets.add(Arrays.copyOf(data, length));
+        }
+    }
+
+    /**
+     * Channel that counts and drops everything sent through it
+     */
+    private static class DroppingChannel extends DatagramChannel {
+        long sent = 0;
+
+        DroppingChannel() {
+            super(SelectorProvider.provider());
+        }
+
+        @Override
+        public int send(ByteBuffer src, SocketAddress target) {
+            ++sent;
+            final int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public DatagramChannel bind(SocketAddress local) {
+            return this;
+        }
+
+        @Override
+        public <T> DatagramChannel setOption(SocketOption<T> name, T value) {
+            return this;
+        }
+
+        @Override
+        public <T> T getOption(SocketOption<T> name) {
+            return null;
+        }
+
+        @Override
+        public Set<SocketOption<?>> supportedOptions() {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public java.net.DatagramSocket socket() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return false;
+        }
+
+        @Override
+        public DatagramChannel connect(SocketAddress remote) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DatagramChannel disconnect() {
+            return this;
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer dst) {
+            return null;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return 0;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            return 0;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MembershipKey join(java.net.InetAddress group, NetworkInterface networkInterface) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MembershipKey join(java.net.InetAddress group, NetworkInterface networkInterface,
+                                  java.net.InetAddress source) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void implCloseSelectableChannel() {
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block) {
+        }
+    }
+
+    /**
+     * One replay of the trace, the tasks run on the event loop one after another
+     */
+    private class Replay {
+        final Trace mTrace;
+        final UdpServer mServer;
+        final DroppingChannel mChannel = new DroppingChannel();
+        final ByteBuffer mReceiveBuffer = ByteBuffer.allocateDirect(1024).order(ByteOrder.BIG_ENDIAN);
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final Runnable mHandleDatagrams = this::handleDatagrams;
+        final Runnable mFinish = this::finish;
+        int mPosition = 0;
+        long mStartNs;
+        long mEndNs;
+        long mAllocatedBefore;
+        long mAllocatedAfter;
+
+        Replay(Trace trace) {
+            mTrace = trace;
+            mServer = new UdpServer(2, report -> { }, mEventLoop, mChannel);
+            for (int player = 0; player < PLAYERS; ++player) {
+                mServer.registerPlayer(REGISTRATION_ID_BASE + player, player, 1);
+            }
+        }
+
+        void run() throws InterruptedException {
+            mEventLoop.post(this::start);
+            mDone.await();
+            mServer.stopServer();
+        }
+
+        private void start() {
+            mAllocatedBefore = allocatedBytes();
+            mStartNs = System.nanoTime();
+            handleDatagrams();
+        }
+
+        /**
+         * Like a wakeup of the loop, other tasks the server posted run before the next one
+         */
+        private void handleDatagrams() {
+            final int end = Math.min(mPosition + DATAGRAMS_PER_WAKEUP, mTrace.packets.size());
+
+            for (; mPosition < end; ++mPosition) {
+                mReceiveBuffer.clear();
+                mReceiveBuffer.put(mTrace.packets.get(mPosition));
+                mReceiveBuffer.flip();
+                mServer.handleDatagram(mReceiveBuffer, mSources[mTrace.players.get(mPosition)]);
+            }
+
+            mEventLoop.post(mPosition < mTrace.packets.size() ? mHandleDatagrams : mFinish);
+        }
+
+        private void finish() {
+            mEndNs = System.nanoTime();
+            mAllocatedAfter = allocatedBytes();
+            mDone.countDown();
+        }
+    }
+
+    private NetplayEventLoop mEventLoop;
+    private final SocketAddress[] mSources = new SocketAddress[PLAYERS];
+
+    @Before
+    public void setUp() throws IOException {
+        mEventLoop = NetplayEventLoop.acquire();
+        for (int player = 0; player < PLAYERS; ++player) {
+            mSources[player] = new InetSocketAddress("127.0.0.1", 40000 + player);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        NetplayEventLoop.release(mEventLoop);
+    }
+
+    private static Trace record(boolean batchedInputs) throws IOException {
+        Trace trace = new Trace();
+
+        NetplayClientSimulator.Config config = new NetplayClientSimulator.Config();
+        config.players = PLAYERS;
+        config.frames = FRAMES;
+        config.delayMs = 10;
+        config.jitterMs = 8;
+        config.lossPercent = 1;
+        config.reorderPercent = 1;
+        config.batchedInputs = batchedInputs;
+        config.registrationIdBase = REGISTRATION_ID_BASE;
+        config.recorder = trace;
+
+        NetplayClientSimulator.Result result = NetplayClientSimulator.runLoopback(config);
+        assertEquals(result.format(), 0, result.failedClients);
+        return trace;
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        return threads instanceof com.sun.management.ThreadMXBean ?
+                ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    private void replay(String name, Trace trace) throws InterruptedException {
+        final int packets = trace.packets.size();
+        long[] times = new long[ROUNDS];
+        long allocated = 0;
+        long sent = 0;
+
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; ++round) {
+            Replay replay = new Replay(trace);
+            replay.run();
+
+            if (round >= WARMUP_ROUNDS) {
+                times[round - WARMUP_ROUNDS] = replay.mEndNs - replay.mStartNs;
+                allocated += replay.mAllocatedAfter - replay.mAllocatedBefore;
+                sent = replay.mChannel.sent;
+            }
+        }
+
+        Arrays.sort(times);
+        final double seconds = times[ROUNDS / 2] / 1e9;
+        final double bytesPerPacket = allocated / (double) ROUNDS / packets;
+
+        System.out.println(String.format(Locale.US,
+                "%-8s %6d packets in, %6d out: %10.0f packets/s, %8.1f B/packet, %8.1f MB/s allocated",
+                name, packets, sent, packets / seconds, bytesPerPacket, bytesPerPacket * packets / seconds / 1e6));
+
+        assertTrue(sent > 0);
+    }
+
+    @Test
+    public void replayFourPlayerTrace() throws Exception {
+        Trace single = record(false);
+        Trace batched = record(true);
+
+        replay("single", single);
+        replay("batched", batched);
+    }
+}
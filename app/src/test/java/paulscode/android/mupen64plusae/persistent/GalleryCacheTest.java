@@ -0,0 +1,292 @@
+package paulscode.android.mupen64plusae.persistent;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GalleryCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mConfigPath;
+    private String mCachePath;
+
+    @Before
+    public void setUp() {
+        mConfigPath = new File(mFolder.getRoot(), "romInfoCache.cfg").getPath();
+        mCachePath = new File(mFolder.getRoot(), "galleryCache.bin").getPath();
+    }
+
+    private static String md5(int index) {
+        return String.format(Locale.US, "%032X", index);
+    }
+
+    private static void putRom(ConfigFile config, int index) {
+        final String md5 = md5(index);
+        config.put(md5, "goodName", "Game " + index + " (U)");
+        config.put(md5, "romPathUri", "content://roms/game" + index + ".z64");
+        config.put(md5, "zipPathUri", "");
+        config.put(md5, "crc", String.format(Locale.US, "%08X %08X", index, ~index));
+        config.put(md5, "headerName", "GAME" + index);
+        config.put(md5, "countryCode", "69");
+    }
+
+    private void saveConfig(ConfigFile config) {
+        assertTrue(config.save());
+
+        // Make sure the next save changes the modification time too
+        File configFile = new File(mConfigPath);
+        assertTrue(configFile.setLastModified(configFile.lastModified() - 10000));
+    }
+
+    private ConfigFile configWithRoms(int count) {
+        ConfigFile config = new ConfigFile(mConfigPath);
+        for (int index = 0; index < count; ++index) {
+            putRom(config, index);
+        }
+        saveConfig(config);
+        return config;
+    }
+
+    private byte[] readCache() throws IOException {
+        return Files.readAllBytes(new File(mCachePath).toPath());
+    }
+
+    private static String[] md5s(List<GalleryCache.Entry> entries) {
+        String[] md5s = new String[entries.size()];
+        for (int index = 0; index < md5s.length; ++index) {
+            md5s[index] = entries.get(index).md5;
+        }
+        Arrays.sort(md5s);
+        return md5s;
+    }
+
+    private static String[] md5s(int... indices) {
+        String[] md5s = new String[indices.length];
+        for (int index = 0; index < indices.length; ++index) {
+            md5s[index] = md5(indices[index]);
+        }
+        Arrays.sort(md5s);
+        return md5s;
+    }
+
+    @Test
+    public void buildsFromTheConfigFile() {
+        configWithRoms(3);
+
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        assertArrayEquals(md5s(0, 1, 2), md5s(entries));
+
+        GalleryCache.Entry entry = entries.get(1);
+        assertEquals("Game 1 (U)", entry.goodName);
+        assertEquals("content://roms/game1.z64", entry.romUri);
+        assertEquals("GAME1", entry.headerName);
+        assertEquals(69, entry.countryCode);
+    }
+
+    @Test
+    public void scanAppendsToTheFile() throws IOException {
+        configWithRoms(20);
+        new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        final byte[] before = readCache();
+
+        // A scan that finds two new ROMs and one that's gone
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.beginUpdate(null);
+        ConfigFile config = new ConfigFile(mConfigPath);
+        putRom(config, 20);
+        cache.put(null, config, md5(20));
+        putRom(config, 21);
+        cache.put(null, config, md5(21));
+        config.remove(md5(3));
+        cache.remove(md5(3));
+        saveConfig(config);
+        cache.endUpdate();
+
+        // Everything but the header stamp was only appended to
+        final byte[] after = readCache();
+        assertTrue(after.length > before.length);
+        assertArrayEquals(Arrays.copyOfRange(before, 0, 8), Arrays.copyOfRange(after, 0, 8));
+        assertArrayEquals(Arrays.copyOfRange(before, 24, before.length), Arrays.copyOfRange(after, 24, before.length));
+
+        // Another instance reads the file as it is, without rebuilding it
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        assertArrayEquals(after, readCache());
+        assertEquals(21, entries.size());
+        assertArrayEquals(md5s(new GalleryCache(mCachePath, mConfigPath).getEntries(null)), md5s(entries));
+        assertTrue(Arrays.asList(md5s(entries)).contains(md5(21)));
+        assertTrue(!Arrays.asList(md5s(entries)).contains(md5(3)));
+    }
+
+    @Test
+    public void unfinishedScanIsRebuilt() {
+        configWithRoms(5);
+
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.beginUpdate(null);
+        ConfigFile config = new ConfigFile(mConfigPath);
+        putRom(config, 5);
+        cache.put(null, config, md5(5));
+
+        // The config file was never saved, the ROM the scan found isn't in it
+        assertArrayEquals(md5s(0, 1, 2, 3, 4), md5s(new GalleryCache(mCachePath, mConfigPath).getEntries(null)));
+    }
+
+    @Test
+    public void fileRewrittenDuringScan() {
+        configWithRoms(5);
+
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.beginUpdate(null);
+        ConfigFile config = new ConfigFile(mConfigPath);
+        putRom(config, 5);
+        cache.put(null, config, md5(5));
+
+        // Another reader rebuilds the file from the config file that doesn't have the new ROM yet
+        assertEquals(5, new GalleryCache(mCachePath, mConfigPath).getEntries(null).size());
+
+        putRom(config, 6);
+        cache.put(null, config, md5(6));
+        saveConfig(config);
+        cache.endUpdate();
+
+        assertArrayEquals(md5s(0, 1, 2, 3, 4, 5, 6), md5s(new GalleryCache(mCachePath, mConfigPath).getEntries(null)));
+    }
+
+    @Test
+    public void compactsWhenTheLogGetsLong() throws IOException {
+        configWithRoms(4);
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.getEntries(null);
+        final int compactLength = readCache().length;
+
+        // Every ROM is found again with a new name, the log ends up twice as long as needed
+        cache.beginUpdate(null);
+        ConfigFile config = new ConfigFile(mConfigPath);
+        for (int index = 0; index < 4; ++index) {
+            config.put(md5(index), "goodName", "Game " + index + " (E)");
+            cache.put(null, config, md5(index));
+            assertTrue(readCache().length > compactLength);
+        }
+        saveConfig(config);
+        cache.endUpdate();
+
+        assertEquals(compactLength, readCache().length);
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        for (GalleryCache.Entry entry : entries) {
+            assertTrue(entry.goodName.endsWith("(E)"));
+        }
+    }
+
+    @Test
+    public void lastPlayedAndRemove() {
+        ConfigFile config = configWithRoms(3);
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.getEntries(null);
+
+        config.put(md5(1), "lastPlayed", "1234");
+        saveConfig(config);
+        cache.setLastPlayed(md5(1), 1234);
+
+        config.remove(md5(2));
+        saveConfig(config);
+        cache.remove(md5(2));
+
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        assertArrayEquals(md5s(0, 1), md5s(entries));
+        for (GalleryCache.Entry entry : entries) {
+            assertEquals(entry.md5.equals(md5(1)) ? 1234 : 0, entry.lastPlayed);
+        }
+    }
+
+    @Test
+    public void invalidRomIsNotAdded() {
+        configWithRoms(1);
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.beginUpdate(null);
+
+        ConfigFile config = new ConfigFile(mConfigPath);
+        config.put(md5(1), "goodName", "No CRC");
+        cache.put(null, config, md5(1));
+        saveConfig(config);
+        cache.endUpdate();
+
+        List<GalleryCache.Entry> entries = cache.getEntries(null);
+        assertEquals(1, entries.size());
+        assertNull(config.get(md5(1), "crc"));
+    }
+
+    @Test
+    public void changedConfigFileKeepsResolvedFileNames() throws IOException {
+        ConfigFile config = configWithRoms(3);
+
+        // A cache written for an older config file, with file names the content resolver returned
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(mCachePath))) {
+            out.writeInt(GalleryCache.MAGIC);
+            out.writeInt(GalleryCache.VERSION);
+            out.writeLong(-1);
+            out.writeLong(-1);
+            for (int index = 0; index < 4; ++index) {
+                out.writeByte(GalleryCache.RECORD_ENTRY);
+                out.writeUTF(md5(index));
+                GalleryCache.writeEntry(out, new GalleryCache.Entry(md5(index), "crc", null, (byte) 69, null,
+                        null, "Game " + index + ".z64", null, "content://roms/game" + index + ".z64", null, 0));
+            }
+        }
+
+        // One ROM moved since then
+        config.put(md5(1), "romPathUri", "content://roms/moved1.z64");
+        saveConfig(config);
+
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        assertArrayEquals(md5s(0, 1, 2), md5s(entries));
+        for (GalleryCache.Entry entry : entries) {
+            // Everything else comes from the config file
+            assertEquals(config.get(entry.md5, "crc"), entry.crc);
+            if (entry.md5.equals(md5(1))) {
+                assertEquals("content://roms/moved1.z64", entry.fileName);
+            } else {
+                assertEquals(entry.md5.equals(md5(0)) ? "Game 0.z64" : "Game 2.z64", entry.fileName);
+            }
+        }
+    }
+
+    @Test
+    public void coverArtChangeIsAppended() throws IOException {
+        configWithRoms(3);
+        new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+
+        // The way the game settings change the cover art of a ROM
+        GalleryCache cache = new GalleryCache(mCachePath, mConfigPath);
+        cache.beginUpdate(null);
+        ConfigFile config = new ConfigFile(mConfigPath);
+        config.put(md5(1), "artPath", "/art/custom1.png");
+        cache.put(null, config, md5(1));
+        saveConfig(config);
+        cache.endUpdate();
+
+        // Another instance reads the file as it is, without rebuilding it
+        final byte[] before = readCache();
+        List<GalleryCache.Entry> entries = new GalleryCache(mCachePath, mConfigPath).getEntries(null);
+        assertArrayEquals(before, readCache());
+        for (GalleryCache.Entry entry : entries) {
+            assertEquals(entry.md5.equals(md5(1)) ? "custom1.png" : null, entry.artName);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package paulscode.android.mupen64plusae.task;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoverArtDownloadQueueTest {
+
+    private static final byte[] PNG_MAGIC = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final long TIMEOUT_MS = 10000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private ExecutorService mServerExecutor;
+    private String mJournalPath;
+    private File mArtDir;
+
+    /** Response code of each path, paths that aren't listed are served as images */
+    private final Map<String, Integer> mResponseCodes = new ConcurrentHashMap<>();
+
+    /** Paths served with a body that isn't an image */
+    private final List<String> mInvalidPaths = new CopyOnWriteArrayList<>();
+
+    /** Requests to each path */
+    private final Map<String, AtomicInteger> mRequests = new ConcurrentHashMap<>();
+
+    /** Requests to a path in here wait until the latch is released */
+    private final Map<String, CountDownLatch> mBlockedPaths = new ConcurrentHashMap<>();
+
+    /** Paths of the files the validator was given */
+    private final List<String> mValidatedPaths = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        mJournalPath = new File(mFolder.getRoot(), "coverArt.journal").getPath();
+        mArtDir = new File(mFolder.getRoot(), "art");
+
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/", this::handle);
+        // Blocked paths hold their handler thread, the others must still be served meanwhile
+        mServerExecutor = Executors.newCachedThreadPool();
+        mServer.setExecutor(mServerExecutor);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() {
+        for (CountDownLatch latch : mBlockedPaths.values()) {
+            latch.countDown();
+        }
+        mServer.stop(0);
+        mServerExecutor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        final String path = exchange.getRequestURI().getPath();
+        final int code = mResponseCodes.getOrDefault(path, 200);
+        final CountDownLatch latch = mBlockedPaths.get(path);
+
+        // Counted last, so tests that saw the request may change the responses of later ones
+        mRequests.computeIfAbsent(path, key -> new AtomicInteger()).incrementAndGet();
+        if (latch != null) {
+            try {
+                latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final byte[] body = code == 200 ? image(path, !mInvalidPaths.contains(path)) : "error".getBytes();
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] image(String path, boolean valid) {
+        byte[] name = path.getBytes();
+        byte[] image = Arrays.copyOf(PNG_MAGIC, PNG_MAGIC.length + name.length);
+        System.arraycopy(name, 0, image, PNG_MAGIC.length, name.length);
+        if (!valid) {
+            image[0] = 'x';
+        }
+        return image;
+    }
+
+    private boolean isValid(File file) {
+        mValidatedPaths.add(file.getPath());
+
+        byte[] magic = new byte[PNG_MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read(magic) == magic.length && Arrays.equals(PNG_MAGIC, magic);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private CoverArtDownloadQueue startQueue() {
+        CoverArtDownloadQueue queue = new CoverArtDownloadQueue(mJournalPath, 2, this::isValid);
+        queue.start();
+        return queue;
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    private String dest(String name) {
+        return new File(mArtDir, name).getPath();
+    }
+
+    private int requests(String path) {
+        AtomicInteger count = mRequests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    private static String[] listNames(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return new String[0];
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Test
+    public void downloadsThroughPartFile() throws Exception {
+        CoverArtDownloadQueue queue = startQueue();
+        queue.enqueue(url("/a.png"), dest("a.png"));
+        queue.enqueue(url("/b.png"), dest("b.png"));
+
+        // Queuing the same destination again does nothing
+        queue.enqueue(url("/a.png"), dest("a.png"));
+
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+
+        assertEquals(2, queue.getQueuedCount());
+        assertEquals(2, queue.getSucceededCount());
+        assertEquals(1, requests("/a.png"));
+        assertArrayEquals(image("/a.png", true), Files.readAllBytes(new File(dest("a.png")).toPath()));
+        assertArrayEquals(image("/b.png", true), Files.readAllBytes(new File(dest("b.png")).toPath()));
+
+        // The images were validated next to their destination, then renamed without leaving anything
+        Collections.sort(mValidatedPaths);
+        assertEquals(Arrays.asList(dest("a.png") + ".part", dest("b.png") + ".part"), mValidatedPaths);
+        assertArrayEquals(new String[] {"a.png", "b.png"}, listNames(mArtDir));
+    }
+
+    @Test
+    public void invalidImageIsDiscarded() throws Exception {
+        File dest = new File(dest("a.png"));
+        assertTrue(mArtDir.mkdirs());
+        Files.write(dest.toPath(), image("/old.png", true));
+
+        mInvalidPaths.add("/a.png");
+        CoverArtDownloadQueue queue = startQueue();
+        queue.enqueue(url("/a.png"), dest.getPath());
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+
+        assertEquals(1, queue.getFinishedCount());
+        assertEquals(0, queue.getSucceededCount());
+
+        // The image that was there is kept and the part file is gone
+        assertArrayEquals(image("/old.png", true), Files.readAllBytes(dest.toPath()));
+        assertArrayEquals(new String[] {"a.png"}, listNames(mArtDir));
+    }
+
+    @Test
+    public void failedDownloadIsRetriedAfterRestart() throws Exception {
+        mResponseCodes.put("/a.png", 503);
+        CoverArtDownloadQueue queue = startQueue();
+        queue.enqueue(url("/a.png"), dest("a.png"));
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+        assertEquals(0, queue.getSucceededCount());
+        assertFalse(new File(dest("a.png")).exists());
+
+        // The server recovers, the next start tries again
+        mResponseCodes.remove("/a.png");
+        queue = startQueue();
+        assertEquals(1, queue.getQueuedCount());
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+
+        assertEquals(1, queue.getSucceededCount());
+        assertEquals(2, requests("/a.png"));
+        assertArrayEquals(image("/a.png", true), Files.readAllBytes(new File(dest("a.png")).toPath()));
+
+        // Nothing is left to resume
+        queue = startQueue();
+        assertEquals(0, queue.getQueuedCount());
+        queue.shutdown();
+    }
+
+    @Test
+    public void jobIsDroppedAfterMaxAttempts() throws Exception {
+        mResponseCodes.put("/a.png", 404);
+
+        for (int attempt = 0; attempt < CoverArtDownloadQueue.MAX_ATTEMPTS; ++attempt) {
+            CoverArtDownloadQueue queue = startQueue();
+            if (attempt == 0) {
+                queue.enqueue(url("/a.png"), dest("a.png"));
+            }
+            assertEquals(1, queue.getQueuedCount());
+            assertTrue(queue.awaitIdle(TIMEOUT_MS));
+            queue.shutdown();
+        }
+
+        CoverArtDownloadQueue queue = startQueue();
+        assertEquals(0, queue.getQueuedCount());
+        queue.shutdown();
+        assertEquals(CoverArtDownloadQueue.MAX_ATTEMPTS, requests("/a.png"));
+    }
+
+    @Test
+    public void unfinishedDownloadIsReplayedFromTheJournal() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        mBlockedPaths.put("/slow.png", latch);
+        mResponseCodes.put("/slow.png", 503);
+
+        CoverArtDownloadQueue queue = startQueue();
+        queue.enqueue(url("/fast.png"), dest("fast.png"));
+        queue.enqueue(url("/slow.png"), dest("slow.png"));
+
+        // Stop while the slow download is still waiting for the server
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while ((queue.getFinishedCount() < 1 || requests("/slow.png") < 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.getSucceededCount());
+        queue.shutdown();
+
+        // The old download fails once it's let go, that must not be recorded
+        mBlockedPaths.remove("/slow.png");
+        mResponseCodes.remove("/slow.png");
+        latch.countDown();
+
+        // A new queue, as after an app restart, only resumes the slow download
+        queue = startQueue();
+        assertEquals(1, queue.getQueuedCount());
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+
+        assertEquals(1, queue.getSucceededCount());
+        assertEquals(1, requests("/fast.png"));
+        assertEquals(2, requests("/slow.png"));
+        assertArrayEquals(image("/slow.png", true), Files.readAllBytes(new File(dest("slow.png")).toPath()));
+        assertArrayEquals(new String[] {"fast.png", "slow.png"}, listNames(mArtDir));
+    }
+
+    @Test
+    public void corruptJournalTailIsIgnored() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        mBlockedPaths.put("/a.png", latch);
+        mResponseCodes.put("/a.png", 503);
+
+        CoverArtDownloadQueue queue = startQueue();
+        queue.enqueue(url("/a.png"), dest("a.png"));
+
+        // Stop once the download is waiting for the server, so that it can't race the resumed one
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (requests("/a.png") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        queue.shutdown();
+        mBlockedPaths.remove("/a.png");
+        mResponseCodes.remove("/a.png");
+        latch.countDown();
+
+        // A record cut short by a crash
+        File journal = new File(mJournalPath);
+        byte[] data = Files.readAllBytes(journal.toPath());
+        byte[] truncated = Arrays.copyOf(data, data.length + 3);
+        truncated[data.length] = 1;
+        truncated[data.length + 2] = 40;
+        Files.write(journal.toPath(), truncated);
+
+        queue = startQueue();
+        assertEquals(1, queue.getQueuedCount());
+        assertTrue(queue.awaitIdle(TIMEOUT_MS));
+        queue.shutdown();
+        assertEquals(1, queue.getSucceededCount());
+        assertTrue(new File(dest("a.png")).exists());
+    }
+}
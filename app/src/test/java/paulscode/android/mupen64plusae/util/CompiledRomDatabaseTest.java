@@ -0,0 +1,357 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompiledRomDatabaseTest {
+
+    private static final String MARIO_MD5 = "20B854B239203BAF6C961B850A4A51A2";
+    private static final String MARIO_BAD_MD5 = "7B7C2A8C6A7B2D4C1E6B9E5F0A1D2C3B";
+    private static final String ZELDA_U_MD5 = "5BD1FE107BF8106B2AB6650ABECD54D6";
+    private static final String ZELDA_E_MD5 = "1A9E6E4CC7F0A4E9A2B81C8B46B7E5F4";
+    private static final String ALL_ONES_MD5 = "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF";
+    private static final String HOMEBREW_MD5 = "00000000000000000000000000000001";
+    private static final String BROKEN_REF_MD5 = "0123456789ABCDEF0123456789ABCDEF";
+    private static final String NO_CRC_MD5 = "FEDCBA9876543210FEDCBA9876543210";
+
+    private static final String MARIO_CRC = "635A2BFF 8B022326";
+    private static final String SHARED_CRC = "EC7011B7 7616D72B";
+    private static final String ALL_ONES_CRC = "FFFFFFFF FFFFFFFF";
+    private static final String ZERO_CRC = "00000000 00000000";
+
+    private static final String INI =
+            "; Test database\n" +
+            "[" + MARIO_MD5 + "]\n" +
+            "GoodName=Super Mario 64 (U) [!]\n" +
+            "CRC=" + MARIO_CRC + "\n" +
+            "SaveType=Eeprom 4KB\n" +
+            "Status=5\n" +
+            "Players=1\n" +
+            "Rumble=No\n" +
+            "\n" +
+            "[" + MARIO_BAD_MD5 + "]\n" +
+            "GoodName=Super Mario 64 (U) [b1]\n" +
+            "CRC=" + MARIO_CRC + "\n" +
+            "RefMD5=" + MARIO_MD5 + "\n" +
+            "\n" +
+            "[" + ZELDA_U_MD5 + "]\n" +
+            "GoodName=Legend of Zelda, The - Ocarina of Time (U) (V1.0) [!]\n" +
+            "CRC=" + SHARED_CRC + "\n" +
+            "SaveType=SRAM\n" +
+            "Status=4\n" +
+            "\n" +
+            "[" + ZELDA_E_MD5 + "]\n" +
+            "GoodName=Legend of Zelda, The - Ocarina of Time (E) (V1.0) [!]\n" +
+            "CRC=" + SHARED_CRC + "\n" +
+            "RefMD5=" + ZELDA_U_MD5 + "\n" +
+            "\n" +
+            "[" + ALL_ONES_MD5 + "]\n" +
+            "GoodName=All Ones (U)\n" +
+            "CRC=" + ALL_ONES_CRC + "\n" +
+            "Players=2\n" +
+            "\n" +
+            "[" + HOMEBREW_MD5 + "]\n" +
+            "GoodName=Homebrew Demo (PD)\n" +
+            "CRC=" + ZERO_CRC + "\n" +
+            "\n" +
+            "[" + BROKEN_REF_MD5 + "]\n" +
+            "GoodName=Broken Reference (U)\n" +
+            "CRC=12345678 9ABCDEF0\n" +
+            "RefMD5=" + NO_CRC_MD5.replace('F', 'E') + "\n" +
+            "\n" +
+            "[" + NO_CRC_MD5 + "]\n" +
+            "GoodName=No CRC (U)\n" +
+            "CRC=not a crc\n" +
+            "\n" +
+            "[Not a ROM]\n" +
+            "GoodName=Ignored\n" +
+            "CRC=11111111 11111111\n";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mIniFile;
+    private File mCompiledFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mIniFile = new File(mFolder.getRoot(), "mupen64plus.ini");
+        mCompiledFile = new File(mFolder.getRoot(), "mupen64plus.ini.bin");
+        writeIni(INI);
+    }
+
+    private void writeIni(String contents) throws IOException {
+        try (FileWriter writer = new FileWriter(mIniFile)) {
+            writer.write(contents);
+        }
+    }
+
+    private CompiledRomDatabase load() {
+        CompiledRomDatabase database = CompiledRomDatabase.load(mIniFile.getPath(), mCompiledFile.getPath());
+        assertNotNull(database);
+        return database;
+    }
+
+    private static ArrayList<String> md5s(ArrayList<CompiledRomDatabase.Entry> entries) {
+        ArrayList<String> md5s = new ArrayList<>();
+        for (CompiledRomDatabase.Entry entry : entries) {
+            md5s.add(entry.md5);
+        }
+        return md5s;
+    }
+
+    @Test
+    public void md5Lookup() {
+        CompiledRomDatabase database = load();
+
+        CompiledRomDatabase.Entry mario = database.lookupByMd5(MARIO_MD5);
+        assertNotNull(mario);
+        assertEquals(MARIO_MD5, mario.md5);
+        assertEquals(MARIO_CRC, mario.crc);
+        assertEquals("Super Mario 64 (U) [!]", mario.goodName);
+        assertEquals("Eeprom 4KB", mario.saveType);
+        assertEquals(5, mario.status);
+        assertEquals(1, mario.players);
+        assertFalse(mario.rumble);
+        assertTrue(mario.hasDetails);
+
+        // Case and surrounding spaces don't matter
+        assertNotNull(database.lookupByMd5(" " + MARIO_MD5.toLowerCase(Locale.US) + " "));
+
+        assertNull(database.lookupByMd5("00000000000000000000000000000002"));
+        assertNull(database.lookupByMd5("not an md5"));
+        assertNull(database.lookupByMd5(null));
+    }
+
+    @Test
+    public void refMd5Details() {
+        CompiledRomDatabase database = load();
+
+        // The name and CRC are the entry's own, the rest comes from the referenced entry
+        CompiledRomDatabase.Entry bad = database.lookupByMd5(MARIO_BAD_MD5);
+        assertEquals("Super Mario 64 (U) [b1]", bad.goodName);
+        assertEquals(MARIO_CRC, bad.crc);
+        assertEquals("Eeprom 4KB", bad.saveType);
+        assertEquals(5, bad.status);
+        assertEquals(1, bad.players);
+        assertFalse(bad.rumble);
+        assertTrue(bad.hasDetails);
+
+        CompiledRomDatabase.Entry broken = database.lookupByMd5(BROKEN_REF_MD5);
+        assertFalse(broken.hasDetails);
+        assertNull(broken.saveType);
+        assertEquals(4, broken.players);
+        assertTrue(broken.rumble);
+
+        // Defaults when the fields are missing
+        CompiledRomDatabase.Entry allOnes = database.lookupByMd5(ALL_ONES_MD5);
+        assertEquals(0, allOnes.status);
+        assertEquals(2, allOnes.players);
+        assertTrue(allOnes.rumble);
+    }
+
+    @Test
+    public void crcLookup() {
+        CompiledRomDatabase database = load();
+
+        // Entries sharing a CRC come back in file order
+        ArrayList<String> expected = new ArrayList<>();
+        expected.add(ZELDA_U_MD5);
+        expected.add(ZELDA_E_MD5);
+        assertEquals(expected, md5s(database.lookupByCrc(SHARED_CRC)));
+        assertEquals(2, database.lookupByCrc(MARIO_CRC).size());
+
+        // Every 64 bit value is a valid CRC, including all ones and all zeros
+        ArrayList<CompiledRomDatabase.Entry> allOnes = database.lookupByCrc(ALL_ONES_CRC);
+        assertEquals(1, allOnes.size());
+        assertEquals(ALL_ONES_MD5, allOnes.get(0).md5);
+        assertEquals(ALL_ONES_CRC, allOnes.get(0).crc);
+        assertEquals(HOMEBREW_MD5, database.lookupByCrc(ZERO_CRC).get(0).md5);
+        assertEquals(1, database.lookupByCrc(" ffffffff   ffffffff ").size());
+
+        assertTrue(database.lookupByCrc("01234567 89ABCDEF").isEmpty());
+        assertTrue(database.lookupByCrc("not a crc").isEmpty());
+        assertTrue(database.lookupByCrc("-1 -1").isEmpty());
+        assertTrue(database.lookupByCrc("123456789 0").isEmpty());
+        assertTrue(database.lookupByCrc(null).isEmpty());
+
+        // An entry without a valid CRC is only found by MD5, sections not named by an MD5 not at all
+        CompiledRomDatabase.Entry noCrc = database.lookupByMd5(NO_CRC_MD5);
+        assertNull(noCrc.crc);
+        assertTrue(database.lookupByCrc("11111111 11111111").isEmpty());
+    }
+
+    @Test
+    public void matchesTheIniFile() throws IOException {
+        // A larger database, many entries share a CRC and a few have none
+        Random random = new Random(4);
+        StringBuilder ini = new StringBuilder();
+        ArrayList<String> crcs = new ArrayList<>();
+        for (int index = 0; index < 3000; ++index) {
+            if (crcs.isEmpty() || random.nextInt(4) != 0) {
+                crcs.add(String.format(Locale.US, "%08X %08X", random.nextInt(), random.nextInt()));
+            }
+
+            ini.append(String.format(Locale.US, "[%016X%016X]\n", random.nextLong(), random.nextLong()));
+            ini.append("GoodName=Game ").append(index).append(" (U)\n");
+            if (random.nextInt(50) != 0) {
+                ini.append("CRC=").append(crcs.get(random.nextInt(crcs.size()))).append('\n');
+            }
+            ini.append("Players=").append(random.nextInt(4) + 1).append("\n\n");
+        }
+        writeIni(ini.toString());
+
+        CompiledRomDatabase database = load();
+
+        // Group the sections by CRC the way the database did when it read the ini file directly
+        ConfigFile configFile = new ConfigFile(mIniFile.getPath());
+        HashMap<String, ArrayList<String>> crcMap = new HashMap<>();
+        int sections = 0;
+        for (String key : configFile.keySet()) {
+            ConfigSection section = configFile.get(key);
+            if (section.get("GoodName") == null) {
+                continue;
+            }
+            ++sections;
+
+            CompiledRomDatabase.Entry entry = database.lookupByMd5(key);
+            assertNotNull(key, entry);
+            assertEquals(key, entry.md5);
+            assertEquals(section.get("GoodName"), entry.goodName);
+            assertEquals(section.get("CRC"), entry.crc);
+            assertEquals(Integer.parseInt(section.get("Players")), entry.players);
+
+            String crc = section.get("CRC");
+            if (crc != null) {
+                ArrayList<String> md5s = crcMap.get(crc);
+                if (md5s == null) {
+                    md5s = new ArrayList<>();
+                    crcMap.put(crc, md5s);
+                }
+                md5s.add(key);
+            }
+        }
+        assertEquals(3000, sections);
+
+        for (String crc : crcMap.keySet()) {
+            assertEquals(crc, crcMap.get(crc), md5s(database.lookupByCrc(crc)));
+        }
+    }
+
+    @Test
+    public void compiledFileIsReused() throws IOException {
+        load();
+        assertTrue(mCompiledFile.length() > 0);
+        assertFalse(new File(mCompiledFile.getPath() + ".tmp").exists());
+
+        // Change a name in the compiled file only, it's read back instead of compiling the ini again
+        byte[] compiled = Files.readAllBytes(mCompiledFile.toPath());
+        String contents = new String(compiled, StandardCharsets.ISO_8859_1);
+        final int nameOffset = contents.indexOf("Super Mario 64 (U) [!]");
+        assertTrue(nameOffset > 0);
+        compiled[nameOffset + "Super Mario 64 (".length()] = 'X';
+        Files.write(mCompiledFile.toPath(), compiled);
+
+        assertEquals("Super Mario 64 (X) [!]", load().lookupByMd5(MARIO_MD5).goodName);
+    }
+
+    @Test
+    public void changedIniFileIsCompiledAgain() throws IOException {
+        assertNotNull(load().lookupByMd5(MARIO_MD5));
+
+        writeIni(INI.replace("Super Mario 64 (U) [!]", "Super Mario 64 (U) [!] (changed)"));
+        assertTrue(mIniFile.setLastModified(mIniFile.lastModified() + 2000));
+
+        assertEquals("Super Mario 64 (U) [!] (changed)", load().lookupByMd5(MARIO_MD5).goodName);
+    }
+
+    @Test
+    public void corruptCompiledFileIsCompiledAgain() throws IOException {
+        load();
+        final long length = mCompiledFile.length();
+
+        // Point the first MD5 slots past the end of the entries
+        try (RandomAccessFile file = new RandomAccessFile(mCompiledFile, "rw")) {
+            file.seek(40 + 8 * 36);
+            for (int slot = 0; slot < 16; ++slot) {
+                file.writeInt(0x7f7f7f7f);
+            }
+        }
+        assertEquals(MARIO_CRC, load().lookupByMd5(MARIO_MD5).crc);
+
+        // Truncated
+        try (RandomAccessFile file = new RandomAccessFile(mCompiledFile, "rw")) {
+            file.setLength(length / 2);
+        }
+        assertEquals(2, load().lookupByCrc(MARIO_CRC).size());
+        assertEquals(length, mCompiledFile.length());
+    }
+
+    @Test
+    public void fallbackLookups() {
+        RomDatabase romDatabase = RomDatabase.getInstance();
+        romDatabase.setDatabaseFile(mIniFile.getPath());
+        assertTrue(romDatabase.hasDatabaseFile());
+
+        // Found by MD5, the CRC and country don't matter
+        RomDatabase.RomDetail detail = romDatabase.lookupByMd5WithFallback(MARIO_BAD_MD5, "mario.z64",
+                SHARED_CRC, CountryCode.EUROPE_1);
+        assertEquals(MARIO_BAD_MD5, detail.md5);
+        assertEquals("Super Mario 64", detail.baseName);
+        assertEquals("Super_Mario_64.png", detail.artName);
+
+        // Unknown MD5, a single entry has the CRC
+        detail = romDatabase.lookupByMd5WithFallback("00000000000000000000000000000002", "ones.z64",
+                ALL_ONES_CRC, CountryCode.USA);
+        assertEquals(ALL_ONES_MD5, detail.md5);
+        assertEquals(2, detail.players);
+
+        // Several entries have the CRC, the country picks one
+        detail = romDatabase.lookupByMd5WithFallback("00000000000000000000000000000002", "zelda.z64",
+                SHARED_CRC, CountryCode.EUROPE_2);
+        assertEquals(ZELDA_E_MD5, detail.md5);
+        assertEquals("SRAM", detail.saveType);
+
+        // Several entries have the CRC and the country doesn't narrow it down
+        detail = romDatabase.lookupByMd5WithFallback("00000000000000000000000000000002", "Mario Hack.v64",
+                MARIO_CRC, CountryCode.USA);
+        assertEquals("", detail.md5);
+        assertEquals("Mario Hack", detail.goodName);
+        assertEquals("Super_Mario_64.png", detail.artName);
+        assertEquals(MARIO_CRC, detail.crc);
+
+        // Nothing matches
+        detail = romDatabase.lookupByMd5WithFallback("00000000000000000000000000000002", "Unknown Game.n64",
+                "01234567 89ABCDEF", CountryCode.JAPAN);
+        assertEquals("Unknown Game", detail.goodName);
+        assertEquals("dummy", detail.artName);
+
+        // Homebrew with an all zero CRC gets an empty name
+        detail = romDatabase.lookupByMd5WithFallback(HOMEBREW_MD5, "demo.z64", ZERO_CRC, CountryCode.DEMO);
+        assertEquals("", detail.goodName);
+        assertNotEquals("dummy", detail.artName);
+    }
+}
@@ -0,0 +1,99 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CoverArtCacheTest {
+
+    private static final long NOW = 1_000_000_000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = mFolder.getRoot();
+    }
+
+    private File writeFile(String name, int length, long lastModified) throws IOException {
+        File file = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[length]);
+        }
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    @Test
+    public void leastRecentlyUsedThumbnailsAreDeleted() throws IOException {
+        File oldest = writeFile("a_100x140.png", 100, NOW - 40000);
+        File recent = writeFile("b_100x140.png", 100, NOW - 1000);
+        File older = writeFile("c_100x140.png", 100, NOW - 30000);
+        File used = writeFile("d_100x140.png", 100, NOW - 2000);
+
+        assertEquals(200, CoverArtCache.trimDirectory(mDir, 250, NOW));
+
+        assertFalse(oldest.exists());
+        assertFalse(older.exists());
+        assertTrue(recent.exists());
+        assertTrue(used.exists());
+    }
+
+    @Test
+    public void smallDirectoryIsLeftAlone() throws IOException {
+        writeFile("a_100x140.png", 100, NOW - 40000);
+        writeFile("b_100x140.png", 100, NOW - 1000);
+
+        assertEquals(200, CoverArtCache.trimDirectory(mDir, 200, NOW));
+        assertEquals(2, mDir.listFiles().length);
+    }
+
+    @Test
+    public void staleTemporaryFilesAreDeleted() throws IOException {
+        File thumbnail = writeFile("a_100x140.png", 100, NOW - 40000);
+        File stale = writeFile("b_100x140.png123.tmp", 50, NOW - 120000);
+        File writing = writeFile("c_100x140.png456.tmp", 50, NOW - 1000);
+
+        // Only the stale file goes, nothing else has to be deleted to fit
+        assertEquals(150, CoverArtCache.trimDirectory(mDir, 1000, NOW));
+        assertTrue(thumbnail.exists());
+        assertFalse(stale.exists());
+        assertTrue(writing.exists());
+
+        // Files that are still being written count, but are never deleted to make room
+        assertEquals(50, CoverArtCache.trimDirectory(mDir, 60, NOW));
+        assertFalse(thumbnail.exists());
+        assertTrue(writing.exists());
+    }
+
+    @Test
+    public void missingDirectory() {
+        assertEquals(0, CoverArtCache.trimDirectory(new File(mDir, "missing"), 0, NOW));
+    }
+
+    @Test
+    public void keyChangesWithTheArt() {
+        final String key = CoverArtCache.getKey("md5", "/art/custom.png", NOW, 100, 140);
+
+        assertEquals(key, CoverArtCache.getKey("md5", "/art/custom.png", NOW, 100, 140));
+        assertNotEquals(key, CoverArtCache.getKey("md5", "/art/custom.png", NOW, 200, 280));
+        assertNotEquals(key, CoverArtCache.getKey("other", "/art/custom.png", NOW, 100, 140));
+
+        // Replacing the art, or reverting to older downloaded art, must not reuse the old thumbnail
+        assertNotEquals(key, CoverArtCache.getKey("md5", "/art/custom.png", NOW + 1000, 100, 140));
+        assertNotEquals(key, CoverArtCache.getKey("md5", "/art/downloaded.png", NOW - 1000, 100, 140));
+    }
+}
@@ -0,0 +1,89 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares hashing ROM files through {@link FileUtil#computeMd5(java.nio.channels.FileChannel)}
+ * with the stream path, for common ROM sizes. Big endian images are hashed as they are, byte
+ * swapped images have to be converted while hashing.
+ */
+public class FileUtilMd5Benchmark {
+
+    private static final int MIB = 1024 * 1024;
+    private static final int[] SIZES_MIB = {8, 16, 32, 64};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void channelAgainstStream() throws Exception {
+        for (int sizeMib : SIZES_MIB) {
+            byte[] z64 = new byte[sizeMib * MIB];
+            new Random(sizeMib).nextBytes(z64);
+            z64[0] = (byte) 0x80;
+            z64[1] = 0x37;
+            z64[2] = 0x12;
+            z64[3] = 0x40;
+
+            benchmark(sizeMib, "z64", writeFile(z64));
+            benchmark(sizeMib, "n64", writeFile(toN64(z64)));
+        }
+    }
+
+    private void benchmark(int sizeMib, String format, File file) throws Exception {
+        final String name = String.format(Locale.US, "%2d MiB %s", sizeMib, format);
+
+        MicroBenchmark.Result stream = MicroBenchmark.run(name + " stream", 2, 5, 1, () -> {
+            try (BufferedInputStream input = new BufferedInputStream(new FileInputStream(file))) {
+                return FileUtil.computeMd5(input).hashCode();
+            }
+        });
+        MicroBenchmark.Result channel = MicroBenchmark.run(name + " channel", 2, 5, 1, () -> {
+            try (FileInputStream input = new FileInputStream(file)) {
+                return FileUtil.computeMd5(input.getChannel()).hashCode();
+            }
+        });
+
+        System.out.println(String.format(Locale.US, "%s: stream %.0f MiB/s, channel %.0f MiB/s, %.2fx", name,
+                sizeMib * stream.getOperationsPerSecond(), sizeMib * channel.getOperationsPerSecond(),
+                stream.nanosPerOperation / channel.nanosPerOperation));
+
+        try (BufferedInputStream streamInput = new BufferedInputStream(new FileInputStream(file));
+             FileInputStream channelInput = new FileInputStream(file)) {
+            assertEquals(FileUtil.computeMd5(streamInput), FileUtil.computeMd5(channelInput.getChannel()));
+        }
+
+        // The files are large, don't keep them until the end of the run
+        assertTrue(file.delete());
+    }
+
+    private File writeFile(byte[] rom) throws Exception {
+        File file = mFolder.newFile();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(rom);
+        }
+        return file;
+    }
+
+    private static byte[] toN64(byte[] z64) {
+        byte[] rom = new byte[z64.length];
+        for (int i = 0; i + 3 < rom.length; i += 4) {
+            for (int j = 0; j < 4; ++j) {
+                rom[i + j] = z64[i + 3 - j];
+            }
+        }
+        return rom;
+    }
+}
@@ -0,0 +1,146 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileUtilMd5Test {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    // Lengths around the 8 byte swap width and the 1 MiB read buffer
+    private static final int[] LENGTHS = {1, 2, 3, 5, 7, 8, 9, 13, 4096, 4099,
+            1024*1024 - 1, 1024*1024, 1024*1024 + 6, 3*1024*1024 + 5};
+
+    @Test
+    public void channelMatchesStreamForZ64() throws Exception {
+        for (int length : LENGTHS) {
+            checkByteOrder(makeZ64(length), length);
+        }
+    }
+
+    @Test
+    public void channelMatchesStreamForV64() throws Exception {
+        for (int length : LENGTHS) {
+            checkByteOrder(toV64(makeZ64(length)), length);
+        }
+    }
+
+    @Test
+    public void channelMatchesStreamForN64() throws Exception {
+        for (int length : LENGTHS) {
+            checkByteOrder(toN64(makeZ64(length)), length);
+        }
+    }
+
+    @Test
+    public void swappedImagesHashLikeTheZ64Image() throws Exception {
+        for (int length : new int[]{8, 4096, 1024*1024 + 8, 8*1024*1024, 64*1024*1024}) {
+            byte[] z64 = makeZ64(length);
+            final String expected = md5(z64);
+
+            assertEquals(expected, channelMd5(z64));
+            assertEquals(expected, channelMd5(toV64(z64)));
+            assertEquals(expected, channelMd5(toN64(z64)));
+            assertEquals(expected, FileUtil.computeMd5(new ByteArrayInputStream(toV64(z64))));
+        }
+    }
+
+    @Test
+    public void shortReadsDontSplitWords() throws Exception {
+        byte[] n64 = toN64(makeZ64(1024*1024 + 12));
+
+        // Returns at most 3 bytes per read, so words straddle reads
+        InputStream trickle = new ByteArrayInputStream(n64) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        assertEquals(channelMd5(n64), FileUtil.computeMd5(trickle));
+    }
+
+    private void checkByteOrder(byte[] rom, int length) throws Exception {
+        final String stream = FileUtil.computeMd5(new BufferedInputStream(new ByteArrayInputStream(rom)));
+        assertEquals("length " + length, stream, channelMd5(rom));
+        assertEquals("length " + length, md5(toZ64(rom)), stream);
+    }
+
+    private String channelMd5(byte[] rom) throws Exception {
+        File file = mFolder.newFile();
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(rom);
+        }
+
+        try (FileInputStream input = new FileInputStream(file)) {
+            return FileUtil.computeMd5(input.getChannel());
+        }
+    }
+
+    /**
+     * Random ROM data that starts like a big endian image, so the swapped copies start with the
+     * bytes that identify a .v64 or .n64 image
+     */
+    private static byte[] makeZ64(int length) {
+        final byte[] header = {(byte) 0x80, 0x37, 0x12, 0x40};
+        byte[] rom = new byte[length];
+        new Random(length).nextBytes(rom);
+        System.arraycopy(header, 0, rom, 0, Math.min(length, header.length));
+        return rom;
+    }
+
+    private static byte[] toV64(byte[] z64) {
+        byte[] rom = z64.clone();
+        for (int i = 0; i + 1 < rom.length; i += 2) {
+            rom[i] = z64[i + 1];
+            rom[i + 1] = z64[i];
+        }
+        return rom;
+    }
+
+    private static byte[] toN64(byte[] z64) {
+        byte[] rom = z64.clone();
+        for (int i = 0; i + 3 < rom.length; i += 4) {
+            for (int j = 0; j < 4; ++j) {
+                rom[i + j] = z64[i + 3 - j];
+            }
+        }
+        return rom;
+    }
+
+    /**
+     * Reference conversion, a trailing partial word is left as it is
+     */
+    private static byte[] toZ64(byte[] rom) {
+        switch (rom[0] & 0xff) {
+            case 0x37:
+                return toV64(rom);
+            case 0x40:
+                return toN64(rom);
+            default:
+                return rom;
+        }
+    }
+
+    private static String md5(byte[] data) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (byte value : MessageDigest.getInstance("MD5").digest(data)) {
+            builder.append(String.format(Locale.US, "%02X", value & 0xff));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package paulscode.android.mupen64plusae.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Small harness for benchmarks that run as JVM unit tests. An operation is run for a few warm-up
+ * rounds, then for the measured rounds, and the median time and the heap allocated per operation
+ * are reported.
+ *
+ * Benchmark classes end in Benchmark and are skipped by the normal test run, they only run when
+ * the build is given -Pbenchmarks, for example:
+ * ./gradlew :app:testDebugUnitTest -Pbenchmarks --tests '*Benchmark'
+ */
+public final class MicroBenchmark {
+
+    /**
+     * One measured round of a benchmark
+     */
+    public interface Round {
+        /**
+         * @return Any value derived from the work done, it's kept so the work can't be optimized away
+         */
+        long run() throws Exception;
+    }
+
+    public static final class Result {
+        public final String name;
+        public final long operations;
+
+        /** Median time of an operation, in nanoseconds */
+        public final double nanosPerOperation;
+
+        /** Heap allocated per operation in the measured rounds, in bytes, -1 if unknown */
+        public final double bytesPerOperation;
+
+        Result(String name, long operations, double nanosPerOperation, double bytesPerOperation) {
+            this.name = name;
+            this.operations = operations;
+            this.nanosPerOperation = nanosPerOperation;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+
+        public double getOperationsPerSecond() {
+            return 1e9 / nanosPerOperation;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-44s %12.1f ns/op %14.0f op/s %12.1f B/op", name,
+                    nanosPerOperation, getOperationsPerSecond(), bytesPerOperation);
+        }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static volatile long sSink;
+
+    private MicroBenchmark() {
+    }
+
+    /**
+     * @param name Name of the benchmark in the report
+     * @param warmupRounds Rounds run before measuring, so the code is compiled
+     * @param rounds Measured rounds
+     * @param operationsPerRound Operations done by each round
+     * @param round Runs one round
+     * @return The result, also printed to the standard output
+     */
+    public static Result run(String name, int warmupRounds, int rounds, long operationsPerRound, Round round)
+            throws Exception {
+        long sink = 0;
+        for (int index = 0; index < warmupRounds; ++index) {
+            sink += round.run();
+        }
+
+        final long allocatedBefore = getAllocatedBytes();
+        long[] times = new long[rounds];
+        for (int index = 0; index < rounds; ++index) {
+            final long start = System.nanoTime();
+            sink += round.run();
+            times[index] = System.nanoTime() - start;
+        }
+        final long allocatedAfter = getAllocatedBytes();
+        sSink = sink;
+
+        Arrays.sort(times);
+        final long operations = operationsPerRound * rounds;
+        final double bytesPerOperation = allocatedBefore < 0 || allocatedAfter < 0 ? -1 :
+                (allocatedAfter - allocatedBefore) / (double) operations;
+
+        Result result = new Result(name, operations, times[rounds / 2] / (double) operationsPerRound,
+                bytesPerOperation);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * @return Bytes allocated on the heap by the calling thread so far, -1 if the JVM doesn't tell
+     */
+    private static long getAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() ?
+                threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+}
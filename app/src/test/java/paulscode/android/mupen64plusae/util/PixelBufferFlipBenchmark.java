@@ -0,0 +1,79 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Compares flipping screenshots read with glReadPixels through
+ * {@link PixelBuffer#flipVertically(IntBuffer, int, int, int)}, which swaps whole rows, with
+ * swapping one pixel at a time. Both are run with and without making every pixel opaque, at the
+ * 1080p and 4K sizes of the largest screens the buffer is read from.
+ */
+public class PixelBufferFlipBenchmark {
+
+    private static final int[][] SIZES = {{1920, 1080}, {3840, 2160}};
+    private static final int OPAQUE = 0xff000000;
+
+    @Test
+    public void rowsAgainstPixels() throws Exception {
+        for (int[] size : SIZES) {
+            final int width = size[0];
+            final int height = size[1];
+
+            int[] pixels = new int[width*height];
+            Random random = new Random(width);
+            for (int index = 0; index < pixels.length; ++index) {
+                pixels[index] = random.nextInt();
+            }
+
+            benchmark(width, height, pixels, 0);
+            benchmark(width, height, pixels, OPAQUE);
+        }
+    }
+
+    private static void benchmark(int width, int height, int[] pixels, int orMask) throws Exception {
+        final String name = String.format(Locale.US, "%dx%d %s", width, height, orMask == 0 ? "copy" : "opaque");
+        final double megapixels = width*height/1e6;
+        IntBuffer buffer = IntBuffer.wrap(pixels.clone());
+
+        MicroBenchmark.Result perPixel = MicroBenchmark.run(name + " pixels", 10, 21, 1, () -> {
+            flipPerPixel(buffer, width, height, orMask);
+            return buffer.get(0);
+        });
+        MicroBenchmark.Result rows = MicroBenchmark.run(name + " rows", 10, 21, 1, () -> {
+            PixelBuffer.flipVertically(buffer, width, height, orMask);
+            return buffer.get(0);
+        });
+
+        System.out.println(String.format(Locale.US, "%s: pixels %.0f MP/s, rows %.0f MP/s, %.2fx", name,
+                megapixels * perPixel.getOperationsPerSecond(), megapixels * rows.getOperationsPerSecond(),
+                perPixel.nanosPerOperation / rows.nanosPerOperation));
+
+        IntBuffer expected = IntBuffer.wrap(pixels.clone());
+        IntBuffer actual = IntBuffer.wrap(pixels.clone());
+        flipPerPixel(expected, width, height, orMask);
+        PixelBuffer.flipVertically(actual, width, height, orMask);
+        assertArrayEquals(name, expected.array(), actual.array());
+    }
+
+    /**
+     * Flip one pixel at a time, the way it was done before rows were swapped in bulk
+     */
+    private static void flipPerPixel(IntBuffer pixels, int width, int height, int orMask) {
+        for (int row = 0; row < (height + 1)/2; row++) {
+            final int topPosition = row*width;
+            final int bottomPosition = (height - row - 1)*width;
+
+            for (int column = 0; column < width; column++) {
+                final int top = pixels.get(topPosition + column);
+                pixels.put(topPosition + column, pixels.get(bottomPosition + column) | orMask);
+                pixels.put(bottomPosition + column, top | orMask);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package paulscode.android.mupen64plusae.util;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PixelBufferTest {
+
+    private static final int OPAQUE = 0xff000000;
+
+    /**
+     * Pixels that encode their own row and column, so a misplaced pixel is easy to spot
+     */
+    private static int[] pixels(int width, int height)
+    {
+        int[] pixels = new int[width*height];
+        for (int row = 0; row < height; ++row) {
+            for (int column = 0; column < width; ++column) {
+                pixels[row*width + column] = (row << 12) | column;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Flip one pixel at a time, the way it was done before rows were swapped in bulk
+     */
+    private static int[] flipped(int[] pixels, int width, int height, int orMask)
+    {
+        int[] flipped = new int[pixels.length];
+        for (int row = 0; row < height; ++row) {
+            for (int column = 0; column < width; ++column) {
+                flipped[(height - row - 1)*width + column] = pixels[row*width + column] | orMask;
+            }
+        }
+        return flipped;
+    }
+
+    private static void checkFlip(int width, int height, int orMask)
+    {
+        int[] pixels = pixels(width, height);
+        IntBuffer buffer = IntBuffer.wrap(pixels.clone());
+
+        PixelBuffer.flipVertically(buffer, width, height, orMask);
+
+        assertEquals(0, buffer.position());
+        assertArrayEquals(width + "x" + height, flipped(pixels, width, height, orMask), buffer.array());
+    }
+
+    @Test
+    public void evenHeight() {
+        checkFlip(8, 6, 0);
+        checkFlip(1, 2, 0);
+    }
+
+    @Test
+    public void oddHeight() {
+        // The middle row stays in place
+        checkFlip(8, 7, 0);
+        checkFlip(3, 1, 0);
+    }
+
+    @Test
+    public void rowsAreWidthApart() {
+        // Widths that aren't a multiple of anything, rows must not shift into each other
+        checkFlip(7, 4, 0);
+        checkFlip(13, 5, 0);
+        checkFlip(5, 13, 0);
+    }
+
+    @Test
+    public void maskIsAppliedToEveryPixel() {
+        checkFlip(6, 4, OPAQUE);
+        checkFlip(5, 5, OPAQUE);
+
+        // Including the middle row of an odd height
+        int[] pixels = {1, 2, 3};
+        IntBuffer buffer = IntBuffer.wrap(pixels);
+        PixelBuffer.flipVertically(buffer, 3, 1, OPAQUE);
+        assertArrayEquals(new int[]{OPAQUE | 1, OPAQUE | 2, OPAQUE | 3}, pixels);
+    }
+
+    @Test
+    public void pixelsPastTheImageAreUntouched() {
+        final int width = 5;
+        final int height = 3;
+        int[] pixels = new int[width*height + 4];
+        System.arraycopy(pixels(width, height), 0, pixels, 0, width*height);
+        pixels[width*height] = 42;
+
+        PixelBuffer.flipVertically(IntBuffer.wrap(pixels), width, height, OPAQUE);
+
+        assertEquals(OPAQUE | (2 << 12), pixels[0]);
+        assertEquals(OPAQUE | (2 << 12) | 4, pixels[width - 1]);
+        assertEquals(OPAQUE | 4, pixels[width*height - 1]);
+        assertEquals(42, pixels[width*height]);
+        assertEquals(0, pixels[width*height + 1]);
+    }
+}
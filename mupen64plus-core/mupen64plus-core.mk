@@ -16,6 +16,7 @@ LOCAL_DISABLE_FATAL_LINKER_WARNINGS := true
 LOCAL_C_INCLUDES :=                       \
     $(LOCAL_PATH)/$(SUBLIBS)/md5          \
     $(LOCAL_PATH)/$(SUBLIBS)/minizip      \
+    $(LOCAL_PATH)/$(SUBLIBS)/sha256       \
     $(LOCAL_PATH)/$(SUBLIBS)/xxhash       \
     $(LOCAL_PATH)/$(SRCDIR)               \
     $(ASM_DEFINE_PATH)/$(TARGET_ARCH_ABI) \
@@ -26,6 +27,7 @@ LOCAL_SRC_FILES :=                                              \
     $(SUBLIBS)/minizip/ioapi.c                                  \
     $(SUBLIBS)/minizip/unzip.c                                  \
     $(SUBLIBS)/minizip/zip.c                                    \
+    $(SUBLIBS)/sha256/sha256.c                                  \
     $(SRCDIR)/device/rcp/ai/ai_controller.c                     \
     $(SRCDIR)/api/callbacks.c                                   \
     $(SRCDIR)/api/common.c                                      \
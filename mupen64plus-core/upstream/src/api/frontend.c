@@ -275,6 +275,22 @@ EXPORT m64p_error CALL CoreDoCommand(m64p_command Command, int ParamInt, void *P
                 return M64ERR_INPUT_INVALID;
             main_state_save(ParamInt, (char *) ParamPtr);
             return M64ERR_SUCCESS;
+        case M64CMD_STATE_SAVE_MEMORY:
+            /* memory jobs are dropped during netplay, don't report them as queued */
+            if (!g_EmulatorRunning || netplay_is_init())
+                return M64ERR_INVALID_STATE;
+            if (ParamPtr == NULL || ParamInt < M64P_SAVESTATE_SIZE)
+                return M64ERR_INPUT_INVALID;
+            main_state_save_memory(ParamPtr, ParamInt);
+            return M64ERR_SUCCESS;
+        case M64CMD_STATE_LOAD_MEMORY:
+            /* memory jobs are dropped during netplay, don't report them as queued */
+            if (!g_EmulatorRunning || netplay_is_init())
+                return M64ERR_INVALID_STATE;
+            if (ParamPtr == NULL || ParamInt < M64P_SAVESTATE_SIZE)
+                return M64ERR_INPUT_INVALID;
+            main_state_load_memory(ParamPtr, ParamInt);
+            return M64ERR_SUCCESS;
         case M64CMD_STATE_SET_SLOT:
             if (ParamInt < 0 || ParamInt > 9)
                 return M64ERR_INPUT_INVALID;
@@ -137,7 +137,8 @@ typedef enum {
   M64CORE_AUDIO_MUTE,
   M64CORE_INPUT_GAMESHARK,
   M64CORE_STATE_LOADCOMPLETE,
-  M64CORE_STATE_SAVECOMPLETE
+  M64CORE_STATE_SAVECOMPLETE,
+  M64CORE_STATE_MEMORY_SIZE
 } m64p_core_param;
 
 typedef enum {
@@ -168,7 +169,9 @@ typedef enum {
   M64CMD_NETPLAY_GET_VERSION,
   M64CMD_NETPLAY_CLOSE,
   M64CMD_PIF_OPEN,
-  M64CMD_ROM_SET_SETTINGS
+  M64CMD_ROM_SET_SETTINGS,
+  M64CMD_STATE_SAVE_MEMORY,
+  M64CMD_STATE_LOAD_MEMORY
 } m64p_command;
 
 typedef struct {
@@ -583,6 +583,22 @@ void main_state_save(int format, const char *filename)
         savestates_set_job(savestates_job_save, (savestates_type)format, filename);
 }
 
+void main_state_load_memory(void *buffer, size_t capacity)
+{
+    if (netplay_is_init())
+        return;
+
+    savestates_set_memory_job(savestates_job_load, buffer, capacity);
+}
+
+void main_state_save_memory(void *buffer, size_t capacity)
+{
+    if (netplay_is_init())
+        return;
+
+    savestates_set_memory_job(savestates_job_save, buffer, capacity);
+}
+
 m64p_error main_core_state_query(m64p_core_param param, int *rval)
 {
     switch (param)
@@ -633,6 +649,9 @@ m64p_error main_core_state_query(m64p_core_param param, int *rval)
         case M64CORE_INPUT_GAMESHARK:
             *rval = event_gameshark_active();
             break;
+        case M64CORE_STATE_MEMORY_SIZE:
+            *rval = M64P_SAVESTATE_SIZE;
+            break;
         // these are only used for callbacks; they cannot be queried or set
         case M64CORE_STATE_LOADCOMPLETE:
         case M64CORE_STATE_SAVECOMPLETE:
@@ -23,6 +23,7 @@
 #ifndef __MAIN_H__
 #define __MAIN_H__
 
+#include <stddef.h>
 #include <stdint.h>
 
 #include "api/m64p_types.h"
@@ -86,6 +87,8 @@ void main_state_set_slot(int slot);
 void main_state_inc_slot(void);
 void main_state_load(const char *filename);
 void main_state_save(int format, const char *filename);
+void main_state_load_memory(void *buffer, size_t capacity);
+void main_state_save_memory(void *buffer, size_t capacity);
 
 m64p_error main_core_state_query(m64p_core_param param, int *rval);
 m64p_error main_core_state_set(m64p_core_param param, int val);
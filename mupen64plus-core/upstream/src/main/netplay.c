@@ -28,6 +28,8 @@
 #include "netplay.h"
 
 #include <SDL_net.h>
+#include <sha256.h>
+#include <zlib.h>
 #if !defined(WIN32)
 #include <sys/socket.h>
 #include <netinet/ip.h>
@@ -54,6 +56,10 @@ static uint8_t l_player_lag[4];
 #define UDP_RECEIVE_KEY_INFO 1
 #define UDP_REQUEST_KEY_INFO 2
 #define UDP_SYNC_DATA 4
+#define UDP_RECEIVE_KEY_INFO_BATCH 5
+
+//Protocol version sent with input requests, version 1 receives inputs for several players in UDP_RECEIVE_KEY_INFO_BATCH
+#define UDP_PROTOCOL_VERSION 1
 
 //TCP packet formats
 #define TCP_SEND_SAVE 1
@@ -63,6 +69,21 @@ static uint8_t l_player_lag[4];
 #define TCP_REGISTER_PLAYER 5
 #define TCP_GET_REGISTRATION 6
 #define TCP_DISCONNECT_NOTICE 7
+#define TCP_RECEIVE_SAVE_UPDATE 8
+#define TCP_SEND_COMPRESSED_SAVE 9
+
+//Flags of TCP_RECEIVE_SAVE_UPDATE requests
+#define SAVE_FLAG_HAS_FILE 1
+#define SAVE_FLAG_ACCEPTS_DEFLATE 2
+
+//Status of TCP_RECEIVE_SAVE_UPDATE replies
+#define SAVE_STATUS_IDENTICAL 0
+#define SAVE_STATUS_RAW 1
+#define SAVE_STATUS_DEFLATE 2
+#define SAVE_STATUS_NOT_AVAILABLE 3
+
+//Largest save file the server accepts
+#define SAVE_MAX_SIZE (4 * 1024 * 1024)
 
 struct __UDPSocket {
     int ready;
@@ -189,14 +210,15 @@ static uint8_t buffer_size(uint8_t control_id)
 
 static void netplay_request_input(uint8_t control_id)
 {
-    UDPpacket *packet = SDLNet_AllocPacket(12);
+    UDPpacket *packet = SDLNet_AllocPacket(13);
     packet->data[0] = UDP_REQUEST_KEY_INFO;
     packet->data[1] = control_id; //The player we need input for
     SDLNet_Write32(l_reg_id, &packet->data[2]); //our registration ID
     SDLNet_Write32(l_cin_compats[control_id].netplay_count, &packet->data[6]); //the current event count
     packet->data[10] = l_spectator; //whether we are a spectator
     packet->data[11] = buffer_size(control_id); //our local buffer size
-    packet->len = 12;
+    packet->data[12] = UDP_PROTOCOL_VERSION; //servers that don't know about it ignore it
+    packet->len = 13;
     SDLNet_UDP_Send(l_udpSocket, l_udpChannel, packet);
     SDLNet_FreePacket(packet);
 }
@@ -235,12 +257,63 @@ static int netplay_require_response(void* opaque)
     return 1;
 }
 
+static void netplay_update_status(uint8_t current_status)
+{
+    //current_status is a status update from the server
+    //it will let us know if another player has disconnected, or the games have desynced
+    if (current_status != l_status)
+    {
+        if (((current_status & 0x1) ^ (l_status & 0x1)) != 0)
+            DebugMessage(M64MSG_ERROR, "Netplay: players have de-synced at VI %u", l_vi_counter);
+        for (int dis = 1; dis < 5; ++dis)
+        {
+            if (((current_status & (0x1 << dis)) ^ (l_status & (0x1 << dis))) != 0)
+                DebugMessage(M64MSG_ERROR, "Netplay: player %u has disconnected", dis);
+        }
+        l_status = current_status;
+    }
+}
+
+static uint32_t netplay_insert_events(uint8_t player, UDPpacket *packet, uint32_t curr, uint8_t counts)
+{
+    //this loop processes input data from the server, inserting new events into the linked list for each player
+    //it skips events that we have already recorded, or if we receive data for an event that has already happened
+    //returns the offset of the data following the events
+    uint32_t count, keys;
+    uint8_t plugin;
+    for (uint8_t i = 0; i < counts && curr + 9 <= (uint32_t)packet->len; ++i)
+    {
+        count = SDLNet_Read32(&packet->data[curr]);
+        curr += 4;
+
+        if (((count - l_cin_compats[player].netplay_count) > (UINT32_MAX / 2)) || (check_valid(player, count))) //event doesn't need to be recorded
+        {
+            curr += 5;
+            continue;
+        }
+
+        keys = SDLNet_Read32(&packet->data[curr]);
+        curr += 4;
+        plugin = packet->data[curr];
+        curr += 1;
+
+        //insert new event at beginning of linked list
+        struct netplay_event* new_event = (struct netplay_event*)malloc(sizeof(struct netplay_event));
+        new_event->count = count;
+        new_event->buttons = keys;
+        new_event->plugin = plugin;
+        new_event->next = l_cin_compats[player].event_first;
+        l_cin_compats[player].event_first = new_event;
+    }
+    return curr;
+}
+
 static void netplay_process()
 {
     //In this function we process data we have received from the server
     UDPpacket *packet = SDLNet_AllocPacket(512);
-    uint32_t curr, count, keys;
-    uint8_t plugin, player, current_status;
+    uint32_t curr;
+    uint8_t player, players, counts;
     while (SDLNet_UDP_Recv(l_udpSocket, packet) == 1)
     {
         switch (packet->data[0])
@@ -249,45 +322,24 @@ static void netplay_process()
                 player = packet->data[1];
                 //current_status is a status update from the server
                 //it will let us know if another player has disconnected, or the games have desynced
-                current_status = packet->data[2];
+                netplay_update_status(packet->data[2]);
                 l_player_lag[player] = packet->data[3];
-                if (current_status != l_status)
-                {
-                    if (((current_status & 0x1) ^ (l_status & 0x1)) != 0)
-                        DebugMessage(M64MSG_ERROR, "Netplay: players have de-synced at VI %u", l_vi_counter);
-                    for (int dis = 1; dis < 5; ++dis)
-                    {
-                        if (((current_status & (0x1 << dis)) ^ (l_status & (0x1 << dis))) != 0)
-                            DebugMessage(M64MSG_ERROR, "Netplay: player %u has disconnected", dis);
-                    }
-                    l_status = current_status;
-                }
-                curr = 5;
-                //this loop processes input data from the server, inserting new events into the linked list for each player
-                //it skips events that we have already recorded, or if we receive data for an event that has already happened
-                for (uint8_t i = 0; i < packet->data[4]; ++i)
+                netplay_insert_events(player, packet, 5, packet->data[4]);
+                break;
+            case UDP_RECEIVE_KEY_INFO_BATCH:
+                //same as UDP_RECEIVE_KEY_INFO, but for every player with new inputs
+                //after the status: the number of players, then for each player its number, lag, number of events and events
+                netplay_update_status(packet->data[1]);
+                players = packet->data[2];
+                curr = 3;
+                for (uint8_t i = 0; i < players && curr + 3 <= (uint32_t)packet->len; ++i)
                 {
-                    count = SDLNet_Read32(&packet->data[curr]);
-                    curr += 4;
-
-                    if (((count - l_cin_compats[player].netplay_count) > (UINT32_MAX / 2)) || (check_valid(player, count))) //event doesn't need to be recorded
-                    {
-                        curr += 5;
-                        continue;
-                    }
-
-                    keys = SDLNet_Read32(&packet->data[curr]);
-                    curr += 4;
-                    plugin = packet->data[curr];
-                    curr += 1;
-
-                    //insert new event at beginning of linked list
-                    struct netplay_event* new_event = (struct netplay_event*)malloc(sizeof(struct netplay_event));
-                    new_event->count = count;
-                    new_event->buttons = keys;
-                    new_event->plugin = plugin;
-                    new_event->next = l_cin_compats[player].event_first;
-                    l_cin_compats[player].event_first = new_event;
+                    player = packet->data[curr];
+                    if (player > 3)
+                        break;
+                    l_player_lag[player] = packet->data[curr + 1];
+                    counts = packet->data[curr + 2];
+                    curr = netplay_insert_events(player, packet, curr + 3, counts);
                 }
                 break;
             default:
@@ -382,13 +434,14 @@ static uint32_t netplay_get_input(uint8_t control_id)
 
 static void netplay_send_input(uint8_t control_id, uint32_t keys)
 {
-    UDPpacket *packet = SDLNet_AllocPacket(11);
+    UDPpacket *packet = SDLNet_AllocPacket(15);
     packet->data[0] = UDP_SEND_KEY_INFO;
     packet->data[1] = control_id; //player number
     SDLNet_Write32(l_cin_compats[control_id].netplay_count, &packet->data[2]); // current event count
     SDLNet_Write32(keys, &packet->data[6]); //key data
     packet->data[10] = l_plugin[control_id]; //current plugin
-    packet->len = 11;
+    SDLNet_Write32(l_reg_id, &packet->data[11]); //our registration ID, lets a server hosting several sessions route the packet
+    packet->len = 15;
     SDLNet_UDP_Send(l_udpSocket, l_udpChannel, packet);
     SDLNet_FreePacket(packet);
 }
@@ -434,6 +487,192 @@ int netplay_get_controller(uint8_t player)
     return l_netplay_control[player];
 }
 
+static int netplay_tcp_recv_all(void *data, size_t size)
+{
+    char *data_array = data;
+    size_t recv = 0;
+    while (recv < size)
+    {
+        int result = SDLNet_TCP_Recv(l_tcpSocket, data_array + recv, size - recv);
+        if (result <= 0)
+            return 0;
+        recv += result;
+    }
+    return 1;
+}
+
+static void netplay_send_save(const char *short_filename, const void *data, size_t size)
+{
+    //The file is deflate compressed and followed by its SHA-256 hash, the server only keeps it if the hash matches
+    size_t name_size = strlen(short_filename) + 1;
+    uLongf compressed_size = compressBound(size);
+    uint32_t buffer_pos = 0;
+    char *output_data = malloc(1 + name_size + 8 + compressed_size + SHA256_DIGEST_SIZE);
+
+    output_data[buffer_pos] = TCP_SEND_COMPRESSED_SAVE;
+    ++buffer_pos;
+
+    //send file name
+    memcpy(&output_data[buffer_pos], short_filename, name_size);
+    buffer_pos += name_size;
+
+    if (compress2((Bytef*)&output_data[buffer_pos + 8], &compressed_size, data, size, Z_BEST_SPEED) == Z_OK)
+    {
+        SDLNet_Write32((int32_t)size, &output_data[buffer_pos]); //file data size
+        buffer_pos += 4;
+        SDLNet_Write32((int32_t)compressed_size, &output_data[buffer_pos]); //compressed data size
+        buffer_pos += 4 + compressed_size;
+        sha256(data, size, (uint8_t*)&output_data[buffer_pos]);
+        buffer_pos += SHA256_DIGEST_SIZE;
+    }
+    else
+    {
+        //Send it uncompressed, the other players are waiting for it
+        output_data = realloc(output_data, 1 + name_size + 4 + size);
+        output_data[0] = TCP_SEND_SAVE;
+        SDLNet_Write32((int32_t)size, &output_data[buffer_pos]); //file data size
+        buffer_pos += 4;
+        memcpy(&output_data[buffer_pos], data, size); //file data
+        buffer_pos += size;
+    }
+
+    SDLNet_TCP_Send(l_tcpSocket, &output_data[0], buffer_pos);
+    free(output_data);
+}
+
+static int netplay_receive_save_contents(uint8_t status, void *data, size_t size)
+{
+    //Both raw and deflate replies are followed by the SHA-256 hash of the file
+    char input_data[8];
+    if (!netplay_tcp_recv_all(input_data, status == SAVE_STATUS_DEFLATE ? 8 : 4))
+        return 0;
+
+    uint32_t file_size = SDLNet_Read32(&input_data[0]);
+    uint32_t compressed_size = status == SAVE_STATUS_DEFLATE ? SDLNet_Read32(&input_data[4]) : 0;
+    if (file_size > SAVE_MAX_SIZE || compressed_size > compressBound(SAVE_MAX_SIZE))
+    {
+        DebugMessage(M64MSG_ERROR, "Netplay: invalid save file size %u", file_size);
+        return 0;
+    }
+
+    int valid = 0;
+    uint8_t *contents = malloc(file_size + 1);
+    uint8_t *compressed = compressed_size ? malloc(compressed_size) : NULL;
+    uint8_t hash[SHA256_DIGEST_SIZE];
+    uint8_t received_hash[SHA256_DIGEST_SIZE];
+
+    if (status == SAVE_STATUS_DEFLATE)
+    {
+        uLongf inflated_size = file_size;
+        valid = netplay_tcp_recv_all(compressed, compressed_size) &&
+                uncompress(contents, &inflated_size, compressed, compressed_size) == Z_OK &&
+                inflated_size == file_size;
+    }
+    else
+    {
+        valid = netplay_tcp_recv_all(contents, file_size);
+    }
+
+    if (valid && netplay_tcp_recv_all(received_hash, SHA256_DIGEST_SIZE))
+    {
+        sha256(contents, file_size, hash);
+        valid = memcmp(hash, received_hash, SHA256_DIGEST_SIZE) == 0;
+    }
+    else
+    {
+        valid = 0;
+    }
+
+    if (valid)
+    {
+        if (file_size != size)
+            DebugMessage(M64MSG_WARNING, "Netplay: received %u bytes for a %u byte save file", file_size, (uint32_t)size);
+
+        memcpy(data, contents, file_size < size ? file_size : size);
+        if (file_size < size)
+            memset((char*)data + file_size, 0, size - file_size);
+    }
+
+    free(compressed);
+    free(contents);
+    return valid;
+}
+
+static file_status_t netplay_receive_save(const char *filename, const char *short_filename, void *data, size_t size)
+{
+    //The server only sends the file if our copy is different
+    size_t name_size = strlen(short_filename) + 1;
+    uint32_t buffer_pos = 0;
+    char *output_data = malloc(1 + name_size + 5 + SHA256_DIGEST_SIZE);
+    uint8_t flags = SAVE_FLAG_ACCEPTS_DEFLATE;
+
+    output_data[buffer_pos] = TCP_RECEIVE_SAVE_UPDATE;
+    ++buffer_pos;
+
+    //name of the file we are requesting
+    memcpy(&output_data[buffer_pos], short_filename, name_size);
+    buffer_pos += name_size;
+
+    if (read_from_file(filename, data, size) == file_ok)
+    {
+        flags |= SAVE_FLAG_HAS_FILE;
+        sha256(data, size, (uint8_t*)&output_data[buffer_pos + 5]);
+    }
+    else
+    {
+        memset(&output_data[buffer_pos + 5], 0, SHA256_DIGEST_SIZE);
+    }
+
+    output_data[buffer_pos] = flags;
+    ++buffer_pos;
+    SDLNet_Write32((int32_t)size, &output_data[buffer_pos]); //size of our copy
+    buffer_pos += 4 + SHA256_DIGEST_SIZE;
+
+    SDLNet_TCP_Send(l_tcpSocket, &output_data[0], buffer_pos);
+    free(output_data);
+
+    uint8_t status;
+    if (!netplay_tcp_recv_all(&status, 1))
+    {
+        DebugMessage(M64MSG_ERROR, "Netplay: lost connection to server");
+        memset(data, 0, size);
+        return file_open_error;
+    }
+
+    switch (status)
+    {
+        case SAVE_STATUS_IDENTICAL:
+            //data already holds our copy
+            break;
+        case SAVE_STATUS_RAW:
+        case SAVE_STATUS_DEFLATE:
+            if (!netplay_receive_save_contents(status, data, size))
+            {
+                DebugMessage(M64MSG_ERROR, "Netplay: unable to receive save file %s", short_filename);
+                memset(data, 0, size);
+            }
+            break;
+        case SAVE_STATUS_NOT_AVAILABLE:
+            DebugMessage(M64MSG_ERROR, "Netplay: server doesn't have save file %s", short_filename);
+            memset(data, 0, size);
+            break;
+        default:
+            DebugMessage(M64MSG_ERROR, "Netplay: received unknown save file status from server");
+            memset(data, 0, size);
+            break;
+    }
+
+    int sum = 0;
+    const char *data_array = data;
+    for (size_t i = 0; i < size; ++i)
+        sum |= data_array[i];
+
+    if (sum == 0) //all zeros means there is no save file
+        return file_open_error;
+    else
+        return file_ok;
+}
+
 file_status_t netplay_read_storage(const char *filename, void *data, size_t size)
 {
     //This function syncs save games.
@@ -444,57 +683,19 @@ file_status_t netplay_read_storage(const char *filename, void *data, size_t size
         short_filename = strrchr(filename, '\\');
     short_filename += 1;
 
-    uint32_t buffer_pos = 0;
-    char *output_data = malloc(size + strlen(short_filename) + 6);
-
     file_status_t ret;
-    uint8_t request;
     if (l_netplay_control[0] != -1)
     {
-        request = TCP_SEND_SAVE;
-        memcpy(&output_data[buffer_pos], &request, 1);
-        ++buffer_pos;
-
-         //send file name
-        memcpy(&output_data[buffer_pos], short_filename, strlen(short_filename) + 1);
-        buffer_pos += strlen(short_filename) + 1;
-
         ret = read_from_file(filename, data, size);
         if (ret == file_open_error)
             memset(data, 0, size); //all zeros means there is no save file
-        SDLNet_Write32((int32_t)size, &output_data[buffer_pos]); //file data size
-        buffer_pos += 4;
-        memcpy(&output_data[buffer_pos], data, size); //file data
-        buffer_pos += size;
 
-        SDLNet_TCP_Send(l_tcpSocket, &output_data[0], buffer_pos);
+        netplay_send_save(short_filename, data, size);
     }
     else
     {
-        request = TCP_RECEIVE_SAVE;
-        memcpy(&output_data[buffer_pos], &request, 1);
-        ++buffer_pos;
-
-        //name of the file we are requesting
-        memcpy(&output_data[buffer_pos], short_filename, strlen(short_filename) + 1);
-        buffer_pos += strlen(short_filename) + 1;
-
-        SDLNet_TCP_Send(l_tcpSocket, &output_data[0], buffer_pos);
-        size_t recv = 0;
-        char *data_array = data;
-        while (recv < size)
-            recv += SDLNet_TCP_Recv(l_tcpSocket, data_array + recv, size - recv);
-
-        int sum = 0;
-        for (int i = 0; i < size; ++i)
-            sum |= data_array[i];
-
-        if (sum == 0) //all zeros means there is no save file
-            ret = file_open_error;
-        else
-            ret = file_ok;
+        ret = netplay_receive_save(filename, short_filename, data, size);
     }
-    free(output_data);
     return ret;
 }
 
@@ -546,7 +747,7 @@ void netplay_check_sync(struct cp0* cp0)
 
     if (l_vi_counter % 60 == 0)
     {
-        uint32_t packet_len = (CP0_REGS_COUNT * 4) + 5;
+        uint32_t packet_len = (CP0_REGS_COUNT * 4) + 9;
         UDPpacket *packet = SDLNet_AllocPacket(packet_len);
         packet->data[0] = UDP_SYNC_DATA;
         SDLNet_Write32(l_vi_counter, &packet->data[1]); //current VI count
@@ -554,6 +755,7 @@ void netplay_check_sync(struct cp0* cp0)
         {
             SDLNet_Write32(cp0_regs[i], &packet->data[(i * 4) + 5]);
         }
+        SDLNet_Write32(l_reg_id, &packet->data[(CP0_REGS_COUNT * 4) + 5]); //our registration ID
         packet->len = packet_len;
         SDLNet_UDP_Send(l_udpSocket, l_udpChannel, packet);
         SDLNet_FreePacket(packet);
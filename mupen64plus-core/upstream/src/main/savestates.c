@@ -65,6 +65,10 @@ static savestates_job job = savestates_job_nothing;
 static savestates_type type = savestates_type_unknown;
 static char *fname = NULL;
 
+/* Caller provided buffer of savestates_type_m64p_memory jobs */
+static void *membuf = NULL;
+static size_t membuf_capacity = 0;
+
 static unsigned int slot = 0;
 static int autoinc_save_slot = 0;
 
@@ -161,6 +165,17 @@ void savestates_set_job(savestates_job j, savestates_type t, const char *fn)
     type = t;
     if (fn != NULL)
         fname = strdup(fn);
+
+    membuf = NULL;
+    membuf_capacity = 0;
+}
+
+void savestates_set_memory_job(savestates_job j, void *buffer, size_t capacity)
+{
+    savestates_set_job(j, savestates_type_m64p_memory, NULL);
+
+    membuf = buffer;
+    membuf_capacity = capacity;
 }
 
 static void savestates_clear_job(void)
@@ -183,124 +198,46 @@ static void savestates_clear_job(void)
 #define PUTDATA(buff, type, value) \
     do { type x = value; PUTARRAY(&x, buff, type, 1); } while(0)
 
-static int savestates_load_m64p(struct device* dev, char *filepath)
+/* Check the magic number, version and ROM of a Mupen64Plus savestate header.
+   Returns 0 if the savestate can't be loaded. */
+static int savestates_check_m64p_header(const unsigned char *header, const char *source, unsigned int *version)
 {
-    unsigned char header[44];
-    gzFile f;
-    unsigned int version;
-    int i;
-    uint32_t FCR31;
-
-    size_t savestateSize;
-    unsigned char *savestateData, *curr;
-    char queue[1024];
-    unsigned char using_tlb_data[4];
-    unsigned char data_0001_0200[4096]; // 4k for extra state from v1.2
-
-    uint32_t* cp0_regs = r4300_cp0_regs(&dev->r4300.cp0);
-
-    SDL_LockMutex(savestates_lock);
-
-    f = osal_gzopen(filepath, "rb");
-    if(f==NULL)
-    {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not open state file: %s", filepath);
-        SDL_UnlockMutex(savestates_lock);
-        return 0;
-    }
-
-    /* Read and check Mupen64Plus magic number. */
-    if (gzread(f, header, 44) != 44)
-    {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read header from state file %s", filepath);
-        gzclose(f);
-        SDL_UnlockMutex(savestates_lock);
-        return 0;
-    }
-    curr = header;
+    const unsigned char *curr = header;
 
-    if(strncmp((char *)curr, savestate_magic, 8)!=0)
+    if(strncmp((const char *)curr, savestate_magic, 8)!=0)
     {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State file: %s is not a valid Mupen64plus savestate.", filepath);
-        gzclose(f);
-        SDL_UnlockMutex(savestates_lock);
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State file: %s is not a valid Mupen64plus savestate.", source);
         return 0;
     }
     curr += 8;
 
-    version = *curr++;
-    version = (version << 8) | *curr++;
-    version = (version << 8) | *curr++;
-    version = (version << 8) | *curr++;
-    if((version >> 16) != (savestate_latest_version >> 16))
+    *version = *curr++;
+    *version = (*version << 8) | *curr++;
+    *version = (*version << 8) | *curr++;
+    *version = (*version << 8) | *curr++;
+    if((*version >> 16) != (savestate_latest_version >> 16))
     {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State version (%08x) isn't compatible. Please update Mupen64Plus.", version);
-        gzclose(f);
-        SDL_UnlockMutex(savestates_lock);
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State version (%08x) isn't compatible. Please update Mupen64Plus.", *version);
         return 0;
     }
 
-    if(memcmp((char *)curr, ROM_SETTINGS.MD5, 32))
+    if(memcmp((const char *)curr, ROM_SETTINGS.MD5, 32))
     {
         main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State ROM MD5 does not match current ROM.");
-        gzclose(f);
-        SDL_UnlockMutex(savestates_lock);
         return 0;
     }
-    curr += 32;
 
-    /* Read the rest of the savestate */
-    savestateSize = 16788244;
-    savestateData = curr = (unsigned char *)malloc(savestateSize);
-    if (savestateData == NULL)
-    {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to load state.");
-        gzclose(f);
-        SDL_UnlockMutex(savestates_lock);
-        return 0;
-    }
-    if (version == 0x00010000) /* original savestate version */
-    {
-        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
-            (gzread(f, queue, sizeof(queue)) % 4) != 0)
-        {
-            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.0 data from %s", filepath);
-            free(savestateData);
-            gzclose(f);
-            SDL_UnlockMutex(savestates_lock);
-            return 0;
-        }
-    }
-    else if (version == 0x00010100) // saves entire eventqueue plus 4-byte using_tlb flags
-    {
-        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
-            gzread(f, queue, sizeof(queue)) != sizeof(queue) ||
-            gzread(f, using_tlb_data, sizeof(using_tlb_data)) != sizeof(using_tlb_data))
-        {
-            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.1 data from %s", filepath);
-            free(savestateData);
-            gzclose(f);
-            SDL_UnlockMutex(savestates_lock);
-            return 0;
-        }
-    }
-    else // version >= 0x00010200  saves entire eventqueue, 4-byte using_tlb flags and extra state
-    {
-        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
-            gzread(f, queue, sizeof(queue)) != sizeof(queue) ||
-            gzread(f, using_tlb_data, sizeof(using_tlb_data)) != sizeof(using_tlb_data) ||
-            gzread(f, data_0001_0200, sizeof(data_0001_0200)) != sizeof(data_0001_0200))
-        {
-            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.2+ data from %s", filepath);
-            free(savestateData);
-            gzclose(f);
-            SDL_UnlockMutex(savestates_lock);
-            return 0;
-        }
-    }
+    return 1;
+}
 
-    gzclose(f);
-    SDL_UnlockMutex(savestates_lock);
+/* Restore the device from the data that follows the header of a Mupen64Plus savestate */
+static void savestates_apply_m64p(struct device* dev, unsigned int version, unsigned char *curr, char *queue,
+                                  unsigned char *using_tlb_data, unsigned char *data_0001_0200)
+{
+    int i;
+    uint32_t FCR31;
+
+    uint32_t* cp0_regs = r4300_cp0_regs(&dev->r4300.cp0);
 
     // Parse savestate
     dev->rdram.regs[0][RDRAM_CONFIG_REG]       = GETDATA(curr, uint32_t);
@@ -954,6 +891,101 @@ static int savestates_load_m64p(struct device* dev, char *filepath)
 
     *r4300_cp0_last_addr(&dev->r4300.cp0) = *r4300_pc(&dev->r4300);
 
+}
+
+static int savestates_load_m64p(struct device* dev, char *filepath)
+{
+    unsigned char header[44];
+    gzFile f;
+    unsigned int version;
+
+    size_t savestateSize;
+    unsigned char *savestateData;
+    char queue[1024];
+    unsigned char using_tlb_data[4];
+    unsigned char data_0001_0200[4096]; // 4k for extra state from v1.2
+
+    SDL_LockMutex(savestates_lock);
+
+    f = osal_gzopen(filepath, "rb");
+    if(f==NULL)
+    {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not open state file: %s", filepath);
+        SDL_UnlockMutex(savestates_lock);
+        return 0;
+    }
+
+    /* Read and check Mupen64Plus magic number. */
+    if (gzread(f, header, 44) != 44)
+    {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read header from state file %s", filepath);
+        gzclose(f);
+        SDL_UnlockMutex(savestates_lock);
+        return 0;
+    }
+
+    if (!savestates_check_m64p_header(header, filepath, &version))
+    {
+        gzclose(f);
+        SDL_UnlockMutex(savestates_lock);
+        return 0;
+    }
+
+    /* Read the rest of the savestate */
+    savestateSize = M64P_SAVESTATE_DATA_SIZE;
+    savestateData = (unsigned char *)malloc(savestateSize);
+    if (savestateData == NULL)
+    {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to load state.");
+        gzclose(f);
+        SDL_UnlockMutex(savestates_lock);
+        return 0;
+    }
+    if (version == 0x00010000) /* original savestate version */
+    {
+        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
+            (gzread(f, queue, sizeof(queue)) % 4) != 0)
+        {
+            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.0 data from %s", filepath);
+            free(savestateData);
+            gzclose(f);
+            SDL_UnlockMutex(savestates_lock);
+            return 0;
+        }
+    }
+    else if (version == 0x00010100) // saves entire eventqueue plus 4-byte using_tlb flags
+    {
+        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
+            gzread(f, queue, sizeof(queue)) != sizeof(queue) ||
+            gzread(f, using_tlb_data, sizeof(using_tlb_data)) != sizeof(using_tlb_data))
+        {
+            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.1 data from %s", filepath);
+            free(savestateData);
+            gzclose(f);
+            SDL_UnlockMutex(savestates_lock);
+            return 0;
+        }
+    }
+    else // version >= 0x00010200  saves entire eventqueue, 4-byte using_tlb flags and extra state
+    {
+        if (gzread(f, savestateData, savestateSize) != (int)savestateSize ||
+            gzread(f, queue, sizeof(queue)) != sizeof(queue) ||
+            gzread(f, using_tlb_data, sizeof(using_tlb_data)) != sizeof(using_tlb_data) ||
+            gzread(f, data_0001_0200, sizeof(data_0001_0200)) != sizeof(data_0001_0200))
+        {
+            main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Could not read Mupen64Plus savestate 1.2+ data from %s", filepath);
+            free(savestateData);
+            gzclose(f);
+            SDL_UnlockMutex(savestates_lock);
+            return 0;
+        }
+    }
+
+    gzclose(f);
+    SDL_UnlockMutex(savestates_lock);
+
+    savestates_apply_m64p(dev, version, savestateData, queue, using_tlb_data, data_0001_0200);
+
     free(savestateData);
     main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "State loaded from: %s", namefrompath(filepath));
     return 1;
@@ -1406,12 +1438,45 @@ static savestates_type savestates_detect_type(char *filepath)
     }
 }
 
+/* Load a savestate written by savestates_save_m64p_memory. The buffer is used in place and
+   isn't modified on little endian hosts, so it can be loaded again. */
+static int savestates_load_m64p_memory(struct device* dev)
+{
+    unsigned char *data = (unsigned char *)membuf;
+    unsigned int version;
+
+    if (data == NULL || membuf_capacity < M64P_SAVESTATE_SIZE)
+    {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Savestate buffer is too small.");
+        return 0;
+    }
+
+    if (!savestates_check_m64p_header(data, "memory", &version))
+        return 0;
+
+    data += M64P_SAVESTATE_HEADER_SIZE;
+    savestates_apply_m64p(dev, version, data, (char *)data + M64P_SAVESTATE_DATA_SIZE,
+                          data + M64P_SAVESTATE_DATA_SIZE + 1024, data + M64P_SAVESTATE_DATA_SIZE + 1024 + 4);
+    return 1;
+}
+
 int savestates_load(void)
 {
     FILE *fPtr = NULL;
     char *filepath = NULL;
     int ret = 0;
 
+    if (type == savestates_type_m64p_memory)
+    {
+        ret = savestates_load_m64p_memory(&g_dev);
+
+        // deliver callback to indicate completion of state loading operation
+        StateChanged(M64CORE_STATE_LOADCOMPLETE, ret);
+
+        savestates_clear_job();
+        return ret;
+    }
+
     if (fname == NULL) // For slots, autodetect the savestate type
     {
         // try M64P type first
@@ -1522,45 +1587,19 @@ static void savestates_save_m64p_work(struct work_struct *work)
     SDL_UnlockMutex(savestates_lock);
 }
 
-static int savestates_save_m64p(const struct device* dev, char *filepath)
+/* Write a Mupen64Plus savestate to a buffer of M64P_SAVESTATE_SIZE zeroed bytes */
+static void savestates_write_m64p(const struct device* dev, char *curr)
 {
     unsigned char outbuf[4];
     int i;
 
     char queue[1024];
 
-    struct savestate_work *save;
-    char *curr;
-
     /* OK to cast away const qualifier */
     const uint32_t* cp0_regs = r4300_cp0_regs((struct cp0*)&dev->r4300.cp0);
 
-    save = malloc(sizeof(*save));
-    if (!save) {
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to save state.");
-        return 0;
-    }
-
-    save->filepath = strdup(filepath);
-
-    if(autoinc_save_slot)
-        savestates_inc_slot();
-
     save_eventqueue_infos(&dev->r4300.cp0, queue);
 
-    // Allocate memory for the save state data
-    save->size = 16788288 + sizeof(queue) + 4 + 4096;
-    save->data = curr = malloc(save->size);
-    if (save->data == NULL)
-    {
-        free(save->filepath);
-        free(save);
-        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to save state.");
-        return 0;
-    }
-
-    memset(save->data, 0, save->size);
-
     // Write the save state data to memory
     PUTARRAY(savestate_magic, curr, unsigned char, 8);
 
@@ -1927,6 +1966,38 @@ static int savestates_save_m64p(const struct device* dev, char *filepath)
     PUTDATA(curr, uint16_t, dev->cart.flashram.erase_page);
     PUTDATA(curr, uint16_t, dev->cart.flashram.mode);
 
+}
+
+static int savestates_save_m64p(const struct device* dev, char *filepath)
+{
+    struct savestate_work *save;
+
+    save = malloc(sizeof(*save));
+    if (!save) {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to save state.");
+        return 0;
+    }
+
+    save->filepath = strdup(filepath);
+
+    if(autoinc_save_slot)
+        savestates_inc_slot();
+
+    // Allocate memory for the save state data
+    save->size = M64P_SAVESTATE_SIZE;
+    save->data = malloc(save->size);
+    if (save->data == NULL)
+    {
+        free(save->filepath);
+        free(save);
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Insufficient memory to save state.");
+        return 0;
+    }
+
+    memset(save->data, 0, save->size);
+
+    savestates_write_m64p(dev, save->data);
+
     init_work(&save->work, savestates_save_m64p_work);
     queue_work(&save->work);
 
@@ -2181,12 +2252,38 @@ static int savestates_save_pj64_unc(const struct device* dev, char *filepath)
     return 1;
 }
 
+/* Write a savestate to the caller provided buffer, unlike file savestates this is done
+   synchronously and without compression */
+static int savestates_save_m64p_memory(const struct device* dev)
+{
+    if (membuf == NULL || membuf_capacity < M64P_SAVESTATE_SIZE)
+    {
+        main_message(M64MSG_STATUS, OSD_BOTTOM_LEFT, "Savestate buffer is too small.");
+        return 0;
+    }
+
+    memset(membuf, 0, M64P_SAVESTATE_SIZE);
+    savestates_write_m64p(dev, (char *)membuf);
+    return 1;
+}
+
 int savestates_save(void)
 {
     char *filepath;
     int ret = 0;
     const struct device* dev = &g_dev;
 
+    if (type == savestates_type_m64p_memory)
+    {
+        ret = savestates_save_m64p_memory(dev);
+
+        // deliver callback to indicate completion of state saving operation
+        StateChanged(M64CORE_STATE_SAVECOMPLETE, ret);
+
+        savestates_clear_job();
+        return ret;
+    }
+
     /* Can only save PJ64 savestates on VI / COMPARE interrupt.
        Otherwise try again in a little while. */
     if ((type == savestates_type_pj64_zip ||
@@ -25,6 +25,8 @@
 #ifndef __SAVESTAVES_H__
 #define __SAVESTAVES_H__
 
+#include <stddef.h>
+
 typedef enum _savestates_job
 {
     savestates_job_nothing,
@@ -37,11 +39,19 @@ typedef enum _savestates_type
     savestates_type_unknown,
     savestates_type_m64p,
     savestates_type_pj64_zip,
-    savestates_type_pj64_unc
+    savestates_type_pj64_unc,
+    savestates_type_m64p_memory
 } savestates_type;
 
+/* Size of an uncompressed Mupen64Plus savestate: header, state, event queue,
+   using_tlb flag and extra state */
+#define M64P_SAVESTATE_HEADER_SIZE 44
+#define M64P_SAVESTATE_DATA_SIZE 16788244
+#define M64P_SAVESTATE_SIZE (M64P_SAVESTATE_HEADER_SIZE + M64P_SAVESTATE_DATA_SIZE + 1024 + 4 + 4096)
+
 savestates_job savestates_get_job(void);
 void savestates_set_job(savestates_job j, savestates_type t, const char *fn);
+void savestates_set_memory_job(savestates_job j, void *buffer, size_t capacity);
 void savestates_init(void);
 void savestates_deinit(void);
 
@@ -0,0 +1,130 @@
+/*
+  SHA-256 (FIPS 180-4) for checking the contents of netplay save files.
+
+  This file is in the public domain. Anyone may use, modify and
+  redistribute it, with or without modification and for any purpose.
+ */
+
+#include "sha256.h"
+
+#include <string.h>
+
+static const uint32_t k[64] = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+};
+
+#define ROTR(x, n) (((x) >> (n)) | ((x) << (32 - (n))))
+
+static void sha256_process(sha256_state_t *pss, const uint8_t *block)
+{
+    uint32_t w[64];
+    uint32_t a, b, c, d, e, f, g, h;
+    int i;
+
+    for (i = 0; i < 16; ++i)
+        w[i] = ((uint32_t)block[i * 4] << 24) | ((uint32_t)block[i * 4 + 1] << 16) |
+               ((uint32_t)block[i * 4 + 2] << 8) | (uint32_t)block[i * 4 + 3];
+
+    for (i = 16; i < 64; ++i)
+    {
+        uint32_t s0 = ROTR(w[i - 15], 7) ^ ROTR(w[i - 15], 18) ^ (w[i - 15] >> 3);
+        uint32_t s1 = ROTR(w[i - 2], 17) ^ ROTR(w[i - 2], 19) ^ (w[i - 2] >> 10);
+        w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+    }
+
+    a = pss->h[0]; b = pss->h[1]; c = pss->h[2]; d = pss->h[3];
+    e = pss->h[4]; f = pss->h[5]; g = pss->h[6]; h = pss->h[7];
+
+    for (i = 0; i < 64; ++i)
+    {
+        uint32_t s1 = ROTR(e, 6) ^ ROTR(e, 11) ^ ROTR(e, 25);
+        uint32_t ch = (e & f) ^ (~e & g);
+        uint32_t t1 = h + s1 + ch + k[i] + w[i];
+        uint32_t s0 = ROTR(a, 2) ^ ROTR(a, 13) ^ ROTR(a, 22);
+        uint32_t maj = (a & b) ^ (a & c) ^ (b & c);
+        uint32_t t2 = s0 + maj;
+
+        h = g; g = f; f = e; e = d + t1;
+        d = c; c = b; b = a; a = t1 + t2;
+    }
+
+    pss->h[0] += a; pss->h[1] += b; pss->h[2] += c; pss->h[3] += d;
+    pss->h[4] += e; pss->h[5] += f; pss->h[6] += g; pss->h[7] += h;
+}
+
+void sha256_init(sha256_state_t *pss)
+{
+    pss->h[0] = 0x6a09e667; pss->h[1] = 0xbb67ae85; pss->h[2] = 0x3c6ef372; pss->h[3] = 0xa54ff53a;
+    pss->h[4] = 0x510e527f; pss->h[5] = 0x9b05688c; pss->h[6] = 0x1f83d9ab; pss->h[7] = 0x5be0cd19;
+    pss->count = 0;
+}
+
+void sha256_append(sha256_state_t *pss, const void *data, size_t nbytes)
+{
+    const uint8_t *p = data;
+    size_t offset = (size_t)(pss->count % 64);
+
+    pss->count += nbytes;
+
+    /* Complete a partial block first */
+    if (offset != 0)
+    {
+        size_t copy = 64 - offset < nbytes ? 64 - offset : nbytes;
+        memcpy(pss->buf + offset, p, copy);
+        p += copy;
+        nbytes -= copy;
+
+        if (offset + copy < 64)
+            return;
+        sha256_process(pss, pss->buf);
+    }
+
+    for (; nbytes >= 64; p += 64, nbytes -= 64)
+        sha256_process(pss, p);
+
+    if (nbytes != 0)
+        memcpy(pss->buf, p, nbytes);
+}
+
+void sha256_finish(sha256_state_t *pss, uint8_t digest[SHA256_DIGEST_SIZE])
+{
+    const uint64_t bits = pss->count * 8;
+    size_t offset = (size_t)(pss->count % 64);
+    int i;
+
+    /* Pad with a one bit and zeros, then end with the message length in bits */
+    pss->buf[offset++] = 0x80;
+    if (offset > 56)
+    {
+        memset(pss->buf + offset, 0, 64 - offset);
+        sha256_process(pss, pss->buf);
+        offset = 0;
+    }
+    memset(pss->buf + offset, 0, 56 - offset);
+    for (i = 0; i < 8; ++i)
+        pss->buf[56 + i] = (uint8_t)(bits >> (56 - i * 8));
+    sha256_process(pss, pss->buf);
+
+    for (i = 0; i < 8; ++i)
+    {
+        digest[i * 4] = (uint8_t)(pss->h[i] >> 24);
+        digest[i * 4 + 1] = (uint8_t)(pss->h[i] >> 16);
+        digest[i * 4 + 2] = (uint8_t)(pss->h[i] >> 8);
+        digest[i * 4 + 3] = (uint8_t)pss->h[i];
+    }
+}
+
+void sha256(const void *data, size_t nbytes, uint8_t digest[SHA256_DIGEST_SIZE])
+{
+    sha256_state_t state;
+    sha256_init(&state);
+    sha256_append(&state, data, nbytes);
+    sha256_finish(&state, digest);
+}
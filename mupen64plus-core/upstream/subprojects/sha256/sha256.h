@@ -0,0 +1,44 @@
+/*
+  SHA-256 (FIPS 180-4) for checking the contents of netplay save files.
+
+  This file is in the public domain. Anyone may use, modify and
+  redistribute it, with or without modification and for any purpose.
+ */
+
+#ifndef sha256_INCLUDED
+#  define sha256_INCLUDED
+
+#include <stddef.h>
+#include <stdint.h>
+
+#define SHA256_DIGEST_SIZE 32
+
+/* Define the state of the SHA-256 Algorithm. */
+typedef struct sha256_state_s {
+    uint32_t h[8];          /* digest buffer */
+    uint64_t count;         /* message length in bytes */
+    uint8_t buf[64];        /* accumulate block */
+} sha256_state_t;
+
+#ifdef __cplusplus
+extern "C"
+{
+#endif
+
+/* Initialize the algorithm. */
+void sha256_init(sha256_state_t *pss);
+
+/* Append data to the message. */
+void sha256_append(sha256_state_t *pss, const void *data, size_t nbytes);
+
+/* Finish the message and return the digest. */
+void sha256_finish(sha256_state_t *pss, uint8_t digest[SHA256_DIGEST_SIZE]);
+
+/* Digest of a whole buffer at once. */
+void sha256(const void *data, size_t nbytes, uint8_t digest[SHA256_DIGEST_SIZE]);
+
+#ifdef __cplusplus
+}  /* end extern "C" */
+#endif
+
+#endif /* sha256_INCLUDED */